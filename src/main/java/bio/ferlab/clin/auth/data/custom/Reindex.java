@@ -0,0 +1,19 @@
+package bio.ferlab.clin.auth.data.custom;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+public class Reindex extends Resource {
+
+    @Override
+    public Resource copy() {
+        Reindex res = new Reindex();
+        super.copyValues(res);
+        return res;
+    }
+
+    @Override
+    public ResourceType getResourceType() {
+        return null;
+    }
+}
@@ -0,0 +1,77 @@
+package bio.ferlab.clin.es;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Opens after consecutive failures, the calls are then refused without waiting for a timeout. Once the open duration
+ * is elapsed a single call goes through (half-open), its success closes the breaker and its failure re-opens it.
+ * A threshold of 0 disables the breaker.
+ */
+public class CircuitBreaker {
+
+  private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+  public enum State {
+    closed, open, half_open
+  }
+
+  private final int failureThreshold;
+  private final long openDuration;
+  private final LongSupplier clock;
+
+  private State state = State.closed;
+  private int failures = 0;
+  private long openedAt = 0;
+
+  public CircuitBreaker(int failureThreshold, long openDuration) {
+    this(failureThreshold, openDuration, System::currentTimeMillis);
+  }
+
+  public CircuitBreaker(int failureThreshold, long openDuration, LongSupplier clock) {
+    this.failureThreshold = failureThreshold;
+    this.openDuration = openDuration;
+    this.clock = clock;
+  }
+
+  public synchronized boolean allowRequest() {
+    switch (state) {
+      case closed:
+        return true;
+      case open:
+        if (clock.getAsLong() - openedAt >= openDuration) {
+          state = State.half_open;
+          return true;
+        }
+        return false;
+      default:
+        // the trial call hasn't answered yet
+        return false;
+    }
+  }
+
+  public synchronized void onSuccess() {
+    if (!State.closed.equals(state)) {
+      log.info("ES is back, close the circuit breaker");
+    }
+    state = State.closed;
+    failures = 0;
+  }
+
+  public synchronized void onFailure() {
+    failures++;
+    if (failureThreshold > 0 && (State.half_open.equals(state) || failures >= failureThreshold)) {
+      if (!State.open.equals(state)) {
+        log.warn("ES unavailable after {} failures, open the circuit breaker for {} ms", failures, openDuration);
+      }
+      state = State.open;
+      openedAt = clock.getAsLong();
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+}
@@ -2,21 +2,34 @@ package bio.ferlab.clin.es;
 
 import bio.ferlab.clin.es.data.Actions;
 import bio.ferlab.clin.es.data.ElasticsearchData;
+import bio.ferlab.clin.es.journal.ElasticsearchJournal;
 import bio.ferlab.clin.utils.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpMethod;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
-@RequiredArgsConstructor
 public class ElasticsearchRestClient {
     private static final Logger log = LoggerFactory.getLogger(ElasticsearchRestClient.class);
     public static final String FAILED_TO_CREATE_INDEX = "Failed to create index";
@@ -26,8 +39,44 @@ public class ElasticsearchRestClient {
     public static final String FAILED_TO_SAVE_RESOURCE = "Failed to save resource";
     public static final String FAILED_TO_INDEX_TEMPLATE = "Failed to index template";
     public static final String FAILED_TO_DELETE_RESOURCE = "Failed to delete resource";
+    public static final String FAILED_TO_BULK_RESOURCES = "Failed to bulk resources";
+    public static final String FAILED_TO_GET_RESOURCES = "Failed to get resources";
+    public static final String FAILED_TO_UPDATE_SETTINGS = "Failed to update settings";
+    public static final String FAILED_TO_REFRESH_INDEX = "Failed to refresh index";
+    public static final String FAILED_TO_FORCE_MERGE = "Failed to force merge";
+    public static final String ES_UNAVAILABLE = "Elasticsearch unavailable";
+    public static final String FAILED_TO_SEARCH = "Failed to search";
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+    // a version equal to the current one is accepted, the same inputs can be re-written (ex: template changed)
+    private static final String VERSION_TYPE = "external_gte";
+    private static final String VERSION_CONFLICT = "version_conflict_engine_exception";
     private final ElasticsearchData data;
     private final JsonGenerator jsonGenerator;
+    private final int bulkMaxActions;
+    private final long bulkMaxBytes;
+    // bounds the async requests sent at the same time, the caller waits for a slot
+    private final Semaphore inFlight;
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    // writes rejected by ES because the document has a more recent version
+    private final AtomicLong versionConflicts = new AtomicLong();
+    // connection failures open the breaker, the document writes are then journaled and replayed when ES is back
+    private final CircuitBreaker breaker;
+    private final ElasticsearchJournal journal;
+
+    public ElasticsearchRestClient(ElasticsearchData data, JsonGenerator jsonGenerator, int bulkMaxActions, long bulkMaxBytes, int maxInFlight) {
+        this(data, jsonGenerator, bulkMaxActions, bulkMaxBytes, maxInFlight, new CircuitBreaker(0, 0), new ElasticsearchJournal(null, 0));
+    }
+
+    public ElasticsearchRestClient(ElasticsearchData data, JsonGenerator jsonGenerator, int bulkMaxActions, long bulkMaxBytes, int maxInFlight,
+                                   CircuitBreaker breaker, ElasticsearchJournal journal) {
+        this.data = data;
+        this.jsonGenerator = jsonGenerator;
+        this.bulkMaxActions = bulkMaxActions;
+        this.bulkMaxBytes = bulkMaxBytes;
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.breaker = breaker;
+        this.journal = journal;
+    }
 
     public void createIndex(String index) {
         log.info("Create index: {}", index);
@@ -35,7 +84,7 @@ public class ElasticsearchRestClient {
             final Request request = new Request(
               HttpMethod.PUT.name(), String.format("/%s", index)
             );
-            this.data.client.performRequest(request);
+            this.perform(request);
         } catch (IOException e) {
             if (e instanceof  ResponseException && e.getMessage().contains("resource_already_exists_exception")) {
                 log.warn("Index already exists: {}", index);
@@ -47,15 +96,9 @@ public class ElasticsearchRestClient {
     }
 
     public Map<String, String> aliases() {
-        log.info("Get aliases");
         Map<String, String> aliases = new TreeMap<>();
         try {
-            final Request request = new Request(
-              HttpMethod.GET.name(), "_cat/aliases"
-            );
-            final Response response = this.data.client.performRequest(request);
-            final String body = EntityUtils.toString(response.getEntity());
-            Arrays.stream(body.split("\n")).map(line -> line.split("\\s+")).filter(a -> a.length >= 2).forEach(e -> aliases.put(e[0], e[1]));
+            aliases.putAll(parseAliases(this.perform(aliasesRequest())));
         } catch (IOException e) {
             log.error(e.getLocalizedMessage());
             throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_GET_ALIASES);
@@ -64,18 +107,8 @@ public class ElasticsearchRestClient {
     }
 
     public void setAlias(List<String> add, List<String> remove, String alias) {
-        log.info("Set alias: {} add: {} remove: {}", alias, add, remove);
         try {
-
-            final Actions actions = new Actions();
-            remove.forEach(r-> actions.getActions().add(new Actions.ActionRemove(r, alias)));
-            add.forEach(r-> actions.getActions().add(new Actions.ActionAdd(r, alias)));
-
-            final Request request = new Request(
-              HttpMethod.POST.name(), "/_aliases"
-            );
-            request.setJsonEntity(jsonGenerator.toString(actions));
-            this.data.client.performRequest(request);
+            this.perform(setAliasRequest(add, remove, alias));
         } catch (IOException e) {
             log.error(e.getLocalizedMessage());
             throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_SET_ALIAS);
@@ -83,18 +116,18 @@ public class ElasticsearchRestClient {
     }
 
      public void index(String index, IndexData data) {
-        final String id = data.id;
-        log.info(String.format("Indexing resource id[%s]", id));
+        final Supplier<List<byte[]>> lines = () -> List.of(toNdjson(BulkAction.index(index, data)));
+        if (spillIfUnavailable(lines)) {
+            return;
+        }
         try {
-            final Request request = new Request(
-                    HttpMethod.PUT.name(),
-                    String.format("/%s/_doc/%s", index, id)
-            );
-            request.setJsonEntity(data.jsonContent);
-            this.data.client.performRequest(request);
+            this.perform(indexRequest(index, data));
         } catch (IOException e) {
-            log.error(e.getLocalizedMessage());
-            throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_SAVE_RESOURCE);
+            // same as bulk(): unreachable or overloaded (429, 5xx) is journaled
+            if (!isVersionConflict(e, index, data.id) && !(isUnavailable(e) && spill(lines))) {
+                log.error(e.getLocalizedMessage());
+                throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_SAVE_RESOURCE);
+            }
         }
     }
 
@@ -106,13 +139,49 @@ public class ElasticsearchRestClient {
                 String.format("/_index_template/%s",templateName)
             );
             request.setJsonEntity(templateContent);
-            this.data.client.performRequest(request);
+            this.perform(request);
         } catch (IOException e) {
             log.error(e.getLocalizedMessage());
             throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_INDEX_TEMPLATE);
         }
     }
 
+    /**
+     * Update the dynamic settings of an index, a null value resets the setting to its default.
+     */
+    public void updateSettings(String index, Map<String, Object> settings) {
+        log.info("Update settings of index: {} {}", index, settings);
+        try {
+            final Request request = new Request(HttpMethod.PUT.name(), String.format("/%s/_settings", index));
+            request.setJsonEntity(jsonGenerator.toString(Map.of("index", settings)));
+            this.perform(request);
+        } catch (IOException e) {
+            log.error(e.getLocalizedMessage());
+            throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_UPDATE_SETTINGS);
+        }
+    }
+
+    public void refresh(String index) {
+        try {
+            this.perform(new Request(HttpMethod.POST.name(), String.format("/%s/_refresh", index)));
+        } catch (IOException e) {
+            log.error(e.getLocalizedMessage());
+            throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_REFRESH_INDEX);
+        }
+    }
+
+    public void forceMerge(String index, int maxNumSegments) {
+        log.info("Force merge index: {} to {} segment(s)", index, maxNumSegments);
+        try {
+            final Request request = new Request(HttpMethod.POST.name(), String.format("/%s/_forcemerge", index));
+            request.addParameter("max_num_segments", String.valueOf(maxNumSegments));
+            this.perform(request);
+        } catch (IOException e) {
+            log.error(e.getLocalizedMessage());
+            throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_FORCE_MERGE);
+        }
+    }
+
     public void delete(List<String> indexes) {
         final String joined = StringUtils.join(indexes, ",");
         log.info(String.format("Deleting index [%s]", joined));
@@ -121,7 +190,7 @@ public class ElasticsearchRestClient {
               HttpMethod.DELETE.name(),
               String.format("/%s?ignore_unavailable=true", joined)
             );
-            this.data.client.performRequest(request);
+            this.perform(request);
         } catch (IOException e) {
             log.error(e.getLocalizedMessage());
             throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_DELETE_INDEX);
@@ -129,32 +198,665 @@ public class ElasticsearchRestClient {
     }
 
     public void delete(String index, String id) {
-        log.info(String.format("Deleting resource id[%s]", id));
+        final Supplier<List<byte[]>> lines = () -> List.of(toNdjson(BulkAction.delete(index, id)));
+        if (spillIfUnavailable(lines)) {
+            return;
+        }
         try {
-            final Request request = new Request(
-                    HttpMethod.DELETE.name(),
-                    String.format("/%s/_doc/%s", index, id)
-            );
-            this.data.client.performRequest(request);
+            this.perform(deleteRequest(index, id));
+        } catch (IOException e) {
+            if (!isNotFound(e) && !(isUnavailable(e) && spill(lines))) {
+                log.error(e.getLocalizedMessage());
+                throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_DELETE_RESOURCE);
+            }
+        }
+    }
+
+    /**
+     * Value of a single field of the documents (multi-get), documents not found or without that field are absent.
+     */
+    public Map<String, String> getFieldValues(String index, Collection<String> ids, String field) {
+        final Map<String, String> values = new HashMap<>();
+        if (ids.isEmpty()) {
+            return values;
+        }
+        if (!breaker.allowRequest()) {
+            throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(ES_UNAVAILABLE);
+        }
+        try {
+            final Request request = new Request(HttpMethod.POST.name(), String.format("/%s/_mget", index));
+            request.addParameter("_source", field);
+            request.setJsonEntity(jsonGenerator.toString(Map.of("ids", ids)));
+            final Response response = this.perform(request);
+            final JsonNode json = jsonGenerator.parse(EntityUtils.toString(response.getEntity()));
+            for (JsonNode doc : json.path("docs")) {
+                final JsonNode value = doc.path("_source").path(field);
+                if (doc.path("found").asBoolean() && value.isTextual()) {
+                    values.put(doc.path("_id").asText(), value.asText());
+                }
+            }
         } catch (ResponseException e) {
-            log.error(e.getLocalizedMessage());
             if (e.getResponse().getStatusLine().getStatusCode() != 404) {
-                throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_DELETE_RESOURCE);
+                log.error(e.getLocalizedMessage());
+                throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_GET_RESOURCES);
             }
+            // index doesn't exist yet, nothing found
         } catch (IOException e) {
             log.error(e.getLocalizedMessage());
-            throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_DELETE_RESOURCE);
+            throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_GET_RESOURCES);
+        }
+        return values;
+    }
+
+    /**
+     * Ids of the documents matching the query (search body), in the order of the hits, and the total of matches.
+     */
+    public SearchResult search(String index, Map<String, Object> query) {
+        final JsonNode json = this.searchRequest(index, query);
+        final List<String> ids = new ArrayList<>();
+        json.path("hits").path("hits").forEach(hit -> ids.add(hit.path("_id").asText()));
+        return new SearchResult(json.path("hits").path("total").path("value").asLong(), ids);
+    }
+
+    /**
+     * Count of the documents matching the query by value of each field (terms aggregations, the size most frequent
+     * values), all computed by a single search without hits.
+     */
+    public AggregationResult termsAggregations(String index, Map<String, Object> query, Collection<String> fields, int size) {
+        final Map<String, Object> aggregations = new LinkedHashMap<>();
+        fields.forEach(field -> aggregations.put(field, Map.of("terms", Map.of("field", field, "size", size))));
+        final JsonNode json = this.searchRequest(index, Map.of("query", query, "size", 0, "aggs", aggregations));
+        final Map<String, Map<String, Long>> counts = new LinkedHashMap<>();
+        for (String field : fields) {
+            final Map<String, Long> buckets = new LinkedHashMap<>();
+            json.path("aggregations").path(field).path("buckets").forEach(bucket -> buckets.put(
+                    bucket.has("key_as_string") ? bucket.path("key_as_string").asText() : bucket.path("key").asText(),
+                    bucket.path("doc_count").asLong()));
+            counts.put(field, buckets);
+        }
+        return new AggregationResult(json.path("hits").path("total").path("value").asLong(), counts);
+    }
+
+    /**
+     * Count and sum of sumField of the documents by range of field, a bucket [from, to) for each consecutive bounds.
+     * Computed by a single search without hits, the buckets are in the order of the bounds.
+     */
+    public List<RangeSum> rangeSums(String index, String field, List<Long> bounds, String sumField) {
+        final List<Map<String, Object>> ranges = new ArrayList<>();
+        for (int i = 0; i < bounds.size() - 1; i++) {
+            ranges.add(Map.of("from", bounds.get(i), "to", bounds.get(i + 1)));
+        }
+        final Map<String, Object> aggregation = Map.of("range", Map.of("field", field, "ranges", ranges),
+                "aggs", Map.of(sumField, Map.of("sum", Map.of("field", sumField))));
+        final JsonNode json = this.searchRequest(index, Map.of("size", 0, "aggs", Map.of(field, aggregation)));
+        final List<RangeSum> sums = new ArrayList<>();
+        json.path("aggregations").path(field).path("buckets").forEach(bucket -> sums.add(new RangeSum(
+                bucket.path("from").asLong(), bucket.path("to").asLong(), bucket.path("doc_count").asLong(),
+                Math.round(bucket.path(sumField).path("value").asDouble()))));
+        return sums;
+    }
+
+    /**
+     * Value of a numeric field (doc values) by id of the documents matching the query, at most size documents.
+     */
+    public Map<String, Long> docValues(String index, Map<String, Object> query, String field, int size) {
+        final JsonNode json = this.searchRequest(index, Map.of("query", query, "size", size, "docvalue_fields", List.of(field)));
+        final Map<String, Long> values = new HashMap<>();
+        json.path("hits").path("hits").forEach(hit -> {
+            final JsonNode value = hit.path("fields").path(field).path(0);
+            if (value.isNumber()) {
+                values.put(hit.path("_id").asText(), value.asLong());
+            }
+        });
+        return values;
+    }
+
+    private JsonNode searchRequest(String index, Map<String, Object> body) {
+        if (!breaker.allowRequest()) {
+            throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(ES_UNAVAILABLE);
+        }
+        try {
+            final Request request = new Request(HttpMethod.POST.name(), String.format("/%s/_search", index));
+            request.addParameter("_source", "false");
+            request.addParameter("track_total_hits", "true");
+            request.setEntity(new ByteArrayEntity(jsonGenerator.toBytes(body), ContentType.APPLICATION_JSON));
+            final Response response = this.perform(request);
+            return jsonGenerator.parse(EntityUtils.toByteArray(response.getEntity()));
+        } catch (IOException e) {
+            log.error(e.getLocalizedMessage());
+            throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_SEARCH);
+        }
+    }
+
+    /**
+     * Send all the actions through the _bulk API, split into several requests if the number of actions
+     * or the size of the NDJSON body exceeds the configured limits. Failures of individual items don't throw,
+     * they are returned in the result and it's up to the caller to decide what to do with them.
+     */
+    public BulkResult bulk(List<BulkAction> actions) {
+        final BulkResult result = new BulkResult();
+        for (BulkRequest request : bulkRequests(actions)) {
+            if (spillIfUnavailable(request::getLines)) {
+                result.spilled += request.lines.size();
+                continue;
+            }
+            try {
+                result.add(parseBulk(this.perform(request.request)));
+            } catch (IOException e) {
+                if (!isUnavailable(e) || !spill(request::getLines)) {
+                    log.error(e.getLocalizedMessage());
+                    throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_BULK_RESOURCES);
+                }
+                result.spilled += request.lines.size();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Send the journaled actions in their order, stops at the first connection failure, 429 or 5xx (kept for the next
+     * replay, the actions are sent again as a whole). Returns the number of actions replayed.
+     */
+    public int replayJournal() {
+        int replayed = 0;
+        while (!journal.isEmpty() && breaker.allowRequest()) {
+            final BulkRequest request = bulkRequestsOf(journal.peek(bulkMaxActions)).get(0);
+            try {
+                final BulkResult result = parseBulk(this.perform(request.request));
+                if (result.failures.stream().anyMatch(f -> isRetryable(f.getStatus()))) {
+                    log.warn("Replay of the ES journal interrupted, ES rejected some of the actions: {}", result.failures.size());
+                    return replayed;
+                }
+                result.failures.forEach(f -> log.error("Failed to replay {}/{} status: {} reason: {}", f.getIndex(), f.getId(), f.getStatus(), f.getReason()));
+            } catch (IOException e) {
+                if (isUnavailable(e)) {
+                    log.warn("Replay of the ES journal interrupted: {}", e.getLocalizedMessage());
+                    return replayed;
+                }
+                // ES answered 4xx, sending the same request again won't help
+                log.error("Drop {} journaled actions: {}", request.lines.size(), e.getLocalizedMessage());
+            }
+            journal.consume(request.lines.size());
+            replayed += request.lines.size();
+        }
+        if (replayed > 0) {
+            log.info("Replayed {} journaled actions", replayed);
+        }
+        return replayed;
+    }
+
+    public CircuitBreaker.State getBreakerState() {
+        return breaker.getState();
+    }
+
+    /*
+     * Async variants, the calling thread is released during the ES latency. Errors complete the futures exceptionally
+     * with the same exceptions as the sync methods.
+     */
+
+    public CompletableFuture<Void> indexAsync(String index, IndexData data) {
+        final Supplier<List<byte[]>> lines = () -> List.of(toNdjson(BulkAction.index(index, data)));
+        final Optional<CompletableFuture<Void>> unavailable = spillIfUnavailableAsync(lines);
+        if (unavailable.isPresent()) {
+            return unavailable.get();
+        }
+        return performAsync(indexRequest(index, data)).handle((response, e) -> {
+            if (e != null && !isVersionConflict(e, index, data.id) && !(isUnavailable(e) && spill(lines))) {
+                log.error(e.getLocalizedMessage());
+                throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_SAVE_RESOURCE);
+            }
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> deleteAsync(String index, String id) {
+        final Supplier<List<byte[]>> lines = () -> List.of(toNdjson(BulkAction.delete(index, id)));
+        final Optional<CompletableFuture<Void>> unavailable = spillIfUnavailableAsync(lines);
+        if (unavailable.isPresent()) {
+            return unavailable.get();
+        }
+        return performAsync(deleteRequest(index, id)).handle((response, e) -> {
+            if (e != null && !isNotFound(e) && !(isUnavailable(e) && spill(lines))) {
+                log.error(e.getLocalizedMessage());
+                throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_DELETE_RESOURCE);
+            }
+            return null;
+        });
+    }
+
+    public CompletableFuture<Map<String, String>> aliasesAsync() {
+        return performAsync(aliasesRequest(), FAILED_TO_GET_ALIASES, this::parseAliases);
+    }
+
+    public CompletableFuture<Void> setAliasAsync(List<String> add, List<String> remove, String alias) {
+        return performAsync(setAliasRequest(add, remove, alias), FAILED_TO_SET_ALIAS, response -> null);
+    }
+
+    // the requests of a split bulk are sent in parallel, their order isn't guaranteed
+    public CompletableFuture<BulkResult> bulkAsync(List<BulkAction> actions) {
+        final List<CompletableFuture<BulkResult>> futures = new ArrayList<>();
+        for (BulkRequest request : bulkRequests(actions)) {
+            final Optional<CompletableFuture<Void>> unavailable = spillIfUnavailableAsync(request::getLines);
+            if (unavailable.isPresent()) {
+                futures.add(unavailable.get().thenApply(v -> BulkResult.spilled(request.lines.size())));
+            } else {
+                futures.add(performAsync(request.request).thenApply(response -> {
+                    try {
+                        return parseBulk(response);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }).handle((result, e) -> {
+                    if (e == null) {
+                        return result;
+                    } else if (isUnavailable(e) && spill(request::getLines)) {
+                        return BulkResult.spilled(request.lines.size());
+                    }
+                    log.error(e.getLocalizedMessage());
+                    throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(FAILED_TO_BULK_RESOURCES);
+                }));
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).thenApply(v -> {
+            final BulkResult result = new BulkResult();
+            futures.forEach(f -> result.add(f.join()));
+            return result;
+        });
+    }
+
+    // never blocks the caller, the requests over the in-flight limit wait in a queue and are sent as others complete
+    private CompletableFuture<Response> performAsync(Request request) {
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        waiting.add(() -> this.send(request, future));
+        this.dispatch();
+        return future;
+    }
+
+    private void dispatch() {
+        while (!waiting.isEmpty() && inFlight.tryAcquire()) {
+            final Runnable next = waiting.poll();
+            if (next == null) {
+                inFlight.release();
+            } else {
+                next.run();
+            }
+        }
+    }
+
+    private void send(Request request, CompletableFuture<Response> future) {
+        try {
+            this.sendAsync(request, future);
+        } catch (RuntimeException e) {
+            inFlight.release();
+            future.completeExceptionally(e);
         }
     }
 
+    private void sendAsync(Request request, CompletableFuture<Response> future) {
+        this.data.client.performRequestAsync(request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                inFlight.release();
+                breaker.onSuccess();
+                future.complete(response);
+                dispatch();
+            }
+
+            @Override
+            public void onFailure(Exception exception) {
+                inFlight.release();
+                recordFailure(exception);
+                future.completeExceptionally(exception);
+                dispatch();
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> performAsync(Request request, String errorMessage, ResponseMapper<T> mapper) {
+        return performAsync(request).thenApply(response -> {
+            try {
+                return mapper.map(response);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }).handle((result, e) -> {
+            if (e != null) {
+                log.error(e.getLocalizedMessage());
+                throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(errorMessage);
+            }
+            return result;
+        });
+    }
+
+    private Request aliasesRequest() {
+        log.info("Get aliases");
+        return new Request(HttpMethod.GET.name(), "_cat/aliases");
+    }
+
+    private Map<String, String> parseAliases(Response response) throws IOException {
+        final Map<String, String> aliases = new TreeMap<>();
+        final String body = EntityUtils.toString(response.getEntity());
+        Arrays.stream(body.split("\n")).map(line -> line.split("\\s+")).filter(a -> a.length >= 2).forEach(e -> aliases.put(e[0], e[1]));
+        return aliases;
+    }
+
+    private Request setAliasRequest(List<String> add, List<String> remove, String alias) {
+        log.info("Set alias: {} add: {} remove: {}", alias, add, remove);
+        final Actions actions = new Actions();
+        remove.forEach(r-> actions.getActions().add(new Actions.ActionRemove(r, alias)));
+        add.forEach(r-> actions.getActions().add(new Actions.ActionAdd(r, alias)));
+        final Request request = new Request(HttpMethod.POST.name(), "/_aliases");
+        request.setJsonEntity(jsonGenerator.toString(actions));
+        return request;
+    }
+
+    private Request indexRequest(String index, IndexData data) {
+        log.info(String.format("Indexing resource id[%s]", data.id));
+        final Request request = new Request(HttpMethod.PUT.name(), String.format("/%s/_doc/%s", index, data.id));
+        if (data.version != null) {
+            request.addParameter("version", String.valueOf(data.version));
+            request.addParameter("version_type", VERSION_TYPE);
+        }
+        request.setEntity(new ByteArrayEntity(data.source, ContentType.APPLICATION_JSON));
+        return request;
+    }
+
+    private Request deleteRequest(String index, String id) {
+        log.info(String.format("Deleting resource id[%s]", id));
+        return new Request(HttpMethod.DELETE.name(), String.format("/%s/_doc/%s", index, id));
+    }
+
+    public long getVersionConflicts() {
+        return versionConflicts.get();
+    }
+
+    private boolean isVersionConflict(Throwable e, String index, String id) {
+        final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof ResponseException && ((ResponseException) cause).getResponse().getStatusLine().getStatusCode() == 409) {
+            log.info("Stale write rejected {}/{}, total: {}", index, id, versionConflicts.incrementAndGet());
+            return true;
+        }
+        return false;
+    }
+
+    // every request tells the breaker if ES is reachable, an HTTP error is still an answer unless ES is overloaded (429, 5xx)
+    private Response perform(Request request) throws IOException {
+        try {
+            final Response response = this.data.client.performRequest(request);
+            breaker.onSuccess();
+            return response;
+        } catch (IOException e) {
+            recordFailure(e);
+            throw e;
+        }
+    }
+
+    private void recordFailure(Exception e) {
+        if (isUnavailable(e)) {
+            breaker.onFailure();
+        } else {
+            breaker.onSuccess();
+        }
+    }
+
+    // can't connect or overloaded, the same request may succeed later
+    private static boolean isUnavailable(Throwable e) {
+        final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof ResponseException) {
+            return isRetryable(((ResponseException) cause).getResponse().getStatusLine().getStatusCode());
+        }
+        return cause instanceof IOException;
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == 429 || status >= 500;
+    }
+
+    // ES is down or older writes are still to replay: journal the actions (in order) instead of sending them,
+    // fails fast if they can't be journaled
+    private boolean spillIfUnavailable(Supplier<List<byte[]>> lines) {
+        if (journal.isEmpty() && breaker.allowRequest()) {
+            return false;
+        }
+        if (spill(lines)) {
+            return true;
+        }
+        throw new ca.uhn.fhir.rest.server.exceptions.InternalErrorException(ES_UNAVAILABLE);
+    }
+
+    // same as above, completed when journaled or failed, empty if the actions must be sent
+    private Optional<CompletableFuture<Void>> spillIfUnavailableAsync(Supplier<List<byte[]>> lines) {
+        try {
+            return spillIfUnavailable(lines) ? Optional.of(CompletableFuture.completedFuture(null)) : Optional.empty();
+        } catch (ca.uhn.fhir.rest.server.exceptions.InternalErrorException e) {
+            return Optional.of(CompletableFuture.failedFuture(e));
+        }
+    }
+
+    // the NDJSON lines are only built when journaled
+    private boolean spill(Supplier<List<byte[]>> lines) {
+        if (!journal.isEnabled()) {
+            return false;
+        }
+        final List<byte[]> records = lines.get();
+        if (journal.append(records)) {
+            log.warn("ES unavailable, {} actions journaled", records.size());
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isNotFound(Throwable e) {
+        return e instanceof ResponseException && ((ResponseException) e).getResponse().getStatusLine().getStatusCode() == 404;
+    }
+
+    // split by max actions and max bytes
+    private List<BulkRequest> bulkRequests(List<BulkAction> actions) {
+        final List<byte[]> lines = new ArrayList<>();
+        actions.forEach(action -> lines.add(toNdjson(action)));
+        return bulkRequestsOf(lines);
+    }
+
+    // the lines are copied once into the body of their request
+    private List<BulkRequest> bulkRequestsOf(List<byte[]> lines) {
+        final List<BulkRequest> requests = new ArrayList<>();
+        BulkBody body = new BulkBody();
+        List<byte[]> requestLines = new ArrayList<>();
+        for (byte[] line : lines) {
+            if (!requestLines.isEmpty() && (requestLines.size() >= bulkMaxActions || body.size() + line.length > bulkMaxBytes)) {
+                requests.add(new BulkRequest(bulkRequest(body, requestLines.size()), requestLines));
+                body = new BulkBody();
+                requestLines = new ArrayList<>();
+            }
+            body.writeBytes(line);
+            requestLines.add(line);
+        }
+        if (!requestLines.isEmpty()) {
+            requests.add(new BulkRequest(bulkRequest(body, requestLines.size()), requestLines));
+        }
+        return requests;
+    }
+
+    // action and source lines written as bytes, the source is already serialized
+    private byte[] toNdjson(BulkAction action) {
+        final Map<String, Object> meta = new LinkedHashMap<>();
+        meta.put("_index", action.index);
+        meta.put("_id", action.id);
+        if (action.version != null) {
+            meta.put("version", action.version);
+            meta.put("version_type", VERSION_TYPE);
+        }
+        final byte[] header = jsonGenerator.toBytes(Map.of(action.type.name().toLowerCase(), meta));
+        final boolean withSource = BulkAction.Type.INDEX.equals(action.type);
+        final byte[] lines = new byte[header.length + 1 + (withSource ? action.source.length + 1 : 0)];
+        System.arraycopy(header, 0, lines, 0, header.length);
+        lines[header.length] = '\n';
+        if (withSource) {
+            System.arraycopy(action.source, 0, lines, header.length + 1, action.source.length);
+            lines[lines.length - 1] = '\n';
+        }
+        return lines;
+    }
+
+    private Request bulkRequest(BulkBody body, int count) {
+        log.info("Bulk {} actions ({} bytes)", count, body.size());
+        final Request request = new Request(HttpMethod.POST.name(), "/_bulk");
+        request.setEntity(body.toEntity());
+        return request;
+    }
+
+    // the entity wraps the internal buffer instead of a copy (toByteArray)
+    private static class BulkBody extends ByteArrayOutputStream {
+        private BulkBody() {
+            super(8192);
+        }
+
+        private ByteArrayEntity toEntity() {
+            return new ByteArrayEntity(buf, 0, count, NDJSON);
+        }
+    }
+
+    private BulkResult parseBulk(Response response) throws IOException {
+        final BulkResult result = new BulkResult();
+        final JsonNode json = jsonGenerator.parse(EntityUtils.toString(response.getEntity()));
+        for (JsonNode item : json.path("items")) {
+            // each item is wrapped by its action type: {"index": {...}} or {"delete": {...}}
+            final JsonNode status = item.elements().next();
+            if (status.path("status").asInt() == 409 && VERSION_CONFLICT.equals(status.path("error").path("type").asText())) {
+                result.rejected++;
+                versionConflicts.incrementAndGet();
+            } else if (status.has("error")) {
+                final JsonNode error = status.get("error");
+                result.failures.add(new BulkFailure(status.path("_index").asText(), status.path("_id").asText(),
+                    status.path("status").asInt(), error.path("type").asText() + ": " + error.path("reason").asText()));
+            } else {
+                result.succeeded++;
+            }
+        }
+        return result;
+    }
+
+    // a _bulk request and the NDJSON lines of its actions, journaled as-is if it can't be sent
+    @Getter
+    @RequiredArgsConstructor
+    private static class BulkRequest {
+        private final Request request;
+        private final List<byte[]> lines;
+    }
+
+    @FunctionalInterface
+    private interface ResponseMapper<T> {
+        T map(Response response) throws IOException;
+    }
+
     public static class IndexData {
         public final String id;
-        public final String jsonContent;
+        // UTF-8 JSON of the document
+        public final byte[] source;
+        // external version, older writes are rejected by ES, null = not versioned
+        public final Long version;
 
         public IndexData(String id, String jsonContent) {
+            this(id, jsonContent.getBytes(StandardCharsets.UTF_8), null);
+        }
+
+        public IndexData(String id, byte[] source, Long version) {
+            this.id = id;
+            this.source = source;
+            this.version = version;
+        }
+    }
+
+    public static class BulkAction {
+        public enum Type {
+            INDEX, DELETE
+        }
+
+        public final Type type;
+        public final String index;
+        public final String id;
+        public final byte[] source;
+        public final Long version;
+
+        private BulkAction(Type type, String index, String id, byte[] source, Long version) {
+            this.type = type;
+            this.index = index;
             this.id = id;
-            this.jsonContent = jsonContent;
+            this.source = source;
+            this.version = version;
         }
+
+        public static BulkAction index(String index, IndexData data) {
+            return new BulkAction(Type.INDEX, index, data.id, data.source, data.version);
+        }
+
+        public static BulkAction delete(String index, String id) {
+            return delete(index, id, null);
+        }
+
+        public static BulkAction delete(String index, String id, Long version) {
+            return new BulkAction(Type.DELETE, index, id, null, version);
+        }
+    }
+
+    @Getter
+    public static class BulkResult {
+        private int succeeded = 0;
+        // stale versions, not failures: a more recent document is already indexed
+        private int rejected = 0;
+        // journaled while ES is unavailable, sent later
+        private int spilled = 0;
+        private final List<BulkFailure> failures = new ArrayList<>();
+
+        private static BulkResult spilled(int count) {
+            final BulkResult result = new BulkResult();
+            result.spilled = count;
+            return result;
+        }
+
+        public boolean hasFailures() {
+            return !failures.isEmpty();
+        }
+
+        private void add(BulkResult other) {
+            this.succeeded += other.succeeded;
+            this.rejected += other.rejected;
+            this.spilled += other.spilled;
+            this.failures.addAll(other.failures);
+        }
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class SearchResult {
+        private final long total;
+        private final List<String> ids;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class RangeSum {
+        private final long from;
+        private final long to;
+        private final long count;
+        private final long sum;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class AggregationResult {
+        private final long total;
+        // field => value => count
+        private final Map<String, Map<String, Long>> counts;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class BulkFailure {
+        private final String index;
+        private final String id;
+        private final int status;
+        private final String reason;
     }
 
 }
@@ -0,0 +1,99 @@
+package bio.ferlab.clin.es;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Walk all the resources of a DAO ordered by _lastUpdated, each page starts right after the key (_lastUpdated, pid)
+ * of the previous one instead of skipping an offset, so every page costs the same whatever its position, even inside
+ * a group of resources sharing the same _lastUpdated (ex: transaction bundle).
+ * The keys are read from the HAPI tables ({@link ResourceKeys}) and the resources of a page by their ids.
+ * Resources updated during the walk move after the cursor and are returned again, they are never missed.
+ * An optional upper bound (exclusive) limits the walk to a range of _lastUpdated and an optional filter adds search
+ * parameters to every page, the resources it excludes are skipped.
+ */
+public class KeysetPager<T extends IBaseResource> {
+
+  private final ResourceKeys resourceKeys;
+  private final IFhirResourceDao<T> dao;
+  private final int batchSize;
+  private final Date until;
+  private final Consumer<SearchParameterMap> filter;
+  private ResourceKeys.Key cursor;
+  private boolean done = false;
+
+  public KeysetPager(ResourceKeys resourceKeys, IFhirResourceDao<T> dao, int batchSize, Date from) {
+    this(resourceKeys, dao, batchSize, from, null);
+  }
+
+  public KeysetPager(ResourceKeys resourceKeys, IFhirResourceDao<T> dao, int batchSize, Date from, Date until) {
+    this(resourceKeys, dao, batchSize, from, until, sm -> {});
+  }
+
+  public KeysetPager(ResourceKeys resourceKeys, IFhirResourceDao<T> dao, int batchSize, Date from, Date until, Consumer<SearchParameterMap> filter) {
+    this.resourceKeys = resourceKeys;
+    this.dao = dao;
+    this.batchSize = batchSize;
+    this.cursor = from != null ? ResourceKeys.Key.before(from) : null;
+    this.until = until;
+    this.filter = filter;
+  }
+
+  // _lastUpdated of the first resource in that order, empty if there is none
+  public static Optional<Date> firstLastUpdated(IFhirResourceDao<? extends IBaseResource> dao, SortOrderEnum order) {
+    final SearchParameterMap searchParameterMap = SearchParameterMap.newSynchronous();
+    searchParameterMap.setCount(1);
+    searchParameterMap.setSort(new SortSpec("_lastUpdated", order));
+    return dao.search(searchParameterMap).getResources(0, 1).stream().findFirst()
+      .map(r -> r.getMeta().getLastUpdated());
+  }
+
+  // empty once all the resources have been returned, a page of keys all excluded by the filter is skipped
+  public List<T> next() {
+    while (!done) {
+      final List<ResourceKeys.Key> keys = this.resourceKeys.next(this.dao.getResourceType().getSimpleName(), cursor, until, batchSize);
+      done = keys.size() < batchSize;
+      if (keys.isEmpty()) {
+        break;
+      }
+      cursor = keys.get(keys.size() - 1);
+      final List<T> page = this.read(keys);
+      if (!page.isEmpty()) {
+        return page;
+      }
+    }
+    return List.of();
+  }
+
+  // in the order of the keys, the ones deleted since are ignored
+  private List<T> read(List<ResourceKeys.Key> keys) {
+    final TokenOrListParam ids = new TokenOrListParam();
+    keys.forEach(k -> ids.addOr(new TokenParam(k.getId())));
+    final SearchParameterMap searchParameterMap = SearchParameterMap.newSynchronous();
+    searchParameterMap.add("_id", ids);
+    searchParameterMap.setCount(keys.size());
+    filter.accept(searchParameterMap);
+    final Map<String, T> byId = new HashMap<>();
+    this.dao.search(searchParameterMap).getResources(0, keys.size()).forEach(r -> byId.put(r.getIdElement().getIdPart(), cast(r)));
+    return keys.stream().map(k -> byId.get(k.getId())).filter(Objects::nonNull).collect(Collectors.toList());
+  }
+
+  // _lastUpdated of the last resource returned, a walk resumed from there returns it again
+  public Date getCursor() {
+    return cursor != null ? cursor.getLastUpdated() : null;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T cast(IBaseResource resource) {
+    return (T) resource;
+  }
+}
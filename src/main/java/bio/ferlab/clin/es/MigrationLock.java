@@ -0,0 +1,108 @@
+package bio.ferlab.clin.es;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lease in the DB taken by the replica running the migration, the other replicas started at the same time skip it.
+ * The lease is renewed while held, the one of a stopped replica expires and the migration can be resumed by the next
+ * one started.
+ */
+@Component
+public class MigrationLock {
+
+  private static final Logger log = LoggerFactory.getLogger(MigrationLock.class);
+
+  public static final String TABLE = "clin_migration_lock";
+  private static final String NAME = "migration";
+  private static final long LEASE_MS = 5 * 60 * 1000;
+
+  private final JdbcTemplate jdbcTemplate;
+  private final String owner = UUID.randomUUID().toString();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "migration-lock"));
+
+  private volatile boolean held = false;
+  private ScheduledFuture<?> renewal;
+
+  public MigrationLock(DataSource dataSource) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+  }
+
+  public void createTable() {
+    jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+      "name VARCHAR(64) NOT NULL PRIMARY KEY, " +
+      "owner VARCHAR(64) NOT NULL, " +
+      "locked_until BIGINT NOT NULL)");
+  }
+
+  // false if another replica holds the lease
+  public synchronized boolean tryLock() {
+    if (!this.held && !this.acquire()) {
+      return false;
+    }
+    this.held = true;
+    if (this.renewal == null) {
+      this.renewal = this.scheduler.scheduleWithFixedDelay(this::renew, LEASE_MS / 3, LEASE_MS / 3, TimeUnit.MILLISECONDS);
+    }
+    return true;
+  }
+
+  // false once the lease has been lost (not renewed in time), the migration must stop
+  public boolean isHeld() {
+    return this.held;
+  }
+
+  public synchronized void unlock() {
+    if (this.renewal != null) {
+      this.renewal.cancel(false);
+      this.renewal = null;
+    }
+    if (this.held) {
+      this.held = false;
+      jdbcTemplate.update("UPDATE " + TABLE + " SET locked_until = 0 WHERE name = ? AND owner = ?", NAME, owner);
+    }
+  }
+
+  private boolean acquire() {
+    final long now = System.currentTimeMillis();
+    if (jdbcTemplate.update("UPDATE " + TABLE + " SET owner = ?, locked_until = ? WHERE name = ? AND (locked_until < ? OR owner = ?)",
+      owner, now + LEASE_MS, NAME, now, owner) > 0) {
+      return true;
+    }
+    try {
+      return jdbcTemplate.update("INSERT INTO " + TABLE + " (name, owner, locked_until) VALUES (?, ?, ?)", NAME, owner, now + LEASE_MS) > 0;
+    } catch (DuplicateKeyException e) {
+      // held by another replica
+      return false;
+    }
+  }
+
+  private void renew() {
+    try {
+      if (this.held && jdbcTemplate.update("UPDATE " + TABLE + " SET locked_until = ? WHERE name = ? AND owner = ?",
+        System.currentTimeMillis() + LEASE_MS, NAME, owner) == 0) {
+        log.error("Migration lock lost, taken by another replica");
+        this.held = false;
+      }
+    } catch (RuntimeException e) {
+      // retried at the next renewal, the lease is still valid until then
+      log.warn("Failed to renew the migration lock: {}", e.getMessage());
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    this.scheduler.shutdownNow();
+  }
+}
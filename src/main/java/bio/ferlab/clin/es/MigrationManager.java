@@ -1,22 +1,37 @@
 package bio.ferlab.clin.es;
 
 import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.es.indexer.NanuqCatchUp;
 import bio.ferlab.clin.es.indexer.NanuqIndexer;
+import bio.ferlab.clin.es.indexer.PatientIndexer;
 import bio.ferlab.clin.properties.BioProperties;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import com.fasterxml.jackson.databind.JsonNode;
 import lombok.RequiredArgsConstructor;
 import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.ServiceRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static bio.ferlab.clin.es.TemplateIndexer.ANALYSES_TEMPLATE;
+import static bio.ferlab.clin.es.TemplateIndexer.PATIENTS_TEMPLATE;
 import static bio.ferlab.clin.es.TemplateIndexer.SEQUENCINGS_TEMPLATE;
 
 @Component
@@ -24,6 +39,8 @@ import static bio.ferlab.clin.es.TemplateIndexer.SEQUENCINGS_TEMPLATE;
 public class MigrationManager {
 
   private static final Logger log = LoggerFactory.getLogger(MigrationManager.class);
+  private static final String REFRESH_INTERVAL = "refresh_interval";
+  private static final String NUMBER_OF_REPLICAS = "number_of_replicas";
 
   public enum Type {
     always, hash, none
@@ -34,13 +51,80 @@ public class MigrationManager {
   private final ElasticsearchRestClient esClient;
   private final NanuqIndexer nanuqIndexer;
   private final ResourceDaoConfiguration configuration;
+  private final ResourceKeys resourceKeys;
+  private final ReindexCheckpoint checkpoint;
+  private final PatientIndexer patientIndexer;
+  private final MigrationLock migrationLock;
+  private final NanuqCatchUp nanuqCatchUp;
 
+  private ExecutorService background;
+
+  // progress of the current migration, see getStatus()
+  private volatile MigrationStatus.State state = MigrationStatus.State.idle;
+  private volatile String error;
+  private volatile String targetAnalysesIndex;
+  private volatile String targetSequencingsIndex;
+  private volatile List<ReindexCheckpoint.Partition> partitions = List.of();
+  private volatile long startedAt;
+  private volatile int indexedAtStart;
+  private volatile Long total;
+
+  // in background the application is ready while re-indexing, the current indexes are used until the new ones are published.
+  // always deletes the live indexes and rebuilds them in place, it can't run while they are used
   @EventListener(ApplicationReadyEvent.class)
   public void startMigration() {
+    if (bioProperties.isNanuqReindexBackground()
+      && (Type.always.equals(bioProperties.getNanuqReindex()) || (bioProperties.isPatientsIndexerEnabled() && Type.always.equals(bioProperties.getPatientsReindex())))) {
+      throw new IllegalStateException("Re-index 'always' deletes the live indexes, it can't run in background (reindex-background), use 'hash'");
+    }
+    if (bioProperties.isNanuqReindexBackground()) {
+      this.background = Executors.newSingleThreadExecutor(r -> new Thread(r, "nanuq-migration"));
+      this.background.submit(this::runMigration);
+    } else {
+      this.runMigration();
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    if (this.background != null) {
+      this.background.shutdownNow();
+    }
+  }
+
+  public void runMigration() {
+    try {
+      this.doMigration();
+    } catch (RuntimeException e) {
+      log.error("Migration failed", e);
+      this.error = e.getMessage();
+      this.state = MigrationStatus.State.failed;
+      throw e;
+    }
+  }
 
-    // always index templates
-    Map<String, String> templates = this.templateIndexer.indexTemplates();
-    Map<String, String> aliases = esClient.aliases();
+  // only one replica migrates, the others started at the same time use the current indexes
+  private void doMigration() {
+    this.migrationLock.createTable();
+    if (!this.migrationLock.tryLock()) {
+      log.info("Migration run by another replica");
+      return;
+    }
+    try {
+      // always index templates
+      Map<String, String> templates = this.templateIndexer.indexTemplates();
+      Map<String, String> aliases = esClient.aliases();
+      this.migrateNanuq(templates, aliases);
+      if (bioProperties.isPatientsIndexerEnabled()) {
+        this.migratePatients(templates, aliases);
+      }
+    } finally {
+      this.migrationLock.unlock();
+    }
+  }
+
+  private void migrateNanuq(Map<String, String> templates, Map<String, String> aliases) {
+    final String templatesHash = String.format("%s,%s", templates.get(ANALYSES_TEMPLATE), templates.get(SEQUENCINGS_TEMPLATE));
 
     // indexes that will be used as aliases at the end of the process
     final String analysesIndex = bioProperties.getNanuqEsAnalysesIndex();
@@ -50,6 +134,10 @@ public class MigrationManager {
     final String currentESAnalysesIndexWithHash = aliases.get(analysesIndex);
     final String currentESSequencingIndexWithHash = aliases.get(sequencingsIndex);
 
+    if (!Type.none.equals(bioProperties.getNanuqReindex())) {
+      this.checkpoint.createTable();
+    }
+
     if (Type.hash.equals(bioProperties.getNanuqReindex())) {
 
       // indexes with templates hash from this release of FHIR
@@ -63,47 +151,192 @@ public class MigrationManager {
       // Perform migration if any of them is different
       if (analysesHasChanged || sequencingsHasChanged) {
         log.info("Migrate: {} {}", analysesIndexWithHash, sequencingIndexWithHash);
-        this.migrate(analysesIndexWithHash, sequencingIndexWithHash);
-
-        // always remove indexes that could have the names of the aliases to publish
-        this.cleanup(List.of(analysesIndex, sequencingsIndex));
-
-        // remove + add the aliases referring the new indexes + hash
-        List<String> indexesToCleanup = new ArrayList<>();
+        // the live writes keep going to the current indexes (aliases) and to the new ones until they are published
+        this.nanuqIndexer.startDualWrite(analysesIndexWithHash, sequencingIndexWithHash);
+        // an index with the same hash as the current one is live, its settings don't change
+        final Map<String, String> newIndexes = new LinkedHashMap<>();
         if (analysesHasChanged) {
-          this.publish(analysesIndexWithHash, currentESAnalysesIndexWithHash, analysesIndex);
-          indexesToCleanup.add(currentESAnalysesIndexWithHash);
+          newIndexes.put(analysesIndexWithHash, ANALYSES_TEMPLATE);
         }
-
         if (sequencingsHasChanged) {
-          this.publish(sequencingIndexWithHash, currentESSequencingIndexWithHash, sequencingsIndex);
-          indexesToCleanup.add(currentESSequencingIndexWithHash);
+          newIndexes.put(sequencingIndexWithHash, SEQUENCINGS_TEMPLATE);
         }
+        final Date caughtUp;
+        try {
+          if (!this.migrate(analysesIndexWithHash, sequencingIndexWithHash, templatesHash, newIndexes)) {
+            log.warn("Re-index not completed, aliases are not published");
+            return;
+          }
+          // the other replicas don't dual-write, what they indexed in the live indexes since the start is re-indexed
+          caughtUp = this.catchUpNanuq(this.checkpoint.startedAt(analysesIndexWithHash, sequencingIndexWithHash, templatesHash).orElse(null));
 
-        // cleanup previous indexes
-        this.cleanup(indexesToCleanup);
+          // always remove indexes that could have the names of the aliases to publish
+          this.cleanup(List.of(analysesIndex, sequencingsIndex));
+
+          // remove + add the aliases referring the new indexes + hash
+          List<String> indexesToCleanup = new ArrayList<>();
+          if (analysesHasChanged) {
+            this.publish(analysesIndexWithHash, currentESAnalysesIndexWithHash, analysesIndex);
+            indexesToCleanup.add(currentESAnalysesIndexWithHash);
+          }
+
+          if (sequencingsHasChanged) {
+            this.publish(sequencingIndexWithHash, currentESSequencingIndexWithHash, sequencingsIndex);
+            indexesToCleanup.add(currentESSequencingIndexWithHash);
+          }
+
+          // cleanup previous indexes
+          this.cleanup(indexesToCleanup);
+        } finally {
+          this.nanuqIndexer.stopDualWrite();
+        }
+        // and what they indexed until the aliases were published
+        this.catchUpPublished(() -> this.catchUpNanuq(caughtUp));
+        this.checkpoint.clear(analysesIndexWithHash, sequencingIndexWithHash);
+        this.state = MigrationStatus.State.completed;
       } else {
         log.info("Nothing to migrate");
       }
     } else if (Type.always.equals(bioProperties.getNanuqReindex())){
       log.info("Re-index: {} {}", analysesIndex, sequencingsIndex);
-      // remove all previous aliases and indexes
-      List<String> indexesToCleanup = new ArrayList<>(List.of(analysesIndex, sequencingsIndex));
-      if (currentESAnalysesIndexWithHash != null) {
-        this.esClient.setAlias(List.of(), List.of("*"), analysesIndex);
-        indexesToCleanup.add(currentESAnalysesIndexWithHash);
+      // an interrupted re-index is resumed, its indexes are kept
+      if (this.checkpoint.load(analysesIndex, sequencingsIndex, templatesHash).isEmpty()) {
+        // remove all previous aliases and indexes
+        List<String> indexesToCleanup = new ArrayList<>(List.of(analysesIndex, sequencingsIndex));
+        if (currentESAnalysesIndexWithHash != null) {
+          this.esClient.setAlias(List.of(), List.of("*"), analysesIndex);
+          indexesToCleanup.add(currentESAnalysesIndexWithHash);
+        }
+        if (currentESSequencingIndexWithHash != null) {
+          this.esClient.setAlias(List.of(), List.of("*"), sequencingsIndex);
+          indexesToCleanup.add(currentESSequencingIndexWithHash);
+        }
+        this.cleanup(indexesToCleanup);
       }
-      if (currentESSequencingIndexWithHash != null) {
-        this.esClient.setAlias(List.of(), List.of("*"), sequencingsIndex);
-        indexesToCleanup.add(currentESSequencingIndexWithHash);
+      // the indexes are searched while re-indexing, they keep their settings
+      if (this.migrate(analysesIndex, sequencingsIndex, templatesHash, Map.of())) {
+        this.checkpoint.clear(analysesIndex, sequencingsIndex);
+        this.state = MigrationStatus.State.completed;
       }
-      this.cleanup(indexesToCleanup);
-      this.migrate(analysesIndex, sequencingsIndex);
     } else {
       log.info("Re-index is disabled");
     }
   }
 
+  // same alias swap as the nanuq indexes, without checkpoint: the patients are few and re-indexed from the start
+  private void migratePatients(Map<String, String> templates, Map<String, String> aliases) {
+    final String patientsIndex = bioProperties.getEsPatientsIndex();
+    final String currentESPatientsIndexWithHash = aliases.get(patientsIndex);
+    if (Type.hash.equals(bioProperties.getPatientsReindex())) {
+      final String patientsIndexWithHash = formatIndexWithHash(patientsIndex, templates.get(PATIENTS_TEMPLATE));
+      if (patientsIndexWithHash.equals(currentESPatientsIndexWithHash)) {
+        log.info("Nothing to migrate: {}", patientsIndex);
+        return;
+      }
+      log.info("Migrate: {}", patientsIndexWithHash);
+      final Date startedAt = new Date();
+      final Date caughtUp;
+      this.patientIndexer.startDualWrite(patientsIndexWithHash);
+      try {
+        this.createEmptyIndexes(List.of(patientsIndexWithHash));
+        this.startBulkLoad(patientsIndexWithHash);
+        this.reindexPatients(patientsIndexWithHash);
+        this.endBulkLoad(patientsIndexWithHash, PATIENTS_TEMPLATE);
+        // same as the nanuq indexes, the changes indexed by the other replicas before and after publishing
+        caughtUp = this.catchUpPatients(startedAt, patientsIndexWithHash);
+        this.cleanup(List.of(patientsIndex));
+        this.publish(patientsIndexWithHash, currentESPatientsIndexWithHash, patientsIndex);
+        this.cleanup(Collections.singletonList(currentESPatientsIndexWithHash));
+      } finally {
+        this.patientIndexer.stopDualWrite();
+      }
+      this.catchUpPublished(() -> this.catchUpPatients(caughtUp, null));
+    } else if (Type.always.equals(bioProperties.getPatientsReindex())) {
+      log.info("Re-index: {}", patientsIndex);
+      final List<String> indexesToCleanup = new ArrayList<>(List.of(patientsIndex));
+      if (currentESPatientsIndexWithHash != null) {
+        this.esClient.setAlias(List.of(), List.of("*"), patientsIndex);
+        indexesToCleanup.add(currentESPatientsIndexWithHash);
+      }
+      this.cleanup(indexesToCleanup);
+      this.createEmptyIndexes(List.of(patientsIndex));
+      this.reindexPatients(patientsIndex);
+    } else {
+      log.info("Re-index is disabled: {}", patientsIndex);
+    }
+  }
+
+  private void reindexPatients(String index) {
+    final KeysetPager<Patient> pager = new KeysetPager<>(this.resourceKeys, this.configuration.patientDAO, bioProperties.getNanuqReindexBatchSize(), null, null);
+    int indexed = 0;
+    List<Patient> page;
+    while (!(page = pager.next()).isEmpty()) {
+      this.checkLock();
+      final Set<String> patientIds = page.stream().map(p -> p.getIdElement().getIdPart()).collect(Collectors.toSet());
+      this.patientIndexer.doIndex(patientIds, index);
+      indexed += patientIds.size();
+      log.info("Patients indexed: {} cursor: {}", indexed, pager.getCursor());
+    }
+    log.info("Total patients indexed: {}", indexed);
+  }
+
+  // re-index the prescriptions changed since (minus the catch-up overlap), returns until when they are
+  private Date catchUpNanuq(Date since) {
+    final Date until = new Date();
+    if (since != null) {
+      final Date from = new Date(since.getTime() - bioProperties.getNanuqCatchUpOverlap());
+      log.info("Re-index the prescriptions changed since: {}", from);
+      log.info("Prescriptions re-indexed: {}", this.nanuqCatchUp.reindex(from, null));
+    }
+    return until;
+  }
+
+  // re-index the patients changed since (minus the catch-up overlap) in the index, in the live one if null
+  private Date catchUpPatients(Date since, String index) {
+    final Date until = new Date();
+    final Date from = new Date(since.getTime() - bioProperties.getNanuqCatchUpOverlap());
+    log.info("Re-index the patients changed since: {}", from);
+    int indexed = 0;
+    for (IFhirResourceDao<? extends IBaseResource> dao : List.of(configuration.patientDAO, configuration.personDAO,
+      configuration.groupDao, configuration.serviceRequestDAO)) {
+      indexed += this.catchUpPatients(dao, from, index);
+    }
+    log.info("Patients re-indexed: {}", indexed);
+    return until;
+  }
+
+  private <T extends IBaseResource> int catchUpPatients(IFhirResourceDao<T> dao, Date from, String index) {
+    final KeysetPager<T> pager = new KeysetPager<>(this.resourceKeys, dao, bioProperties.getNanuqReindexBatchSize(), from, null);
+    int indexed = 0;
+    List<T> page;
+    while (!(page = pager.next()).isEmpty()) {
+      final Set<String> patientIds = page.stream().flatMap(r -> this.patientIndexer.extractPatientIds(r).stream()).collect(Collectors.toSet());
+      if (index != null) {
+        this.patientIndexer.doIndex(patientIds, index);
+      } else {
+        this.patientIndexer.doIndex(patientIds);
+      }
+      indexed += patientIds.size();
+    }
+    return indexed;
+  }
+
+  // published already, a failure doesn't fail the migration, the next writes or catch-up (bio.nanuq.catch-up) fix it
+  private void catchUpPublished(Runnable catchUp) {
+    try {
+      catchUp.run();
+    } catch (RuntimeException e) {
+      log.warn("Failed to re-index the changes made while publishing: {}", e.getMessage());
+    }
+  }
+
+  // the lease expired (ex: DB unavailable), another replica may have started the same migration
+  private void checkLock() {
+    if (!this.migrationLock.isHeld()) {
+      throw new IllegalStateException("Migration lock lost");
+    }
+  }
+
   private void createEmptyIndexes(List<String> indexes) {
     indexes.stream()
       .filter(Objects::nonNull)
@@ -111,28 +344,164 @@ public class MigrationManager {
       .forEach(this.esClient::createIndex);
   }
 
-  private void migrate(String analysesIndex, String sequencingIndex) {
+  // true once all the partitions of the checkpoint are completed, newIndexes (index -> template) aren't published yet
+  private boolean migrate(String analysesIndex, String sequencingIndex, String templatesHash, Map<String, String> newIndexes) {
     // always create empty indexes in case nothing to index
     this.createEmptyIndexes(List.of(analysesIndex, sequencingIndex));
-    int batchSize = 100, offset = 0;
-    boolean running = true;
-    int total = 0;
-    do {
-      final SearchParameterMap searchParameterMap = SearchParameterMap.newSynchronous();
-      searchParameterMap.setCount(batchSize);
-      searchParameterMap.setOffset(offset);
-      // good old batch with pagination
-      final IBundleProvider bundle = this.configuration.serviceRequestDAO.search(searchParameterMap);
-      final Set<String> prescriptionIds = bundle.getResources(0, batchSize).stream().map(r -> r.getIdElement().getIdPart()).collect(Collectors.toSet());
-      if (!prescriptionIds.isEmpty()) {
-        this.nanuqIndexer.doIndex(null, prescriptionIds, analysesIndex, sequencingIndex, false);
-        offset += batchSize;
-        total += prescriptionIds.size();
-      } else {
-        running = false;
+    List<ReindexCheckpoint.Partition> partitions = this.checkpoint.load(analysesIndex, sequencingIndex, templatesHash);
+    if (partitions.isEmpty()) {
+      newIndexes.keySet().forEach(this::startBulkLoad);
+      // before reading the first page, what's indexed by the other replicas since then is re-indexed before publishing
+      final Date startedAt = new Date();
+      partitions = this.newPartitions();
+      this.checkpoint.start(analysesIndex, sequencingIndex, templatesHash, partitions, startedAt);
+    } else {
+      log.info("Resume re-index, {}/{} partition(s) completed", partitions.stream().filter(ReindexCheckpoint.Partition::isCompleted).count(), partitions.size());
+      // the open-ended last partition catches the resources updated while the migration was stopped
+      partitions.get(partitions.size() - 1).setCompleted(false);
+    }
+    this.targetAnalysesIndex = analysesIndex;
+    this.targetSequencingsIndex = sequencingIndex;
+    this.partitions = partitions;
+    this.indexedAtStart = partitions.stream().mapToInt(ReindexCheckpoint.Partition::getIndexed).sum();
+    this.startedAt = System.currentTimeMillis();
+    this.total = null;
+    this.state = MigrationStatus.State.running;
+    final List<ReindexCheckpoint.Partition> remaining = partitions.stream().filter(p -> !p.isCompleted()).collect(Collectors.toList());
+    final int workers = Math.max(1, bioProperties.getNanuqReindexWorkers());
+    log.info("Re-index {} partition(s) with {} worker(s)", remaining.size(), workers);
+    final AtomicInteger threadCount = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(workers, r -> new Thread(r, "nanuq-reindex-" + threadCount.incrementAndGet()));
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (ReindexCheckpoint.Partition partition : remaining) {
+        futures.add(executor.submit(() -> this.migratePartition(partition, analysesIndex, sequencingIndex)));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      log.info("Total indexed: {}", partitions.stream().mapToInt(ReindexCheckpoint.Partition::getIndexed).sum());
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      executor.shutdownNow();
+    }
+    final boolean completed = partitions.stream().allMatch(ReindexCheckpoint.Partition::isCompleted);
+    if (completed) {
+      newIndexes.forEach(this::endBulkLoad);
+    }
+    return completed;
+  }
+
+  // nothing reads the index yet, no need to refresh or replicate every bulk
+  private void startBulkLoad(String index) {
+    final Map<String, Object> settings = new HashMap<>();
+    settings.put(REFRESH_INTERVAL, "-1");
+    settings.put(NUMBER_OF_REPLICAS, 0);
+    this.esClient.updateSettings(index, settings);
+  }
+
+  // back to the settings of the template (or ES defaults) before being published
+  private void endBulkLoad(String index, String template) {
+    final JsonNode templateSettings = this.templateIndexer.templateSettings(template);
+    final Map<String, Object> settings = new HashMap<>();
+    settings.put(REFRESH_INTERVAL, templateSetting(templateSettings, REFRESH_INTERVAL));
+    settings.put(NUMBER_OF_REPLICAS, templateSetting(templateSettings, NUMBER_OF_REPLICAS));
+    this.esClient.updateSettings(index, settings);
+    this.esClient.refresh(index);
+    if (bioProperties.isNanuqReindexForceMerge()) {
+      try {
+        this.esClient.forceMerge(index, 1);
+      } catch (RuntimeException e) {
+        // only an optimization, the merge can also exceed the socket timeout and keep going in ES
+        log.warn("Failed to force merge {}: {}", index, e.getMessage());
+      }
+    }
+  }
+
+  private static String templateSetting(JsonNode settings, String name) {
+    if (settings == null) {
+      return null;
+    }
+    final JsonNode value = settings.has(name) ? settings.get(name) : settings.path("index").get(name);
+    return value != null && !value.isNull() ? value.asText() : null;
+  }
+
+  // each partition has its own pager (DAO reads) and bulk requests, the cursor is saved after every page
+  private void migratePartition(ReindexCheckpoint.Partition partition, String analysesIndex, String sequencingIndex) {
+    final Date from = partition.getCursor() != null ? partition.getCursor() : partition.getFrom();
+    final KeysetPager<ServiceRequest> pager = new KeysetPager<>(this.resourceKeys, this.configuration.serviceRequestDAO, bioProperties.getNanuqReindexBatchSize(), from, partition.getUntil());
+    List<ServiceRequest> page;
+    while (!(page = pager.next()).isEmpty()) {
+      this.checkLock();
+      final Set<String> prescriptionIds = page.stream().map(r -> r.getIdElement().getIdPart()).collect(Collectors.toSet());
+      this.nanuqIndexer.doIndex(null, prescriptionIds, analysesIndex, sequencingIndex, false);
+      partition.setCursor(pager.getCursor());
+      partition.setIndexed(partition.getIndexed() + prescriptionIds.size());
+      this.checkpoint.save(analysesIndex, sequencingIndex, partition);
+      log.info("Partition {} [{} - {}] indexed: {} cursor: {}", partition.getId(), partition.getFrom(), partition.getUntil(), partition.getIndexed(), pager.getCursor());
+    }
+    partition.setCompleted(true);
+    this.checkpoint.save(analysesIndex, sequencingIndex, partition);
+    log.info("Partition {} done, indexed: {}", partition.getId(), partition.getIndexed());
+  }
+
+  private List<ReindexCheckpoint.Partition> newPartitions() {
+    final List<Date> bounds = this.partitionBounds();
+    final List<ReindexCheckpoint.Partition> partitions = new ArrayList<>();
+    for (int i = 0; i < bounds.size() - 1; i++) {
+      partitions.add(new ReindexCheckpoint.Partition(i, bounds.get(i), bounds.get(i + 1), null, 0, false));
+    }
+    return partitions;
+  }
+
+  // split the _lastUpdated range of the ServiceRequests, first and last partitions are open-ended so nothing is missed
+  private List<Date> partitionBounds() {
+    final List<Date> bounds = new ArrayList<>();
+    bounds.add(null);
+    final int partitions = bioProperties.getNanuqReindexPartitions();
+    if (partitions > 1) {
+      final Optional<Date> min = KeysetPager.firstLastUpdated(this.configuration.serviceRequestDAO, SortOrderEnum.ASC);
+      final Optional<Date> max = KeysetPager.firstLastUpdated(this.configuration.serviceRequestDAO, SortOrderEnum.DESC);
+      if (min.isPresent() && max.isPresent() && max.get().after(min.get())) {
+        final long step = (max.get().getTime() - min.get().getTime()) / partitions;
+        for (int i = 1; i < partitions && step > 0; i++) {
+          bounds.add(new Date(min.get().getTime() + i * step));
+        }
+      }
+    }
+    bounds.add(null);
+    return bounds;
+  }
+
+  public MigrationStatus getStatus() {
+    final List<ReindexCheckpoint.Partition> current = this.partitions;
+    final int indexed = current.stream().mapToInt(ReindexCheckpoint.Partition::getIndexed).sum();
+    final int completed = (int) current.stream().filter(ReindexCheckpoint.Partition::isCompleted).count();
+    Long eta = null;
+    if (MigrationStatus.State.running.equals(this.state)) {
+      if (this.total == null) {
+        // counted once per migration, only if someone asks
+        this.total = this.countServiceRequests();
+      }
+      final long elapsed = System.currentTimeMillis() - this.startedAt;
+      final int indexedSinceStart = indexed - this.indexedAtStart;
+      if (indexedSinceStart > 0) {
+        eta = Math.max(0, this.total - indexed) * elapsed / indexedSinceStart / 1000;
       }
-    } while(running);
-    log.info("Total indexed: {}", total);
+    }
+    return new MigrationStatus(this.state, this.targetAnalysesIndex, this.targetSequencingsIndex, current.size(), completed,
+      indexed, this.total, this.startedAt > 0 ? new Date(this.startedAt) : null, eta, this.error);
+  }
+
+  private long countServiceRequests() {
+    final SearchParameterMap searchParameterMap = SearchParameterMap.newSynchronous();
+    searchParameterMap.setSummaryMode(SummaryEnum.COUNT);
+    final Integer size = this.configuration.serviceRequestDAO.search(searchParameterMap).size();
+    return size != null ? size : 0;
   }
 
   private void cleanup(List<String> indexesToCleanup) {
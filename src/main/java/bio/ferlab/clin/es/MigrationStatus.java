@@ -0,0 +1,29 @@
+package bio.ferlab.clin.es;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Date;
+
+/**
+ * Snapshot of the progress of the Nanuq migration, the total of ServiceRequests and the ETA are only known while running.
+ */
+@Getter
+@AllArgsConstructor
+public class MigrationStatus {
+
+  public enum State {
+    idle, running, completed, failed
+  }
+
+  private final State state;
+  private final String analysesIndex;
+  private final String sequencingsIndex;
+  private final int partitions;
+  private final int completedPartitions;
+  private final int indexed;
+  private final Long total;
+  private final Date startedAt;
+  private final Long etaSeconds;
+  private final String error;
+}
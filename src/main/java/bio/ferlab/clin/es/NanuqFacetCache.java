@@ -0,0 +1,83 @@
+package bio.ferlab.clin.es;
+
+import bio.ferlab.clin.properties.BioProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Short-lived cache of the dashboard counts computed from the nanuq indexes, by index and security tags.
+ * Invalidated by the indexer of this replica after each of its bulks. A bulk is only searchable after the next
+ * refresh of the indexes, the values computed until then may miss it and aren't kept, same for the ones computed
+ * while invalidated. The writes of the other replicas don't invalidate it, they are counted once the TTL expires.
+ */
+@Component
+public class NanuqFacetCache {
+
+  // distinct security tags combinations are few, cleared if ever reached
+  private static final int MAX_ENTRIES = 1000;
+  // default index.refresh_interval of ES, the nanuq indexes keep it
+  static final long REFRESH_INTERVAL_MS = 1000;
+
+  private final long ttl;
+  private final LongSupplier clock;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final AtomicLong generation = new AtomicLong();
+  // values computed before are not kept, the last bulk may not be refreshed yet
+  private final AtomicLong keptFrom = new AtomicLong(Long.MIN_VALUE);
+
+  public NanuqFacetCache(BioProperties bioProperties) {
+    this(bioProperties.getNanuqFacetsCacheTtl(), System::currentTimeMillis);
+  }
+
+  public NanuqFacetCache(long ttl, LongSupplier clock) {
+    this.ttl = ttl;
+    this.clock = clock;
+  }
+
+  public ElasticsearchRestClient.AggregationResult get(String key, Supplier<ElasticsearchRestClient.AggregationResult> compute) {
+    if (ttl <= 0) {
+      return compute.get();
+    }
+    final long now = clock.getAsLong();
+    final long currentGeneration = generation.get();
+    final Entry entry = entries.get(key);
+    if (entry != null && entry.generation == currentGeneration && now - entry.createdAt < ttl) {
+      return entry.value;
+    }
+    final ElasticsearchRestClient.AggregationResult value = compute.get();
+    // also read after the compute, for a bulk answered meanwhile
+    if (now < keptFrom.get()) {
+      return value;
+    }
+    if (entries.size() >= MAX_ENTRIES) {
+      entries.clear();
+    }
+    // if invalidated since the check its generation is already outdated
+    entries.put(key, new Entry(value, now, currentGeneration));
+    return value;
+  }
+
+  // called once a bulk has been answered, before the indexes are refreshed
+  public void invalidate() {
+    keptFrom.set(clock.getAsLong() + REFRESH_INTERVAL_MS);
+    generation.incrementAndGet();
+    entries.clear();
+  }
+
+  private static class Entry {
+    private final ElasticsearchRestClient.AggregationResult value;
+    private final long createdAt;
+    private final long generation;
+
+    private Entry(ElasticsearchRestClient.AggregationResult value, long createdAt, long generation) {
+      this.value = value;
+      this.createdAt = createdAt;
+      this.generation = generation;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package bio.ferlab.clin.es;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Progress of the Nanuq re-index, one row per target indexes and partition of _lastUpdated with the cursor of the last
+ * indexed page. A migration restarted with the same target indexes and templates resumes from it instead of starting
+ * over. Starting a migration replaces the rows of its target indexes only, see {@link MigrationLock}.
+ */
+@Component
+public class ReindexCheckpoint {
+
+  public static final String TABLE = "clin_reindex_checkpoint";
+
+  private final JdbcTemplate jdbcTemplate;
+
+  public ReindexCheckpoint(DataSource dataSource) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+  }
+
+  public void createTable() {
+    jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+      "partition_id INT NOT NULL, " +
+      "analyses_index VARCHAR(255) NOT NULL, " +
+      "sequencings_index VARCHAR(255) NOT NULL, " +
+      "templates VARCHAR(255) NOT NULL, " +
+      "from_ts BIGINT, " +
+      "until_ts BIGINT, " +
+      "cursor_ts BIGINT, " +
+      "indexed INT NOT NULL, " +
+      "completed BOOLEAN NOT NULL, " +
+      "started_at BIGINT NOT NULL, " +
+      "updated_at BIGINT NOT NULL)");
+  }
+
+  // partitions of the migration to these indexes + templates, empty if none was started
+  public List<Partition> load(String analysesIndex, String sequencingsIndex, String templates) {
+    return jdbcTemplate.query("SELECT * FROM " + TABLE + " WHERE analyses_index = ? AND sequencings_index = ? AND templates = ? ORDER BY partition_id",
+      (rs, i) -> new Partition(rs.getInt("partition_id"), toDate(rs, "from_ts"), toDate(rs, "until_ts"), toDate(rs, "cursor_ts"),
+        rs.getInt("indexed"), rs.getBoolean("completed")), analysesIndex, sequencingsIndex, templates);
+  }
+
+  // when the migration to these indexes + templates started, the changes since then are re-indexed before publishing
+  public Optional<Date> startedAt(String analysesIndex, String sequencingsIndex, String templates) {
+    return jdbcTemplate.queryForList("SELECT MIN(started_at) FROM " + TABLE + " WHERE analyses_index = ? AND sequencings_index = ? AND templates = ?",
+      Long.class, analysesIndex, sequencingsIndex, templates).stream().filter(Objects::nonNull).findFirst().map(Date::new);
+  }
+
+  public void start(String analysesIndex, String sequencingsIndex, String templates, List<Partition> partitions, Date startedAt) {
+    this.clear(analysesIndex, sequencingsIndex);
+    final long now = System.currentTimeMillis();
+    jdbcTemplate.batchUpdate("INSERT INTO " + TABLE + " (partition_id, analyses_index, sequencings_index, templates, from_ts, until_ts, cursor_ts, indexed, completed, started_at, updated_at) " +
+        "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+      partitions.stream().map(p -> new Object[]{p.getId(), analysesIndex, sequencingsIndex, templates, toTs(p.getFrom()), toTs(p.getUntil()),
+        toTs(p.getCursor()), p.getIndexed(), p.isCompleted(), startedAt.getTime(), now}).collect(Collectors.toList()));
+  }
+
+  public void save(String analysesIndex, String sequencingsIndex, Partition partition) {
+    jdbcTemplate.update("UPDATE " + TABLE + " SET cursor_ts = ?, indexed = ?, completed = ?, updated_at = ? " +
+        "WHERE analyses_index = ? AND sequencings_index = ? AND partition_id = ?",
+      toTs(partition.getCursor()), partition.getIndexed(), partition.isCompleted(), System.currentTimeMillis(), analysesIndex, sequencingsIndex, partition.getId());
+  }
+
+  public void clear(String analysesIndex, String sequencingsIndex) {
+    jdbcTemplate.update("DELETE FROM " + TABLE + " WHERE analyses_index = ? AND sequencings_index = ?", analysesIndex, sequencingsIndex);
+  }
+
+  private static Long toTs(Date date) {
+    return date != null ? date.getTime() : null;
+  }
+
+  private static Date toDate(ResultSet rs, String column) throws SQLException {
+    final long ts = rs.getLong(column);
+    return rs.wasNull() ? null : new Date(ts);
+  }
+
+  @Getter
+  @Setter
+  @AllArgsConstructor
+  public static class Partition {
+    private final int id;
+    private final Date from;
+    private final Date until;
+    private Date cursor;
+    private int indexed;
+    private boolean completed;
+  }
+}
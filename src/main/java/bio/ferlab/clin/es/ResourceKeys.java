@@ -0,0 +1,63 @@
+package bio.ferlab.clin.es;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Keys (_lastUpdated, pid) of the current FHIR resources, read from the HAPI tables in that order. The pid makes the
+ * key unique, a page can start right after the previous one even when many resources share the same _lastUpdated.
+ */
+@Component
+public class ResourceKeys {
+
+  private final JdbcTemplate jdbcTemplate;
+
+  public ResourceKeys(DataSource dataSource) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+  }
+
+  // the next keys of that type strictly after the cursor (all if null) and before until (exclusive, no bound if null)
+  public List<Key> next(String resourceType, Key after, Date until, int limit) {
+    final StringBuilder sql = new StringBuilder("SELECT r.RES_ID, r.RES_UPDATED, f.FORCED_ID FROM HFJ_RESOURCE r " +
+      "LEFT JOIN HFJ_FORCED_ID f ON f.RESOURCE_PID = r.RES_ID WHERE r.RES_TYPE = ? AND r.RES_DELETED_AT IS NULL");
+    final List<Object> args = new ArrayList<>(List.of(resourceType));
+    if (after != null) {
+      sql.append(" AND (r.RES_UPDATED > ? OR (r.RES_UPDATED = ? AND r.RES_ID > ?))");
+      args.add(new Timestamp(after.getLastUpdated().getTime()));
+      args.add(new Timestamp(after.getLastUpdated().getTime()));
+      args.add(after.getPid());
+    }
+    if (until != null) {
+      sql.append(" AND r.RES_UPDATED < ?");
+      args.add(new Timestamp(until.getTime()));
+    }
+    sql.append(" ORDER BY r.RES_UPDATED, r.RES_ID LIMIT ?");
+    args.add(limit);
+    return jdbcTemplate.query(sql.toString(), (rs, i) -> new Key(new Date(rs.getTimestamp("RES_UPDATED").getTime()),
+      rs.getLong("RES_ID"), Optional.ofNullable(rs.getString("FORCED_ID")).orElse(String.valueOf(rs.getLong("RES_ID")))), args.toArray());
+  }
+
+  @Getter
+  @AllArgsConstructor
+  public static class Key {
+    private final Date lastUpdated;
+    // HFJ_RESOURCE.RES_ID
+    private final long pid;
+    // FHIR id, client assigned or the pid
+    private final String id;
+
+    // before any resource updated at or after this date
+    public static Key before(Date lastUpdated) {
+      return new Key(lastUpdated, Long.MIN_VALUE, null);
+    }
+  }
+}
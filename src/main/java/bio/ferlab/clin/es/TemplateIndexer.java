@@ -2,6 +2,8 @@ package bio.ferlab.clin.es;
 
 import bio.ferlab.clin.es.indexer.NanuqIndexer;
 import bio.ferlab.clin.properties.BioProperties;
+import bio.ferlab.clin.utils.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
@@ -26,16 +28,24 @@ public class TemplateIndexer {
   private static final Logger log = LoggerFactory.getLogger(TemplateIndexer.class);
   public static final String ANALYSES_TEMPLATE = "clin-analyses-template.json";
   public static final String SEQUENCINGS_TEMPLATE = "clin-sequencings-template.json";
+  public static final String PATIENTS_TEMPLATE = "clin-patients-template.json";
 
   private final ElasticsearchRestClient esClient;
+  private final JsonGenerator jsonGenerator;
 
   public Map<String, String> indexTemplates() {
     final Map<String, String> templates = new TreeMap<>();
     templates.put(ANALYSES_TEMPLATE, indexTemplate(ANALYSES_TEMPLATE));
     templates.put(SEQUENCINGS_TEMPLATE, indexTemplate(SEQUENCINGS_TEMPLATE));
+    templates.put(PATIENTS_TEMPLATE, indexTemplate(PATIENTS_TEMPLATE));
     return templates;
   }
 
+  // settings of the template, the indexes matching its patterns are created with them
+  public JsonNode templateSettings(String path) {
+    return jsonGenerator.parse(loadTemplate(path)).path("template").path("settings");
+  }
+
   private String indexTemplate(String path) {
     log.info("Index ES template from resource: {}", path);
     final String templateName = FilenameUtils.getBaseName(path);
@@ -3,10 +3,8 @@ package bio.ferlab.clin.es.builder.nanuq;
 import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
 import bio.ferlab.clin.es.data.nanuq.AbstractPrescriptionData;
 import bio.ferlab.clin.utils.FhirUtils;
-import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
-import ca.uhn.fhir.rest.api.server.RequestDetails;
-import ca.uhn.fhir.rest.param.ReferenceParam;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.instance.model.api.IBaseCoding;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -50,10 +48,50 @@ public abstract class AbstractPrescriptionDataBuilder {
   }
 
   protected boolean isValidType(ServiceRequest serviceRequest) {
-    return serviceRequest.getMeta().getProfile().stream().anyMatch(s -> this.type.value.equals(s.getValue()));
+    return isType(serviceRequest, this.type);
   }
 
-  protected void handlePrescription(ServiceRequest serviceRequest, AbstractPrescriptionData prescriptionData) {
+  public static boolean isType(ServiceRequest serviceRequest, Type type) {
+    return serviceRequest.getMeta().getProfile().stream().anyMatch(s -> type.value.equals(s.getValue()));
+  }
+
+  protected void handleHashes(ServiceRequest serviceRequest, AbstractPrescriptionData prescriptionData) {
+    final String id = serviceRequest.getIdElement().getIdPart();
+    prescriptionData.setIdHash(idHash(id));
+    prescriptionData.setVersionHash(versionHash(id, serviceRequest.getMeta().getVersionId()));
+  }
+
+  // positive int from the md5, evenly spread whatever the ids are (numeric, UUID ...)
+  public static int idHash(String id) {
+    return hash(id);
+  }
+
+  public static int versionHash(String id, String versionId) {
+    return hash(id + "/" + versionId);
+  }
+
+  private static int hash(String value) {
+    final byte[] md5 = DigestUtils.md5(value);
+    return ((md5[0] & 0x7f) << 24) | ((md5[1] & 0xff) << 16) | ((md5[2] & 0xff) << 8) | (md5[3] & 0xff);
+  }
+
+  protected void handlePrescription(ServiceRequest serviceRequest, AbstractPrescriptionData prescriptionData, PrescriptionGraph graph) {
+    this.handleRequest(serviceRequest, prescriptionData);
+    if (serviceRequest.hasSubject()) {
+      graph.getPatient(serviceRequest.getSubject()).ifPresent(patient -> {
+        if (patient.hasIdentifier()) {
+          extractMRN(patient).ifPresent(prescriptionData::setPatientMRN);
+        }
+        if (patient.hasManagingOrganization()) {
+          graph.getOrganization(patient.getManagingOrganization())
+            .filter(Organization::hasAlias)
+            .ifPresent(organization -> prescriptionData.setEp(organization.getAlias().get(0).getValue()));
+        }
+      });
+    }
+  }
+
+  private void handleRequest(ServiceRequest serviceRequest, AbstractPrescriptionData prescriptionData) {
     prescriptionData.setPatientId(serviceRequest.getSubject().getReferenceElement().getIdPart());
     prescriptionData.getSecurityTags().addAll(serviceRequest.getMeta().getSecurity().stream().map(IBaseCoding::getCode)
         .collect(Collectors.toList()));
@@ -86,43 +124,24 @@ public abstract class AbstractPrescriptionDataBuilder {
       prescriptionData.setLdm(FhirUtils.getPerformerIds(serviceRequest, Organization.class).stream().findFirst().orElse(null));
     }
 
-    if (serviceRequest.hasSubject()) {
-      final Reference subjectRef = serviceRequest.getSubject();
-      final Patient patient = this.configuration.patientDAO.read(new IdType(subjectRef.getReference()));
-
-      if (patient.hasIdentifier()) {
-        extractMRN(patient).ifPresent(prescriptionData::setPatientMRN);
-      }
-
-      if (patient.hasManagingOrganization()) {
-        final Reference organizationRef = patient.getManagingOrganization();
-        final Organization organization = configuration.organizationDAO.read(new IdType(organizationRef.getReference()));
-
-        if (organization.hasAlias()) {
-          prescriptionData.setEp(organization.getAlias().get(0).getValue());
-        }
-      }
-    }
-    
     if(serviceRequest.hasAuthoredOn()) {
       prescriptionData.setCreatedOn(formatter.get().format(serviceRequest.getAuthoredOn()));
     }
     
   }
 
-  protected void addTasks(ServiceRequest serviceRequest, AbstractPrescriptionData data) {
-    final SearchParameterMap sm = SearchParameterMap.newSynchronous("focus", new ReferenceParam(serviceRequest.getIdElement().getIdPart()));
-    final IBundleProvider taskProvider = this.configuration.taskDao.search(sm);
-    final List<Task> tasks = this.getListFromProvider(taskProvider);
-    tasks.forEach(t -> data.getTasks().add(t.getCode().getCodingFirstRep().getCode()));
+  // a Task without code is ignored, the tasks are a sorted set
+  protected void addTasks(List<Task> tasks, AbstractPrescriptionData data) {
+    tasks.stream().map(t -> t.getCode().getCodingFirstRep().getCode()).filter(StringUtils::isNotBlank)
+      .forEach(code -> data.getTasks().add(code));
   }
-  
-  protected String getSampleValue(ServiceRequest serviceRequest, RequestDetails requestDetails) {
+
+  protected String getSampleValue(ServiceRequest serviceRequest, PrescriptionGraph graph) {
     for(Reference specimenRef: serviceRequest.getSpecimen()) {
-      final Specimen specimen = this.configuration.specimenDao.read(new IdType(specimenRef.getReference()), requestDetails);
+      final Optional<Specimen> specimen = graph.getSpecimen(specimenRef);
       // specimen WITH a parent is the sample
-      if(specimen.hasParent() && specimen.hasAccessionIdentifier()) {
-        return specimen.getAccessionIdentifier().getValue();
+      if(specimen.isPresent() && specimen.get().hasParent() && specimen.get().hasAccessionIdentifier()) {
+        return specimen.get().getAccessionIdentifier().getValue();
       }
     }
     return null;
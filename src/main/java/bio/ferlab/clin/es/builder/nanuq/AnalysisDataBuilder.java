@@ -4,10 +4,8 @@ import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
 import bio.ferlab.clin.es.data.nanuq.AnalysisData;
 import bio.ferlab.clin.es.data.nanuq.SequencingRequestData;
 import bio.ferlab.clin.utils.FhirUtils;
-import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import bio.ferlab.clin.utils.ResourceMemo;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
-import ca.uhn.fhir.rest.param.ReferenceParam;
 import org.hl7.fhir.r4.model.*;
 import org.springframework.stereotype.Component;
 
@@ -15,6 +13,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static bio.ferlab.clin.utils.Extensions.*;
 
@@ -22,52 +22,57 @@ import static bio.ferlab.clin.utils.Extensions.*;
 public class AnalysisDataBuilder extends AbstractPrescriptionDataBuilder {
 
   private final ResourceDaoConfiguration configuration;
+  private final ResourceMemo resourceMemo;
 
-  public AnalysisDataBuilder(ResourceDaoConfiguration configuration) {
+  public AnalysisDataBuilder(ResourceDaoConfiguration configuration, ResourceMemo resourceMemo) {
     super(Type.ANALYSIS, configuration);
     this.configuration = configuration;
+    this.resourceMemo = resourceMemo;
   }
 
   public List<AnalysisData> fromIds(Set<String> ids, RequestDetails requestDetails) {
+    final PrescriptionGraph graph = new PrescriptionGraph(this.configuration, this.resourceMemo, requestDetails).loadServiceRequests(ids);
+    final List<ServiceRequest> analysisRequests = ids.stream().map(graph::getServiceRequest).flatMap(Optional::stream)
+      .filter(this::isValidType).collect(Collectors.toList());
+    final Set<String> analysisIds = analysisRequests.stream().map(sr -> sr.getIdElement().getIdPart()).collect(Collectors.toSet());
+    graph.loadChildren(analysisIds);
+    final List<ServiceRequest> sequencingRequests = analysisIds.stream().flatMap(id -> graph.getChildren(id).stream()).collect(Collectors.toList());
+    graph.loadTasks(sequencingRequests.stream().map(sr -> sr.getIdElement().getIdPart()).collect(Collectors.toSet()))
+      .loadSpecimens(sequencingRequests)
+      .loadPatients(Stream.concat(analysisRequests.stream(), sequencingRequests.stream()).collect(Collectors.toList()));
+
     final List<AnalysisData> analyses = new ArrayList<>();
-    for (final String serviceRequestId : ids) {
+    for (final ServiceRequest serviceRequest : analysisRequests) {
       final AnalysisData analysisData = new AnalysisData();
-      final ServiceRequest serviceRequest = this.configuration.serviceRequestDAO.read(new IdType(serviceRequestId), requestDetails);
-      if (this.isValidType(serviceRequest)) {
-        
-        this.handlePrescription(serviceRequest, analysisData);
-        analysisData.setPrescriptionId(serviceRequest.getIdElement().getIdPart());
-        if (serviceRequest.hasPerformer()) {
-          analysisData.setAssignments(FhirUtils.getPerformerIds(serviceRequest, PractitionerRole.class));
-        }
+      final String serviceRequestId = serviceRequest.getIdElement().getIdPart();
+
+      this.handlePrescription(serviceRequest, analysisData, graph);
+      analysisData.setPrescriptionId(serviceRequestId);
+      this.handleHashes(serviceRequest, analysisData);
+      if (serviceRequest.hasPerformer()) {
+        analysisData.setAssignments(FhirUtils.getPerformerIds(serviceRequest, PractitionerRole.class));
+      }
 
-        final SearchParameterMap searchMap = SearchParameterMap.newSynchronous("based-on", new ReferenceParam(serviceRequestId));
-        final IBundleProvider srProvider = this.configuration.serviceRequestDAO.search(searchMap);
-        final List<ServiceRequest> serviceRequests = this.getListFromProvider(srProvider);
-        for (ServiceRequest sr : serviceRequests) {
-          SequencingRequestData srd = new SequencingRequestData();
-          srd.setRequestId(sr.getIdElement().getIdPart());
+      for (ServiceRequest sr : graph.getChildren(serviceRequestId)) {
+        SequencingRequestData srd = new SequencingRequestData();
+        srd.setRequestId(sr.getIdElement().getIdPart());
 
-          this.addTasks(sr, analysisData);
+        this.addTasks(graph.getTasks(srd.getRequestId()), analysisData);
 
-          if(sr.hasStatus()) {
-            srd.setStatus(sr.getStatus().toCode());
-          }
-          if(sr.hasSpecimen()) {
-            srd.setSample(getSampleValue(sr, requestDetails));
-          }
-          if (sr.hasSubject()) {
-            final Reference subjectRef = sr.getSubject();
-            final Patient patient = this.configuration.patientDAO.read(new IdType(subjectRef.getReference()));
-            if (patient.hasIdentifier()) {
-              extractMRN(patient).ifPresent(srd::setPatientMRN);
-            }
-            srd.setPatientId(sr.getSubject().getReferenceElement().getIdPart());
-          }
-          analysisData.getSequencingRequests().add(srd);
+        if(sr.hasStatus()) {
+          srd.setStatus(sr.getStatus().toCode());
+        }
+        if(sr.hasSpecimen()) {
+          srd.setSample(getSampleValue(sr, graph));
+        }
+        if (sr.hasSubject()) {
+          graph.getPatient(sr.getSubject()).filter(Patient::hasIdentifier)
+            .flatMap(this::extractMRN).ifPresent(srd::setPatientMRN);
+          srd.setPatientId(sr.getSubject().getReferenceElement().getIdPart());
         }
-        analyses.add(analysisData);
+        analysisData.getSequencingRequests().add(srd);
       }
+      analyses.add(analysisData);
     }
     return analyses;
   }
@@ -0,0 +1,174 @@
+package bio.ferlab.clin.es.builder.nanuq;
+
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.utils.ResourceMemo;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.*;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory graph of the resources needed to build the nanuq documents of a batch of prescriptions.
+ * Every type is loaded for the whole batch with multi-id (_id=a,b,c) or multi-reference searches instead
+ * of one read per resource, the number of DB round trips doesn't depend on the size of the batch.
+ * The resources returned may come from the {@link ResourceMemo} and are shared, they are read-only.
+ */
+public class PrescriptionGraph {
+
+  // max values of a single OR search parameter, bigger sets are split
+  private static final int MAX_PARAMS = 500;
+
+  private final ResourceDaoConfiguration configuration;
+  private final ResourceMemo resourceMemo;
+  private final RequestDetails requestDetails;
+
+  private final Map<String, ServiceRequest> serviceRequests = new HashMap<>();
+  private final Map<String, List<ServiceRequest>> childrenByParent = new HashMap<>();
+  private final Map<String, List<Task>> tasksByFocus = new HashMap<>();
+  private final Map<String, Specimen> specimens = new HashMap<>();
+  private final Map<String, Patient> patients = new HashMap<>();
+  private final Map<String, Organization> organizations = new HashMap<>();
+
+  public PrescriptionGraph(ResourceDaoConfiguration configuration, ResourceMemo resourceMemo, RequestDetails requestDetails) {
+    this.configuration = configuration;
+    this.resourceMemo = resourceMemo;
+    this.requestDetails = requestDetails;
+  }
+
+  public static String idOf(Reference reference) {
+    return reference.getReferenceElement().getIdPart();
+  }
+
+  public PrescriptionGraph loadServiceRequests(Collection<String> ids) {
+    final Set<String> missing = ids.stream().filter(id -> !serviceRequests.containsKey(id)).collect(Collectors.toSet());
+    for (List<String> chunk : chunks(missing)) {
+      final SearchParameterMap sm = SearchParameterMap.newSynchronous().add("_id", new TokenOrListParam(null, chunk.toArray(new String[0])));
+      this.<ServiceRequest>cast(configuration.serviceRequestDAO.search(sm, requestDetails).getAllResources())
+        .forEach(sr -> serviceRequests.put(sr.getIdElement().getIdPart(), sr));
+    }
+    return this;
+  }
+
+  // the sequencing requests based-on the analyses
+  public PrescriptionGraph loadChildren(Collection<String> parentIds) {
+    for (List<String> chunk : chunks(parentIds)) {
+      chunk.forEach(id -> childrenByParent.put(id, new ArrayList<>()));
+      final SearchParameterMap sm = SearchParameterMap.newSynchronous().add("based-on", toReferences(chunk));
+      for (ServiceRequest child : this.<ServiceRequest>cast(configuration.serviceRequestDAO.search(sm).getAllResources())) {
+        serviceRequests.put(child.getIdElement().getIdPart(), child);
+        child.getBasedOn().stream().map(PrescriptionGraph::idOf).filter(childrenByParent::containsKey).distinct()
+          .forEach(parentId -> childrenByParent.get(parentId).add(child));
+      }
+    }
+    return this;
+  }
+
+  public PrescriptionGraph loadTasks(Collection<String> focusIds) {
+    for (List<String> chunk : chunks(focusIds)) {
+      chunk.forEach(id -> tasksByFocus.put(id, new ArrayList<>()));
+      final SearchParameterMap sm = SearchParameterMap.newSynchronous().add("focus", toReferences(chunk));
+      for (Task task : this.<Task>cast(configuration.taskDao.search(sm).getAllResources())) {
+        final String focusId = idOf(task.getFocus());
+        if (tasksByFocus.containsKey(focusId)) {
+          tasksByFocus.get(focusId).add(task);
+        }
+      }
+    }
+    return this;
+  }
+
+  public PrescriptionGraph loadSpecimens(Collection<ServiceRequest> requests) {
+    final Set<String> ids = requests.stream().flatMap(sr -> sr.getSpecimen().stream()).map(PrescriptionGraph::idOf)
+      .filter(id -> !specimens.containsKey(id)).collect(Collectors.toSet());
+    loadByIds("Specimen", ids, configuration.specimenDao::search, specimens, true);
+    return this;
+  }
+
+  // subjects of the requests and their managing organizations
+  public PrescriptionGraph loadPatients(Collection<ServiceRequest> requests) {
+    final Set<String> ids = requests.stream().filter(ServiceRequest::hasSubject).map(sr -> idOf(sr.getSubject()))
+      .filter(id -> !patients.containsKey(id)).collect(Collectors.toSet());
+    loadByIds("Patient", ids, configuration.patientDAO::search, patients, false);
+    final Set<String> organizationIds = patients.values().stream().filter(Patient::hasManagingOrganization)
+      .map(p -> idOf(p.getManagingOrganization())).filter(id -> !organizations.containsKey(id)).collect(Collectors.toSet());
+    loadByIds("Organization", organizationIds, configuration.organizationDAO::search, organizations, false);
+    return this;
+  }
+
+  public Optional<ServiceRequest> getServiceRequest(String id) {
+    return Optional.ofNullable(serviceRequests.get(id));
+  }
+
+  public List<ServiceRequest> getChildren(String parentId) {
+    return childrenByParent.getOrDefault(parentId, List.of());
+  }
+
+  public List<Task> getTasks(String focusId) {
+    return tasksByFocus.getOrDefault(focusId, List.of());
+  }
+
+  public Optional<Specimen> getSpecimen(Reference reference) {
+    return Optional.ofNullable(specimens.get(idOf(reference)));
+  }
+
+  public Optional<Patient> getPatient(Reference reference) {
+    return Optional.ofNullable(patients.get(idOf(reference)));
+  }
+
+  public Optional<Organization> getOrganization(Reference reference) {
+    return Optional.ofNullable(organizations.get(idOf(reference)));
+  }
+
+  // the resources already read by the request (or batch) are taken from the memo. The ones read without the request
+  // details skipped the authorization checks, they are only memoized in a batch (no request) so a later read of the
+  // request can't get them from the memo
+  private <T extends Resource> void loadByIds(String type, Set<String> ids, SearchFunction search, Map<String, T> target, boolean withRequestDetails) {
+    final Set<String> missing = new HashSet<>();
+    for (String id : ids) {
+      this.resourceMemo.<T>get(requestDetails, type, id).ifPresentOrElse(r -> target.put(id, r), () -> missing.add(id));
+    }
+    for (List<String> chunk : chunks(missing)) {
+      final SearchParameterMap sm = SearchParameterMap.newSynchronous().add("_id", new TokenOrListParam(null, chunk.toArray(new String[0])));
+      final List<IBaseResource> resources = search.search(sm, withRequestDetails ? requestDetails : null).getAllResources();
+      this.<T>cast(resources).forEach(r -> {
+        target.put(r.getIdElement().getIdPart(), r);
+        if (withRequestDetails || requestDetails == null) {
+          this.resourceMemo.put(requestDetails, r);
+        }
+      });
+    }
+  }
+
+  private static ReferenceOrListParam toReferences(Collection<String> ids) {
+    final ReferenceOrListParam references = new ReferenceOrListParam();
+    ids.forEach(id -> references.addOr(new ReferenceParam(id)));
+    return references;
+  }
+
+  private static List<List<String>> chunks(Collection<String> ids) {
+    final List<String> all = ids.stream().filter(StringUtils::isNotBlank).distinct().collect(Collectors.toList());
+    final List<List<String>> chunks = new ArrayList<>();
+    for (int i = 0; i < all.size(); i += MAX_PARAMS) {
+      chunks.add(all.subList(i, Math.min(all.size(), i + MAX_PARAMS)));
+    }
+    return chunks;
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T extends IBaseResource> List<T> cast(List<IBaseResource> resources) {
+    return resources.stream().map(r -> (T) r).collect(Collectors.toList());
+  }
+
+  @FunctionalInterface
+  private interface SearchFunction {
+    IBundleProvider search(SearchParameterMap map, RequestDetails requestDetails);
+  }
+}
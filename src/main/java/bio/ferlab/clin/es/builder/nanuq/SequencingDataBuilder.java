@@ -3,10 +3,8 @@ package bio.ferlab.clin.es.builder.nanuq;
 import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
 import bio.ferlab.clin.es.data.nanuq.SequencingData;
 import bio.ferlab.clin.utils.FhirUtils;
-import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
-import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import bio.ferlab.clin.utils.ResourceMemo;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
-import ca.uhn.fhir.rest.param.ReferenceParam;
 import org.hl7.fhir.r4.model.*;
 import org.springframework.stereotype.Component;
 
@@ -14,6 +12,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static bio.ferlab.clin.utils.Extensions.FAMILY_MEMBER_FATHER_CODE;
 import static bio.ferlab.clin.utils.Extensions.FAMILY_MEMBER_MOTHER_CODE;
@@ -22,41 +21,52 @@ import static bio.ferlab.clin.utils.Extensions.FAMILY_MEMBER_MOTHER_CODE;
 public class SequencingDataBuilder extends AbstractPrescriptionDataBuilder {
 
   private final ResourceDaoConfiguration configuration;
+  private final ResourceMemo resourceMemo;
 
-  public SequencingDataBuilder(ResourceDaoConfiguration configuration) {
+  public SequencingDataBuilder(ResourceDaoConfiguration configuration, ResourceMemo resourceMemo) {
     super(Type.SEQUENCING, configuration);
     this.configuration = configuration;
+    this.resourceMemo = resourceMemo;
   }
 
   public List<SequencingData> fromIds(Set<String> ids, RequestDetails requestDetails) {
+    final PrescriptionGraph graph = new PrescriptionGraph(this.configuration, this.resourceMemo, requestDetails).loadServiceRequests(ids);
+    final List<ServiceRequest> sequencingRequests = ids.stream().map(graph::getServiceRequest).flatMap(Optional::stream)
+      .filter(this::isValidType).collect(Collectors.toList());
+    // siblings share the same parent, loaded once
+    graph.loadServiceRequests(sequencingRequests.stream().filter(ServiceRequest::hasBasedOn)
+        .map(sr -> PrescriptionGraph.idOf(sr.getBasedOn().get(0))).collect(Collectors.toSet()))
+      .loadTasks(sequencingRequests.stream().map(sr -> sr.getIdElement().getIdPart()).collect(Collectors.toSet()))
+      .loadSpecimens(sequencingRequests)
+      .loadPatients(sequencingRequests);
+
     final List<SequencingData> sequencings = new ArrayList<>();
-    for (final String serviceRequestId : ids) {
+    for (final ServiceRequest serviceRequest : sequencingRequests) {
       final SequencingData sequencingData = new SequencingData();
-      final ServiceRequest serviceRequest = this.configuration.serviceRequestDAO.read(new IdType(serviceRequestId), requestDetails);
-      if (this.isValidType(serviceRequest)) {
 
-        this.handlePrescription(serviceRequest, sequencingData);
-        sequencingData.setRequestId(serviceRequest.getIdElement().getIdPart());
-        
-        if(serviceRequest.hasBasedOn()) {
+      this.handlePrescription(serviceRequest, sequencingData, graph);
+      sequencingData.setRequestId(serviceRequest.getIdElement().getIdPart());
+      this.handleHashes(serviceRequest, sequencingData);
+
+      if(serviceRequest.hasBasedOn()) {
 
-          final String basedOnId = serviceRequest.getBasedOn().get(0).getReferenceElement().getIdPart();
-          sequencingData.setPrescriptionId(basedOnId);
+        final String basedOnId = PrescriptionGraph.idOf(serviceRequest.getBasedOn().get(0));
+        sequencingData.setPrescriptionId(basedOnId);
 
-          final ServiceRequest basedOn = this.configuration.serviceRequestDAO.read(new IdType(basedOnId), requestDetails);
-          if(basedOn.hasStatus()) {
+        graph.getServiceRequest(basedOnId).ifPresent(basedOn -> {
+          if (basedOn.hasStatus()) {
             sequencingData.setPrescriptionStatus(basedOn.getStatus().toCode());
           }
-        }
-        
-        if(serviceRequest.hasSpecimen()) {
-          sequencingData.setSample(getSampleValue(serviceRequest, requestDetails));
-        }
-
-        this.addTasks(serviceRequest, sequencingData);
+        });
+      }
 
-        sequencings.add(sequencingData);
+      if(serviceRequest.hasSpecimen()) {
+        sequencingData.setSample(getSampleValue(serviceRequest, graph));
       }
+
+      this.addTasks(graph.getTasks(sequencingData.getRequestId()), sequencingData);
+
+      sequencings.add(sequencingData);
     }
     return sequencings;
   }
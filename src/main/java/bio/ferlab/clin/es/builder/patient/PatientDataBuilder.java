@@ -0,0 +1,142 @@
+package bio.ferlab.clin.es.builder.patient;
+
+import bio.ferlab.clin.es.builder.nanuq.PrescriptionGraph;
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.es.data.patient.FamilyMemberData;
+import bio.ferlab.clin.es.data.patient.PatientData;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.instance.model.api.IBaseCoding;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.*;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static bio.ferlab.clin.es.builder.nanuq.AbstractPrescriptionDataBuilder.MRN_CODE;
+import static bio.ferlab.clin.utils.Extensions.FAMILY_MEMBER;
+import static bio.ferlab.clin.validation.validators.nanuq.PersonValidator.RAMQ_CODE;
+
+/**
+ * Denormalized patient documents: identifiers of the Patient and of its linked Person (RAMQ), EP, prescriptions
+ * and the family members declared by them. Every type is loaded for the whole batch with multi-id or multi-reference searches.
+ */
+@Component
+public class PatientDataBuilder {
+
+  // max values of a single OR search parameter, bigger sets are split
+  private static final int MAX_PARAMS = 500;
+  private static final String FAMILY_MEMBER_PARENT = "parent";
+  private static final String FAMILY_MEMBER_RELATIONSHIP = "parent-relationship";
+
+  private final ResourceDaoConfiguration configuration;
+
+  public PatientDataBuilder(ResourceDaoConfiguration configuration) {
+    this.configuration = configuration;
+  }
+
+  public List<PatientData> fromIds(Set<String> ids) {
+    final List<Patient> patients = this.searchByIds(configuration.patientDAO, ids);
+    final Set<String> patientIds = patients.stream().map(p -> p.getIdElement().getIdPart()).collect(Collectors.toSet());
+
+    final Map<String, Person> personByPatient = new HashMap<>();
+    for (Person person : this.searchByPatients(configuration.personDAO, "patient", patientIds)) {
+      person.getLink().stream().filter(l -> l.hasTarget() && "Patient".equals(l.getTarget().getReferenceElement().getResourceType()))
+        .map(l -> PrescriptionGraph.idOf(l.getTarget())).filter(patientIds::contains)
+        .forEach(patientId -> personByPatient.put(patientId, person));
+    }
+    final Map<String, Organization> organizations = this.searchByIds(configuration.organizationDAO, patients.stream()
+        .filter(Patient::hasManagingOrganization).map(p -> PrescriptionGraph.idOf(p.getManagingOrganization())).collect(Collectors.toSet()))
+      .stream().collect(Collectors.toMap(o -> o.getIdElement().getIdPart(), Function.identity(), (a, b) -> a));
+    final Map<String, List<ServiceRequest>> requestsBySubject = this.searchByPatients(configuration.serviceRequestDAO, "subject", patientIds)
+      .stream().filter(ServiceRequest::hasSubject).collect(Collectors.groupingBy(sr -> PrescriptionGraph.idOf(sr.getSubject())));
+
+    final List<PatientData> documents = new ArrayList<>();
+    for (Patient patient : patients) {
+      final String patientId = patient.getIdElement().getIdPart();
+      final Optional<Person> person = Optional.ofNullable(personByPatient.get(patientId));
+      final Optional<Organization> organization = Optional.of(patient).filter(Patient::hasManagingOrganization)
+        .map(p -> organizations.get(PrescriptionGraph.idOf(p.getManagingOrganization())));
+      final List<ServiceRequest> requests = requestsBySubject.getOrDefault(patientId, List.of());
+
+      final PatientData data = new PatientData();
+      data.setPatientId(patientId);
+      person.ifPresent(p -> data.setPersonId(p.getIdElement().getIdPart()));
+      identifier(patient.getIdentifier(), MRN_CODE).ifPresent(data::setMrn);
+      person.flatMap(p -> identifier(p.getIdentifier(), RAMQ_CODE)).ifPresent(data::setRamq);
+      // the Patient has the name in the EP, the Person if missing
+      final Optional<HumanName> name = Optional.of(patient).filter(Patient::hasName).map(Patient::getNameFirstRep)
+        .or(() -> person.filter(Person::hasName).map(Person::getNameFirstRep));
+      name.filter(HumanName::hasGiven).ifPresent(n -> data.setFirstName(n.getGivenAsSingleString()));
+      name.filter(HumanName::hasFamily).ifPresent(n -> data.setLastName(n.getFamily()));
+      if (patient.hasGender()) {
+        data.setGender(patient.getGender().toCode());
+      }
+      if (patient.hasBirthDate()) {
+        data.setBirthDate(patient.getBirthDateElement().getValueAsString());
+      }
+      if (patient.hasManagingOrganization()) {
+        data.setOrganizationId(PrescriptionGraph.idOf(patient.getManagingOrganization()));
+      }
+      organization.filter(Organization::hasAlias).ifPresent(o -> data.setEp(o.getAlias().get(0).getValue()));
+      data.getSecurityTags().addAll(patient.getMeta().getSecurity().stream().map(IBaseCoding::getCode).collect(Collectors.toList()));
+      requests.forEach(sr -> data.getPrescriptions().add(sr.getIdElement().getIdPart()));
+      data.getFamilyMembers().addAll(familyMembers(requests));
+      documents.add(data);
+    }
+    return documents;
+  }
+
+  // the family members declared by the prescriptions of the patient, once each
+  private static List<FamilyMemberData> familyMembers(List<ServiceRequest> requests) {
+    final Map<String, FamilyMemberData> members = new TreeMap<>();
+    for (ServiceRequest request : requests) {
+      for (Extension member : request.getExtensionsByUrl(FAMILY_MEMBER)) {
+        final Extension parent = member.getExtensionByUrl(FAMILY_MEMBER_PARENT);
+        if (parent != null && parent.getValue() instanceof Reference && ((Reference) parent.getValue()).hasReference()) {
+          final String patientId = PrescriptionGraph.idOf((Reference) parent.getValue());
+          final String relationship = Optional.ofNullable(member.getExtensionByUrl(FAMILY_MEMBER_RELATIONSHIP))
+            .map(Extension::getValue).filter(CodeableConcept.class::isInstance)
+            .map(v -> ((CodeableConcept) v).getCodingFirstRep().getCode()).orElse("");
+          members.putIfAbsent(patientId, new FamilyMemberData(patientId, relationship));
+        }
+      }
+    }
+    return new ArrayList<>(members.values());
+  }
+
+  private static Optional<String> identifier(List<Identifier> identifiers, String code) {
+    return identifiers.stream()
+      .filter(id -> id.hasType() && code.equals(id.getType().getCodingFirstRep().getCode()))
+      .map(Identifier::getValue).filter(StringUtils::isNotBlank).findFirst();
+  }
+
+  private <T extends IBaseResource> List<T> searchByIds(IFhirResourceDao<T> dao, Set<String> ids) {
+    return this.search(dao, ids, chunk -> SearchParameterMap.newSynchronous().add("_id", new TokenOrListParam(null, chunk.toArray(new String[0]))));
+  }
+
+  private <T extends IBaseResource> List<T> searchByPatients(IFhirResourceDao<T> dao, String param, Set<String> patientIds) {
+    return this.search(dao, patientIds, chunk -> {
+      final ReferenceOrListParam references = new ReferenceOrListParam();
+      chunk.forEach(id -> references.addOr(new ReferenceParam("Patient/" + id)));
+      return SearchParameterMap.newSynchronous().add(param, references);
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T extends IBaseResource> List<T> search(IFhirResourceDao<T> dao, Set<String> values, Function<List<String>, SearchParameterMap> toSearch) {
+    final List<String> all = values.stream().filter(StringUtils::isNotBlank).distinct().collect(Collectors.toList());
+    final List<T> resources = new ArrayList<>();
+    for (int i = 0; i < all.size(); i += MAX_PARAMS) {
+      final SearchParameterMap sm = toSearch.apply(all.subList(i, Math.min(all.size(), i + MAX_PARAMS)));
+      dao.search(sm).getAllResources().forEach(r -> resources.add((T) r));
+    }
+    return resources;
+  }
+}
@@ -1,31 +1,80 @@
 package bio.ferlab.clin.es.config;
 
+import bio.ferlab.clin.es.CircuitBreaker;
 import bio.ferlab.clin.es.data.ElasticsearchData;
+import bio.ferlab.clin.es.journal.ElasticsearchJournal;
 import bio.ferlab.clin.properties.BioProperties;
 import bio.ferlab.clin.es.ElasticsearchRestClient;
 import bio.ferlab.clin.utils.JsonGenerator;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpHost;
-import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.elasticsearch.client.Node;
 import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.Arrays;
+
 @Configuration
 public class ElasticsearchConfiguration {
+    private static final Logger log = LoggerFactory.getLogger(ElasticsearchConfiguration.class);
     private static final int KEEP_ALIVE_VALUE = 1000 * 30;
 
     @Bean(destroyMethod = "close")
-    public ElasticsearchData esData(BioProperties bioProperties) {
-        RestClient client = RestClient.builder(
-                new HttpHost(bioProperties.getEsHost(), bioProperties.getEsPort(), bioProperties.getEsScheme())
-        ).setHttpClientConfigCallback(httpClientBuilder -> HttpAsyncClientBuilder.create().setKeepAliveStrategy(
-                (response, context) -> KEEP_ALIVE_VALUE)
-        ).build();
-        return new ElasticsearchData(client, bioProperties.getEsHost());
+    public ElasticsearchData esData(BioProperties bioProperties) throws IOReactorException {
+        final HttpHost[] hosts = hosts(bioProperties);
+        log.info("ES nodes: {}", Arrays.toString(hosts));
+        // the pool is created here (instead of by the builder) to expose its stats
+        final IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setConnectTimeout(bioProperties.getEsConnectTimeout())
+                .setSoTimeout(bioProperties.getEsSocketTimeout())
+                .build();
+        final PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+        connectionManager.setDefaultMaxPerRoute(bioProperties.getEsMaxConnPerRoute());
+        connectionManager.setMaxTotal(bioProperties.getEsMaxConnTotal());
+
+        RestClient client = RestClient.builder(hosts)
+                .setCompressionEnabled(bioProperties.isEsCompression())
+                .setRequestConfigCallback(requestConfigBuilder -> requestConfigBuilder
+                        .setConnectTimeout(bioProperties.getEsConnectTimeout())
+                        .setSocketTimeout(bioProperties.getEsSocketTimeout()))
+                .setHttpClientConfigCallback(httpClientBuilder -> httpClientBuilder
+                        .setConnectionManager(connectionManager)
+                        .setKeepAliveStrategy((response, context) -> KEEP_ALIVE_VALUE))
+                .setFailureListener(new RestClient.FailureListener() {
+                    @Override
+                    public void onFailure(Node node) {
+                        log.warn("ES node failed, retry on the next one: {}", node.getHost());
+                    }
+                })
+                .build();
+        return new ElasticsearchData(client, hosts[0].getHostName(), connectionManager);
     }
 
     @Bean
-    public ElasticsearchRestClient esRestClient(ElasticsearchData esData, JsonGenerator jsonGenerator) {
-        return new ElasticsearchRestClient(esData, jsonGenerator);
+    public ElasticsearchRestClient esRestClient(ElasticsearchData esData, JsonGenerator jsonGenerator, BioProperties bioProperties,
+                                                ElasticsearchJournal journal) {
+        final CircuitBreaker breaker = new CircuitBreaker(bioProperties.getEsCircuitBreakerFailureThreshold(),
+                bioProperties.getEsCircuitBreakerOpenDuration());
+        return new ElasticsearchRestClient(esData, jsonGenerator, bioProperties.getEsBulkMaxActions(), bioProperties.getEsBulkMaxBytes(),
+                bioProperties.getEsMaxInFlight(), breaker, journal);
+    }
+
+    static HttpHost[] hosts(BioProperties bioProperties) {
+        if (StringUtils.isBlank(bioProperties.getEsHosts())) {
+            return new HttpHost[]{new HttpHost(bioProperties.getEsHost(), bioProperties.getEsPort(), bioProperties.getEsScheme())};
+        }
+        return Arrays.stream(bioProperties.getEsHosts().split(","))
+                .map(String::trim)
+                .filter(StringUtils::isNotBlank)
+                .map(host -> host.contains("://") ? host : bioProperties.getEsScheme() + "://" + host)
+                .map(HttpHost::create)
+                .toArray(HttpHost[]::new);
     }
 }
@@ -0,0 +1,48 @@
+package bio.ferlab.clin.es.config;
+
+import bio.ferlab.clin.es.data.ElasticsearchData;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.apache.http.pool.PoolStats;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.function.ToIntFunction;
+
+/**
+ * Stats of the ES connection pool published as the {@code es.pool.*} gauges, in the same registry as the indexer
+ * queues. A growing number of pending connections means the pool is too small.
+ */
+@Component
+public class ElasticsearchPoolMonitor {
+
+  private final ElasticsearchData esData;
+
+  @Autowired
+  public ElasticsearchPoolMonitor(ElasticsearchData esData, ObjectProvider<MeterRegistry> meterRegistry) {
+    this(esData, meterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+  }
+
+  public ElasticsearchPoolMonitor(ElasticsearchData esData, MeterRegistry meterRegistry) {
+    this.esData = esData;
+    this.registerMeters(meterRegistry);
+  }
+
+  private void registerMeters(MeterRegistry registry) {
+    this.gauge(registry, "es.pool.leased", "Connections in use", PoolStats::getLeased);
+    this.gauge(registry, "es.pool.pending", "Requests waiting for a connection", PoolStats::getPending);
+    this.gauge(registry, "es.pool.available", "Idle connections kept alive", PoolStats::getAvailable);
+    this.gauge(registry, "es.pool.max", "Max connections", PoolStats::getMax);
+  }
+
+  private void gauge(MeterRegistry registry, String name, String description, ToIntFunction<PoolStats> stat) {
+    Gauge.builder(name, this, m -> m.stat(stat)).description(description).strongReference(true).register(registry);
+  }
+
+  // NaN until the client is built
+  private double stat(ToIntFunction<PoolStats> stat) {
+    return esData.getPoolStats().map(stat::applyAsInt).map(Integer::doubleValue).orElse(Double.NaN);
+  }
+}
@@ -1,18 +1,32 @@
 package bio.ferlab.clin.es.data;
 
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.elasticsearch.client.RestClient;
 
 import java.io.IOException;
+import java.util.Optional;
 
 public class ElasticsearchData {
     public static final String EMPTY_STRING = "";
     
     public final RestClient client;
     public final String host;
+    private final PoolingNHttpClientConnectionManager connectionManager;
 
     public ElasticsearchData(RestClient client, String host) {
+        this(client, host, null);
+    }
+
+    public ElasticsearchData(RestClient client, String host, PoolingNHttpClientConnectionManager connectionManager) {
         this.client = client;
         this.host = host;
+        this.connectionManager = connectionManager;
+    }
+
+    // leased, pending and available connections of the pool
+    public Optional<PoolStats> getPoolStats() {
+        return Optional.ofNullable(connectionManager).map(PoolingNHttpClientConnectionManager::getTotalStats);
     }
 
     public void close() throws IOException {
@@ -8,8 +8,8 @@ import lombok.NoArgsConstructor;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
+import java.util.TreeSet;
 
 import static bio.ferlab.clin.es.data.ElasticsearchData.EMPTY_STRING;
 
@@ -30,6 +30,11 @@ public abstract class AbstractPrescriptionData {
   private String ep = EMPTY_STRING;
   private String createdOn = EMPTY_STRING;
   private String timestamp = Instant.now().toString();
+  // hash of the document without the volatile fields, unchanged documents are not re-written
+  private String fingerprint = EMPTY_STRING;
+  // range of the document and hash of the id + versionId of its request, compared with the DB by NanuqReconciler
+  private int idHash = 0;
+  private int versionHash = 0;
   private List<String> securityTags = new ArrayList<>();
-  private Collection<String> tasks = new HashSet<>();
+  private Collection<String> tasks = new TreeSet<>();
 }
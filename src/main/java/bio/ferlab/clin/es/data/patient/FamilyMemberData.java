@@ -0,0 +1,21 @@
+package bio.ferlab.clin.es.data.patient;
+
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.annotation.JsonNaming;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import static bio.ferlab.clin.es.data.ElasticsearchData.EMPTY_STRING;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonNaming(PropertyNamingStrategy.SnakeCaseStrategy.class)
+public class FamilyMemberData {
+
+  private String patientId = EMPTY_STRING;
+  // ex: MTH, FTH
+  private String relationship = EMPTY_STRING;
+
+}
@@ -0,0 +1,36 @@
+package bio.ferlab.clin.es.data.patient;
+
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+import com.fasterxml.jackson.databind.annotation.JsonNaming;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+import static bio.ferlab.clin.es.data.ElasticsearchData.EMPTY_STRING;
+
+@Data
+@NoArgsConstructor
+@JsonNaming(PropertyNamingStrategy.SnakeCaseStrategy.class)
+public class PatientData {
+
+  private String patientId = EMPTY_STRING;
+  private String personId = EMPTY_STRING;
+  private String mrn = EMPTY_STRING;
+  private String ramq = EMPTY_STRING;
+  private String firstName = EMPTY_STRING;
+  private String lastName = EMPTY_STRING;
+  private String gender = EMPTY_STRING;
+  private String birthDate = EMPTY_STRING;
+  private String ep = EMPTY_STRING;
+  private String organizationId = EMPTY_STRING;
+  private String timestamp = Instant.now().toString();
+  private List<String> securityTags = new ArrayList<>();
+  // ids of the ServiceRequests of the patient
+  private Collection<String> prescriptions = new TreeSet<>();
+  private List<FamilyMemberData> familyMembers = new ArrayList<>();
+}
@@ -6,6 +6,7 @@ import org.springframework.stereotype.Component;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -15,6 +16,8 @@ public class PatientIdExtractor extends IdExtractor {
     private final List<ExtractorHandler<? extends IBaseResource>> handlers = Arrays.asList(
             new ExtractorHandler<>(Patient.class, this::extractPatientId),
             new ExtractorHandler<>(Group.class, this::extractGroupMembers),
+            new ExtractorHandler<>(ServiceRequest.class, this::extractSubject),
+            new ExtractorHandler<>(Person.class, this::extractLinkedPatients),
             new ExtractorHandler<>(Bundle.class, super::extractIdsFromBundle)
     );
 
@@ -26,6 +29,22 @@ public class PatientIdExtractor extends IdExtractor {
         return group.getMember().stream().map(member -> getIdFromReference(member.getEntity().getReference())).collect(Collectors.toSet());
     }
 
+    // prescriptions and family members are part of the patient document
+    private Set<String> extractSubject(ServiceRequest serviceRequest) {
+        final Set<String> ids = new HashSet<>();
+        if (serviceRequest.hasSubject() && serviceRequest.getSubject().hasReference()) {
+            ids.add(getIdFromReference(serviceRequest.getSubject().getReference()));
+        }
+        return ids;
+    }
+
+    // the RAMQ is the one of the Person
+    private Set<String> extractLinkedPatients(Person person) {
+        return person.getLink().stream().map(link -> link.getTarget().getReference())
+                .filter(reference -> reference != null && reference.startsWith("Patient/"))
+                .map(this::getIdFromReference).collect(Collectors.toSet());
+    }
+
     private String getIdFromReference(String reference) {
         return reference.split("/")[1];
     }
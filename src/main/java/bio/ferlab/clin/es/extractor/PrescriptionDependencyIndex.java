@@ -0,0 +1,194 @@
+package bio.ferlab.clin.es.extractor;
+
+import bio.ferlab.clin.es.KeysetPager;
+import bio.ferlab.clin.es.ResourceKeys;
+import bio.ferlab.clin.es.builder.nanuq.PrescriptionGraph;
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.properties.BioProperties;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Reverse index of the resources embedded in the nanuq documents: Specimen and Patient to the prescriptions
+ * referencing them, Organization to the Patients it manages. Loaded in background at startup then kept
+ * up to date by the committed writes of ServiceRequest and Patient, until loaded the DB is searched instead.
+ * The index is local to the JVM: it only sees the writes received by this replica and is rebuilt from the DB
+ * at each startup, so it must stay disabled when several replicas write to the same DB.
+ */
+@Component
+public class PrescriptionDependencyIndex {
+
+  private static final Logger log = LoggerFactory.getLogger(PrescriptionDependencyIndex.class);
+  private static final String SERVICE_REQUEST = "ServiceRequest/";
+
+  private final ResourceDaoConfiguration configuration;
+  private final ResourceKeys resourceKeys;
+  private final PrescriptionIdResolver prescriptionIdResolver;
+  private final BioProperties bioProperties;
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "nanuq-dependency-index"));
+
+  // dependency (ex: Specimen/1) => resources embedding it (ex: ServiceRequest/2)
+  private final Map<String, Set<String>> dependents = new ConcurrentHashMap<>();
+  // resource => its dependencies, to remove the previous ones when updated
+  private final Map<String, Set<String>> dependencies = new ConcurrentHashMap<>();
+  // keys written while loading, the loaded version may be older than theirs, guarded by this
+  private Set<String> touched = null;
+  private volatile boolean ready = false;
+
+  public PrescriptionDependencyIndex(ResourceDaoConfiguration configuration, ResourceKeys resourceKeys,
+                                     PrescriptionIdResolver prescriptionIdResolver, BioProperties bioProperties) {
+    this.configuration = configuration;
+    this.resourceKeys = resourceKeys;
+    this.prescriptionIdResolver = prescriptionIdResolver;
+    this.bioProperties = bioProperties;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void start() {
+    if (bioProperties.isNanuqDependencyIndexEnabled()) {
+      this.executor.submit(this::load);
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    this.executor.shutdownNow();
+  }
+
+  // the writes committed while loading are registered too, a page read before one of them must not overwrite it
+  void load() {
+    synchronized (this) {
+      this.touched = new HashSet<>();
+    }
+    try {
+      final Date until = new Date();
+      this.loadAll(new KeysetPager<>(resourceKeys, configuration.serviceRequestDAO, bioProperties.getNanuqReindexBatchSize(), null, until), this::links);
+      this.loadAll(new KeysetPager<>(resourceKeys, configuration.patientDAO, bioProperties.getNanuqReindexBatchSize(), null, until), this::links);
+      this.ready = true;
+      log.info("Prescription dependencies loaded: {}", this.dependents.size());
+    } catch (RuntimeException e) {
+      log.error("Failed to load the prescription dependencies, the DB is searched instead", e);
+    } finally {
+      synchronized (this) {
+        this.touched = null;
+      }
+    }
+  }
+
+  private <T extends IBaseResource> void loadAll(KeysetPager<T> pager, Function<T, Map.Entry<String, Set<String>>> links) {
+    List<T> page;
+    while (!(page = pager.next()).isEmpty()) {
+      for (T resource : page) {
+        final Map.Entry<String, Set<String>> link = links.apply(resource);
+        synchronized (this) {
+          if (!this.touched.contains(link.getKey())) {
+            this.link(link.getKey(), link.getValue());
+          }
+        }
+      }
+    }
+  }
+
+  // to call once the write is committed, the links of a rolled back write must not be kept
+  public void register(IBaseResource resource) {
+    if (resource instanceof ServiceRequest || resource instanceof Patient) {
+      final Map.Entry<String, Set<String>> link = this.links(resource);
+      this.write(link.getKey(), link.getValue());
+    }
+  }
+
+  private Map.Entry<String, Set<String>> links(IBaseResource resource) {
+    return resource instanceof ServiceRequest ? this.links((ServiceRequest) resource) : this.links((Patient) resource);
+  }
+
+  private Map.Entry<String, Set<String>> links(ServiceRequest serviceRequest) {
+    final Set<String> keys = new HashSet<>();
+    serviceRequest.getSpecimen().stream().filter(Reference::hasReference).forEach(r -> keys.add("Specimen/" + PrescriptionGraph.idOf(r)));
+    if (serviceRequest.hasSubject() && serviceRequest.getSubject().hasReference()) {
+      keys.add("Patient/" + PrescriptionGraph.idOf(serviceRequest.getSubject()));
+    }
+    return Map.entry(SERVICE_REQUEST + serviceRequest.getIdElement().getIdPart(), keys);
+  }
+
+  private Map.Entry<String, Set<String>> links(Patient patient) {
+    final Set<String> keys = new HashSet<>();
+    if (patient.hasManagingOrganization() && patient.getManagingOrganization().hasReference()) {
+      keys.add("Organization/" + PrescriptionGraph.idOf(patient.getManagingOrganization()));
+    }
+    return Map.entry("Patient/" + patient.getIdElement().getIdPart(), keys);
+  }
+
+  // to call once the delete is committed, any type: its links to its dependencies and from its dependents are removed
+  public synchronized void remove(String type, String id) {
+    final String key = type + "/" + id;
+    this.write(key, Set.of());
+    Optional.ofNullable(this.dependents.remove(key)).ifPresent(dependents -> dependents.forEach(dependent ->
+      this.dependencies.computeIfPresent(dependent, (d, keys) -> {
+        keys.remove(key);
+        return keys.isEmpty() ? null : keys;
+      })));
+  }
+
+  // ids of the prescriptions embedding the resource, directly or through a Patient
+  public Set<String> prescriptionIds(IBaseResource resource) {
+    return this.prescriptionIds(resource.fhirType(), Set.of(resource.getIdElement().getIdPart()));
+  }
+
+  // same from the ids of resources of that type, ex: the ones read from the outbox
+  public Set<String> prescriptionIds(String type, Set<String> ids) {
+    if (!this.ready) {
+      return this.prescriptionIdResolver.resolve(Map.of(type, ids));
+    }
+    final Set<String> prescriptionIds = new HashSet<>();
+    final Deque<String> keys = ids.stream().map(id -> type + "/" + id).collect(Collectors.toCollection(ArrayDeque::new));
+    final Set<String> visited = new HashSet<>();
+    while (!keys.isEmpty()) {
+      final String key = keys.pop();
+      if (visited.add(key)) {
+        for (String dependent : this.dependents.getOrDefault(key, Set.of())) {
+          if (dependent.startsWith(SERVICE_REQUEST)) {
+            prescriptionIds.add(dependent.substring(SERVICE_REQUEST.length()));
+          } else {
+            keys.push(dependent);
+          }
+        }
+      }
+    }
+    return prescriptionIds;
+  }
+
+  private synchronized void write(String key, Set<String> keys) {
+    Optional.ofNullable(this.touched).ifPresent(t -> t.add(key));
+    this.link(key, keys);
+  }
+
+  private synchronized void link(String key, Set<String> keys) {
+    if (!bioProperties.isNanuqDependencyIndexEnabled()) {
+      return;
+    }
+    final Set<String> previous = Optional.ofNullable(this.dependencies.put(key, keys)).orElse(Set.of());
+    previous.stream().filter(k -> !keys.contains(k)).forEach(k -> this.dependents.computeIfPresent(k, (d, v) -> {
+      v.remove(key);
+      return v.isEmpty() ? null : v;
+    }));
+    keys.forEach(k -> this.dependents.computeIfAbsent(k, d -> ConcurrentHashMap.newKeySet()).add(key));
+    if (keys.isEmpty()) {
+      this.dependencies.remove(key);
+    }
+  }
+}
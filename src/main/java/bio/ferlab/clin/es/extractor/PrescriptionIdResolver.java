@@ -0,0 +1,90 @@
+package bio.ferlab.clin.es.extractor;
+
+import bio.ferlab.clin.es.builder.nanuq.PrescriptionGraph;
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.*;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * Ids of the prescriptions (ServiceRequest) whose nanuq documents embed the given resources, for every type
+ * read by the data builders: the ServiceRequest itself, its Tasks (focus), Specimens, subject Patient and the
+ * managing Organization of that Patient. Resources of the same type are resolved together with multi-reference searches,
+ * read by pages of which only the ids are kept. The searches are not meant for a write transaction: the outbox relay
+ * resolves the resources it was given after their commit.
+ */
+@Component
+public class PrescriptionIdResolver {
+
+  // max values of a single OR search parameter, bigger sets are split
+  private static final int MAX_PARAMS = 500;
+  // resources read per page of a search
+  static final int PAGE_SIZE = 500;
+
+  private final ResourceDaoConfiguration configuration;
+
+  public PrescriptionIdResolver(ResourceDaoConfiguration configuration) {
+    this.configuration = configuration;
+  }
+
+  public Set<String> resolve(Collection<? extends IBaseResource> resources) {
+    final Map<String, Set<String>> idsByType = new HashMap<>();
+    final Set<String> prescriptionIds = new HashSet<>();
+    for (IBaseResource resource : resources) {
+      if (resource instanceof ServiceRequest) {
+        prescriptionIds.add(resource.getIdElement().getIdPart());
+      } else if (resource instanceof Task) {
+        Optional.ofNullable(((Task) resource).getFocus()).filter(Reference::hasReference)
+          .filter(r -> "ServiceRequest".equals(r.getReferenceElement().getResourceType()))
+          .ifPresent(r -> prescriptionIds.add(PrescriptionGraph.idOf(r)));
+      } else {
+        idsByType.computeIfAbsent(resource.fhirType(), k -> new HashSet<>()).add(resource.getIdElement().getIdPart());
+      }
+    }
+    prescriptionIds.addAll(this.resolve(idsByType));
+    return prescriptionIds;
+  }
+
+  // from the ids of the resources by type, the ServiceRequest ids are returned as is
+  public Set<String> resolve(Map<String, Set<String>> idsByType) {
+    final Set<String> prescriptionIds = new HashSet<>(idsByType.getOrDefault("ServiceRequest", Set.of()));
+    prescriptionIds.addAll(this.searchPrescriptions("specimen", "Specimen", idsByType.getOrDefault("Specimen", Set.of())));
+    final Set<String> patientIds = new HashSet<>(idsByType.getOrDefault("Patient", Set.of()));
+    patientIds.addAll(this.search(configuration.patientDAO, "organization", "Organization", idsByType.getOrDefault("Organization", Set.of())));
+    prescriptionIds.addAll(this.searchPrescriptions("subject", "Patient", patientIds));
+    return prescriptionIds;
+  }
+
+  private Set<String> searchPrescriptions(String param, String type, Set<String> ids) {
+    return this.search(configuration.serviceRequestDAO, param, type, ids);
+  }
+
+  // ids of the resources referencing any of the ids by this param
+  private Set<String> search(IFhirResourceDao<? extends IBaseResource> dao, String param, String type, Set<String> ids) {
+    final Set<String> found = new HashSet<>();
+    final List<String> all = new ArrayList<>(ids);
+    for (int i = 0; i < all.size(); i += MAX_PARAMS) {
+      final ReferenceOrListParam references = new ReferenceOrListParam();
+      all.subList(i, Math.min(all.size(), i + MAX_PARAMS)).forEach(id -> references.addOr(new ReferenceParam(type + "/" + id)));
+      List<IBaseResource> page;
+      int offset = 0;
+      do {
+        final SearchParameterMap sm = SearchParameterMap.newSynchronous().add(param, references);
+        sm.setCount(PAGE_SIZE);
+        sm.setOffset(offset);
+        sm.setSort(new SortSpec("_id"));
+        page = dao.search(sm).getResources(0, PAGE_SIZE);
+        page.forEach(r -> found.add(r.getIdElement().getIdPart()));
+        offset += PAGE_SIZE;
+      } while (page.size() == PAGE_SIZE);
+    }
+    return found;
+  }
+}
@@ -1,8 +1,8 @@
 package bio.ferlab.clin.es.extractor;
 
+import bio.ferlab.clin.es.builder.nanuq.PrescriptionGraph;
 import org.hl7.fhir.instance.model.api.IBaseResource;
-import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.*;
 import org.springframework.stereotype.Component;
 
 import java.util.Arrays;
@@ -12,15 +12,36 @@ import java.util.Set;
 
 @Component
 public class ServiceRequestIdExtractor extends IdExtractor {
+    private final PrescriptionDependencyIndex dependencyIndex;
+
     private final List<ExtractorHandler<? extends IBaseResource>> handlers = Arrays.asList(
             new ExtractorHandler<>(ServiceRequest.class, this::extractServiceRequestId),
+            new ExtractorHandler<>(Task.class, this::extractTaskFocus),
+            new ExtractorHandler<>(Specimen.class, this::extractDependents),
+            new ExtractorHandler<>(Patient.class, this::extractDependents),
+            new ExtractorHandler<>(Organization.class, this::extractDependents),
             new ExtractorHandler<>(Bundle.class, super::extractIdsFromBundle)
     );
 
+    public ServiceRequestIdExtractor(PrescriptionDependencyIndex dependencyIndex) {
+        this.dependencyIndex = dependencyIndex;
+    }
+
     private Set<String> extractServiceRequestId(ServiceRequest serviceRequest) {
         return Collections.singleton(serviceRequest.getIdElement().getIdPart());
     }
 
+    private Set<String> extractTaskFocus(Task task) {
+        if (task.hasFocus() && "ServiceRequest".equals(task.getFocus().getReferenceElement().getResourceType())) {
+            return Collections.singleton(PrescriptionGraph.idOf(task.getFocus()));
+        }
+        return Collections.emptySet();
+    }
+
+    private Set<String> extractDependents(IBaseResource resource) {
+        return this.dependencyIndex.prescriptionIds(resource);
+    }
+
     @Override
     protected List<ExtractorHandler<? extends IBaseResource>> getHandlers() {
         return this.handlers;
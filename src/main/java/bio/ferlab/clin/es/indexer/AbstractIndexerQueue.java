@@ -0,0 +1,244 @@
+package bio.ferlab.clin.es.indexer;
+
+import bio.ferlab.clin.properties.BioProperties;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Index documents outside of the request thread, from the ids they are built from. The pool of workers, its queue
+ * and the ids waiting in the coalesce window are bounded, when they are full the request thread does the indexing
+ * itself (backpressure) instead of dropping the request. The batches flushed by the coalesce scheduler are never run by the scheduler, they
+ * wait for the next tick when the workers are busy.
+ * Requests for the same id arriving within the coalesce window are merged into a single rebuild, the window
+ * is extended by each new request up to a max delay. A document is never rebuilt by two workers at the same time
+ * and a request received during its rebuild triggers another one, so the final state is always indexed.
+ * <p>
+ * Only used when {@code bio.nanuq.outbox.enabled} is false, the outbox relay replaces it otherwise (the writes are
+ * indexed from the outbox after commit and the queues stay empty, their gauges at 0).
+ * Each queue is published as the {@code <name>.indexer.*} meters. The sizes and the coalesce window are the
+ * {@code bio.nanuq.indexer} ones.
+ */
+public abstract class AbstractIndexerQueue {
+
+  private static final Logger log = LoggerFactory.getLogger(AbstractIndexerQueue.class);
+
+  private final String name;
+  private final BioProperties bioProperties;
+  private final ThreadPoolExecutor executor;
+  private final ScheduledExecutorService scheduler;
+  private final Map<String, Pending> pending = new HashMap<>();
+  private final Set<String> inFlight = new HashSet<>();
+
+  private final AtomicLong indexed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong lastLagMs = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong overflow = new AtomicLong();
+
+  // name: prefix of the meters and of the threads, ex: nanuq
+  protected AbstractIndexerQueue(String name, BioProperties bioProperties, MeterRegistry meterRegistry) {
+    this.name = name;
+    this.bioProperties = bioProperties;
+    final AtomicInteger threadCount = new AtomicInteger();
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, name + "-indexer-coalesce"));
+    this.executor = new ThreadPoolExecutor(bioProperties.getNanuqIndexerWorkers(), bioProperties.getNanuqIndexerWorkers(),
+      0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(bioProperties.getNanuqIndexerQueueCapacity()),
+      r -> new Thread(r, name + "-indexer-" + threadCount.incrementAndGet()),
+      new ThreadPoolExecutor.AbortPolicy());
+    final long window = bioProperties.getNanuqIndexerCoalesceWindow();
+    if (window > 0) {
+      final long tick = Math.max(10, window / 4);
+      this.scheduler.scheduleWithFixedDelay(() -> this.flush(false), tick, tick, TimeUnit.MILLISECONDS);
+    }
+    this.registerMeters(meterRegistry);
+  }
+
+  private void registerMeters(MeterRegistry registry) {
+    final String prefix = name + ".indexer.";
+    Gauge.builder(prefix + "queue.depth", this, AbstractIndexerQueue::getQueueDepth)
+      .description("Batches waiting for a worker").register(registry);
+    Gauge.builder(prefix + "pending", this, AbstractIndexerQueue::getPending)
+      .description("Ids waiting for the end of their coalesce window").register(registry);
+    Gauge.builder(prefix + "lag", this, AbstractIndexerQueue::getLastLagMs).baseUnit("milliseconds")
+      .description("Time between the request and the indexing of the last batch").register(registry);
+    FunctionCounter.builder(prefix + "indexed", indexed, AtomicLong::get)
+      .description("Ids indexed").register(registry);
+    FunctionCounter.builder(prefix + "failed", failed, AtomicLong::get)
+      .description("Ids that failed to be indexed").register(registry);
+    FunctionCounter.builder(prefix + "coalesced", coalesced, AtomicLong::get)
+      .description("Requests merged with a pending one").register(registry);
+    FunctionCounter.builder(prefix + "overflow", overflow, AtomicLong::get)
+      .description("Ids indexed by the request thread because the queue was full").register(registry);
+  }
+
+  // the documents of these ids, built and sent to ES
+  protected abstract void doIndex(Set<String> ids);
+
+  public void submit(Set<String> ids) {
+    if (ids.isEmpty()) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    if (bioProperties.getNanuqIndexerCoalesceWindow() <= 0) {
+      try {
+        this.executor.execute(() -> this.index(ids, now));
+      } catch (RejectedExecutionException e) {
+        this.indexByCaller(ids, now);
+      }
+      return;
+    }
+    final Set<String> full = new HashSet<>();
+    synchronized (pending) {
+      for (String id : ids) {
+        final Pending previous = pending.get(id);
+        if (previous != null) {
+          coalesced.incrementAndGet();
+        } else if (pending.size() >= bioProperties.getNanuqIndexerMaxPending()) {
+          full.add(id);
+          continue;
+        }
+        final long enqueuedAt = previous != null ? previous.enqueuedAt : now;
+        final long due = Math.min(now + bioProperties.getNanuqIndexerCoalesceWindow(), enqueuedAt + bioProperties.getNanuqIndexerCoalesceMaxDelay());
+        pending.put(id, new Pending(enqueuedAt, due));
+      }
+    }
+    if (!full.isEmpty()) {
+      this.indexByCaller(full, now);
+    }
+  }
+
+  private void indexByCaller(Set<String> ids, long enqueuedAt) {
+    log.warn("Indexer queue {} full, index {} ids in the request thread", name, ids.size());
+    this.overflow.addAndGet(ids.size());
+    this.index(ids, enqueuedAt);
+  }
+
+  // send the due ids (or all of them) not being rebuilt as one batch
+  void flush(boolean all) {
+    final Set<String> batch = new HashSet<>();
+    long enqueuedAt = Long.MAX_VALUE;
+    synchronized (pending) {
+      final long now = System.currentTimeMillis();
+      final Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator();
+      while (it.hasNext()) {
+        final Map.Entry<String, Pending> entry = it.next();
+        if ((all || entry.getValue().due <= now) && !inFlight.contains(entry.getKey())) {
+          batch.add(entry.getKey());
+          enqueuedAt = Math.min(enqueuedAt, entry.getValue().enqueuedAt);
+          it.remove();
+        }
+      }
+      inFlight.addAll(batch);
+    }
+    if (!batch.isEmpty()) {
+      final long batchEnqueuedAt = enqueuedAt;
+      try {
+        this.executor.execute(() -> {
+          try {
+            this.index(batch, batchEnqueuedAt);
+          } finally {
+            synchronized (pending) {
+              inFlight.removeAll(batch);
+            }
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // workers busy, due again at the next tick, a newer request of the same id is kept
+        synchronized (pending) {
+          inFlight.removeAll(batch);
+          batch.forEach(id -> pending.putIfAbsent(id, new Pending(batchEnqueuedAt, 0)));
+        }
+      }
+    }
+  }
+
+  public int getPending() {
+    synchronized (pending) {
+      return pending.size();
+    }
+  }
+
+  public long getCoalesced() {
+    return this.coalesced.get();
+  }
+
+  public long getOverflow() {
+    return this.overflow.get();
+  }
+
+  public int getQueueDepth() {
+    return this.executor.getQueue().size();
+  }
+
+  public long getLastLagMs() {
+    return this.lastLagMs.get();
+  }
+
+  public long getIndexed() {
+    return this.indexed.get();
+  }
+
+  public long getFailed() {
+    return this.failed.get();
+  }
+
+  private void index(Set<String> ids, long enqueuedAt) {
+    final long lag = System.currentTimeMillis() - enqueuedAt;
+    this.lastLagMs.set(lag);
+    try {
+      this.doIndex(ids);
+      this.indexed.addAndGet(ids.size());
+    } catch (Exception e) {
+      this.failed.addAndGet(ids.size());
+      log.error("Failed to index {} {}", name, ids, e);
+    }
+    log.info("Indexed {}: {} lag: {} ms queue depth: {} total indexed: {} total failed: {} total coalesced: {}",
+      name, ids, lag, getQueueDepth(), indexed.get(), failed.get(), coalesced.get());
+  }
+
+  @AllArgsConstructor
+  private static class Pending {
+    private final long enqueuedAt;
+    private final long due;
+  }
+
+  @PreDestroy
+  public void drain() {
+    log.info("Drain {} indexer queue, remaining: {} pending: {}", name, getQueueDepth(), getPending());
+    this.scheduler.shutdownNow();
+    // the whole drain, flushing the pending ids included, is bounded by the shutdown timeout
+    final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(bioProperties.getNanuqIndexerShutdownTimeout());
+    // what is still waiting for a rebuild in progress is sent once it's done
+    while (getPending() > 0 && System.currentTimeMillis() < deadline) {
+      this.flush(true);
+      if (getPending() > 0) {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    this.executor.shutdown();
+    try {
+      if (!this.executor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS) || getPending() > 0) {
+        log.warn("{} indexer queue not drained after {} seconds, remaining: {} pending: {}", name, bioProperties.getNanuqIndexerShutdownTimeout(),
+          this.executor.shutdownNow().size(), getPending());
+      }
+    } catch (InterruptedException e) {
+      this.executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -7,13 +7,15 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 
 abstract class Indexer {
     public void index(RequestDetails requestDetails) {
-        if (requestDetails.getRequestType() == RequestTypeEnum.POST || requestDetails.getRequestType() == RequestTypeEnum.PUT) {
-            final IBaseResource processedResource = requestDetails.getResource();
-            if (IndexerHelper.isIndexable(processedResource)) {
-                this.doIndex(requestDetails, processedResource);
-            }
+        if (isIndexable(requestDetails)) {
+            this.doIndex(requestDetails, requestDetails.getResource());
         }
     }
 
+    protected boolean isIndexable(RequestDetails requestDetails) {
+        return (requestDetails.getRequestType() == RequestTypeEnum.POST || requestDetails.getRequestType() == RequestTypeEnum.PUT)
+            && IndexerHelper.isIndexable(requestDetails.getResource());
+    }
+
     protected abstract void doIndex(RequestDetails requestDetails, IBaseResource resource);
 }
@@ -0,0 +1,35 @@
+package bio.ferlab.clin.es.indexer;
+
+import bio.ferlab.clin.properties.BioProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+
+/**
+ * Prescriptions indexed in the nanuq indexes outside of the request thread, published as the {@code nanuq.indexer.*}
+ * meters, in the global registry when no other is configured.
+ */
+@Component
+public class IndexerQueue extends AbstractIndexerQueue {
+
+  private final NanuqIndexer nanuqIndexer;
+
+  @Autowired
+  public IndexerQueue(NanuqIndexer nanuqIndexer, BioProperties bioProperties, ObjectProvider<MeterRegistry> meterRegistry) {
+    this(nanuqIndexer, bioProperties, meterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+  }
+
+  public IndexerQueue(NanuqIndexer nanuqIndexer, BioProperties bioProperties, MeterRegistry meterRegistry) {
+    super("nanuq", bioProperties, meterRegistry);
+    this.nanuqIndexer = nanuqIndexer;
+  }
+
+  @Override
+  protected void doIndex(Set<String> prescriptionIds) {
+    this.nanuqIndexer.doIndex(prescriptionIds);
+  }
+}
@@ -0,0 +1,41 @@
+package bio.ferlab.clin.es.indexer;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Named timestamps persisted in the DB, ex: until when the changes of the FHIR resources are known to be indexed.
+ */
+@Component
+public class IndexerWatermark {
+
+  public static final String TABLE = "clin_indexer_watermark";
+
+  private final JdbcTemplate jdbcTemplate;
+
+  public IndexerWatermark(DataSource dataSource) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+  }
+
+  public void createTable() {
+    jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+      "name VARCHAR(64) NOT NULL PRIMARY KEY, " +
+      "ts BIGINT NOT NULL)");
+  }
+
+  public Optional<Date> get(String name) {
+    final List<Long> values = jdbcTemplate.queryForList("SELECT ts FROM " + TABLE + " WHERE name = ?", Long.class, name);
+    return values.stream().findFirst().map(Date::new);
+  }
+
+  public void set(String name, Date value) {
+    if (jdbcTemplate.update("UPDATE " + TABLE + " SET ts = ? WHERE name = ?", value.getTime(), name) == 0) {
+      jdbcTemplate.update("INSERT INTO " + TABLE + " (name, ts) VALUES (?, ?)", name, value.getTime());
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package bio.ferlab.clin.es.indexer;
+
+import bio.ferlab.clin.es.KeysetPager;
+import bio.ferlab.clin.es.ResourceKeys;
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.es.extractor.PrescriptionIdResolver;
+import bio.ferlab.clin.properties.BioProperties;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Incremental re-index: the resources read by the nanuq builders changed since the watermark are mapped to their
+ * prescriptions which are re-indexed. The watermark only moves forward once everything until then is indexed,
+ * a failure (ES down ...) is retried from the same watermark at the next run.
+ */
+@Component
+public class NanuqCatchUp {
+
+  private static final Logger log = LoggerFactory.getLogger(NanuqCatchUp.class);
+  public static final String WATERMARK = "nanuq-catch-up";
+
+  private final ResourceDaoConfiguration configuration;
+  private final ResourceKeys resourceKeys;
+  private final PrescriptionIdResolver prescriptionIdResolver;
+  private final NanuqIndexer nanuqIndexer;
+  private final IndexerWatermark watermark;
+  private final BioProperties bioProperties;
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "nanuq-catch-up"));
+
+  public NanuqCatchUp(ResourceDaoConfiguration configuration, ResourceKeys resourceKeys, PrescriptionIdResolver prescriptionIdResolver,
+                      NanuqIndexer nanuqIndexer, IndexerWatermark watermark, BioProperties bioProperties) {
+    this.configuration = configuration;
+    this.resourceKeys = resourceKeys;
+    this.prescriptionIdResolver = prescriptionIdResolver;
+    this.nanuqIndexer = nanuqIndexer;
+    this.watermark = watermark;
+    this.bioProperties = bioProperties;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void start() {
+    final long interval = bioProperties.getNanuqCatchUpInterval();
+    if (interval > 0) {
+      this.watermark.createTable();
+      this.scheduler.scheduleWithFixedDelay(this::catchUp, 0, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    this.scheduler.shutdownNow();
+  }
+
+  public void catchUp() {
+    try {
+      final Date until = new Date();
+      final Optional<Date> since = this.watermark.get(WATERMARK);
+      if (since.isEmpty()) {
+        log.info("No catch-up watermark, start from: {}", until);
+        this.watermark.set(WATERMARK, until);
+        return;
+      }
+      final int total = this.reindex(since.get(), until);
+      this.watermark.set(WATERMARK, new Date(Math.max(since.get().getTime(), until.getTime() - bioProperties.getNanuqCatchUpOverlap())));
+      log.info("Catch-up since {} re-indexed {} prescription(s)", since.get(), total);
+    } catch (RuntimeException e) {
+      log.warn("Catch-up failed, retried at the next run: {}", e.getMessage());
+    }
+  }
+
+  // the prescriptions of the resources updated in [since, until), until is open if null
+  public int reindex(Date since, Date until) {
+    int total = 0;
+    for (IFhirResourceDao<? extends IBaseResource> dao : this.daos()) {
+      total += this.catchUp(dao, since, until);
+    }
+    return total;
+  }
+
+  private <T extends IBaseResource> int catchUp(IFhirResourceDao<T> dao, Date since, Date until) {
+    final KeysetPager<T> pager = new KeysetPager<>(resourceKeys, dao, bioProperties.getNanuqReindexBatchSize(), since, until);
+    int total = 0;
+    List<T> page;
+    while (!(page = pager.next()).isEmpty()) {
+      final Set<String> prescriptionIds = this.prescriptionIdResolver.resolve(page);
+      if (!prescriptionIds.isEmpty()) {
+        this.nanuqIndexer.doIndex(prescriptionIds);
+        total += prescriptionIds.size();
+      }
+    }
+    return total;
+  }
+
+  // the resources read by AnalysisDataBuilder and SequencingDataBuilder
+  private List<IFhirResourceDao<? extends IBaseResource>> daos() {
+    return List.of(configuration.serviceRequestDAO, configuration.taskDao, configuration.specimenDao,
+      configuration.patientDAO, configuration.organizationDAO);
+  }
+}
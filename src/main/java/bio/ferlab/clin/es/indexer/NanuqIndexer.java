@@ -1,72 +1,295 @@
 package bio.ferlab.clin.es.indexer;
 
 import bio.ferlab.clin.es.ElasticsearchRestClient;
+import bio.ferlab.clin.es.ElasticsearchRestClient.BulkAction;
+import bio.ferlab.clin.es.NanuqFacetCache;
 import bio.ferlab.clin.es.builder.nanuq.AnalysisDataBuilder;
 import bio.ferlab.clin.es.builder.nanuq.SequencingDataBuilder;
+import bio.ferlab.clin.es.data.nanuq.AbstractPrescriptionData;
 import bio.ferlab.clin.es.data.nanuq.AnalysisData;
 import bio.ferlab.clin.es.data.nanuq.SequencingData;
 import bio.ferlab.clin.es.data.nanuq.SequencingRequestData;
 import bio.ferlab.clin.es.extractor.ServiceRequestIdExtractor;
+import bio.ferlab.clin.exceptions.FailedToUpdateIndexException;
 import bio.ferlab.clin.properties.BioProperties;
+import bio.ferlab.clin.utils.ResourceMemo;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import lombok.RequiredArgsConstructor;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
-import java.util.List;
-import java.util.Set;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Component
 @RequiredArgsConstructor
 public class NanuqIndexer extends Indexer {
-  
+
+  private static final Logger log = LoggerFactory.getLogger(NanuqIndexer.class);
+  private static final String FINGERPRINT_FIELD = "fingerprint";
+  private static final String TIMESTAMP_FIELD = "timestamp";
+
   private final ServiceRequestIdExtractor serviceRequestIdExtractor;
   private final AnalysisDataBuilder analysisDataBuilder;
   private final SequencingDataBuilder sequencingDataBuilder;
   private final BioProperties bioProperties;
   private final IndexerTools tools;
+  private final ResourceMemo resourceMemo;
+  private final NanuqFacetCache facetCache;
+
+  private final AtomicLong writtenDocuments = new AtomicLong();
+  private final AtomicLong skippedDocuments = new AtomicLong();
+  private final AtomicLong rejectedDocuments = new AtomicLong();
+
+  // analyses + sequencings indexes being rebuilt by the migration, the live writes go there too until they are published
+  private volatile List<String> dualWriteIndexes = List.of();
+  // built once, shared by all the threads
+  private volatile ObjectWriter fingerprintWriter;
 
   @Override
   protected void doIndex(RequestDetails requestDetails, IBaseResource resource) {
+    join(this.doIndexAsync(requestDetails, resource));
+  }
+
+  // the documents are built by the calling thread, it doesn't wait for ES
+  public CompletableFuture<Void> indexAsync(RequestDetails requestDetails) {
+    return isIndexable(requestDetails) ? this.doIndexAsync(requestDetails, requestDetails.getResource()) : CompletableFuture.completedFuture(null);
+  }
+
+  private CompletableFuture<Void> doIndexAsync(RequestDetails requestDetails, IBaseResource resource) {
     final Set<String> prescriptionIds = serviceRequestIdExtractor.extract(resource);
-    this.doIndex(requestDetails, prescriptionIds, bioProperties.getNanuqEsAnalysesIndex(), bioProperties.getNanuqEsSequencingsIndex(), true);
+    return CompletableFuture.allOf(
+      this.doIndexAsync(requestDetails, prescriptionIds, bioProperties.getNanuqEsAnalysesIndex(), bioProperties.getNanuqEsSequencingsIndex(), true),
+      this.dualWrite(requestDetails, prescriptionIds));
+  }
+
+  public Set<String> extractPrescriptionIds(RequestDetails requestDetails) {
+    return isIndexable(requestDetails) ? serviceRequestIdExtractor.extract(requestDetails.getResource()) : new HashSet<>();
+  }
+
+  public Set<String> extractPrescriptionIds(IBaseResource resource) {
+    return serviceRequestIdExtractor.extract(resource);
+  }
+
+  // returns the number of documents rejected by the live indexes, more recent ones were already indexed
+  public int doIndex(Set<String> prescriptionIds) {
+    final CompletableFuture<Integer> rejected = this.doIndexAsync(null, prescriptionIds, bioProperties.getNanuqEsAnalysesIndex(),
+      bioProperties.getNanuqEsSequencingsIndex(), true);
+    join(CompletableFuture.allOf(rejected, this.dualWrite(null, prescriptionIds)));
+    return rejected.join();
+  }
+
+  public void startDualWrite(String analysesIndex, String sequencingIndex) {
+    log.info("Dual-write to: {} {}", analysesIndex, sequencingIndex);
+    this.dualWriteIndexes = List.of(analysesIndex, sequencingIndex);
+  }
+
+  public void stopDualWrite() {
+    this.dualWriteIndexes = List.of();
+  }
+
+  private CompletableFuture<Integer> dualWrite(RequestDetails requestDetails, Set<String> prescriptionIds) {
+    final List<String> indexes = this.dualWriteIndexes;
+    if (!indexes.isEmpty() && !prescriptionIds.isEmpty()) {
+      return this.doIndexAsync(requestDetails, prescriptionIds, indexes.get(0), indexes.get(1), true);
+    }
+    return CompletableFuture.completedFuture(0);
   }
 
   public void doIndex(RequestDetails requestDetails, Set<String> prescriptionIds, String analysesIndex, String sequencingIndex, boolean indexLinked) {
-    List<AnalysisData> analyses = this.indexAnalyses(requestDetails, prescriptionIds, analysesIndex);
-    List<SequencingData> sequencings = this.indexSequencings(requestDetails, prescriptionIds, sequencingIndex);
+    join(this.doIndexAsync(requestDetails, prescriptionIds, analysesIndex, sequencingIndex, indexLinked));
+  }
+
+  private CompletableFuture<Integer> doIndexAsync(RequestDetails requestDetails, Set<String> prescriptionIds, String analysesIndex, String sequencingIndex, boolean indexLinked) {
+    // without request the linked analyses and sequencings share the patients read during this call
+    return this.resourceMemo.inBatch(() -> this.buildAndBulk(requestDetails, prescriptionIds, analysesIndex, sequencingIndex, indexLinked));
+  }
+
+  // the analyses and sequencings bulks are sent in parallel
+  private CompletableFuture<Integer> buildAndBulk(RequestDetails requestDetails, Set<String> prescriptionIds, String analysesIndex, String sequencingIndex, boolean indexLinked) {
+    // taken before reading the DB, a document built from a later read always has a greater version
+    final long builtAt = System.currentTimeMillis();
+    final List<AnalysisData> analyses = new ArrayList<>(analysisDataBuilder.fromIds(prescriptionIds, requestDetails));
+    final List<SequencingData> sequencings = new ArrayList<>(sequencingDataBuilder.fromIds(prescriptionIds, requestDetails));
 
     if (indexLinked) {
       // re-index linked analyses
       final Set<String> linkedAnalyses = sequencings.stream().map(SequencingData::getPrescriptionId).collect(Collectors.toSet());
       final Set<String> alreadyIndexedAnalyses = analyses.stream().map(AnalysisData::getPrescriptionId).collect(Collectors.toSet());
       linkedAnalyses.removeAll(alreadyIndexedAnalyses); // ignore if indexed before
-      this.indexAnalyses(requestDetails, linkedAnalyses, analysesIndex);
+      final List<AnalysisData> linkedAnalysesData = analysisDataBuilder.fromIds(linkedAnalyses, requestDetails);
 
       // re-index linked sequencings
       final Set<String> linkedSequencings = analyses.stream().flatMap(a -> a.getSequencingRequests().stream().map(SequencingRequestData::getRequestId)).collect(Collectors.toSet());
       final Set<String> alreadyIndexedSequencings = sequencings.stream().map(SequencingData::getRequestId).collect(Collectors.toSet());
       linkedSequencings.removeAll(alreadyIndexedSequencings); // ignore if indexed before
-      this.indexSequencings(requestDetails, linkedSequencings, sequencingIndex);
+      sequencings.addAll(sequencingDataBuilder.fromIds(linkedSequencings, requestDetails));
+      analyses.addAll(linkedAnalysesData);
+    }
+
+    final CompletableFuture<Integer> analysesRejected =
+      this.bulkToEs(this.toBulkActions(analysesIndex, byId(analyses, AnalysisData::getPrescriptionId), this.versionOf(analysesIndex, builtAt)));
+    final CompletableFuture<Integer> sequencingsRejected =
+      this.bulkToEs(this.toBulkActions(sequencingIndex, byId(sequencings, SequencingData::getRequestId), this.versionOf(sequencingIndex, builtAt)));
+    // waits for both, even if one fails
+    return CompletableFuture.allOf(analysesRejected, sequencingsRejected).thenApply(v -> analysesRejected.join() + sequencingsRejected.join());
+  }
+
+  public long getWrittenDocuments() {
+    return writtenDocuments.get();
+  }
+
+  public long getSkippedDocuments() {
+    return skippedDocuments.get();
+  }
+
+  public long getRejectedDocuments() {
+    return rejectedDocuments.get();
+  }
+
+  public void delete(Set<String> prescriptionIds) {
+    final List<String> indexes = new ArrayList<>(List.of(bioProperties.getNanuqEsAnalysesIndex(), bioProperties.getNanuqEsSequencingsIndex()));
+    indexes.addAll(this.dualWriteIndexes);
+    final List<BulkAction> actions = new ArrayList<>();
+    // versioned too, ES keeps the version of a deleted document (index.gc_deletes) and rejects an older write arriving late
+    final long deletedAt = System.currentTimeMillis();
+    prescriptionIds.forEach(id -> indexes.forEach(index -> actions.add(BulkAction.delete(index, id, this.versionOf(index, deletedAt)))));
+    join(this.bulkToEs(actions));
+  }
+
+  private static <T> Map<String, T> byId(List<T> documents, Function<T, String> id) {
+    final Map<String, T> byId = new LinkedHashMap<>();
+    documents.forEach(d -> byId.put(id.apply(d), d));
+    return byId;
+  }
+
+  // ES external version: the time the document was built, null if not versioned. The indexes being rebuilt by a
+  // migration are always versioned, the live writes (dual-write) and the partition workers write the same documents
+  // and the older build must not overwrite the newer one
+  public Long versionOf(String index, long builtAt) {
+    return bioProperties.isNanuqExternalVersioning() || !this.isLiveIndex(index) ? builtAt : null;
+  }
+
+  private boolean isLiveIndex(String index) {
+    return index.equals(bioProperties.getNanuqEsAnalysesIndex()) || index.equals(bioProperties.getNanuqEsSequencingsIndex());
+  }
+
+  private List<BulkAction> toBulkActions(String index, Map<String, ? extends AbstractPrescriptionData> documents, Long version) {
+    documents.values().forEach(d -> d.setFingerprint(this.fingerprint(d)));
+    final Map<String, String> existing = this.existingFingerprints(index, documents.keySet());
+    final List<BulkAction> actions = new ArrayList<>();
+    documents.forEach((id, document) -> {
+      if (!document.getFingerprint().equals(existing.get(id))) {
+        final ElasticsearchRestClient.IndexData data = new ElasticsearchRestClient.IndexData(id, tools.jsonGenerator.toBytes(document), version);
+        actions.add(BulkAction.index(index, data));
+      }
+    });
+    final int skipped = documents.size() - actions.size();
+    writtenDocuments.addAndGet(actions.size());
+    skippedDocuments.addAndGet(skipped);
+    if (skipped > 0) {
+      log.info("Skip {} unchanged documents of {} in {}, total written: {} skipped: {}", skipped, documents.size(), index, writtenDocuments.get(), skippedDocuments.get());
+    }
+    return actions;
+  }
+
+  // only the live indexes, the ones being rebuilt by a migration are mostly empty and the lookup would be wasted
+  private Map<String, String> existingFingerprints(String index, Set<String> ids) {
+    if (!bioProperties.isNanuqSkipUnchanged() || !this.isLiveIndex(index)) {
+      return Map.of();
+    }
+    try {
+      return tools.client.getFieldValues(index, ids, FINGERPRINT_FIELD);
+    } catch (Exception e) {
+      // only an optimization, write everything
+      log.warn("Failed to get fingerprints from {}: {}", index, e.getMessage());
+      return Map.of();
+    }
+  }
+
+  // the timestamp changes every time, it's not part of the content. Same hash as the JSON without these fields,
+  // streamed into the digest instead of building a tree and a String
+  private String fingerprint(AbstractPrescriptionData document) {
+    sortLists(document);
+    final MessageDigest digest = DigestUtils.getMd5Digest();
+    try (OutputStream out = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+      this.fingerprintWriter().writeValue(out, document);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
+    return Hex.encodeHexString(digest.digest());
   }
 
-  private List<AnalysisData> indexAnalyses(RequestDetails requestDetails, Set<String> ids, String index) {
-    final List<AnalysisData> analyses = analysisDataBuilder.fromIds(ids, requestDetails);
-    analyses.forEach(e -> indexToEs(e.getPrescriptionId(), e, index));
-    return analyses;
+  // the lists are filled in the order the DB returns the resources, sorted so the same content has the same fingerprint
+  private static void sortLists(AbstractPrescriptionData document) {
+    Collections.sort(document.getSecurityTags());
+    if (document instanceof AnalysisData) {
+      final AnalysisData analysis = (AnalysisData) document;
+      Collections.sort(analysis.getAssignments());
+      analysis.getSequencingRequests().sort(Comparator.comparing(SequencingRequestData::getRequestId));
+    }
   }
 
-  private List<SequencingData> indexSequencings(RequestDetails requestDetails, Set<String> ids, String index) {
-    final List<SequencingData> sequencings = sequencingDataBuilder.fromIds(ids, requestDetails);
-    sequencings.forEach(e -> indexToEs(e.getRequestId(), e, index));
-    return sequencings;
+  private ObjectWriter fingerprintWriter() {
+    if (this.fingerprintWriter == null) {
+      this.fingerprintWriter = tools.jsonGenerator.writerWithMixIn(AbstractPrescriptionData.class, FingerprintMixIn.class);
+    }
+    return this.fingerprintWriter;
   }
-  
-  private void indexToEs(String id, Object document, String indexName) {
-    final ElasticsearchRestClient.IndexData data = new ElasticsearchRestClient.IndexData(id, tools.jsonGenerator.toString(document));
-    tools.client.index(indexName, data);
+
+  @JsonIgnoreProperties({TIMESTAMP_FIELD, FINGERPRINT_FIELD})
+  private abstract static class FingerprintMixIn {
   }
-  
+
+  // completed with the number of rejected documents
+  private CompletableFuture<Integer> bulkToEs(List<BulkAction> actions) {
+    if (actions.isEmpty()) {
+      return CompletableFuture.completedFuture(0);
+    }
+    return tools.client.bulkAsync(actions).handle((result, e) -> {
+      // even a failed bulk may have written some documents
+      facetCache.invalidate();
+      if (e != null) {
+        throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+      }
+      if (result.getSpilled() > 0) {
+        log.warn("ES unavailable, {} documents journaled until it's back", result.getSpilled());
+      }
+      if (result.getRejected() > 0) {
+        // a concurrent re-index already wrote these documents from more recent resources
+        log.info("Rejected {} stale documents, total: {}", result.getRejected(), rejectedDocuments.addAndGet(result.getRejected()));
+      }
+      if (result.hasFailures()) {
+        result.getFailures().forEach(f -> log.error("Failed to bulk {}/{} status: {} reason: {}", f.getIndex(), f.getId(), f.getStatus(), f.getReason()));
+        throw new FailedToUpdateIndexException(result.getFailures().stream().map(ElasticsearchRestClient.BulkFailure::getIndex)
+          .distinct().collect(Collectors.joining(",")));
+      }
+      return result.getRejected();
+    });
+  }
+
+  // the sync methods throw the same exceptions as before the futures
+  private static void join(CompletableFuture<?> future) {
+    try {
+      future.join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+    }
+  }
+
 }
@@ -0,0 +1,234 @@
+package bio.ferlab.clin.es.indexer;
+
+import bio.ferlab.clin.es.ElasticsearchRestClient;
+import bio.ferlab.clin.es.ElasticsearchRestClient.BulkAction;
+import bio.ferlab.clin.es.KeysetPager;
+import bio.ferlab.clin.es.ResourceKeys;
+import bio.ferlab.clin.es.builder.nanuq.AbstractPrescriptionDataBuilder;
+import bio.ferlab.clin.es.builder.nanuq.AbstractPrescriptionDataBuilder.Type;
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.properties.BioProperties;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the nanuq indexes with the DB without rebuilding them: the id hashes are split in ranges, the count and sum
+ * of the version hashes of each range (id + versionId of the ServiceRequest) are computed from one scan of the DB and
+ * by ES aggregations. Only the mismatching ranges are split again, down to a few documents compared one by one.
+ * The divergent documents are re-indexed, the ones not in the DB deleted once checked again (created since the scan).
+ * The re-indexes rejected by ES (a more recent document was indexed meanwhile) are counted apart, not as fixed.
+ */
+@Component
+public class NanuqReconciler {
+
+  private static final Logger log = LoggerFactory.getLogger(NanuqReconciler.class);
+  public static final String ID_HASH_FIELD = "id_hash";
+  public static final String VERSION_HASH_FIELD = "version_hash";
+  // id hashes are positive ints
+  private static final long MAX_HASH = 1L << 31;
+  // max values of a single OR search parameter, bigger sets are split
+  private static final int MAX_PARAMS = 500;
+
+  private final ResourceDaoConfiguration configuration;
+  private final ResourceKeys resourceKeys;
+  private final ElasticsearchRestClient client;
+  private final NanuqIndexer nanuqIndexer;
+  private final BioProperties bioProperties;
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "nanuq-reconcile"));
+
+  public NanuqReconciler(ResourceDaoConfiguration configuration, ResourceKeys resourceKeys, ElasticsearchRestClient client,
+                         NanuqIndexer nanuqIndexer, BioProperties bioProperties) {
+    this.configuration = configuration;
+    this.resourceKeys = resourceKeys;
+    this.client = client;
+    this.nanuqIndexer = nanuqIndexer;
+    this.bioProperties = bioProperties;
+  }
+
+  // not at startup, a migration may be re-indexing
+  @EventListener(ApplicationReadyEvent.class)
+  public void start() {
+    final long interval = bioProperties.getNanuqReconcileInterval();
+    if (interval > 0) {
+      this.scheduler.scheduleWithFixedDelay(this::run, interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    this.scheduler.shutdownNow();
+  }
+
+  private void run() {
+    try {
+      this.reconcile();
+    } catch (RuntimeException e) {
+      log.warn("Reconcile failed, retried at the next run: {}", e.getMessage());
+    }
+  }
+
+  public Result reconcile() {
+    final long start = System.currentTimeMillis();
+    final Map<Type, List<Entry>> entries = this.scanDb();
+    final Result result = new Result();
+    this.reconcile(bioProperties.getNanuqEsAnalysesIndex(), Type.ANALYSIS, entries.get(Type.ANALYSIS), result);
+    this.reconcile(bioProperties.getNanuqEsSequencingsIndex(), Type.SEQUENCING, entries.get(Type.SEQUENCING), result);
+    if (!result.toIndex.isEmpty()) {
+      result.rejected += this.nanuqIndexer.doIndex(result.toIndex);
+    }
+    if (result.rejected > 0) {
+      log.warn("{} document(s) rejected by ES, more recent ones were written meanwhile", result.rejected);
+    }
+    log.info("Reconciled in {} ms: {} range(s) compared, {} document(s) re-indexed, {} deleted, {} rejected", System.currentTimeMillis() - start,
+      result.ranges, result.toIndex.size(), result.deleted, result.rejected);
+    return result;
+  }
+
+  private void reconcile(String index, Type type, List<Entry> entries, Result result) {
+    final Set<String> toDelete = new TreeSet<>();
+    this.compare(index, entries, 0, MAX_HASH, result, toDelete);
+    if (toDelete.isEmpty()) {
+      return;
+    }
+    // taken before checking the DB again, a document indexed from a later read has a greater version
+    final long deletedAt = System.currentTimeMillis();
+    toDelete.removeAll(this.existing(toDelete, type));
+    if (!toDelete.isEmpty()) {
+      final List<BulkAction> actions = new ArrayList<>();
+      toDelete.forEach(id -> actions.add(BulkAction.delete(index, id, this.nanuqIndexer.versionOf(index, deletedAt))));
+      final ElasticsearchRestClient.BulkResult bulk = this.client.bulk(actions);
+      bulk.getFailures().forEach(f -> log.error("Failed to delete {}/{} status: {} reason: {}", f.getIndex(), f.getId(), f.getStatus(), f.getReason()));
+      // journaled ones deleted once ES is back
+      result.deleted += bulk.getSucceeded() + bulk.getSpilled();
+      result.rejected += bulk.getRejected();
+    }
+  }
+
+  // ids of this type in the DB, created since the scan
+  private Set<String> existing(Set<String> ids, Type type) {
+    final Set<String> existing = new HashSet<>();
+    final List<String> all = new ArrayList<>(ids);
+    for (int i = 0; i < all.size(); i += MAX_PARAMS) {
+      final SearchParameterMap sm = SearchParameterMap.newSynchronous()
+        .add("_id", new TokenOrListParam(null, all.subList(i, Math.min(all.size(), i + MAX_PARAMS)).toArray(new String[0])));
+      configuration.serviceRequestDAO.search(sm).getAllResources().stream()
+        .filter(r -> AbstractPrescriptionDataBuilder.isType((ServiceRequest) r, type))
+        .forEach(r -> existing.add(r.getIdElement().getIdPart()));
+    }
+    return existing;
+  }
+
+  // entries are sorted by id hash, the ones of [from, to)
+  private void compare(String index, List<Entry> entries, long from, long to, Result result, Set<String> toDelete) {
+    final List<Long> bounds = bounds(from, to, Math.max(2, bioProperties.getNanuqReconcileRanges()));
+    final List<ElasticsearchRestClient.RangeSum> esSums = this.client.rangeSums(index, ID_HASH_FIELD, bounds, VERSION_HASH_FIELD);
+    result.ranges += esSums.size();
+    for (int i = 0; i < bounds.size() - 1; i++) {
+      final long rangeFrom = bounds.get(i);
+      final long rangeTo = bounds.get(i + 1);
+      final List<Entry> dbRange = entries.subList(lowerBound(entries, rangeFrom), lowerBound(entries, rangeTo));
+      final long dbSum = dbRange.stream().mapToLong(e -> e.versionHash).sum();
+      final ElasticsearchRestClient.RangeSum esSum = i < esSums.size() ? esSums.get(i) : new ElasticsearchRestClient.RangeSum(rangeFrom, rangeTo, 0, 0);
+      if (esSum.getCount() == dbRange.size() && esSum.getSum() == dbSum) {
+        continue;
+      }
+      final int leafSize = bioProperties.getNanuqReconcileLeafSize();
+      if ((dbRange.size() <= leafSize && esSum.getCount() <= leafSize) || rangeTo - rangeFrom <= 1) {
+        this.compareDocuments(index, dbRange, rangeFrom, rangeTo, (int) esSum.getCount(), result, toDelete);
+      } else {
+        this.compare(index, dbRange, rangeFrom, rangeTo, result, toDelete);
+      }
+    }
+  }
+
+  private void compareDocuments(String index, List<Entry> dbRange, long from, long to, int esCount, Result result, Set<String> toDelete) {
+    final Map<String, Object> query = Map.of("range", Map.of(ID_HASH_FIELD, Map.of("gte", from, "lt", to)));
+    final Map<String, Long> esHashes = this.client.docValues(index, query, VERSION_HASH_FIELD, esCount);
+    for (Entry entry : dbRange) {
+      final Long esHash = esHashes.remove(entry.id);
+      if (esHash == null || esHash != entry.versionHash) {
+        result.toIndex.add(entry.id);
+      }
+    }
+    // what's left isn't in the DB anymore
+    toDelete.addAll(esHashes.keySet());
+  }
+
+  // id and version hash of every analysis and sequencing request, sorted by id hash
+  private Map<Type, List<Entry>> scanDb() {
+    final Map<Type, List<Entry>> entries = new EnumMap<>(Type.class);
+    for (Type type : Type.values()) {
+      entries.put(type, new ArrayList<>());
+    }
+    final KeysetPager<ServiceRequest> pager = new KeysetPager<>(resourceKeys, configuration.serviceRequestDAO, bioProperties.getNanuqReindexBatchSize(), null);
+    List<ServiceRequest> page;
+    while (!(page = pager.next()).isEmpty()) {
+      for (ServiceRequest serviceRequest : page) {
+        final String id = serviceRequest.getIdElement().getIdPart();
+        for (Type type : Type.values()) {
+          if (AbstractPrescriptionDataBuilder.isType(serviceRequest, type)) {
+            entries.get(type).add(new Entry(id, AbstractPrescriptionDataBuilder.idHash(id),
+              AbstractPrescriptionDataBuilder.versionHash(id, serviceRequest.getMeta().getVersionId())));
+          }
+        }
+      }
+    }
+    entries.values().forEach(list -> list.sort(Comparator.comparingInt((Entry e) -> e.idHash).thenComparing(e -> e.id)));
+    return entries;
+  }
+
+  private static List<Long> bounds(long from, long to, int ranges) {
+    final List<Long> bounds = new ArrayList<>();
+    final long step = Math.max(1, (to - from + ranges - 1) / ranges);
+    for (long bound = from; bound < to; bound += step) {
+      bounds.add(bound);
+    }
+    bounds.add(to);
+    return bounds;
+  }
+
+  // index of the first entry with an id hash >= hash
+  private static int lowerBound(List<Entry> entries, long hash) {
+    int low = 0;
+    int high = entries.size();
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (entries.get(mid).idHash < hash) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  @RequiredArgsConstructor
+  private static class Entry {
+    private final String id;
+    private final int idHash;
+    private final int versionHash;
+  }
+
+  @Getter
+  public static class Result {
+    private int ranges = 0;
+    private int deleted = 0;
+    // stale: more recent documents were written meanwhile
+    private int rejected = 0;
+    private final Set<String> toIndex = new TreeSet<>();
+  }
+}
@@ -0,0 +1,160 @@
+package bio.ferlab.clin.es.indexer;
+
+import bio.ferlab.clin.es.KeysetPager;
+import bio.ferlab.clin.es.MigrationStatus;
+import bio.ferlab.clin.es.ResourceKeys;
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.properties.BioProperties;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * On-demand re-index of the prescriptions matching some criteria into the live indexes, one job at a time
+ * in background. The job is throttled (prescriptions/sec) so the live writes keep most of the DB and ES capacity.
+ */
+@Component
+public class NanuqReindexJob {
+
+  private static final Logger log = LoggerFactory.getLogger(NanuqReindexJob.class);
+
+  private final NanuqIndexer nanuqIndexer;
+  private final ResourceDaoConfiguration configuration;
+  private final ResourceKeys resourceKeys;
+  private final BioProperties bioProperties;
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "nanuq-reindex-job"));
+
+  private volatile MigrationStatus.State state = MigrationStatus.State.idle;
+  private volatile Criteria criteria;
+  private volatile int indexed;
+  private volatile long startedAt;
+  private volatile long endedAt;
+  private volatile String error;
+
+  public NanuqReindexJob(NanuqIndexer nanuqIndexer, ResourceDaoConfiguration configuration, ResourceKeys resourceKeys, BioProperties bioProperties) {
+    this.nanuqIndexer = nanuqIndexer;
+    this.configuration = configuration;
+    this.resourceKeys = resourceKeys;
+    this.bioProperties = bioProperties;
+  }
+
+  public synchronized void start(Criteria criteria) {
+    if (MigrationStatus.State.running.equals(this.state)) {
+      throw new InvalidRequestException("A re-index is already running: " + this.criteria);
+    }
+    log.info("Start re-index job: {}", criteria);
+    this.criteria = criteria;
+    this.indexed = 0;
+    this.startedAt = System.currentTimeMillis();
+    this.endedAt = 0;
+    this.error = null;
+    this.state = MigrationStatus.State.running;
+    this.executor.submit(() -> this.run(criteria));
+  }
+
+  public Status getStatus() {
+    return new Status(this.state, this.criteria != null ? this.criteria.toString() : null, this.indexed,
+      this.startedAt > 0 ? new Date(this.startedAt) : null, this.endedAt > 0 ? new Date(this.endedAt) : null, this.error);
+  }
+
+  @PreDestroy
+  public void stop() {
+    this.executor.shutdownNow();
+  }
+
+  void run(Criteria criteria) {
+    final long begin = System.currentTimeMillis();
+    try {
+      final KeysetPager<ServiceRequest> pager = new KeysetPager<>(this.resourceKeys, this.configuration.serviceRequestDAO,
+        bioProperties.getNanuqReindexBatchSize(), criteria.getFrom(), criteria.getUntil(), criteria::apply);
+      List<ServiceRequest> page;
+      while (!(page = pager.next()).isEmpty()) {
+        final Set<String> prescriptionIds = page.stream().map(r -> r.getIdElement().getIdPart()).collect(Collectors.toSet());
+        this.nanuqIndexer.doIndex(prescriptionIds);
+        this.indexed += prescriptionIds.size();
+        this.throttle(criteria.getRate(), begin);
+      }
+      log.info("Re-index job done, indexed: {}", this.indexed);
+      this.state = MigrationStatus.State.completed;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      this.error = "interrupted";
+      this.state = MigrationStatus.State.failed;
+    } catch (RuntimeException e) {
+      log.error("Re-index job failed", e);
+      this.error = e.getMessage();
+      this.state = MigrationStatus.State.failed;
+    } finally {
+      this.endedAt = System.currentTimeMillis();
+    }
+  }
+
+  // wait until the average rate since the start is back under the limit
+  private void throttle(int rate, long begin) throws InterruptedException {
+    if (rate > 0) {
+      final long expected = this.indexed * 1000L / rate;
+      final long elapsed = System.currentTimeMillis() - begin;
+      if (expected > elapsed) {
+        Thread.sleep(expected - elapsed);
+      }
+    }
+  }
+
+  /**
+   * Prescriptions to re-index, all the criteria are combined, none means all the prescriptions.
+   */
+  @Getter
+  @AllArgsConstructor
+  public static class Criteria {
+    private final Set<String> ids;
+    private final String ep;
+    private final String ldm;
+    private final Date from;
+    private final Date until;
+    private final int rate;
+
+    void apply(SearchParameterMap searchParameterMap) {
+      if (!ids.isEmpty()) {
+        searchParameterMap.add("_id", new TokenOrListParam(null, ids.toArray(new String[0])));
+      }
+      if (StringUtils.isNotBlank(ep)) {
+        searchParameterMap.add("subject", new ReferenceParam("Patient", "organization", "Organization/" + ep));
+      }
+      if (StringUtils.isNotBlank(ldm)) {
+        searchParameterMap.add("performer", new ReferenceParam("Organization/" + ldm));
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format("ids=%s ep=%s ldm=%s from=%s until=%s rate=%d", ids, ep, ldm, from, until, rate);
+    }
+  }
+
+  @Getter
+  @AllArgsConstructor
+  public static class Status {
+    private final MigrationStatus.State state;
+    private final String criteria;
+    private final int indexed;
+    private final Date startedAt;
+    private final Date endedAt;
+    private final String error;
+  }
+}
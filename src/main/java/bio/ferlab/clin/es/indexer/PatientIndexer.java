@@ -0,0 +1,128 @@
+package bio.ferlab.clin.es.indexer;
+
+import bio.ferlab.clin.es.ElasticsearchRestClient;
+import bio.ferlab.clin.es.ElasticsearchRestClient.BulkAction;
+import bio.ferlab.clin.es.builder.patient.PatientDataBuilder;
+import bio.ferlab.clin.es.data.patient.PatientData;
+import bio.ferlab.clin.es.extractor.PatientIdExtractor;
+import bio.ferlab.clin.exceptions.FailedToUpdateIndexException;
+import bio.ferlab.clin.properties.BioProperties;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import lombok.RequiredArgsConstructor;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
+/**
+ * Patient documents rebuilt from the ids extracted from a write (Patient, Person, Group, ServiceRequest, Bundle),
+ * sent in one bulk. The ids not found anymore are deleted.
+ */
+@Component
+@RequiredArgsConstructor
+public class PatientIndexer extends Indexer {
+
+  private static final Logger log = LoggerFactory.getLogger(PatientIndexer.class);
+
+  private final PatientIdExtractor patientIdExtractor;
+  private final PatientDataBuilder patientDataBuilder;
+  private final BioProperties bioProperties;
+  private final IndexerTools tools;
+
+  // patients index being rebuilt by the migration, the live writes go there too until it's published
+  private volatile String dualWriteIndex;
+
+  @Override
+  protected void doIndex(RequestDetails requestDetails, IBaseResource resource) {
+    this.doIndex(patientIdExtractor.extract(resource));
+  }
+
+  public Set<String> extractPatientIds(IBaseResource resource) {
+    return patientIdExtractor.extract(resource);
+  }
+
+  public Set<String> extractPatientIds(RequestDetails requestDetails) {
+    return isIndexable(requestDetails) ? patientIdExtractor.extract(requestDetails.getResource()) : new HashSet<>();
+  }
+
+  public void doIndex(Set<String> patientIds) {
+    this.bulkToEs(this.toBulkActions(patientIds, this.indexes()));
+  }
+
+  public void doIndex(Set<String> patientIds, String index) {
+    this.bulkToEs(this.toBulkActions(patientIds, List.of(index)));
+  }
+
+  public void delete(Set<String> patientIds) {
+    final List<String> indexes = this.indexes();
+    final long deletedAt = System.currentTimeMillis();
+    final List<BulkAction> actions = new ArrayList<>();
+    patientIds.forEach(id -> indexes.forEach(index -> actions.add(BulkAction.delete(index, id, this.versionOf(index, deletedAt)))));
+    this.bulkToEs(actions);
+  }
+
+  public void startDualWrite(String index) {
+    log.info("Dual-write to: {}", index);
+    this.dualWriteIndex = index;
+  }
+
+  public void stopDualWrite() {
+    this.dualWriteIndex = null;
+  }
+
+  private List<String> indexes() {
+    final List<String> indexes = new ArrayList<>(List.of(bioProperties.getEsPatientsIndex()));
+    Optional.ofNullable(this.dualWriteIndex).ifPresent(indexes::add);
+    return indexes;
+  }
+
+  private List<BulkAction> toBulkActions(Set<String> patientIds, List<String> indexes) {
+    if (patientIds.isEmpty()) {
+      return List.of();
+    }
+    // taken before reading the DB, see versionOf()
+    final long builtAt = System.currentTimeMillis();
+    // serialized once, the same bytes are sent to every index
+    final Map<String, byte[]> documents = new LinkedHashMap<>();
+    for (PatientData document : patientDataBuilder.fromIds(patientIds)) {
+      documents.put(document.getPatientId(), tools.jsonGenerator.toBytes(document));
+    }
+    final List<BulkAction> actions = new ArrayList<>();
+    for (String index : indexes) {
+      final Long version = this.versionOf(index, builtAt);
+      documents.forEach((id, source) -> actions.add(BulkAction.index(index, new ElasticsearchRestClient.IndexData(id, source, version))));
+      patientIds.stream().filter(id -> !documents.containsKey(id)).forEach(id -> actions.add(BulkAction.delete(index, id, version)));
+    }
+    return actions;
+  }
+
+  // the index being rebuilt by the migration is written by the live writes (dual-write) and the migration, versioned
+  // by the time of the build so the older one doesn't overwrite the newer one
+  private Long versionOf(String index, long builtAt) {
+    return index.equals(bioProperties.getEsPatientsIndex()) ? null : builtAt;
+  }
+
+  private void bulkToEs(List<BulkAction> actions) {
+    if (actions.isEmpty()) {
+      return;
+    }
+    final ElasticsearchRestClient.BulkResult result;
+    try {
+      result = tools.client.bulkAsync(actions).join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+    }
+    if (result.getSpilled() > 0) {
+      log.warn("ES unavailable, {} patient documents journaled until it's back", result.getSpilled());
+    }
+    if (result.hasFailures()) {
+      result.getFailures().forEach(f -> log.error("Failed to bulk {}/{} status: {} reason: {}", f.getIndex(), f.getId(), f.getStatus(), f.getReason()));
+      throw new FailedToUpdateIndexException(result.getFailures().stream().map(ElasticsearchRestClient.BulkFailure::getIndex)
+        .distinct().collect(Collectors.joining(",")));
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package bio.ferlab.clin.es.indexer;
+
+import bio.ferlab.clin.properties.BioProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.Set;
+
+/**
+ * Patients indexed in the patients index outside of the request thread, published as the {@code patients.indexer.*}
+ * meters. The ids not found anymore are deleted, so a deleted Patient goes through the queue too.
+ */
+@Component
+public class PatientIndexerQueue extends AbstractIndexerQueue {
+
+  private final PatientIndexer patientIndexer;
+
+  @Autowired
+  public PatientIndexerQueue(PatientIndexer patientIndexer, BioProperties bioProperties, ObjectProvider<MeterRegistry> meterRegistry) {
+    this(patientIndexer, bioProperties, meterRegistry.getIfAvailable(() -> Metrics.globalRegistry));
+  }
+
+  public PatientIndexerQueue(PatientIndexer patientIndexer, BioProperties bioProperties, MeterRegistry meterRegistry) {
+    super("patients", bioProperties, meterRegistry);
+    this.patientIndexer = patientIndexer;
+  }
+
+  @Override
+  protected void doIndex(Set<String> patientIds) {
+    this.patientIndexer.doIndex(patientIds);
+  }
+}
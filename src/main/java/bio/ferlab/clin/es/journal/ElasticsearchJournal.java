@@ -0,0 +1,162 @@
+package bio.ferlab.clin.es.journal;
+
+import bio.ferlab.clin.properties.BioProperties;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only journal of the ES actions (bulk NDJSON lines) that couldn't be sent, memory-mapped at its max size.
+ * The header keeps the read and write positions, records are [length][bytes]. Appends are refused once full,
+ * the replay consumes from the head and the file is rewound when everything has been replayed.
+ * Every append is forced to disk before being acknowledged. The file is locked by the instance using it: the path
+ * must be on a persistent volume and distinct for each instance.
+ */
+@Component
+public class ElasticsearchJournal {
+
+  private static final Logger log = LoggerFactory.getLogger(ElasticsearchJournal.class);
+  private static final int HEADER = 2 * Long.BYTES;
+  private static final int WRITE_POSITION = 0;
+  private static final int READ_POSITION = Long.BYTES;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+
+  public ElasticsearchJournal(BioProperties bioProperties) {
+    this(StringUtils.isBlank(bioProperties.getEsJournalPath()) ? null : Paths.get(bioProperties.getEsJournalPath()),
+      bioProperties.getEsJournalMaxSize());
+  }
+
+  public ElasticsearchJournal(Path path, long maxSize) {
+    if (path == null || maxSize <= HEADER) {
+      this.channel = null;
+      this.buffer = null;
+      return;
+    }
+    try {
+      this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      // kept until closed, two instances replaying the same journal would send its actions twice and in any order
+      if (!tryLock(this.channel)) {
+        this.channel.close();
+        throw new IllegalStateException("ES journal already used by another instance: " + path);
+      }
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, maxSize);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to open the ES journal: " + path, e);
+    }
+    if (writePosition() < HEADER) {
+      this.rewind();
+    }
+    if (!isEmpty()) {
+      log.warn("ES journal {} has {} bytes to replay", path, writePosition() - readPosition());
+    }
+  }
+
+  public boolean isEnabled() {
+    return buffer != null;
+  }
+
+  public synchronized boolean isEmpty() {
+    return buffer == null || readPosition() >= writePosition();
+  }
+
+  // all or nothing, false if disabled or not enough space left
+  public synchronized boolean append(List<byte[]> records) {
+    if (buffer == null) {
+      return false;
+    }
+    final long size = records.stream().mapToLong(r -> Integer.BYTES + r.length).sum();
+    int position = (int) writePosition();
+    if (position + size > buffer.capacity()) {
+      log.error("ES journal is full, {} records not journaled", records.size());
+      return false;
+    }
+    for (byte[] record : records) {
+      buffer.putInt(position, record.length);
+      buffer.duplicate().position(position + Integer.BYTES).put(record);
+      position += Integer.BYTES + record.length;
+    }
+    // the position is written last, a partial append is never visible
+    buffer.putLong(WRITE_POSITION, position);
+    buffer.force();
+    return true;
+  }
+
+  // oldest records not replayed yet, at most max
+  public synchronized List<byte[]> peek(int max) {
+    final List<byte[]> records = new ArrayList<>();
+    if (buffer == null) {
+      return records;
+    }
+    int position = (int) readPosition();
+    final long end = writePosition();
+    while (position < end && records.size() < max) {
+      final byte[] record = new byte[buffer.getInt(position)];
+      buffer.duplicate().position(position + Integer.BYTES).get(record);
+      records.add(record);
+      position += Integer.BYTES + record.length;
+    }
+    return records;
+  }
+
+  // the first count records have been replayed, forced too: replayed again after a restart they could overwrite newer writes
+  public synchronized void consume(int count) {
+    int position = (int) readPosition();
+    for (int i = 0; i < count && position < writePosition(); i++) {
+      position += Integer.BYTES + buffer.getInt(position);
+    }
+    buffer.putLong(READ_POSITION, position);
+    if (isEmpty()) {
+      this.rewind();
+    }
+    buffer.force();
+  }
+
+  @PreDestroy
+  public synchronized void close() {
+    if (buffer != null) {
+      buffer.force();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.warn("Failed to close the ES journal: {}", e.getMessage());
+      }
+    }
+  }
+
+  // null if held by another process, overlapping if held by this one
+  private static boolean tryLock(FileChannel channel) throws IOException {
+    try {
+      return channel.tryLock() != null;
+    } catch (OverlappingFileLockException e) {
+      return false;
+    }
+  }
+
+  private void rewind() {
+    buffer.putLong(READ_POSITION, HEADER);
+    buffer.putLong(WRITE_POSITION, HEADER);
+  }
+
+  private long writePosition() {
+    return buffer.getLong(WRITE_POSITION);
+  }
+
+  private long readPosition() {
+    return buffer.getLong(READ_POSITION);
+  }
+}
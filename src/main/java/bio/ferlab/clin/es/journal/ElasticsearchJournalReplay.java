@@ -0,0 +1,55 @@
+package bio.ferlab.clin.es.journal;
+
+import bio.ferlab.clin.es.ElasticsearchRestClient;
+import bio.ferlab.clin.properties.BioProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replay the journaled ES actions in background, the circuit breaker of the client decides when ES is tried again.
+ */
+@Component
+public class ElasticsearchJournalReplay {
+
+  private static final Logger log = LoggerFactory.getLogger(ElasticsearchJournalReplay.class);
+
+  private final ElasticsearchRestClient client;
+  private final ElasticsearchJournal journal;
+  private final BioProperties bioProperties;
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "es-journal-replay"));
+
+  public ElasticsearchJournalReplay(ElasticsearchRestClient client, ElasticsearchJournal journal, BioProperties bioProperties) {
+    this.client = client;
+    this.journal = journal;
+    this.bioProperties = bioProperties;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void start() {
+    if (journal.isEnabled()) {
+      final long interval = bioProperties.getEsJournalReplayInterval();
+      this.scheduler.scheduleWithFixedDelay(this::replay, 0, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @PreDestroy
+  public void stop() {
+    this.scheduler.shutdownNow();
+  }
+
+  public void replay() {
+    try {
+      client.replayJournal();
+    } catch (RuntimeException e) {
+      log.warn("Failed to replay the ES journal: {}", e.getMessage());
+    }
+  }
+}
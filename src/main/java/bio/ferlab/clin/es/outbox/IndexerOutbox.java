@@ -0,0 +1,121 @@
+package bio.ferlab.clin.es.outbox;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Table of the documents waiting to be (re)indexed, a row is the id of a resource and the indexer (target) to rebuild
+ * it with: the prescriptions for {@link #NANUQ}, the patients for {@link #PATIENTS}. A nanuq row can also be a changed
+ * Specimen, Patient or Organization, the prescriptions embedding it are resolved by the relay. Rows are written by the same connection, and so the same
+ * transaction, as the FHIR resources, they are committed or rolled back with them.
+ * Polled rows are leased so several replicas can relay the same outbox, and only the polled rows are removed: a row
+ * committed after the poll, even with a lower id, is relayed again. The poll relies on FOR UPDATE SKIP LOCKED, the
+ * outbox requires PostgreSQL.
+ */
+@Component
+public class IndexerOutbox {
+
+  public static final String TABLE = "clin_indexer_outbox";
+  // polled rows not removed or released by then (replica stopped) are polled again
+  private static final long LEASE_MS = 5 * 60 * 1000;
+
+  public static final String NANUQ = "nanuq";
+  public static final String PATIENTS = "patients";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final TransactionTemplate transactionTemplate;
+
+  public IndexerOutbox(DataSource dataSource) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+  }
+
+  public void createTable() {
+    final String database = jdbcTemplate.execute((ConnectionCallback<String>) c -> c.getMetaData().getDatabaseProductName());
+    if (!"PostgreSQL".equals(database)) {
+      throw new IllegalStateException("The indexer outbox (bio.nanuq.outbox.enabled) requires PostgreSQL, found: " + database);
+    }
+    jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS " + TABLE + " (" +
+      "id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, " +
+      "target VARCHAR(16) NOT NULL, " +
+      "resource_type VARCHAR(64) NOT NULL, " +
+      "resource_id VARCHAR(64) NOT NULL, " +
+      "created_at BIGINT NOT NULL, " +
+      "attempts INT NOT NULL, " +
+      "locked_until BIGINT NOT NULL DEFAULT 0)");
+    jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS " + TABLE + "_resource_idx ON " + TABLE + " (target, resource_id, id)");
+  }
+
+  public void add(String target, String resourceType, Set<String> resourceIds) {
+    if (!resourceIds.isEmpty()) {
+      final long now = System.currentTimeMillis();
+      jdbcTemplate.batchUpdate("INSERT INTO " + TABLE + " (target, resource_type, resource_id, created_at, attempts) VALUES (?, ?, ?, ?, 0)",
+        resourceIds.stream().map(id -> new Object[]{target, resourceType, id, now}).collect(Collectors.toList()));
+    }
+  }
+
+  // the oldest rows not leased by another poll, the ones locked by a concurrent poll are skipped.
+  // the same resource can be added several times, its rows are merged in one entry
+  public List<Entry> poll(int limit) {
+    return transactionTemplate.execute(status -> {
+      final long now = System.currentTimeMillis();
+      final Map<String, Entry> entries = new LinkedHashMap<>();
+      jdbcTemplate.query("SELECT id, target, resource_type, resource_id, attempts FROM " + TABLE + " WHERE locked_until <= ? ORDER BY id LIMIT ? FOR UPDATE SKIP LOCKED",
+        rs -> {
+          final String target = rs.getString("target");
+          final String resourceType = rs.getString("resource_type");
+          final String resourceId = rs.getString("resource_id");
+          final Entry entry = entries.computeIfAbsent(target + "|" + resourceType + "|" + resourceId,
+            k -> new Entry(target, resourceType, resourceId, new ArrayList<>(), 0));
+          entry.ids.add(rs.getLong("id"));
+          entry.attempts = Math.max(entry.attempts, rs.getInt("attempts"));
+        }, now, limit);
+      this.update("UPDATE " + TABLE + " SET locked_until = " + (now + LEASE_MS) + " WHERE id = ?", entries.values());
+      return new ArrayList<>(entries.values());
+    });
+  }
+
+  public void remove(Collection<Entry> entries) {
+    this.update("DELETE FROM " + TABLE + " WHERE id = ?", entries);
+  }
+
+  // polled again at the next poll
+  public void release(Collection<Entry> entries) {
+    this.update("UPDATE " + TABLE + " SET locked_until = 0 WHERE id = ?", entries);
+  }
+
+  public void incrementAttempts(Collection<Entry> entries) {
+    this.update("UPDATE " + TABLE + " SET attempts = attempts + 1, locked_until = 0 WHERE id = ?", entries);
+  }
+
+  private void update(String sql, Collection<Entry> entries) {
+    final List<Object[]> ids = entries.stream().flatMap(e -> e.getIds().stream()).map(id -> new Object[]{id}).collect(Collectors.toList());
+    if (!ids.isEmpty()) {
+      jdbcTemplate.batchUpdate(sql, ids);
+    }
+  }
+
+  public long count() {
+    return jdbcTemplate.queryForObject("SELECT COUNT(DISTINCT target || resource_type || '/' || resource_id) FROM " + TABLE, Long.class);
+  }
+
+  @Getter
+  @AllArgsConstructor
+  public static class Entry {
+    private final String target;
+    private final String resourceType;
+    private final String resourceId;
+    // the rows merged in this entry
+    private final List<Long> ids;
+    private int attempts;
+  }
+}
@@ -0,0 +1,165 @@
+package bio.ferlab.clin.es.outbox;
+
+import bio.ferlab.clin.es.extractor.PrescriptionDependencyIndex;
+import bio.ferlab.clin.es.indexer.NanuqIndexer;
+import bio.ferlab.clin.es.indexer.PatientIndexer;
+import bio.ferlab.clin.properties.BioProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Drain the outbox to ES in batches. Indexing is idempotent so an entry is only removed once indexed (at-least-once).
+ * If nothing of a batch can be indexed ES is considered unavailable and the relay backs off, otherwise the failing
+ * entries are retried until the max attempts is reached. The entries are rebuilt by the indexer of their target, the
+ * prescriptions embedding a Specimen, Patient or Organization of a nanuq entry are resolved here, after its commit.
+ */
+@Component
+public class IndexerOutboxRelay {
+
+  private static final Logger log = LoggerFactory.getLogger(IndexerOutboxRelay.class);
+  private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+
+  private final IndexerOutbox outbox;
+  private final NanuqIndexer nanuqIndexer;
+  private final PatientIndexer patientIndexer;
+  private final PrescriptionDependencyIndex dependencyIndex;
+  private final BioProperties bioProperties;
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "nanuq-outbox-relay"));
+  private final AtomicBoolean wakeUpPending = new AtomicBoolean();
+
+  private int consecutiveFailures = 0;
+  private long backoffUntil = 0;
+
+  public IndexerOutboxRelay(IndexerOutbox outbox, NanuqIndexer nanuqIndexer, PatientIndexer patientIndexer,
+                            PrescriptionDependencyIndex dependencyIndex, BioProperties bioProperties) {
+    this.outbox = outbox;
+    this.nanuqIndexer = nanuqIndexer;
+    this.patientIndexer = patientIndexer;
+    this.dependencyIndex = dependencyIndex;
+    this.bioProperties = bioProperties;
+  }
+
+  @PostConstruct
+  public void init() {
+    if (bioProperties.isNanuqOutboxEnabled()) {
+      this.outbox.createTable();
+    }
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void start() {
+    if (bioProperties.isNanuqOutboxEnabled()) {
+      log.info("Start outbox relay, pending: {}", outbox.count());
+      final long interval = bioProperties.getNanuqOutboxPollInterval();
+      this.scheduler.scheduleWithFixedDelay(this::drain, interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  // called after a write has been committed, relay after the coalesce window instead of waiting for the next poll,
+  // the writes of the same burst are relayed together
+  public void wakeUp() {
+    if (wakeUpPending.compareAndSet(false, true)) {
+      this.scheduler.schedule(() -> {
+        wakeUpPending.set(false);
+        this.drain();
+      }, Math.max(0, bioProperties.getNanuqIndexerCoalesceWindow()), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public void drain() {
+    try {
+      if (System.currentTimeMillis() < backoffUntil) {
+        return;
+      }
+      List<IndexerOutbox.Entry> entries;
+      while (!(entries = outbox.poll(bioProperties.getNanuqOutboxBatchSize())).isEmpty()) {
+        if (!relay(entries)) {
+          break;
+        }
+      }
+    } catch (Exception e) {
+      log.error("Failed to drain outbox", e);
+    }
+  }
+
+  private boolean relay(List<IndexerOutbox.Entry> entries) {
+    try {
+      this.index(entries);
+      outbox.remove(entries);
+      consecutiveFailures = 0;
+      return true;
+    } catch (Exception e) {
+      log.warn("Failed to relay {} entries, retry one by one: {}", entries.size(), e.getMessage());
+    }
+
+    final List<IndexerOutbox.Entry> succeeded = new ArrayList<>();
+    final List<IndexerOutbox.Entry> failed = new ArrayList<>();
+    for (IndexerOutbox.Entry entry : entries) {
+      try {
+        this.index(List.of(entry));
+        succeeded.add(entry);
+      } catch (Exception e) {
+        failed.add(entry);
+      }
+    }
+    outbox.remove(succeeded);
+
+    if (succeeded.isEmpty()) {
+      // nothing could be indexed, most likely ES is down, don't count that as an attempt
+      outbox.release(failed);
+      consecutiveFailures++;
+      final long backoff = Math.min(bioProperties.getNanuqOutboxPollInterval() * (1L << Math.min(consecutiveFailures, 16)), MAX_BACKOFF_MS);
+      backoffUntil = System.currentTimeMillis() + backoff;
+      log.error("Failed to relay outbox, next attempt in {} ms", backoff);
+    } else {
+      consecutiveFailures = 0;
+      final List<IndexerOutbox.Entry> exhausted = failed.stream()
+        .filter(e -> e.getAttempts() + 1 >= bioProperties.getNanuqOutboxMaxAttempts()).collect(Collectors.toList());
+      failed.removeAll(exhausted);
+      exhausted.forEach(e -> log.error("Give up indexing {} {}/{} after {} attempts", e.getTarget(), e.getResourceType(), e.getResourceId(), e.getAttempts() + 1));
+      outbox.remove(exhausted);
+      outbox.incrementAttempts(failed);
+    }
+    // wait for the next poll before retrying the failed ones
+    return false;
+  }
+
+  private void index(List<IndexerOutbox.Entry> entries) {
+    final Map<String, Map<String, Set<String>>> idsByTarget = entries.stream().collect(Collectors.groupingBy(IndexerOutbox.Entry::getTarget,
+      Collectors.groupingBy(IndexerOutbox.Entry::getResourceType, Collectors.mapping(IndexerOutbox.Entry::getResourceId, Collectors.toSet()))));
+    idsByTarget.forEach((target, idsByType) -> {
+      if (IndexerOutbox.PATIENTS.equals(target)) {
+        patientIndexer.doIndex(idsByType.values().stream().flatMap(Set::stream).collect(Collectors.toSet()));
+      } else {
+        nanuqIndexer.doIndex(this.prescriptionIds(idsByType));
+      }
+    });
+  }
+
+  private Set<String> prescriptionIds(Map<String, Set<String>> idsByType) {
+    final Set<String> prescriptionIds = new HashSet<>();
+    idsByType.forEach((type, ids) -> prescriptionIds.addAll("ServiceRequest".equals(type) ? ids : dependencyIndex.prescriptionIds(type, ids)));
+    return prescriptionIds;
+  }
+
+  @PreDestroy
+  public void stop() {
+    this.scheduler.shutdown();
+  }
+}
@@ -0,0 +1,129 @@
+package bio.ferlab.clin.es.provider;
+
+import bio.ferlab.clin.es.MigrationManager;
+import bio.ferlab.clin.es.MigrationStatus;
+import bio.ferlab.clin.es.indexer.NanuqReindexJob;
+import bio.ferlab.clin.properties.BioProperties;
+import bio.ferlab.clin.utils.Constants;
+import bio.ferlab.clin.utils.Helpers;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.interfaces.Claim;
+import org.apache.commons.lang3.StringUtils;
+import org.hl7.fhir.r4.model.*;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Server operations to follow the Nanuq migration running in background and to re-index on demand.
+ */
+@Component
+public class NanuqReindexProvider {
+
+  private final MigrationManager migrationManager;
+  private final NanuqReindexJob reindexJob;
+  private final BioProperties bioProperties;
+
+  public NanuqReindexProvider(MigrationManager migrationManager, NanuqReindexJob reindexJob, BioProperties bioProperties) {
+    this.migrationManager = migrationManager;
+    this.reindexJob = reindexJob;
+    this.bioProperties = bioProperties;
+  }
+
+  // re-index in background the prescriptions matching all the parameters, all of them if none
+  @Operation(name = Constants.NANUQ_REINDEX_OPERATION)
+  public Parameters reindex(@OperationParam(name = "prescription") List<StringType> prescriptions,
+                            @OperationParam(name = "ep", max = 1) StringType ep,
+                            @OperationParam(name = "ldm", max = 1) StringType ldm,
+                            @OperationParam(name = "from", max = 1) DateTimeType from,
+                            @OperationParam(name = "until", max = 1) DateTimeType until,
+                            @OperationParam(name = "rate", max = 1) IntegerType rate,
+                            RequestDetails requestDetails) {
+    this.requireSystemClient(requestDetails);
+    if (MigrationStatus.State.running.equals(migrationManager.getStatus().getState())) {
+      throw new InvalidRequestException("The migration is running");
+    }
+    final Set<String> ids = Optional.ofNullable(prescriptions).orElse(List.of()).stream()
+      .map(StringType::getValue).filter(StringUtils::isNotBlank).collect(Collectors.toSet());
+    reindexJob.start(new NanuqReindexJob.Criteria(ids, valueOf(ep), valueOf(ldm), valueOf(from), valueOf(until),
+      rate != null && rate.getValue() != null ? rate.getValue() : bioProperties.getNanuqReindexRate()));
+    return this.reindexPollStatus(requestDetails);
+  }
+
+  @Operation(name = Constants.NANUQ_REINDEX_POLL_STATUS_OPERATION, idempotent = true)
+  public Parameters reindexPollStatus(RequestDetails requestDetails) {
+    this.requireSystemClient(requestDetails);
+    final NanuqReindexJob.Status status = reindexJob.getStatus();
+    final Parameters parameters = new Parameters();
+    parameters.addParameter().setName("state").setValue(new CodeType(status.getState().name()));
+    if (status.getCriteria() != null) {
+      parameters.addParameter().setName("criteria").setValue(new StringType(status.getCriteria()));
+    }
+    parameters.addParameter().setName("indexed").setValue(new IntegerType(status.getIndexed()));
+    if (status.getStartedAt() != null) {
+      parameters.addParameter().setName("startedAt").setValue(new InstantType(status.getStartedAt()));
+    }
+    if (status.getEndedAt() != null) {
+      parameters.addParameter().setName("endedAt").setValue(new InstantType(status.getEndedAt()));
+    }
+    if (status.getError() != null) {
+      parameters.addParameter().setName("error").setValue(new StringType(status.getError()));
+    }
+    return parameters;
+  }
+
+  @Operation(name = Constants.NANUQ_REINDEX_STATUS_OPERATION, idempotent = true)
+  public Parameters reindexStatus() {
+    final MigrationStatus status = migrationManager.getStatus();
+    final Parameters parameters = new Parameters();
+    parameters.addParameter().setName("state").setValue(new CodeType(status.getState().name()));
+    if (status.getAnalysesIndex() != null) {
+      parameters.addParameter().setName("analysesIndex").setValue(new StringType(status.getAnalysesIndex()));
+      parameters.addParameter().setName("sequencingsIndex").setValue(new StringType(status.getSequencingsIndex()));
+    }
+    parameters.addParameter().setName("partitions").setValue(new IntegerType(status.getPartitions()));
+    parameters.addParameter().setName("completedPartitions").setValue(new IntegerType(status.getCompletedPartitions()));
+    parameters.addParameter().setName("indexed").setValue(new IntegerType(status.getIndexed()));
+    if (status.getTotal() != null) {
+      parameters.addParameter().setName("total").setValue(new DecimalType(status.getTotal()));
+    }
+    if (status.getStartedAt() != null) {
+      parameters.addParameter().setName("startedAt").setValue(new InstantType(status.getStartedAt()));
+    }
+    if (status.getEtaSeconds() != null) {
+      parameters.addParameter().setName("etaSeconds").setValue(new DecimalType(status.getEtaSeconds()));
+    }
+    if (status.getError() != null) {
+      parameters.addParameter().setName("error").setValue(new StringType(status.getError()));
+    }
+    return parameters;
+  }
+
+  private void requireSystemClient(RequestDetails requestDetails) {
+    if (bioProperties.isAuthEnabled()) {
+      final var jwt = JWT.decode(Helpers.extractAccessTokenFromBearer(requestDetails.getHeader(HttpHeaders.AUTHORIZATION)));
+      final var clientId = Optional.ofNullable(jwt.getClaim("azp")).map(Claim::asString).orElse("");
+      if (!clientId.equals(bioProperties.getAuthSystemId())) {
+        throw new ForbiddenOperationException("Re-index is restricted to the system client");
+      }
+    }
+  }
+
+  private static String valueOf(StringType value) {
+    return value != null ? value.getValue() : null;
+  }
+
+  private static Date valueOf(DateTimeType value) {
+    return value != null ? value.getValue() : null;
+  }
+}
@@ -0,0 +1,58 @@
+package bio.ferlab.clin.es.provider;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Filters of the prescription lists as an ES bool query on the nanuq documents: the values of a field are OR-ed
+ * and the fields AND-ed. Without security tags every document can be seen.
+ */
+public class NanuqSearchCriteria {
+
+  public static final String SECURITY_TAGS_FIELD = "security_tags";
+  public static final String CREATED_ON_FIELD = "created_on";
+
+  private final Map<String, List<String>> terms = new LinkedHashMap<>();
+  private String createdFrom;
+  private String createdUntil;
+  private List<String> securityTags;
+
+  public NanuqSearchCriteria terms(String field, Collection<String> values) {
+    final List<String> notBlank = Optional.ofNullable(values).orElse(List.of()).stream()
+      .filter(StringUtils::isNotBlank).distinct().collect(Collectors.toList());
+    if (!notBlank.isEmpty()) {
+      this.terms.put(field, notBlank);
+    }
+    return this;
+  }
+
+  // created_on is a yyyy-MM-dd keyword, the lexical order is the chronological one
+  public NanuqSearchCriteria createdOn(String from, String until) {
+    this.createdFrom = from;
+    this.createdUntil = until;
+    return this;
+  }
+
+  public NanuqSearchCriteria securityTags(List<String> securityTags) {
+    this.securityTags = securityTags;
+    return this;
+  }
+
+  public Map<String, Object> toQuery() {
+    final List<Object> filters = new ArrayList<>();
+    this.terms.forEach((field, values) -> filters.add(Map.of("terms", Map.of(field, values))));
+    if (this.createdFrom != null || this.createdUntil != null) {
+      final Map<String, Object> range = new HashMap<>();
+      Optional.ofNullable(this.createdFrom).ifPresent(from -> range.put("gte", from));
+      Optional.ofNullable(this.createdUntil).ifPresent(until -> range.put("lte", until));
+      filters.add(Map.of("range", Map.of(CREATED_ON_FIELD, range)));
+    }
+    if (this.securityTags != null) {
+      // no tags = nothing matches
+      filters.add(Map.of("terms", Map.of(SECURITY_TAGS_FIELD, this.securityTags)));
+    }
+    return Map.of("bool", Map.of("filter", filters));
+  }
+}
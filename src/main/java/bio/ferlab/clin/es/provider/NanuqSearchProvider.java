@@ -0,0 +1,183 @@
+package bio.ferlab.clin.es.provider;
+
+import bio.ferlab.clin.es.ElasticsearchRestClient;
+import bio.ferlab.clin.es.NanuqFacetCache;
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.interceptors.metatag.MetaTagResourceAccess;
+import bio.ferlab.clin.properties.BioProperties;
+import bio.ferlab.clin.utils.Constants;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.r4.model.*;
+import org.springframework.stereotype.Component;
+
+import java.time.Month;
+import java.time.Year;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Prescription lists searched in the nanuq indexes instead of the JPA search engine (chained parameters),
+ * restricted to the security tags of the caller. Returns the ids, or the ServiceRequests read in one search if hydrated.
+ * The dashboard counts by facet are computed the same way, by a single aggregations request.
+ */
+@Component
+public class NanuqSearchProvider {
+
+  public static final String ANALYSES = "analyses";
+  public static final String SEQUENCINGS = "sequencings";
+  private static final int DEFAULT_COUNT = 20;
+  // index.max_result_window of ES
+  private static final int MAX_RESULT_WINDOW = 10000;
+  public static final List<String> FACETS = List.of("status", "ldm", "ep", "analysis_code");
+
+  private final ElasticsearchRestClient client;
+  private final ResourceDaoConfiguration configuration;
+  private final MetaTagResourceAccess metaTagResourceAccess;
+  private final NanuqFacetCache facetCache;
+  private final BioProperties bioProperties;
+
+  public NanuqSearchProvider(ElasticsearchRestClient client, ResourceDaoConfiguration configuration,
+                             MetaTagResourceAccess metaTagResourceAccess, NanuqFacetCache facetCache, BioProperties bioProperties) {
+    this.client = client;
+    this.configuration = configuration;
+    this.metaTagResourceAccess = metaTagResourceAccess;
+    this.facetCache = facetCache;
+    this.bioProperties = bioProperties;
+  }
+
+  @Operation(name = Constants.NANUQ_SEARCH_OPERATION, type = ServiceRequest.class, idempotent = true)
+  public Bundle search(@OperationParam(name = "type", max = 1) CodeType type,
+                       @OperationParam(name = "status") List<StringType> status,
+                       @OperationParam(name = "priority") List<StringType> priority,
+                       @OperationParam(name = "ep") List<StringType> ep,
+                       @OperationParam(name = "ldm") List<StringType> ldm,
+                       @OperationParam(name = "analysis_code") List<StringType> analysisCode,
+                       @OperationParam(name = "mrn") List<StringType> mrn,
+                       @OperationParam(name = "created_from", max = 1) DateType createdFrom,
+                       @OperationParam(name = "created_until", max = 1) DateType createdUntil,
+                       @OperationParam(name = "count", max = 1) IntegerType count,
+                       @OperationParam(name = "offset", max = 1) IntegerType offset,
+                       @OperationParam(name = "hydrate", max = 1) BooleanType hydrate,
+                       RequestDetails requestDetails) {
+    final boolean sequencings = this.isSequencings(type);
+    final int size = Math.min(valueOf(count, DEFAULT_COUNT), bioProperties.getNanuqSearchMaxCount());
+    final int from = valueOf(offset, 0);
+    if (size < 0 || from < 0 || from + size > MAX_RESULT_WINDOW) {
+      throw new InvalidRequestException("count and offset must be positive and below " + MAX_RESULT_WINDOW + ", refine the filters");
+    }
+    final NanuqSearchCriteria criteria = new NanuqSearchCriteria()
+      .terms("status", valuesOf(status))
+      .terms("priority", valuesOf(priority))
+      .terms("ep", valuesOf(ep))
+      .terms("ldm", valuesOf(ldm))
+      .terms("analysis_code", valuesOf(analysisCode))
+      .terms("patient_mrn", valuesOf(mrn))
+      .createdOn(dayOf(createdFrom, true), dayOf(createdUntil, false))
+      .securityTags(this.securityTags(requestDetails));
+    final String idField = sequencings ? "request_id" : "prescription_id";
+    final Map<String, Object> body = new HashMap<>();
+    body.put("query", criteria.toQuery());
+    body.put("from", from);
+    body.put("size", size);
+    body.put("sort", List.of(Map.of(NanuqSearchCriteria.CREATED_ON_FIELD, "desc"), Map.of(idField, "asc")));
+    final String index = sequencings ? bioProperties.getNanuqEsSequencingsIndex() : bioProperties.getNanuqEsAnalysesIndex();
+    final ElasticsearchRestClient.SearchResult result = client.search(index, body);
+
+    final Bundle bundle = new Bundle();
+    bundle.setType(Bundle.BundleType.SEARCHSET);
+    bundle.setTotal((int) result.getTotal());
+    if (hydrate != null && hydrate.booleanValue()) {
+      this.hydrate(result.getIds(), requestDetails).forEach(sr -> bundle.addEntry()
+        .setFullUrl("ServiceRequest/" + sr.getIdElement().getIdPart()).setResource(sr));
+    } else {
+      result.getIds().forEach(id -> bundle.addEntry().setFullUrl("ServiceRequest/" + id));
+    }
+    return bundle;
+  }
+
+  // count of the prescriptions the caller can see by value of each facet
+  @Operation(name = Constants.NANUQ_FACETS_OPERATION, type = ServiceRequest.class, idempotent = true)
+  public Parameters facets(@OperationParam(name = "type", max = 1) CodeType type, RequestDetails requestDetails) {
+    final String index = this.isSequencings(type) ? bioProperties.getNanuqEsSequencingsIndex() : bioProperties.getNanuqEsAnalysesIndex();
+    final List<String> securityTags = this.securityTags(requestDetails);
+    final String key = index + "|" + Optional.ofNullable(securityTags)
+      .map(tags -> tags.stream().sorted().collect(Collectors.joining(","))).orElse(MetaTagResourceAccess.USER_ALL_TAGS);
+    final ElasticsearchRestClient.AggregationResult result = facetCache.get(key, () -> client.termsAggregations(index,
+      new NanuqSearchCriteria().securityTags(securityTags).toQuery(), FACETS, bioProperties.getNanuqFacetsSize()));
+
+    final Parameters parameters = new Parameters();
+    parameters.addParameter().setName("total").setValue(new DecimalType(result.getTotal()));
+    result.getCounts().forEach((facet, counts) -> {
+      final Parameters.ParametersParameterComponent parameter = parameters.addParameter().setName(facet);
+      counts.forEach((value, count) -> parameter.addPart().setName(value).setValue(new DecimalType(count)));
+    });
+    return parameters;
+  }
+
+  // one search by _id, in the order of ES, the ones not in the DB anymore are ignored
+  private List<ServiceRequest> hydrate(List<String> ids, RequestDetails requestDetails) {
+    if (ids.isEmpty()) {
+      return List.of();
+    }
+    final TokenOrListParam idParam = new TokenOrListParam();
+    ids.forEach(id -> idParam.addOr(new TokenParam(id)));
+    final SearchParameterMap sm = SearchParameterMap.newSynchronous().add("_id", idParam);
+    final Map<String, ServiceRequest> byId = configuration.serviceRequestDAO.search(sm, requestDetails).getAllResources().stream()
+      .collect(Collectors.toMap(r -> r.getIdElement().getIdPart(), r -> (ServiceRequest) r, (a, b) -> a));
+    return ids.stream().map(byId::get).filter(Objects::nonNull).collect(Collectors.toList());
+  }
+
+  // same rules as MetaTagResourceAccess, null if the caller can see everything
+  private List<String> securityTags(RequestDetails requestDetails) {
+    if (!bioProperties.isTaggingEnabled()) {
+      return null;
+    }
+    final List<String> userTags = metaTagResourceAccess.getUserTags(requestDetails);
+    if (userTags.contains(MetaTagResourceAccess.USER_ALL_TAGS)
+      || metaTagResourceAccess.getUserRoles(requestDetails).contains(MetaTagResourceAccess.USER_ROLE_GENETICIAN)) {
+      return null;
+    }
+    return userTags;
+  }
+
+  private boolean isSequencings(CodeType type) {
+    final String value = Optional.ofNullable(type).map(CodeType::getValue).orElse(ANALYSES);
+    if (!ANALYSES.equals(value) && !SEQUENCINGS.equals(value)) {
+      throw new InvalidRequestException("type must be " + ANALYSES + " or " + SEQUENCINGS);
+    }
+    return SEQUENCINGS.equals(value);
+  }
+
+  private static List<String> valuesOf(List<StringType> values) {
+    return Optional.ofNullable(values).orElse(List.of()).stream().map(StringType::getValue).collect(Collectors.toList());
+  }
+
+  // yyyy-MM-dd, the dates are compared as strings: a year or a month is expanded to its first or last day
+  private static String dayOf(DateType value, boolean first) {
+    if (value == null || value.isEmpty()) {
+      return null;
+    }
+    final String date = value.getValueAsString();
+    switch (value.getPrecision()) {
+      case YEAR:
+        final Year year = Year.parse(date);
+        return (first ? year.atDay(1) : year.atMonth(Month.DECEMBER).atEndOfMonth()).toString();
+      case MONTH:
+        final YearMonth month = YearMonth.parse(date);
+        return (first ? month.atDay(1) : month.atEndOfMonth()).toString();
+      default:
+        return date;
+    }
+  }
+
+  private static int valueOf(IntegerType value, int defaultValue) {
+    return value != null && value.getValue() != null ? value.getValue() : defaultValue;
+  }
+}
@@ -5,6 +5,7 @@ import bio.ferlab.clin.auth.data.Permission;
 import bio.ferlab.clin.auth.data.UserPermissions;
 import bio.ferlab.clin.auth.data.custom.Export;
 import bio.ferlab.clin.auth.data.custom.Metadata;
+import bio.ferlab.clin.auth.data.custom.Reindex;
 
 import bio.ferlab.clin.utils.Constants;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
@@ -13,6 +14,7 @@ import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
 import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRuleBuilder;
 import ca.uhn.fhir.rest.server.interceptor.auth.RuleBuilder;
 import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ServiceRequest;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -54,6 +56,9 @@ public class BioAuthInterceptor extends AuthorizationInterceptor {
     private void handlePermission(IAuthRuleBuilder builder, Permission<? extends Resource> permission) {
         if (permission.isRead()) {
             allowReadPermissionByType(builder, permission.getResourceType());
+            if (permission.getResourceType().equals(ServiceRequest.class)) {
+                applyRulesOnNanuqSearch(builder);
+            }
         }
         if (permission.isUpdate()) {
             allowWritePermissionByType(builder, permission.getResourceType());
@@ -73,6 +78,8 @@ public class BioAuthInterceptor extends AuthorizationInterceptor {
                 applyRulesOnExport(builder);
             } else if (permission.resourceType.equals(Metadata.class)) {
                 applyRulesOnMetadata(builder);
+            } else if (permission.resourceType.equals(Reindex.class)) {
+                applyRulesOnReindex(builder, permission);
             } else {
                 handlePermission(builder, permission);
             }
@@ -105,6 +112,24 @@ public class BioAuthInterceptor extends AuthorizationInterceptor {
         ruleBuilder.allow().metadata().andThen();
     }
 
+    private void applyRulesOnNanuqSearch(IAuthRuleBuilder ruleBuilder) {
+        // the hydrated ServiceRequests of the response are checked by the read rules
+        ruleBuilder.allow().operation().named(Constants.NANUQ_SEARCH_OPERATION).onType(ServiceRequest.class).andRequireExplicitResponseAuthorization().andThen();
+        // only counts, already restricted to the security tags of the caller
+        ruleBuilder.allow().operation().named(Constants.NANUQ_FACETS_OPERATION).onType(ServiceRequest.class).andAllowAllResponses().andThen();
+    }
+
+    private void applyRulesOnReindex(IAuthRuleBuilder ruleBuilder, Permission<? extends Resource> permission) {
+        if (permission.isRead()) {
+            ruleBuilder.allow().operation().named(Constants.NANUQ_REINDEX_STATUS_OPERATION).onServer().andAllowAllResponses().andThen();
+        }
+        // the operation itself is restricted to the system client
+        if (permission.isUpdate()) {
+            ruleBuilder.allow().operation().named(Constants.NANUQ_REINDEX_OPERATION).onServer().andAllowAllResponses().andThen();
+            ruleBuilder.allow().operation().named(Constants.NANUQ_REINDEX_POLL_STATUS_OPERATION).onServer().andAllowAllResponses().andThen();
+        }
+    }
+
     @Override
     public List<IAuthRule> buildRuleList(RequestDetails requestDetails) {
         final var permissions = this.permissionExtractor.extract(requestDetails);
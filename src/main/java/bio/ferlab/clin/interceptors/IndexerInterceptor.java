@@ -1,6 +1,12 @@
 package bio.ferlab.clin.interceptors;
 
+import bio.ferlab.clin.es.extractor.PrescriptionDependencyIndex;
+import bio.ferlab.clin.es.indexer.IndexerQueue;
 import bio.ferlab.clin.es.indexer.NanuqIndexer;
+import bio.ferlab.clin.es.indexer.PatientIndexer;
+import bio.ferlab.clin.es.indexer.PatientIndexerQueue;
+import bio.ferlab.clin.es.outbox.IndexerOutbox;
+import bio.ferlab.clin.es.outbox.IndexerOutboxRelay;
 import bio.ferlab.clin.properties.BioProperties;
 import bio.ferlab.clin.es.ElasticsearchRestClient;
 import ca.uhn.fhir.interceptor.api.Hook;
@@ -8,9 +14,18 @@ import ca.uhn.fhir.interceptor.api.Interceptor;
 import ca.uhn.fhir.interceptor.api.Pointcut;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Organization;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.Specimen;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Set;
 
 /**
  * Intercepts requests CREATE/UPDATE/DELETE requests, and index patient data to ES when needed.
@@ -20,30 +35,125 @@ import org.springframework.stereotype.Service;
 @Interceptor
 @Service
 public class IndexerInterceptor {
+    private static final Logger log = LoggerFactory.getLogger(IndexerInterceptor.class);
+
     private final ElasticsearchRestClient client;
     private final BioProperties bioProperties;
     private final NanuqIndexer nanuqIndexer;
+    private final IndexerQueue indexerQueue;
+    private final IndexerOutbox indexerOutbox;
+    private final IndexerOutboxRelay indexerOutboxRelay;
+    private final PrescriptionDependencyIndex dependencyIndex;
+    private final PatientIndexer patientIndexer;
+    private final PatientIndexerQueue patientIndexerQueue;
 
     public IndexerInterceptor(ElasticsearchRestClient client,
                               BioProperties bioProperties,
-                              NanuqIndexer nanuqIndexer) {
+                              NanuqIndexer nanuqIndexer,
+                              IndexerQueue indexerQueue,
+                              IndexerOutbox indexerOutbox,
+                              IndexerOutboxRelay indexerOutboxRelay,
+                              PrescriptionDependencyIndex dependencyIndex,
+                              PatientIndexer patientIndexer,
+                              PatientIndexerQueue patientIndexerQueue) {
         this.client = client;
         this.bioProperties = bioProperties;
         this.nanuqIndexer = nanuqIndexer;
+        this.indexerQueue = indexerQueue;
+        this.indexerOutbox = indexerOutbox;
+        this.indexerOutboxRelay = indexerOutboxRelay;
+        this.dependencyIndex = dependencyIndex;
+        this.patientIndexer = patientIndexer;
+        this.patientIndexerQueue = patientIndexerQueue;
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource resource) {
+        this.addToOutbox(resource);
+        afterCommit(() -> this.dependencyIndex.register(resource));
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource) {
+        this.addToOutbox(newResource);
+        afterCommit(() -> this.dependencyIndex.register(newResource));
+    }
+
+    // bundle entries are received one by one with their final ids. The prescriptions embedding a Specimen, Patient or
+    // Organization are searched by the relay, after commit, not in the write transaction
+    private void addToOutbox(IBaseResource resource) {
+        if (bioProperties.isNanuqOutboxEnabled() && !(resource instanceof Bundle)) {
+            if (resource instanceof Specimen || resource instanceof Patient || resource instanceof Organization) {
+                this.indexerOutbox.add(IndexerOutbox.NANUQ, resource.fhirType(), Set.of(resource.getIdElement().getIdPart()));
+            } else {
+                this.indexerOutbox.add(IndexerOutbox.NANUQ, "ServiceRequest", this.nanuqIndexer.extractPrescriptionIds(resource));
+            }
+            if (bioProperties.isPatientsIndexerEnabled()) {
+                this.indexerOutbox.add(IndexerOutbox.PATIENTS, "Patient", this.patientIndexer.extractPatientIds(resource));
+            }
+        }
+    }
+
+    // the patient documents are rebuilt after commit, by the outbox relay or the queue, a patient not found is deleted
+    private void indexPatientsAfterCommit(Set<String> patientIds) {
+        if (bioProperties.isNanuqOutboxEnabled()) {
+            this.indexerOutbox.add(IndexerOutbox.PATIENTS, "Patient", patientIds);
+        } else {
+            afterCommit(() -> this.patientIndexerQueue.submit(patientIds));
+        }
     }
 
     @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
     public void resourceDeleted(IBaseResource resource) {
         if (resource instanceof Patient) {
-            client.delete(bioProperties.getEsPatientsIndex(), resource.getIdElement().getIdPart());
+            if (bioProperties.isPatientsIndexerEnabled()) {
+                this.indexPatientsAfterCommit(Set.of(resource.getIdElement().getIdPart()));
+            } else {
+                client.delete(bioProperties.getEsPatientsIndex(), resource.getIdElement().getIdPart());
+            }
         } else if (resource instanceof ServiceRequest) {
             client.delete(bioProperties.getEsPrescriptionsIndex(), resource.getIdElement().getIdPart());
+            nanuqIndexer.delete(Set.of(resource.getIdElement().getIdPart()));
+            if (bioProperties.isPatientsIndexerEnabled()) {
+                this.indexPatientsAfterCommit(patientIndexer.extractPatientIds(resource));
+            }
+        }
+        afterCommit(() -> this.dependencyIndex.remove(resource.fhirType(), resource.getIdElement().getIdPart()));
+    }
+
+    // the dependency index must not keep the links of a rolled back transaction
+    private static void afterCommit(Runnable runnable) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    runnable.run();
+                }
+            });
+        } else {
+            runnable.run();
         }
     }
 
     @Hook(Pointcut.SERVER_OUTGOING_RESPONSE)
     public boolean response(RequestDetails requestDetails) {
-        this.nanuqIndexer.index(requestDetails);
+        if (bioProperties.isNanuqOutboxEnabled()) {
+            // the write is committed, no need to wait for the next poll
+            this.indexerOutboxRelay.wakeUp();
+        } else if (bioProperties.isNanuqIndexerAsync()) {
+            // only extract the ids here, the request thread doesn't wait for the indexing
+            this.indexerQueue.submit(this.nanuqIndexer.extractPrescriptionIds(requestDetails));
+        } else {
+            // the documents are built here, the response doesn't wait for ES
+            this.nanuqIndexer.indexAsync(requestDetails).exceptionally(e -> {
+                log.error("Failed to index prescriptions", e);
+                return null;
+            });
+        }
+        if (bioProperties.isPatientsIndexerEnabled() && !bioProperties.isNanuqOutboxEnabled()) {
+            // already in the outbox otherwise
+            this.patientIndexerQueue.submit(this.patientIndexer.extractPatientIds(requestDetails));
+        }
         return true;
     }
 }
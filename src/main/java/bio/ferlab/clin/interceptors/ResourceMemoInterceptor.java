@@ -0,0 +1,38 @@
+package bio.ferlab.clin.interceptors;
+
+import bio.ferlab.clin.utils.ResourceMemo;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.stereotype.Service;
+
+/**
+ * Evict the resources written by a request from its memo, the next reads of the same request see the new version.
+ */
+@Interceptor
+@Service
+public class ResourceMemoInterceptor {
+
+    private final ResourceMemo resourceMemo;
+
+    public ResourceMemoInterceptor(ResourceMemo resourceMemo) {
+        this.resourceMemo = resourceMemo;
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource resource, RequestDetails requestDetails) {
+        this.resourceMemo.evict(requestDetails, resource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource oldResource, IBaseResource newResource, RequestDetails requestDetails) {
+        this.resourceMemo.evict(requestDetails, newResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource resource, RequestDetails requestDetails) {
+        this.resourceMemo.evict(requestDetails, resource);
+    }
+}
@@ -18,6 +18,20 @@ public class BioProperties {
     private final String esScheme;
     private final String esPatientsIndex;
     private final String esPrescriptionsIndex;
+    private final int esBulkMaxActions;
+    private final long esBulkMaxBytes;
+    private final String esHosts;
+    private final int esMaxConnPerRoute;
+    private final int esMaxConnTotal;
+    private final int esConnectTimeout;
+    private final int esSocketTimeout;
+    private final boolean isEsCompression;
+    private final int esMaxInFlight;
+    private final int esCircuitBreakerFailureThreshold;
+    private final long esCircuitBreakerOpenDuration;
+    private final String esJournalPath;
+    private final long esJournalMaxSize;
+    private final long esJournalReplayInterval;
     private final boolean isAuthEnabled;
     private final String authServerUrl;
     private final String authRealm;
@@ -33,8 +47,38 @@ public class BioProperties {
     private final String authSystemId;
     private final String authClientSecret;
     private final MigrationManager.Type nanuqReindex;
+    private final int nanuqReindexBatchSize;
+    private final int nanuqReindexPartitions;
+    private final int nanuqReindexWorkers;
+    private final boolean nanuqReindexBackground;
+    private final boolean nanuqReindexForceMerge;
+    private final int nanuqReindexRate;
+    private final long nanuqCatchUpInterval;
+    private final long nanuqCatchUpOverlap;
+    private final boolean isNanuqDependencyIndexEnabled;
     private final String nanuqEsAnalysesIndex;
     private final String nanuqEsSequencingsIndex;
+    private final boolean isNanuqIndexerAsync;
+    private final boolean isNanuqSkipUnchanged;
+    private final boolean isNanuqExternalVersioning;
+    private final int nanuqIndexerWorkers;
+    private final int nanuqIndexerQueueCapacity;
+    private final int nanuqIndexerShutdownTimeout;
+    private final long nanuqIndexerCoalesceWindow;
+    private final long nanuqIndexerCoalesceMaxDelay;
+    private final int nanuqIndexerMaxPending;
+    private final boolean isNanuqOutboxEnabled;
+    private final int nanuqOutboxBatchSize;
+    private final long nanuqOutboxPollInterval;
+    private final int nanuqOutboxMaxAttempts;
+    private final int nanuqSearchMaxCount;
+    private final long nanuqFacetsCacheTtl;
+    private final int nanuqFacetsSize;
+    private final boolean isPatientsIndexerEnabled;
+    private final MigrationManager.Type patientsReindex;
+    private final long nanuqReconcileInterval;
+    private final int nanuqReconcileRanges;
+    private final int nanuqReconcileLeafSize;
 
     public BioProperties(
             @Value("${bio.elasticsearch.enabled}") boolean isBioEsEnabled,
@@ -43,6 +87,20 @@ public class BioProperties {
             @Value("${bio.elasticsearch.scheme}") String esScheme,
             @Value("${bio.elasticsearch.patients-index}") String esPatientsIndex,
             @Value("${bio.elasticsearch.prescriptions-index}") String esPrescriptionsIndex,
+            @Value("${bio.elasticsearch.bulk-max-actions}") int esBulkMaxActions,
+            @Value("${bio.elasticsearch.bulk-max-bytes}") long esBulkMaxBytes,
+            @Value("${bio.elasticsearch.hosts}") String esHosts,
+            @Value("${bio.elasticsearch.max-conn-per-route}") int esMaxConnPerRoute,
+            @Value("${bio.elasticsearch.max-conn-total}") int esMaxConnTotal,
+            @Value("${bio.elasticsearch.connect-timeout}") int esConnectTimeout,
+            @Value("${bio.elasticsearch.socket-timeout}") int esSocketTimeout,
+            @Value("${bio.elasticsearch.compression}") boolean isEsCompression,
+            @Value("${bio.elasticsearch.max-in-flight}") int esMaxInFlight,
+            @Value("${bio.elasticsearch.circuit-breaker.failure-threshold}") int esCircuitBreakerFailureThreshold,
+            @Value("${bio.elasticsearch.circuit-breaker.open-duration}") long esCircuitBreakerOpenDuration,
+            @Value("${bio.elasticsearch.journal.path}") String esJournalPath,
+            @Value("${bio.elasticsearch.journal.max-size}") long esJournalMaxSize,
+            @Value("${bio.elasticsearch.journal.replay-interval}") long esJournalReplayInterval,
             @Value("${bio.auth.enabled}") boolean isAuthEnabled,
             @Value("${bio.auth.server-url}") String authServerUrl,
             @Value("${bio.auth.realm}") String authRealm,
@@ -58,8 +116,38 @@ public class BioProperties {
             @Value("${bio.auth.authorization.client-secret}") String authClientSecret,
             @Value("${bio.auth.authorization.system-id}") String authSystemId,
             @Value("${bio.nanuq.reindex}") MigrationManager.Type nanuqReindex,
+            @Value("${bio.nanuq.reindex-batch-size}") int nanuqReindexBatchSize,
+            @Value("${bio.nanuq.reindex-partitions}") int nanuqReindexPartitions,
+            @Value("${bio.nanuq.reindex-workers}") int nanuqReindexWorkers,
+            @Value("${bio.nanuq.reindex-background}") boolean nanuqReindexBackground,
+            @Value("${bio.nanuq.reindex-force-merge}") boolean nanuqReindexForceMerge,
+            @Value("${bio.nanuq.reindex-rate}") int nanuqReindexRate,
+            @Value("${bio.nanuq.catch-up.interval}") long nanuqCatchUpInterval,
+            @Value("${bio.nanuq.catch-up.overlap}") long nanuqCatchUpOverlap,
+            @Value("${bio.nanuq.dependency-index}") boolean isNanuqDependencyIndexEnabled,
             @Value("${bio.nanuq.analyses-index}") String nanuqEsAnalysesIndex,
-            @Value("${bio.nanuq.sequencings-index}") String nanuqEsSequencingsIndex
+            @Value("${bio.nanuq.sequencings-index}") String nanuqEsSequencingsIndex,
+            @Value("${bio.nanuq.indexer.async}") boolean isNanuqIndexerAsync,
+            @Value("${bio.nanuq.skip-unchanged}") boolean isNanuqSkipUnchanged,
+            @Value("${bio.nanuq.external-versioning}") boolean isNanuqExternalVersioning,
+            @Value("${bio.nanuq.indexer.workers}") int nanuqIndexerWorkers,
+            @Value("${bio.nanuq.indexer.queue-capacity}") int nanuqIndexerQueueCapacity,
+            @Value("${bio.nanuq.indexer.shutdown-timeout}") int nanuqIndexerShutdownTimeout,
+            @Value("${bio.nanuq.indexer.coalesce-window}") long nanuqIndexerCoalesceWindow,
+            @Value("${bio.nanuq.indexer.coalesce-max-delay}") long nanuqIndexerCoalesceMaxDelay,
+            @Value("${bio.nanuq.indexer.max-pending}") int nanuqIndexerMaxPending,
+            @Value("${bio.nanuq.outbox.enabled}") boolean isNanuqOutboxEnabled,
+            @Value("${bio.nanuq.outbox.batch-size}") int nanuqOutboxBatchSize,
+            @Value("${bio.nanuq.outbox.poll-interval}") long nanuqOutboxPollInterval,
+            @Value("${bio.nanuq.outbox.max-attempts}") int nanuqOutboxMaxAttempts,
+            @Value("${bio.nanuq.search.max-count}") int nanuqSearchMaxCount,
+            @Value("${bio.nanuq.facets.cache-ttl}") long nanuqFacetsCacheTtl,
+            @Value("${bio.nanuq.facets.size}") int nanuqFacetsSize,
+            @Value("${bio.patients.indexer.enabled}") boolean isPatientsIndexerEnabled,
+            @Value("${bio.patients.reindex}") MigrationManager.Type patientsReindex,
+            @Value("${bio.nanuq.reconcile.interval}") long nanuqReconcileInterval,
+            @Value("${bio.nanuq.reconcile.ranges}") int nanuqReconcileRanges,
+            @Value("${bio.nanuq.reconcile.leaf-size}") int nanuqReconcileLeafSize
 
     ) {
         this.isBioEsEnabled = isBioEsEnabled;
@@ -68,6 +156,20 @@ public class BioProperties {
         this.esScheme = esScheme;
         this.esPatientsIndex = esPatientsIndex;
         this.esPrescriptionsIndex = esPrescriptionsIndex;
+        this.esBulkMaxActions = esBulkMaxActions;
+        this.esBulkMaxBytes = esBulkMaxBytes;
+        this.esHosts = esHosts;
+        this.esMaxConnPerRoute = esMaxConnPerRoute;
+        this.esMaxConnTotal = esMaxConnTotal;
+        this.esConnectTimeout = esConnectTimeout;
+        this.esSocketTimeout = esSocketTimeout;
+        this.isEsCompression = isEsCompression;
+        this.esMaxInFlight = esMaxInFlight;
+        this.esCircuitBreakerFailureThreshold = esCircuitBreakerFailureThreshold;
+        this.esCircuitBreakerOpenDuration = esCircuitBreakerOpenDuration;
+        this.esJournalPath = esJournalPath;
+        this.esJournalMaxSize = esJournalMaxSize;
+        this.esJournalReplayInterval = esJournalReplayInterval;
         this.isAuthEnabled = isAuthEnabled;
         this.authServerUrl = authServerUrl;
         this.authRealm = authRealm;
@@ -83,8 +185,38 @@ public class BioProperties {
         this.authClientSecret = authClientSecret;
         this.authSystemId = authSystemId;
         this.nanuqReindex = nanuqReindex;
+        this.nanuqReindexBatchSize = nanuqReindexBatchSize;
+        this.nanuqReindexPartitions = nanuqReindexPartitions;
+        this.nanuqReindexWorkers = nanuqReindexWorkers;
+        this.nanuqReindexBackground = nanuqReindexBackground;
+        this.nanuqReindexForceMerge = nanuqReindexForceMerge;
+        this.nanuqReindexRate = nanuqReindexRate;
+        this.nanuqCatchUpInterval = nanuqCatchUpInterval;
+        this.nanuqCatchUpOverlap = nanuqCatchUpOverlap;
+        this.isNanuqDependencyIndexEnabled = isNanuqDependencyIndexEnabled;
         this.nanuqEsAnalysesIndex = nanuqEsAnalysesIndex;
         this.nanuqEsSequencingsIndex = nanuqEsSequencingsIndex;
+        this.isNanuqIndexerAsync = isNanuqIndexerAsync;
+        this.isNanuqSkipUnchanged = isNanuqSkipUnchanged;
+        this.isNanuqExternalVersioning = isNanuqExternalVersioning;
+        this.nanuqIndexerWorkers = nanuqIndexerWorkers;
+        this.nanuqIndexerQueueCapacity = nanuqIndexerQueueCapacity;
+        this.nanuqIndexerShutdownTimeout = nanuqIndexerShutdownTimeout;
+        this.nanuqIndexerCoalesceWindow = nanuqIndexerCoalesceWindow;
+        this.nanuqIndexerCoalesceMaxDelay = nanuqIndexerCoalesceMaxDelay;
+        this.nanuqIndexerMaxPending = nanuqIndexerMaxPending;
+        this.isNanuqOutboxEnabled = isNanuqOutboxEnabled;
+        this.nanuqOutboxBatchSize = nanuqOutboxBatchSize;
+        this.nanuqOutboxPollInterval = nanuqOutboxPollInterval;
+        this.nanuqOutboxMaxAttempts = nanuqOutboxMaxAttempts;
+        this.nanuqSearchMaxCount = nanuqSearchMaxCount;
+        this.nanuqFacetsCacheTtl = nanuqFacetsCacheTtl;
+        this.nanuqFacetsSize = nanuqFacetsSize;
+        this.isPatientsIndexerEnabled = isPatientsIndexerEnabled;
+        this.patientsReindex = patientsReindex;
+        this.nanuqReconcileInterval = nanuqReconcileInterval;
+        this.nanuqReconcileRanges = nanuqReconcileRanges;
+        this.nanuqReconcileLeafSize = nanuqReconcileLeafSize;
     }
 
 
@@ -5,4 +5,9 @@ public class Constants {
     public static final String VALIDATE_OPERATION = "$validate";
     public static final String EXPORT_OPERATION = "$export";
     public static final String EXPORT_STATUS_OPERATION = "$export-poll-status";
+    public static final String NANUQ_REINDEX_STATUS_OPERATION = "$nanuq-reindex-status";
+    public static final String NANUQ_REINDEX_OPERATION = "$nanuq-reindex";
+    public static final String NANUQ_REINDEX_POLL_STATUS_OPERATION = "$nanuq-reindex-poll-status";
+    public static final String NANUQ_SEARCH_OPERATION = "$nanuq-search";
+    public static final String NANUQ_FACETS_OPERATION = "$nanuq-facets";
 }
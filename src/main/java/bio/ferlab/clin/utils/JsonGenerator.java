@@ -4,19 +4,27 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.hl7.fhir.r4.model.Resource;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+
 @Component
 public class JsonGenerator {
     private final IParser fhirParser;
     private final ObjectMapper objectParser;
+    // thread-safe, shared by all the serializations to bytes
+    private final ObjectWriter objectWriter;
 
     public JsonGenerator(@Qualifier("fhirContextR4") FhirContext context) {
         this.fhirParser = context.newJsonParser();
         this.objectParser = new ObjectMapper();
+        this.objectWriter = this.objectParser.writer();
     }
 
     public String toString(Object object) {
@@ -27,6 +35,40 @@ public class JsonGenerator {
         }
     }
 
+    // UTF-8 JSON written straight to bytes, without an intermediate String
+    public byte[] toBytes(Object object) {
+        try {
+            return this.objectWriter.writeValueAsBytes(object);
+        } catch (JsonProcessingException e) {
+            throw new InvalidRequestException("Failed to parse object");
+        }
+    }
+
+    // a writer of the same mapper with the annotations of the mix-in applied to the target (ex: ignored properties)
+    public ObjectWriter writerWithMixIn(Class<?> target, Class<?> mixIn) {
+        return this.objectParser.copy().addMixIn(target, mixIn).writer();
+    }
+
+    public ObjectNode toJsonNode(Object object) {
+        return this.objectParser.valueToTree(object);
+    }
+
+    public JsonNode parse(String json) {
+        try {
+            return this.objectParser.readTree(json);
+        } catch (JsonProcessingException e) {
+            throw new InvalidRequestException("Failed to parse json");
+        }
+    }
+
+    public JsonNode parse(byte[] json) {
+        try {
+            return this.objectParser.readTree(json);
+        } catch (IOException e) {
+            throw new InvalidRequestException("Failed to parse json");
+        }
+    }
+
     public String toString(Resource resource) {
         return this.fhirParser.encodeResourceToString(resource);
     }
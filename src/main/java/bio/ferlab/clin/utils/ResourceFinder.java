@@ -14,9 +14,11 @@ import java.util.Optional;
 public class ResourceFinder {
 
   private final ResourceDaoConfiguration configuration;
+  private final ResourceMemo resourceMemo;
 
-  public ResourceFinder(ResourceDaoConfiguration configuration) {
+  public ResourceFinder(ResourceDaoConfiguration configuration, ResourceMemo resourceMemo) {
     this.configuration = configuration;
+    this.resourceMemo = resourceMemo;
   }
   
   private Optional<Bundle.BundleEntryComponent> findEntryFromBundle(RequestDetails requestDetails, String fullUrl) {
@@ -31,7 +33,7 @@ public class ResourceFinder {
 
   public Optional<Patient> findPatientFromDAO(RequestDetails requestDetails, String ref) {
     try{
-      return Optional.ofNullable(this.configuration.patientDAO.read(new IdType(ref), requestDetails));
+      return Optional.ofNullable(this.resourceMemo.read(this.configuration.patientDAO, "Patient", new IdType(ref), requestDetails));
     } catch(ResourceNotFoundException e) {
       return Optional.empty();
     }
@@ -0,0 +1,86 @@
+package bio.ferlab.clin.utils;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Identity cache of the resources read from the DAOs, keyed by versionless id (type/id). It lives in the user data
+ * of the request or, without request (async indexing, migration), for the duration of a batch on the current thread.
+ * Resources written by the request are evicted, see {@link bio.ferlab.clin.interceptors.ResourceMemoInterceptor}.
+ * Only resources read with the request details (authorized) may be put in the memo of a request. The memoized
+ * instances are shared by every reader, they must not be modified (copy them first).
+ */
+@Component
+public class ResourceMemo {
+
+  private static final String USER_DATA_KEY = ResourceMemo.class.getName();
+
+  private final ThreadLocal<Map<String, IBaseResource>> batch = new ThreadLocal<>();
+
+  // reads done by the action without request share the same memo, nested batches use the outer one
+  public <T> T inBatch(Supplier<T> action) {
+    if (batch.get() != null) {
+      return action.get();
+    }
+    batch.set(new HashMap<>());
+    try {
+      return action.get();
+    } finally {
+      batch.remove();
+    }
+  }
+
+  public void inBatch(Runnable action) {
+    this.inBatch(() -> {
+      action.run();
+      return null;
+    });
+  }
+
+  public <T extends IBaseResource> T read(IFhirResourceDao<T> dao, String type, IIdType id, RequestDetails requestDetails) {
+    final Optional<T> memoized = this.get(requestDetails, type, id.getIdPart());
+    if (memoized.isPresent()) {
+      return memoized.get();
+    }
+    final T resource = dao.read(id, requestDetails);
+    this.getMemo(requestDetails).ifPresent(memo -> memo.put(key(type, id.getIdPart()), resource));
+    return resource;
+  }
+
+  @SuppressWarnings("unchecked")
+  public <T extends IBaseResource> Optional<T> get(RequestDetails requestDetails, String type, String id) {
+    return this.getMemo(requestDetails).map(memo -> (T) memo.get(key(type, id)));
+  }
+
+  public void put(RequestDetails requestDetails, IBaseResource resource) {
+    this.getMemo(requestDetails).ifPresent(memo -> memo.put(key(resource), resource));
+  }
+
+  public void evict(RequestDetails requestDetails, IBaseResource resource) {
+    this.getMemo(requestDetails).ifPresent(memo -> memo.remove(key(resource)));
+  }
+
+  @SuppressWarnings("unchecked")
+  private Optional<Map<String, IBaseResource>> getMemo(RequestDetails requestDetails) {
+    if (requestDetails != null && requestDetails.getUserData() != null) {
+      return Optional.of((Map<String, IBaseResource>) requestDetails.getUserData().computeIfAbsent(USER_DATA_KEY, k -> new HashMap<>()));
+    }
+    return Optional.ofNullable(batch.get());
+  }
+
+  private static String key(IBaseResource resource) {
+    return key(resource.fhirType(), resource.getIdElement().getIdPart());
+  }
+
+  private static String key(String type, String id) {
+    return type + "/" + id;
+  }
+}
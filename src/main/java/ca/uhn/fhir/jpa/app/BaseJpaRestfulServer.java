@@ -1,5 +1,7 @@
 package ca.uhn.fhir.jpa.app;
 
+import bio.ferlab.clin.es.provider.NanuqReindexProvider;
+import bio.ferlab.clin.es.provider.NanuqSearchProvider;
 import bio.ferlab.clin.interceptors.*;
 import bio.ferlab.clin.interceptors.metatag.MetaTagInterceptor;
 import bio.ferlab.clin.properties.BioProperties;
@@ -114,6 +116,15 @@ public class BaseJpaRestfulServer extends RestfulServer {
     @Autowired
     IndexerInterceptor indexerInterceptor;
 
+    @Autowired
+    ResourceMemoInterceptor resourceMemoInterceptor;
+
+    @Autowired
+    NanuqReindexProvider nanuqReindexProvider;
+
+    @Autowired
+    NanuqSearchProvider nanuqSearchProvider;
+
     @Autowired
     BioAuthInterceptor bioAuthInterceptor;
 
@@ -415,6 +426,7 @@ public class BaseJpaRestfulServer extends RestfulServer {
 
         // CLIN
         daoConfig.setEnforceReferentialIntegrityOnWrite(false);
+        registerInterceptor(resourceMemoInterceptor);
         registerInterceptor(fieldValidatorInterceptor);
         registerInterceptor(validationInterceptor);
         
@@ -434,6 +446,8 @@ public class BaseJpaRestfulServer extends RestfulServer {
 
         if (bioProperties.isBioEsEnabled()) {
             registerInterceptor(indexerInterceptor);
+            registerProvider(nanuqReindexProvider);
+            registerProvider(nanuqSearchProvider);
         }
 
         if (bioProperties.isAuthEnabled()) {
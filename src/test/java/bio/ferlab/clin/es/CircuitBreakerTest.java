@@ -0,0 +1,50 @@
+package bio.ferlab.clin.es;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+
+  private final AtomicLong now = new AtomicLong(0);
+  private final CircuitBreaker breaker = new CircuitBreaker(2, 1000, now::get);
+
+  @Test
+  void open_after_consecutive_failures() {
+    breaker.onFailure();
+    breaker.onSuccess();
+    breaker.onFailure();
+    assertTrue(breaker.allowRequest());
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.open, breaker.getState());
+    assertFalse(breaker.allowRequest());
+  }
+
+  @Test
+  void half_open_after_duration() {
+    breaker.onFailure();
+    breaker.onFailure();
+    now.set(1000);
+    assertTrue(breaker.allowRequest());
+    // only one trial
+    assertFalse(breaker.allowRequest());
+    breaker.onFailure();
+    assertEquals(CircuitBreaker.State.open, breaker.getState());
+    now.set(2000);
+    assertTrue(breaker.allowRequest());
+    breaker.onSuccess();
+    assertEquals(CircuitBreaker.State.closed, breaker.getState());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  void disabled() {
+    final CircuitBreaker disabled = new CircuitBreaker(0, 1000, now::get);
+    for (int i = 0; i < 10; i++) {
+      disabled.onFailure();
+    }
+    assertTrue(disabled.allowRequest());
+  }
+}
@@ -1,22 +1,50 @@
 package bio.ferlab.clin.es;
 
+import bio.ferlab.clin.es.ElasticsearchRestClient.BulkAction;
+import bio.ferlab.clin.es.ElasticsearchRestClient.BulkResult;
 import bio.ferlab.clin.es.ElasticsearchRestClient.IndexData;
 import bio.ferlab.clin.es.data.ElasticsearchData;
+import bio.ferlab.clin.es.journal.ElasticsearchJournal;
 import bio.ferlab.clin.utils.JsonGenerator;
 import ca.uhn.fhir.context.FhirContext;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicRequestLine;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestClient;
 import org.hl7.fhir.r4.model.Enumerations;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Patient;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+import static bio.ferlab.clin.es.ElasticsearchRestClient.FAILED_TO_BULK_RESOURCES;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 public class ElasticsearchRestClientTest {
@@ -50,7 +78,7 @@ public class ElasticsearchRestClientTest {
         this.patient.setId(IdType.newRandomUuid());
 
         this.jsonGenerator = new JsonGenerator(FhirContext.forR4());
-        this.elasticsearchRestClient = new ElasticsearchRestClient(new ElasticsearchData(this.client, "localhost"), jsonGenerator);
+        this.elasticsearchRestClient = new ElasticsearchRestClient(new ElasticsearchData(this.client, "localhost"), jsonGenerator, 2, 1024 * 1024, 2);
     }
 
     @Nested
@@ -77,6 +105,17 @@ public class ElasticsearchRestClientTest {
                 verify(client, times(1))
                         .performRequest(any());
             }
+
+            @Test
+            @DisplayName("Should send the external version")
+            public void shouldSendVersion() throws IOException {
+                final IndexData data = new IndexData(patient.getIdElement().getIdPart(), jsonGenerator.toString(patient).getBytes(StandardCharsets.UTF_8), 42L);
+                elasticsearchRestClient.index(INDEX_NAME, data);
+                final ArgumentCaptor<Request> requestCaptor = ArgumentCaptor.forClass(Request.class);
+                verify(client).performRequest(requestCaptor.capture());
+                assertEquals("42", requestCaptor.getValue().getParameters().get("version"));
+                assertEquals("external_gte", requestCaptor.getValue().getParameters().get("version_type"));
+            }
         }
 
 
@@ -99,9 +138,373 @@ public class ElasticsearchRestClientTest {
                         .performRequest(any());
             }
         }
+
+        @Nested
+        @DisplayName("ElasticsearchRestClient::Bulk function")
+        class Bulk {
+            @Test
+            @DisplayName("Should split actions by max actions")
+            public void shouldSplitByMaxActions() throws IOException {
+                final Response response = mock(Response.class);
+                when(response.getEntity()).thenReturn(new StringEntity("{\"errors\":false,\"items\":[{\"index\":{\"_id\":\"1\",\"status\":201}}]}"));
+                when(client.performRequest(any())).thenReturn(response);
+
+                final BulkResult result = elasticsearchRestClient.bulk(List.of(
+                        BulkAction.index(INDEX_NAME, new IndexData("1", "{}")),
+                        BulkAction.index(INDEX_NAME, new IndexData("2", "{}")),
+                        BulkAction.delete(INDEX_NAME, "3")));
+
+                final ArgumentCaptor<Request> requestCaptor = ArgumentCaptor.forClass(Request.class);
+                verify(client, times(2)).performRequest(requestCaptor.capture());
+                assertEquals("/_bulk", requestCaptor.getValue().getEndpoint());
+                assertEquals("{\"delete\":{\"_index\":\"test\",\"_id\":\"3\"}}\n",
+                        new String(requestCaptor.getValue().getEntity().getContent().readAllBytes()));
+                assertEquals(2, result.getSucceeded());
+                assertFalse(result.hasFailures());
+            }
+
+            @Test
+            @DisplayName("Should return failed items")
+            public void shouldReturnFailures() throws IOException {
+                final Response response = mock(Response.class);
+                when(response.getEntity()).thenReturn(new StringEntity("{\"errors\":true,\"items\":[" +
+                        "{\"index\":{\"_index\":\"test\",\"_id\":\"1\",\"status\":201}}," +
+                        "{\"index\":{\"_index\":\"test\",\"_id\":\"2\",\"status\":400,\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}}}]}"));
+                when(client.performRequest(any())).thenReturn(response);
+
+                final BulkResult result = elasticsearchRestClient.bulk(List.of(
+                        BulkAction.index(INDEX_NAME, new IndexData("1", "{}")),
+                        BulkAction.index(INDEX_NAME, new IndexData("2", "{}"))));
+
+                assertEquals(1, result.getSucceeded());
+                assertTrue(result.hasFailures());
+                assertEquals("2", result.getFailures().get(0).getId());
+                assertEquals(400, result.getFailures().get(0).getStatus());
+            }
+
+            @Test
+            @DisplayName("Should send external versions and count stale writes")
+            public void shouldRejectStaleVersions() throws IOException {
+                final Response response = mock(Response.class);
+                when(response.getEntity()).thenReturn(new StringEntity("{\"errors\":true,\"items\":[" +
+                        "{\"index\":{\"_index\":\"test\",\"_id\":\"1\",\"status\":201}}," +
+                        "{\"index\":{\"_index\":\"test\",\"_id\":\"2\",\"status\":409,\"error\":{\"type\":\"version_conflict_engine_exception\",\"reason\":\"current version [5] is higher\"}}}]}"));
+                when(client.performRequest(any())).thenReturn(response);
+
+                final BulkResult result = elasticsearchRestClient.bulk(List.of(
+                        BulkAction.index(INDEX_NAME, new IndexData("1", "{}".getBytes(StandardCharsets.UTF_8), 10L)),
+                        BulkAction.index(INDEX_NAME, new IndexData("2", "{}".getBytes(StandardCharsets.UTF_8), 4L))));
+
+                final ArgumentCaptor<Request> requestCaptor = ArgumentCaptor.forClass(Request.class);
+                verify(client).performRequest(requestCaptor.capture());
+                assertTrue(new String(requestCaptor.getValue().getEntity().getContent().readAllBytes())
+                        .startsWith("{\"index\":{\"_index\":\"test\",\"_id\":\"1\",\"version\":10,\"version_type\":\"external_gte\"}}\n"));
+                assertEquals(1, result.getSucceeded());
+                assertEquals(1, result.getRejected());
+                assertFalse(result.hasFailures());
+                assertEquals(1, elasticsearchRestClient.getVersionConflicts());
+            }
+
+            @Test
+            @DisplayName("Should send the external version of the deletes")
+            public void shouldVersionDeletes() throws IOException {
+                final Response response = mock(Response.class);
+                when(response.getEntity()).thenReturn(new StringEntity("{\"errors\":false,\"items\":[" +
+                        "{\"delete\":{\"_index\":\"test\",\"_id\":\"1\",\"status\":404,\"result\":\"not_found\"}}]}"));
+                when(client.performRequest(any())).thenReturn(response);
+
+                final BulkResult result = elasticsearchRestClient.bulk(List.of(BulkAction.delete(INDEX_NAME, "1", 10L)));
+
+                final ArgumentCaptor<Request> requestCaptor = ArgumentCaptor.forClass(Request.class);
+                verify(client).performRequest(requestCaptor.capture());
+                assertEquals("{\"delete\":{\"_index\":\"test\",\"_id\":\"1\",\"version\":10,\"version_type\":\"external_gte\"}}\n",
+                        new String(requestCaptor.getValue().getEntity().getContent().readAllBytes()));
+                assertEquals(1, result.getSucceeded());
+            }
+        }
+
+        @Nested
+        @DisplayName("ElasticsearchRestClient::BulkAsync function")
+        class BulkAsync {
+            @Test
+            @DisplayName("Should send the split requests without blocking and merge the results")
+            public void shouldMergeResults() throws IOException {
+                final Response response = mock(Response.class);
+                when(response.getEntity()).thenAnswer(i -> new StringEntity("{\"errors\":false,\"items\":[{\"index\":{\"_id\":\"1\",\"status\":201}}]}"));
+                doAnswer(i -> {
+                    i.getArgument(1, ResponseListener.class).onSuccess(response);
+                    return null;
+                }).when(client).performRequestAsync(any(), any());
+
+                final BulkResult result = elasticsearchRestClient.bulkAsync(List.of(
+                        BulkAction.index(INDEX_NAME, new IndexData("1", "{}")),
+                        BulkAction.index(INDEX_NAME, new IndexData("2", "{}")),
+                        BulkAction.delete(INDEX_NAME, "3"))).join();
+
+                verify(client, times(2)).performRequestAsync(any(), any());
+                verify(client, never()).performRequest(any());
+                assertEquals(2, result.getSucceeded());
+            }
+
+            @Test
+            @DisplayName("Should queue the requests over the in-flight limit instead of blocking the caller")
+            public void shouldQueueOverInFlightLimit() throws IOException {
+                final Response response = mock(Response.class);
+                when(response.getEntity()).thenAnswer(i -> new StringEntity("{\"errors\":false,\"items\":[{\"index\":{\"_id\":\"1\",\"status\":201}}]}"));
+                final List<ResponseListener> listeners = new ArrayList<>();
+                doAnswer(i -> {
+                    listeners.add(i.getArgument(1, ResponseListener.class));
+                    return null;
+                }).when(client).performRequestAsync(any(), any());
+
+                final CompletableFuture<BulkResult> future = elasticsearchRestClient.bulkAsync(List.of(
+                        BulkAction.delete(INDEX_NAME, "1"), BulkAction.delete(INDEX_NAME, "2"),
+                        BulkAction.delete(INDEX_NAME, "3"), BulkAction.delete(INDEX_NAME, "4"),
+                        BulkAction.delete(INDEX_NAME, "5")));
+
+                // 3 requests, 2 in flight
+                verify(client, times(2)).performRequestAsync(any(), any());
+                listeners.get(0).onSuccess(response);
+                verify(client, times(3)).performRequestAsync(any(), any());
+                listeners.get(1).onSuccess(response);
+                assertFalse(future.isDone());
+                listeners.get(2).onSuccess(response);
+                assertEquals(3, future.join().getSucceeded());
+            }
+
+            @Test
+            @DisplayName("Should complete exceptionally if ES fails")
+            public void shouldFail() {
+                doAnswer(i -> {
+                    i.getArgument(1, ResponseListener.class).onFailure(new IOException("ES down"));
+                    return null;
+                }).when(client).performRequestAsync(any(), any());
+
+                final CompletionException e = assertThrows(CompletionException.class, () -> elasticsearchRestClient.bulkAsync(List.of(
+                        BulkAction.delete(INDEX_NAME, "3"))).join());
+                assertEquals(FAILED_TO_BULK_RESOURCES, e.getCause().getMessage());
+            }
+        }
+
+        @Nested
+        @DisplayName("ElasticsearchRestClient::GetFieldValues function")
+        class GetFieldValues {
+            @Test
+            @DisplayName("Should return the field of the found documents")
+            public void shouldReturnFoundValues() throws IOException {
+                final Response response = mock(Response.class);
+                when(response.getEntity()).thenReturn(new StringEntity("{\"docs\":[" +
+                        "{\"_id\":\"1\",\"found\":true,\"_source\":{\"fingerprint\":\"abc\"}}," +
+                        "{\"_id\":\"2\",\"found\":false}]}"));
+                when(client.performRequest(any())).thenReturn(response);
+
+                final Map<String, String> values = elasticsearchRestClient.getFieldValues(INDEX_NAME, List.of("1", "2"), "fingerprint");
+
+                final ArgumentCaptor<Request> requestCaptor = ArgumentCaptor.forClass(Request.class);
+                verify(client).performRequest(requestCaptor.capture());
+                assertEquals("/test/_mget", requestCaptor.getValue().getEndpoint());
+                assertEquals(Map.of("1", "abc"), values);
+            }
+        }
+
+        @Nested
+        @DisplayName("ElasticsearchRestClient::search function")
+        class Search {
+            @Test
+            @DisplayName("Should return the ids of the hits and the total")
+            public void shouldReturnIds() throws IOException {
+                final Response response = mock(Response.class);
+                when(response.getEntity()).thenReturn(new StringEntity("{\"hits\":{\"total\":{\"value\":12,\"relation\":\"eq\"}," +
+                        "\"hits\":[{\"_id\":\"2\"},{\"_id\":\"1\"}]}}"));
+                when(client.performRequest(any())).thenReturn(response);
+
+                final ElasticsearchRestClient.SearchResult result = elasticsearchRestClient.search(INDEX_NAME, Map.of("size", 2));
+
+                final ArgumentCaptor<Request> requestCaptor = ArgumentCaptor.forClass(Request.class);
+                verify(client).performRequest(requestCaptor.capture());
+                assertEquals("/test/_search", requestCaptor.getValue().getEndpoint());
+                assertEquals("false", requestCaptor.getValue().getParameters().get("_source"));
+                assertEquals(12, result.getTotal());
+                assertEquals(List.of("2", "1"), result.getIds());
+            }
+
+            @Test
+            @DisplayName("Should return the counts of the terms aggregations")
+            public void shouldReturnCounts() throws IOException {
+                final Response response = mock(Response.class);
+                when(response.getEntity()).thenReturn(new StringEntity("{\"hits\":{\"total\":{\"value\":3},\"hits\":[]}," +
+                        "\"aggregations\":{\"status\":{\"buckets\":[{\"key\":\"active\",\"doc_count\":2},{\"key\":\"draft\",\"doc_count\":1}]}," +
+                        "\"ldm\":{\"buckets\":[]}}}"));
+                when(client.performRequest(any())).thenReturn(response);
+
+                final ElasticsearchRestClient.AggregationResult result = elasticsearchRestClient.termsAggregations(INDEX_NAME,
+                        Map.of("match_all", Map.of()), List.of("status", "ldm"), 10);
+
+                assertEquals(3, result.getTotal());
+                assertEquals(Map.of("active", 2L, "draft", 1L), result.getCounts().get("status"));
+                assertEquals(Map.of(), result.getCounts().get("ldm"));
+            }
+
+            @Test
+            @DisplayName("Should return the count and sum by range")
+            public void shouldReturnRangeSums() throws IOException {
+                final Response response = mock(Response.class);
+                when(response.getEntity()).thenReturn(new StringEntity("{\"hits\":{\"total\":{\"value\":3},\"hits\":[]}," +
+                        "\"aggregations\":{\"id_hash\":{\"buckets\":[{\"from\":0.0,\"to\":10.0,\"doc_count\":2,\"version_hash\":{\"value\":2.147483647E9}}," +
+                        "{\"from\":10.0,\"to\":20.0,\"doc_count\":0,\"version_hash\":{\"value\":0.0}}]}}}"));
+                when(client.performRequest(any())).thenReturn(response);
+
+                final List<ElasticsearchRestClient.RangeSum> sums = elasticsearchRestClient.rangeSums(INDEX_NAME, "id_hash", List.of(0L, 10L, 20L), "version_hash");
+
+                assertEquals(2, sums.size());
+                assertEquals(2, sums.get(0).getCount());
+                assertEquals(2147483647L, sums.get(0).getSum());
+                assertEquals(10, sums.get(1).getFrom());
+                assertEquals(0, sums.get(1).getCount());
+            }
+        }
+
+        @Nested
+        @DisplayName("ElasticsearchRestClient::updateSettings function")
+        class UpdateSettings {
+            @Test
+            @DisplayName("Should send the settings with null values to reset them")
+            public void shouldSendNullSettings() throws IOException {
+                final Map<String, Object> settings = new HashMap<>();
+                settings.put("refresh_interval", null);
+                elasticsearchRestClient.updateSettings(INDEX_NAME, settings);
+
+                final ArgumentCaptor<Request> requestCaptor = ArgumentCaptor.forClass(Request.class);
+                verify(client).performRequest(requestCaptor.capture());
+                assertEquals("/test/_settings", requestCaptor.getValue().getEndpoint());
+                assertEquals("{\"index\":{\"refresh_interval\":null}}", EntityUtils.toString(requestCaptor.getValue().getEntity()));
+            }
+        }
     }
 
 
+    @Nested
+    @DisplayName("ES unavailable")
+    class Unavailable {
+        @TempDir
+        Path dir;
+
+        private ElasticsearchRestClient clientWithJournal;
+
+        @BeforeEach
+        public void setup() {
+            final ElasticsearchJournal journal = new ElasticsearchJournal(dir.resolve("journal"), 1024 * 1024);
+            this.clientWithJournal = new ElasticsearchRestClient(new ElasticsearchData(client, "localhost"), jsonGenerator, 2, 1024 * 1024, 2,
+                    new CircuitBreaker(1, 60000), journal);
+        }
+
+        @Test
+        @DisplayName("Should journal the writes and replay them in order")
+        public void shouldJournalAndReplay() throws IOException {
+            when(client.performRequest(any())).thenThrow(new ConnectException("refused"));
+
+            final BulkResult result = clientWithJournal.bulk(List.of(
+                    BulkAction.index(INDEX_NAME, new IndexData("1", "{}")),
+                    BulkAction.index(INDEX_NAME, new IndexData("2", "{}")),
+                    BulkAction.delete(INDEX_NAME, "3")));
+            clientWithJournal.delete(INDEX_NAME, "4");
+
+            // the breaker is open after the first failure, nothing else is sent
+            verify(client, times(1)).performRequest(any());
+            assertEquals(3, result.getSpilled());
+            assertFalse(result.hasFailures());
+            assertEquals(CircuitBreaker.State.open, clientWithJournal.getBreakerState());
+            assertEquals(0, clientWithJournal.replayJournal());
+            Assertions.assertThrows(ca.uhn.fhir.rest.server.exceptions.InternalErrorException.class,
+                    () -> clientWithJournal.getFieldValues(INDEX_NAME, List.of("1"), "fingerprint"));
+        }
+
+        @Test
+        @DisplayName("Should replay the journal once ES is back")
+        public void shouldReplayWhenBack() throws IOException {
+            final Response response = mock(Response.class);
+            when(response.getEntity()).thenReturn(new StringEntity("{\"errors\":false,\"items\":[{\"index\":{\"_id\":\"1\",\"status\":201}}]}"));
+            when(client.performRequest(any())).thenThrow(new ConnectException("refused")).thenReturn(response);
+            final ElasticsearchRestClient fastRetry = new ElasticsearchRestClient(new ElasticsearchData(client, "localhost"), jsonGenerator, 2,
+                    1024 * 1024, 2, new CircuitBreaker(1, 0), new ElasticsearchJournal(dir.resolve("retry"), 1024 * 1024));
+
+            fastRetry.index(INDEX_NAME, new IndexData("1", "{}"));
+            fastRetry.delete(INDEX_NAME, "2");
+            fastRetry.delete(INDEX_NAME, "3");
+
+            assertEquals(3, fastRetry.replayJournal());
+            final ArgumentCaptor<Request> requestCaptor = ArgumentCaptor.forClass(Request.class);
+            verify(client, times(3)).performRequest(requestCaptor.capture());
+            assertEquals("/_bulk", requestCaptor.getAllValues().get(1).getEndpoint());
+            assertEquals("{\"index\":{\"_index\":\"test\",\"_id\":\"1\"}}\n{}\n{\"delete\":{\"_index\":\"test\",\"_id\":\"2\"}}\n",
+                    new String(requestCaptor.getAllValues().get(1).getEntity().getContent().readAllBytes()));
+            assertEquals(CircuitBreaker.State.closed, fastRetry.getBreakerState());
+            // the journal is empty, the writes go to ES again
+            fastRetry.delete(INDEX_NAME, "5");
+            verify(client, times(4)).performRequest(any());
+        }
+
+        @Test
+        @DisplayName("Should journal the index and delete answered by 429 or 5xx")
+        public void shouldJournalOverloadedWrites() throws IOException {
+            final ResponseException unavailable = responseException(503);
+            final ResponseException tooManyRequests = responseException(429);
+            when(client.performRequest(any())).thenThrow(unavailable).thenThrow(tooManyRequests);
+            final ElasticsearchRestClient fastRetry = new ElasticsearchRestClient(new ElasticsearchData(client, "localhost"), jsonGenerator, 2,
+                    1024 * 1024, 2, new CircuitBreaker(1, 0), new ElasticsearchJournal(dir.resolve("writes"), 1024 * 1024));
+
+            fastRetry.delete(INDEX_NAME, "1");
+            // the journal isn't empty anymore, journaled without being sent
+            fastRetry.index(INDEX_NAME, new IndexData("2", "{}"));
+            verify(client, times(1)).performRequest(any());
+
+            final ElasticsearchRestClient overloaded = new ElasticsearchRestClient(new ElasticsearchData(client, "localhost"), jsonGenerator, 2,
+                    1024 * 1024, 2, new CircuitBreaker(1, 0), new ElasticsearchJournal(dir.resolve("index"), 1024 * 1024));
+            overloaded.index(INDEX_NAME, new IndexData("3", "{}"));
+            verify(client, times(2)).performRequest(any());
+        }
+
+        @Test
+        @DisplayName("Should fail the delete answered by 400")
+        public void shouldFailRejectedDelete() throws IOException {
+            final ResponseException badRequest = responseException(400);
+            when(client.performRequest(any())).thenThrow(badRequest);
+
+            assertThrows(ca.uhn.fhir.rest.server.exceptions.InternalErrorException.class, () -> clientWithJournal.delete(INDEX_NAME, "1"));
+            assertEquals(0, clientWithJournal.replayJournal());
+        }
+
+        @Test
+        @DisplayName("Should keep the journal when ES is overloaded and drop it when rejected")
+        public void shouldRetryOverloaded() throws IOException {
+            final Response response = mock(Response.class);
+            when(response.getEntity()).thenReturn(new StringEntity("{\"errors\":false,\"items\":[{\"delete\":{\"_id\":\"1\",\"status\":200}}]}"));
+            when(client.performRequest(any())).thenThrow(new ConnectException("refused"))
+                    .thenThrow(responseException(503)).thenThrow(responseException(429)).thenThrow(responseException(400));
+            final ElasticsearchRestClient fastRetry = new ElasticsearchRestClient(new ElasticsearchData(client, "localhost"), jsonGenerator, 2,
+                    1024 * 1024, 2, new CircuitBreaker(1, 0), new ElasticsearchJournal(dir.resolve("overloaded"), 1024 * 1024));
+            fastRetry.delete(INDEX_NAME, "1");
+
+            // 5xx and 429 open the breaker and keep the actions
+            assertEquals(0, fastRetry.replayJournal());
+            assertEquals(CircuitBreaker.State.open, fastRetry.getBreakerState());
+            assertEquals(0, fastRetry.replayJournal());
+            // 4xx can't succeed later
+            assertEquals(1, fastRetry.replayJournal());
+            assertEquals(CircuitBreaker.State.closed, fastRetry.getBreakerState());
+            assertEquals(0, fastRetry.replayJournal());
+            verify(client, times(4)).performRequest(any());
+        }
+    }
+
+    private static ResponseException responseException(int status) throws IOException {
+        final Response response = mock(Response.class);
+        when(response.getRequestLine()).thenReturn(new BasicRequestLine("POST", "/_bulk", HttpVersion.HTTP_1_1));
+        when(response.getHost()).thenReturn(new HttpHost("localhost"));
+        when(response.getStatusLine()).thenReturn(new BasicStatusLine(HttpVersion.HTTP_1_1, status, ""));
+        return new ResponseException(response);
+    }
+
     @Nested
     @DisplayName("Invalid request")
     class InvalidRequest {
@@ -0,0 +1,110 @@
+package bio.ferlab.clin.es;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class KeysetPagerTest {
+
+  final IFhirResourceDao<ServiceRequest> serviceRequestDao = Mockito.mock(IFhirResourceDao.class);
+  final ResourceKeys resourceKeys = Mockito.mock(ResourceKeys.class);
+
+  @BeforeEach
+  void beforeEach() {
+    when(serviceRequestDao.getResourceType()).thenReturn(ServiceRequest.class);
+  }
+
+  private ServiceRequest serviceRequest(String id, long lastUpdated) {
+    final ServiceRequest serviceRequest = new ServiceRequest();
+    serviceRequest.setId(id);
+    serviceRequest.getMeta().setLastUpdated(new Date(lastUpdated));
+    return serviceRequest;
+  }
+
+  private ResourceKeys.Key key(ServiceRequest serviceRequest, long pid) {
+    return new ResourceKeys.Key(serviceRequest.getMeta().getLastUpdated(), pid, serviceRequest.getIdElement().getIdPart());
+  }
+
+  private List<String> ids(List<ServiceRequest> page) {
+    return page.stream().map(r -> r.getIdElement().getIdPart()).collect(Collectors.toList());
+  }
+
+  @Test
+  void continue_after_the_last_key() {
+    final ServiceRequest a = serviceRequest("a", 1000);
+    final ServiceRequest b = serviceRequest("b", 1000);
+    final ServiceRequest c = serviceRequest("c", 1000);
+    final ServiceRequest d = serviceRequest("d", 2000);
+    when(resourceKeys.next(eq("ServiceRequest"), any(), any(), eq(2)))
+      .thenReturn(List.of(key(a, 1), key(b, 2)))
+      .thenReturn(List.of(key(c, 3), key(d, 4)))
+      .thenReturn(List.of());
+    // in any order, the page keeps the order of the keys
+    when(serviceRequestDao.search(any()))
+      .thenReturn(new SimpleBundleProvider(List.of(b, a)))
+      .thenReturn(new SimpleBundleProvider(List.of(d, c)));
+
+    final KeysetPager<ServiceRequest> pager = new KeysetPager<>(resourceKeys, serviceRequestDao, 2, new Date(500));
+
+    assertEquals(List.of("a", "b"), ids(pager.next()));
+    assertEquals(List.of("c", "d"), ids(pager.next()));
+    assertEquals(new Date(2000), pager.getCursor());
+    assertEquals(List.of(), ids(pager.next()));
+    assertEquals(List.of(), ids(pager.next()));
+
+    // the group at 1000 continues after b, the pid breaks the tie
+    final ArgumentCaptor<ResourceKeys.Key> cursors = ArgumentCaptor.forClass(ResourceKeys.Key.class);
+    verify(resourceKeys, times(3)).next(any(), cursors.capture(), any(), anyInt());
+    assertEquals(new Date(500), cursors.getAllValues().get(0).getLastUpdated());
+    assertEquals(Long.MIN_VALUE, cursors.getAllValues().get(0).getPid());
+    assertEquals(2, cursors.getAllValues().get(1).getPid());
+    assertEquals(4, cursors.getAllValues().get(2).getPid());
+    verify(serviceRequestDao, times(2)).search(any());
+  }
+
+  @Test
+  void stop_on_last_page() {
+    final ServiceRequest a = serviceRequest("a", 1000);
+    when(resourceKeys.next(any(), any(), any(), anyInt())).thenReturn(List.of(key(a, 1)));
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(a)));
+
+    final KeysetPager<ServiceRequest> pager = new KeysetPager<>(resourceKeys, serviceRequestDao, 2, null);
+
+    assertEquals(List.of("a"), ids(pager.next()));
+    assertEquals(List.of(), ids(pager.next()));
+    verify(resourceKeys, times(1)).next(any(), isNull(), any(), anyInt());
+    verify(serviceRequestDao, times(1)).search(any());
+  }
+
+  @Test
+  void skip_pages_without_resources() {
+    final ServiceRequest a = serviceRequest("a", 1000);
+    final ServiceRequest b = serviceRequest("b", 2000);
+    // a excluded by the filter or deleted since its key was read
+    when(resourceKeys.next(any(), any(), any(), anyInt()))
+      .thenReturn(List.of(key(a, 1)))
+      .thenReturn(List.of(key(b, 2)))
+      .thenReturn(List.of());
+    when(serviceRequestDao.search(any()))
+      .thenReturn(new SimpleBundleProvider())
+      .thenReturn(new SimpleBundleProvider(List.of(b)));
+
+    final KeysetPager<ServiceRequest> pager = new KeysetPager<>(resourceKeys, serviceRequestDao, 1, null);
+
+    assertEquals(List.of("b"), ids(pager.next()));
+    assertEquals(List.of(), ids(pager.next()));
+  }
+}
@@ -1,25 +1,34 @@
 package bio.ferlab.clin.es;
 
 import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.es.indexer.NanuqCatchUp;
 import bio.ferlab.clin.es.indexer.NanuqIndexer;
+import bio.ferlab.clin.es.indexer.PatientIndexer;
 import bio.ferlab.clin.properties.BioProperties;
+import bio.ferlab.clin.utils.JsonGenerator;
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.SimpleBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Person;
 import org.hl7.fhir.r4.model.ServiceRequest;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 import static bio.ferlab.clin.es.TemplateIndexer.ANALYSES_TEMPLATE;
+import static bio.ferlab.clin.es.TemplateIndexer.PATIENTS_TEMPLATE;
 import static bio.ferlab.clin.es.TemplateIndexer.SEQUENCINGS_TEMPLATE;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
@@ -29,19 +38,63 @@ class MigrationManagerTest {
   private final BioProperties bioProperties = Mockito.mock(BioProperties.class);
   private final ElasticsearchRestClient esClient = Mockito.mock(ElasticsearchRestClient.class);
   private final NanuqIndexer nanuqIndexer = Mockito.mock(NanuqIndexer.class);
+  private final PatientIndexer patientIndexer = Mockito.mock(PatientIndexer.class);
   final IFhirResourceDao<ServiceRequest> serviceRequestDao = Mockito.mock(IFhirResourceDao.class);
-  final ResourceDaoConfiguration daoConfiguration = new ResourceDaoConfiguration(null, null, serviceRequestDao, null, null
-    , null, null, null, null, null, null, null);
+  final IFhirResourceDao<Patient> patientDao = Mockito.mock(IFhirResourceDao.class);
+  final IFhirResourceDao<Person> personDao = Mockito.mock(IFhirResourceDao.class);
+  final IFhirResourceDao<Group> groupDao = Mockito.mock(IFhirResourceDao.class);
+  final ResourceDaoConfiguration daoConfiguration = new ResourceDaoConfiguration(patientDao, personDao, serviceRequestDao, null, null
+    , null, null, null, groupDao, null, null, null);
 
-  private final MigrationManager migrationManager = new MigrationManager(templateIndexer, bioProperties, esClient, nanuqIndexer, daoConfiguration);
+  private final ResourceKeys resourceKeys = Mockito.mock(ResourceKeys.class);
+  // resources by type, their keys are returned by the ranges of the pagers
+  private final Map<String, List<IBaseResource>> db = new HashMap<>();
+
+  private final ReindexCheckpoint checkpoint = Mockito.mock(ReindexCheckpoint.class);
+  private final MigrationLock migrationLock = Mockito.mock(MigrationLock.class);
+  private final NanuqCatchUp nanuqCatchUp = Mockito.mock(NanuqCatchUp.class);
+
+  private final MigrationManager migrationManager = new MigrationManager(templateIndexer, bioProperties, esClient, nanuqIndexer, daoConfiguration,
+    resourceKeys, checkpoint, patientIndexer, migrationLock, nanuqCatchUp);
 
   @BeforeEach
   void beforeEach() {
     when(bioProperties.getNanuqReindex()).thenReturn(MigrationManager.Type.hash);
     when(bioProperties.getNanuqEsAnalysesIndex()).thenReturn("analyses");
     when(bioProperties.getNanuqEsSequencingsIndex()).thenReturn("sequencings");
+    when(bioProperties.getNanuqReindexBatchSize()).thenReturn(100);
+    when(migrationLock.tryLock()).thenReturn(true);
+    when(migrationLock.isHeld()).thenReturn(true);
+    when(serviceRequestDao.getResourceType()).thenReturn(ServiceRequest.class);
+    when(patientDao.getResourceType()).thenReturn(Patient.class);
+    when(personDao.getResourceType()).thenReturn(Person.class);
+    when(groupDao.getResourceType()).thenReturn(Group.class);
+    when(resourceKeys.next(any(), any(), any(), anyInt())).thenAnswer(i -> keys(i.getArgument(0), i.getArgument(1), i.getArgument(2)));
+  }
+
+  private void db(IBaseResource... resources) {
+    for (IBaseResource resource : resources) {
+      db.computeIfAbsent(resource.fhirType(), t -> new ArrayList<>()).add(resource);
+    }
   }
 
+  private List<ResourceKeys.Key> keys(String resourceType, ResourceKeys.Key after, Date until) {
+    final List<IBaseResource> resources = db.getOrDefault(resourceType, List.of());
+    final List<ResourceKeys.Key> keys = new ArrayList<>();
+    for (int pid = 0; pid < resources.size(); pid++) {
+      final Date lastUpdated = Optional.ofNullable(resources.get(pid).getMeta().getLastUpdated()).orElse(new Date(0));
+      final ResourceKeys.Key key = new ResourceKeys.Key(lastUpdated, pid, resources.get(pid).getIdElement().getIdPart());
+      if ((after == null || KEY_ORDER.compare(key, after) > 0) && (until == null || lastUpdated.before(until))) {
+        keys.add(key);
+      }
+    }
+    keys.sort(KEY_ORDER);
+    return keys;
+  }
+
+  private static final Comparator<ResourceKeys.Key> KEY_ORDER = Comparator.comparing(ResourceKeys.Key::getLastUpdated)
+    .thenComparingLong(ResourceKeys.Key::getPid);
+
   @Test
   void reindex() {
     when(bioProperties.getNanuqReindex()).thenReturn(MigrationManager.Type.always);
@@ -55,6 +108,7 @@ class MigrationManagerTest {
     sr2.setId("sr2");
     final SimpleBundleProvider bundleProvider1 = new SimpleBundleProvider(List.of(sr1, sr2));
     final SimpleBundleProvider bundleProvider2 = new SimpleBundleProvider();
+    db(sr1, sr2);
     when(serviceRequestDao.search(any())).thenReturn(bundleProvider1).thenReturn(bundleProvider2);
 
     migrationManager.startMigration();
@@ -90,6 +144,7 @@ class MigrationManagerTest {
     sr2.setId("sr2");
     final SimpleBundleProvider bundleProvider1 = new SimpleBundleProvider(List.of(sr1, sr2));
     final SimpleBundleProvider bundleProvider2 = new SimpleBundleProvider();
+    db(sr1, sr2);
     when(serviceRequestDao.search(any())).thenReturn(bundleProvider1).thenReturn(bundleProvider2);
 
     migrationManager.startMigration();
@@ -115,6 +170,7 @@ class MigrationManagerTest {
     sr2.setId("sr2");
     final SimpleBundleProvider bundleProvider1 = new SimpleBundleProvider(List.of(sr1, sr2));
     final SimpleBundleProvider bundleProvider2 = new SimpleBundleProvider();
+    db(sr1, sr2);
     when(serviceRequestDao.search(any())).thenReturn(bundleProvider1).thenReturn(bundleProvider2);
 
     migrationManager.startMigration();
@@ -140,6 +196,7 @@ class MigrationManagerTest {
     sr2.setId("sr2");
     final SimpleBundleProvider bundleProvider1 = new SimpleBundleProvider(List.of(sr1, sr2));
     final SimpleBundleProvider bundleProvider2 = new SimpleBundleProvider();
+    db(sr1, sr2);
     when(serviceRequestDao.search(any())).thenReturn(bundleProvider1).thenReturn(bundleProvider2);
 
     migrationManager.startMigration();
@@ -152,4 +209,228 @@ class MigrationManagerTest {
     verify(esClient).delete(eq(List.of("analyses", "sequencings")));
     verify(esClient).delete(eq(List.of("analyses-HASH1", "sequencings-HASH1")));
   }
-}
\ No newline at end of file
+
+  @Test
+  void reindex_partitions() {
+    when(bioProperties.getNanuqReindex()).thenReturn(MigrationManager.Type.always);
+    when(bioProperties.getNanuqReindexPartitions()).thenReturn(2);
+    when(bioProperties.getNanuqReindexWorkers()).thenReturn(1);
+
+    when(templateIndexer.indexTemplates()).thenReturn(Map.of(ANALYSES_TEMPLATE, "HASH1", SEQUENCINGS_TEMPLATE, "HASH1"));
+    when(esClient.aliases()).thenReturn(Map.of());
+
+    ServiceRequest sr1 = new ServiceRequest();
+    sr1.setId("sr1");
+    sr1.getMeta().setLastUpdated(new Date(1000));
+    ServiceRequest sr2 = new ServiceRequest();
+    sr2.setId("sr2");
+    sr2.getMeta().setLastUpdated(new Date(3000));
+    db(sr1, sr2);
+    when(serviceRequestDao.search(any()))
+      .thenReturn(new SimpleBundleProvider(List.of(sr1)))  // min _lastUpdated
+      .thenReturn(new SimpleBundleProvider(List.of(sr2)))  // max _lastUpdated
+      .thenReturn(new SimpleBundleProvider(List.of(sr1)))  // first partition
+      .thenReturn(new SimpleBundleProvider(List.of(sr2))); // second partition
+
+    migrationManager.startMigration();
+
+    verify(serviceRequestDao, times(4)).search(any());
+    verify(nanuqIndexer).doIndex(eq(null), eq(Set.of("sr1")), eq("analyses"), eq("sequencings"), eq(false));
+    verify(nanuqIndexer).doIndex(eq(null), eq(Set.of("sr2")), eq("analyses"), eq("sequencings"), eq(false));
+  }
+
+  @Test
+  void resume_from_checkpoint() {
+    when(templateIndexer.indexTemplates()).thenReturn(Map.of(ANALYSES_TEMPLATE, "HASH2", SEQUENCINGS_TEMPLATE, "HASH1"));
+    when(esClient.aliases()).thenReturn(Map.of("analyses", "analyses-HASH1", "sequencings", "sequencings-HASH1"));
+
+    final ReindexCheckpoint.Partition done = new ReindexCheckpoint.Partition(0, null, new Date(2000), new Date(1000), 10, true);
+    final ReindexCheckpoint.Partition interrupted = new ReindexCheckpoint.Partition(1, new Date(2000), null, new Date(2500), 5, false);
+    when(checkpoint.load(eq("analyses-HASH2"), eq("sequencings-HASH1"), eq("HASH2,HASH1"))).thenReturn(List.of(done, interrupted));
+
+    ServiceRequest sr2 = new ServiceRequest();
+    sr2.setId("sr2");
+    sr2.getMeta().setLastUpdated(new Date(3000));
+    db(sr2);
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(sr2)));
+
+    migrationManager.startMigration();
+
+    verify(checkpoint, never()).start(any(), any(), any(), any(), any());
+    verify(serviceRequestDao, times(1)).search(any());
+    verify(nanuqIndexer, times(1)).doIndex(any(), any(), any(), any(), anyBoolean());
+    verify(nanuqIndexer).doIndex(eq(null), eq(Set.of("sr2")), eq("analyses-HASH2"), eq("sequencings-HASH1"), eq(false));
+    assertEquals(6, interrupted.getIndexed());
+    assertEquals(new Date(3000), interrupted.getCursor());
+    Assertions.assertTrue(interrupted.isCompleted());
+    verify(esClient).setAlias(eq(List.of("analyses-HASH2")), eq(List.of("*")), eq("analyses"));
+    verify(checkpoint).clear(eq("analyses-HASH2"), eq("sequencings-HASH1"));
+  }
+
+  @Test
+  void skip_if_migrated_by_another_replica() {
+    when(migrationLock.tryLock()).thenReturn(false);
+
+    migrationManager.startMigration();
+
+    verifyNoInteractions(templateIndexer, esClient, nanuqIndexer, checkpoint);
+    verify(migrationLock, never()).unlock();
+  }
+
+  @Test
+  void catch_up_before_publish() {
+    when(templateIndexer.indexTemplates()).thenReturn(Map.of(ANALYSES_TEMPLATE, "HASH2", SEQUENCINGS_TEMPLATE, "HASH1"));
+    when(esClient.aliases()).thenReturn(Map.of("analyses", "analyses-HASH1", "sequencings", "sequencings-HASH1"));
+    when(checkpoint.startedAt(eq("analyses-HASH2"), eq("sequencings-HASH1"), eq("HASH2,HASH1"))).thenReturn(Optional.of(new Date(5000)));
+    when(bioProperties.getNanuqCatchUpOverlap()).thenReturn(1000L);
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider());
+
+    migrationManager.startMigration();
+
+    // the writes of the other replicas since the start of the migration, then the ones made while publishing
+    final InOrder inOrder = inOrder(nanuqCatchUp, esClient, migrationLock);
+    inOrder.verify(nanuqCatchUp).reindex(eq(new Date(4000)), isNull());
+    inOrder.verify(esClient).setAlias(eq(List.of("analyses-HASH2")), eq(List.of("*")), eq("analyses"));
+    inOrder.verify(nanuqCatchUp).reindex(any(), isNull());
+    inOrder.verify(migrationLock).unlock();
+  }
+
+  @Test
+  void no_publish_if_interrupted() {
+    when(templateIndexer.indexTemplates()).thenReturn(Map.of(ANALYSES_TEMPLATE, "HASH2", SEQUENCINGS_TEMPLATE, "HASH1"));
+    when(esClient.aliases()).thenReturn(Map.of("analyses", "analyses-HASH1", "sequencings", "sequencings-HASH1"));
+
+    ServiceRequest sr1 = new ServiceRequest();
+    sr1.setId("sr1");
+    db(sr1);
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(sr1)));
+    doThrow(new RuntimeException("ES down")).when(nanuqIndexer).doIndex(any(), any(), any(), any(), anyBoolean());
+
+    Assertions.assertThrows(RuntimeException.class, migrationManager::startMigration);
+
+    verify(checkpoint).start(eq("analyses-HASH2"), eq("sequencings-HASH1"), eq("HASH2,HASH1"), any(), any());
+    verify(checkpoint, never()).save(any(), any(), any());
+    verify(esClient, never()).setAlias(any(), any(), any());
+    verify(esClient, never()).delete(any());
+    verify(checkpoint, never()).clear(any(), any());
+    verify(nanuqIndexer).stopDualWrite();
+    assertEquals(MigrationStatus.State.failed, migrationManager.getStatus().getState());
+    assertEquals("ES down", migrationManager.getStatus().getError());
+  }
+
+  @Test
+  void dual_write_until_published() {
+    when(templateIndexer.indexTemplates()).thenReturn(Map.of(ANALYSES_TEMPLATE, "HASH2", SEQUENCINGS_TEMPLATE, "HASH2"));
+    when(esClient.aliases()).thenReturn(Map.of("analyses", "analyses-HASH1", "sequencings", "sequencings-HASH1"));
+
+    ServiceRequest sr1 = new ServiceRequest();
+    sr1.setId("sr1");
+    ServiceRequest sr2 = new ServiceRequest();
+    sr2.setId("sr2");
+    db(sr1, sr2);
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(sr1, sr2)));
+
+    migrationManager.startMigration();
+
+    final InOrder inOrder = inOrder(nanuqIndexer, esClient);
+    inOrder.verify(nanuqIndexer).startDualWrite(eq("analyses-HASH2"), eq("sequencings-HASH2"));
+    inOrder.verify(nanuqIndexer).doIndex(eq(null), eq(Set.of("sr1", "sr2")), eq("analyses-HASH2"), eq("sequencings-HASH2"), eq(false));
+    inOrder.verify(esClient).setAlias(eq(List.of("analyses-HASH2")), eq(List.of("*")), eq("analyses"));
+    inOrder.verify(esClient).setAlias(eq(List.of("sequencings-HASH2")), eq(List.of("*")), eq("sequencings"));
+    inOrder.verify(nanuqIndexer).stopDualWrite();
+
+    final MigrationStatus status = migrationManager.getStatus();
+    assertEquals(MigrationStatus.State.completed, status.getState());
+    assertEquals("analyses-HASH2", status.getAnalysesIndex());
+    assertEquals(1, status.getPartitions());
+    assertEquals(1, status.getCompletedPartitions());
+    assertEquals(2, status.getIndexed());
+  }
+
+  @Test
+  void refuse_always_in_background() {
+    when(bioProperties.getNanuqReindex()).thenReturn(MigrationManager.Type.always);
+    when(bioProperties.isNanuqReindexBackground()).thenReturn(true);
+
+    assertThrows(IllegalStateException.class, migrationManager::startMigration);
+
+    verifyNoInteractions(esClient, templateIndexer);
+  }
+
+  @Test
+  void reindex_resume_keeps_indexes() {
+    when(bioProperties.getNanuqReindex()).thenReturn(MigrationManager.Type.always);
+    when(templateIndexer.indexTemplates()).thenReturn(Map.of(ANALYSES_TEMPLATE, "HASH1", SEQUENCINGS_TEMPLATE, "HASH1"));
+    when(esClient.aliases()).thenReturn(Map.of());
+    when(checkpoint.load(eq("analyses"), eq("sequencings"), eq("HASH1,HASH1")))
+      .thenReturn(List.of(new ReindexCheckpoint.Partition(0, null, null, new Date(1000), 10, false)));
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider());
+
+    migrationManager.startMigration();
+
+    verify(esClient, never()).delete(any());
+    verify(nanuqIndexer, never()).doIndex(any(), any(), any(), any(), anyBoolean());
+    verify(checkpoint).save(eq("analyses"), eq("sequencings"), argThat(ReindexCheckpoint.Partition::isCompleted));
+    verify(checkpoint).clear(eq("analyses"), eq("sequencings"));
+  }
+
+  @Test
+  void bulk_load_settings_on_new_indexes() {
+    when(bioProperties.isNanuqReindexForceMerge()).thenReturn(true);
+    when(templateIndexer.indexTemplates()).thenReturn(Map.of(ANALYSES_TEMPLATE, "HASH2", SEQUENCINGS_TEMPLATE, "HASH1"));
+    when(templateIndexer.templateSettings(eq(ANALYSES_TEMPLATE))).thenReturn(new JsonGenerator(FhirContext.forR4()).parse("{\"number_of_replicas\": 2}"));
+    when(esClient.aliases()).thenReturn(Map.of("analyses", "analyses-HASH1", "sequencings", "sequencings-HASH1"));
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider());
+    doThrow(new RuntimeException("timeout")).when(esClient).forceMerge(any(), anyInt());
+
+    migrationManager.startMigration();
+
+    final Map<String, Object> loading = new HashMap<>();
+    loading.put("refresh_interval", "-1");
+    loading.put("number_of_replicas", 0);
+    final Map<String, Object> restored = new HashMap<>();
+    restored.put("refresh_interval", null);
+    restored.put("number_of_replicas", "2");
+    final InOrder inOrder = inOrder(esClient);
+    inOrder.verify(esClient).updateSettings(eq("analyses-HASH2"), eq(loading));
+    inOrder.verify(esClient).updateSettings(eq("analyses-HASH2"), eq(restored));
+    inOrder.verify(esClient).refresh(eq("analyses-HASH2"));
+    inOrder.verify(esClient).forceMerge(eq("analyses-HASH2"), eq(1));
+    inOrder.verify(esClient).setAlias(eq(List.of("analyses-HASH2")), eq(List.of("*")), eq("analyses"));
+    // live index
+    verify(esClient, never()).updateSettings(eq("sequencings-HASH1"), any());
+  }
+
+  @Test
+  void patients_migration() {
+    when(bioProperties.getNanuqReindex()).thenReturn(MigrationManager.Type.none);
+    when(bioProperties.isPatientsIndexerEnabled()).thenReturn(true);
+    when(bioProperties.getPatientsReindex()).thenReturn(MigrationManager.Type.hash);
+    when(bioProperties.getEsPatientsIndex()).thenReturn("patients");
+    when(templateIndexer.indexTemplates()).thenReturn(Map.of(ANALYSES_TEMPLATE, "HASH1", SEQUENCINGS_TEMPLATE, "HASH1", PATIENTS_TEMPLATE, "HASH2"));
+    when(esClient.aliases()).thenReturn(Map.of("patients", "patients-HASH1"));
+    final Patient patient = new Patient();
+    patient.setId("p1");
+    db(patient);
+    when(patientDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(patient))).thenReturn(new SimpleBundleProvider());
+
+    migrationManager.startMigration();
+
+    final InOrder inOrder = inOrder(esClient, patientIndexer);
+    inOrder.verify(patientIndexer).startDualWrite(eq("patients-HASH2"));
+    inOrder.verify(esClient).createIndex(eq("patients-HASH2"));
+    inOrder.verify(patientIndexer).doIndex(eq(Set.of("p1")), eq("patients-HASH2"));
+    inOrder.verify(esClient).refresh(eq("patients-HASH2"));
+    inOrder.verify(esClient).delete(eq(List.of("patients")));
+    inOrder.verify(esClient).setAlias(eq(List.of("patients-HASH2")), eq(List.of("*")), eq("patients"));
+    inOrder.verify(esClient).delete(eq(List.of("patients-HASH1")));
+    inOrder.verify(patientIndexer).stopDualWrite();
+    verifyNoInteractions(nanuqIndexer);
+
+    // same template, nothing to do
+    reset(patientIndexer);
+    when(esClient.aliases()).thenReturn(Map.of("patients", "patients-HASH2"));
+    migrationManager.startMigration();
+    verifyNoInteractions(patientIndexer);
+  }
+}
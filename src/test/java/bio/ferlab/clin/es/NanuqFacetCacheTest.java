@@ -0,0 +1,69 @@
+package bio.ferlab.clin.es;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class NanuqFacetCacheTest {
+
+  private final AtomicLong now = new AtomicLong(0);
+  private final AtomicInteger computed = new AtomicInteger();
+  private final NanuqFacetCache cache = new NanuqFacetCache(1000, now::get);
+
+  private ElasticsearchRestClient.AggregationResult compute() {
+    return new ElasticsearchRestClient.AggregationResult(computed.incrementAndGet(), Map.of());
+  }
+
+  @Test
+  void cached_until_expired() {
+    assertEquals(1, cache.get("k", this::compute).getTotal());
+    now.set(999);
+    assertEquals(1, cache.get("k", this::compute).getTotal());
+    assertEquals(2, cache.get("other", this::compute).getTotal());
+    now.set(1000);
+    assertEquals(3, cache.get("k", this::compute).getTotal());
+  }
+
+  @Test
+  void invalidated_by_writes() {
+    assertEquals(1, cache.get("k", this::compute).getTotal());
+    cache.invalidate();
+    now.set(NanuqFacetCache.REFRESH_INTERVAL_MS);
+    assertEquals(2, cache.get("k", this::compute).getTotal());
+    assertEquals(2, cache.get("k", this::compute).getTotal());
+  }
+
+  @Test
+  void not_kept_until_refreshed() {
+    now.set(5000);
+    cache.invalidate();
+    // the bulk may not be searchable yet
+    now.set(5000 + NanuqFacetCache.REFRESH_INTERVAL_MS - 1);
+    assertEquals(1, cache.get("k", this::compute).getTotal());
+    assertEquals(2, cache.get("k", this::compute).getTotal());
+    now.set(5000 + NanuqFacetCache.REFRESH_INTERVAL_MS);
+    assertEquals(3, cache.get("k", this::compute).getTotal());
+    assertEquals(3, cache.get("k", this::compute).getTotal());
+  }
+
+  @Test
+  void write_during_compute() {
+    // invalidated while computing, the value may miss the write and isn't reused
+    cache.get("k", () -> {
+      cache.invalidate();
+      return compute();
+    });
+    assertEquals(2, cache.get("k", this::compute).getTotal());
+  }
+
+  @Test
+  void disabled() {
+    final NanuqFacetCache disabled = new NanuqFacetCache(0, now::get);
+    disabled.get("k", this::compute);
+    assertEquals(2, disabled.get("k", this::compute).getTotal());
+  }
+}
@@ -3,20 +3,24 @@ package bio.ferlab.clin.es.builder.nanuq;
 import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
 import bio.ferlab.clin.es.data.nanuq.AnalysisData;
 import bio.ferlab.clin.es.data.nanuq.SequencingData;
+import bio.ferlab.clin.utils.ResourceMemo;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
 import org.hl7.fhir.r4.model.*;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 
 import static bio.ferlab.clin.interceptors.ServiceRequestPerformerInterceptor.ANALYSIS_REQUEST_CODE;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -30,16 +34,17 @@ class PrescriptionDataBuilderTest {
   final IFhirResourceDao<Task> taskDao = Mockito.mock(IFhirResourceDao.class);
   final ResourceDaoConfiguration configuration = new ResourceDaoConfiguration(patientDao, null, serviceRequestDao, null, organizationDao
       , null, null, null, null, null, specimenDao, taskDao);
+  final ResourceMemo resourceMemo = new ResourceMemo();
   
-  private final AnalysisDataBuilder analysisDataBuilder = new AnalysisDataBuilder(configuration);
-  private final SequencingDataBuilder sequencingDataBuilder = new SequencingDataBuilder(configuration);
+  private final AnalysisDataBuilder analysisDataBuilder = new AnalysisDataBuilder(configuration, resourceMemo);
+  private final SequencingDataBuilder sequencingDataBuilder = new SequencingDataBuilder(configuration, resourceMemo);
 
   @Test
   public void analysisDataBuilder_not_analysis() {
     final ServiceRequest serviceRequest = new ServiceRequest();
     serviceRequest.getMeta().getProfile().add(new CanonicalType(AbstractPrescriptionDataBuilder.Type.SEQUENCING.value));
 
-    when(serviceRequestDao.read(any(), any())).thenReturn(serviceRequest);
+    when(serviceRequestDao.search(any(), any())).thenReturn(new SimpleBundleProvider(List.of(serviceRequest)));
     
     List<AnalysisData> data = analysisDataBuilder.fromIds(Set.of("serviceRequest1"), null);
 
@@ -51,7 +56,7 @@ class PrescriptionDataBuilderTest {
     final ServiceRequest serviceRequest = new ServiceRequest();
     serviceRequest.getMeta().getProfile().add(new CanonicalType(AbstractPrescriptionDataBuilder.Type.ANALYSIS.value));
 
-    when(serviceRequestDao.read(any(), any())).thenReturn(serviceRequest);
+    when(serviceRequestDao.search(any(), any())).thenReturn(new SimpleBundleProvider(List.of(serviceRequest)));
 
     List<SequencingData> data = sequencingDataBuilder.fromIds(Set.of("serviceRequest1"), null);
 
@@ -89,9 +94,11 @@ class PrescriptionDataBuilderTest {
     final Date now = new Date();
     serviceRequest.setAuthoredOn(now);
     final Patient patient = new Patient();
+    patient.setId("patient1");
     patient.getManagingOrganization().setReference("organization1");
     patient.getIdentifier().add(new Identifier().setType(new CodeableConcept().addCoding(new Coding().setCode("MR"))).setValue("RAMQ"));
     final Organization organization =new Organization();
+    organization.setId("organization1");
     organization.getAlias().add(new StringType("orgAlias"));
     final IBundleProvider bundle = Mockito.mock(IBundleProvider.class);
     when(bundle.isEmpty()).thenReturn(false);
@@ -99,10 +106,12 @@ class PrescriptionDataBuilderTest {
     sequencing1.setId("seq1");
     sequencing1.setStatus(ServiceRequest.ServiceRequestStatus.DRAFT);
     sequencing1.setSubject(new Reference("p2"));
+    sequencing1.getBasedOn().add(new Reference("ServiceRequest/serviceRequest1"));
     final ServiceRequest sequencing2 = new ServiceRequest();
     sequencing2.setId("seq2");
     sequencing2.setStatus(ServiceRequest.ServiceRequestStatus.COMPLETED);
     sequencing2.setSubject(new Reference("p3"));
+    sequencing2.getBasedOn().add(new Reference("ServiceRequest/serviceRequest1"));
     when(bundle.getAllResources()).thenReturn(List.of(sequencing1, sequencing2));
     final Patient p2 = new Patient();
     p2.setId("p2");
@@ -112,34 +121,45 @@ class PrescriptionDataBuilderTest {
     p3.getIdentifier().add(new Identifier().setType(new CodeableConcept().addCoding(new Coding().setCode("MR"))).setValue("P3"));
 
     final Specimen specimen = new Specimen();
+    specimen.setId("speci");
     specimen.getAccessionIdentifier().setValue("speciId");
     specimen.addParent().setReference("Specimen/foo");
     sequencing1.getSpecimen().addAll(List.of(new Reference("speci")));
-    when(specimenDao.read(eq(new IdType("speci")), any())).thenReturn(specimen);
+    when(specimenDao.search(any(), any())).thenReturn(new SimpleBundleProvider(List.of(specimen)));
 
     final Task task1 = new Task();
+    task1.setFocus(new Reference("ServiceRequest/seq1"));
     task1.getCode().getCodingFirstRep().setCode("TEBA");
     final Task task2 = new Task();
+    task2.setFocus(new Reference("ServiceRequest/seq2"));
     task2.getCode().getCodingFirstRep().setCode("TNEBA");
+    // without code, ignored
+    final Task task3 = new Task();
+    task3.setFocus(new Reference("ServiceRequest/seq1"));
     final IBundleProvider tasksBundle = Mockito.mock(IBundleProvider.class);
     when(tasksBundle.isEmpty()).thenReturn(false);
-    when(tasksBundle.getAllResources()).thenReturn(List.of(task1, task2));
+    when(tasksBundle.getAllResources()).thenReturn(List.of(task1, task2, task3));
     
-    when(serviceRequestDao.read(any(), any())).thenReturn(serviceRequest);
-    when(patientDao.read(any())).thenReturn(patient).thenReturn(p2).thenReturn(p3);
-    when(organizationDao.read(any())).thenReturn(organization);
+    when(serviceRequestDao.search(any(), any())).thenReturn(new SimpleBundleProvider(List.of(serviceRequest)));
+    when(patientDao.search(any(), any())).thenReturn(new SimpleBundleProvider(List.of(patient, p2, p3)));
+    when(organizationDao.search(any(), any())).thenReturn(new SimpleBundleProvider(List.of(organization)));
     when(serviceRequestDao.search(any())).thenReturn(bundle);
     when(taskDao.search(any())).thenReturn(tasksBundle);
+    serviceRequest.getMeta().setLastUpdated(new Date(1000));
+    organization.getMeta().setLastUpdated(new Date(3000));
+    task2.getMeta().setLastUpdated(new Date(5000));
     
     List<AnalysisData> results = analysisDataBuilder.fromIds(Set.of("serviceRequest1"), requestDetails);
     
-    verify(serviceRequestDao).read(eq(new IdType("serviceRequest1")), eq(requestDetails));
-    verify(patientDao).read(eq(new IdType("patient1")));
-    verify(patientDao).read(eq(new IdType("p2")));
-    verify(patientDao).read(eq(new IdType("p3")));
-    verify(organizationDao).read(eq(new IdType("organization1")));
+    // one query per type whatever the number of prescriptions
+    verify(serviceRequestDao).search(any(), eq(requestDetails));
     verify(serviceRequestDao).search(any());
-    verify(taskDao, times(2)).search(any());
+    verify(patientDao).search(any(), any());
+    verify(organizationDao).search(any(), any());
+    verify(specimenDao).search(any(), any());
+    verify(taskDao).search(any());
+    verify(serviceRequestDao, never()).read(any(), any());
+    verify(patientDao, never()).read(any());
     
     assertEquals(1, results.size());
     AnalysisData data1 = results.get(0);
@@ -191,18 +211,23 @@ class PrescriptionDataBuilderTest {
     final Date now = new Date();
     serviceRequest.setAuthoredOn(now);
     final Patient patient = new Patient();
+    patient.setId("patient1");
     patient.getManagingOrganization().setReference("organization1");
     patient.getIdentifier().add(new Identifier().setType(new CodeableConcept().addCoding(new Coding().setCode("MR"))).setValue("RAMQ"));
     final Organization organization =new Organization();
+    organization.setId("organization1");
     organization.getAlias().add(new StringType("orgAlias"));
     final Specimen specimen1 = new Specimen();
+    specimen1.setId("speci1");
     specimen1.getParent().add(new Reference("parent1"));
     specimen1.getAccessionIdentifier().setValue("speciId1");
     final Specimen specimen2 = new Specimen(); // no parent
+    specimen2.setId("speci2");
     specimen2.getAccessionIdentifier().setValue("speciId2");
     serviceRequest.getSpecimen().addAll(List.of(new Reference("speci1"), new Reference("speci2")));
     
     final ServiceRequest parentAnalysis = new ServiceRequest();
+    parentAnalysis.setId("parentAnalysis");
     parentAnalysis.setStatus(ServiceRequest.ServiceRequestStatus.ACTIVE);
     final Extension familyMemberExt = new Extension("http://fhir.cqgc.ferlab.bio/StructureDefinition/family-member");
     final Extension motherRefExt = new Extension("parent");
@@ -216,29 +241,29 @@ class PrescriptionDataBuilderTest {
     parentAnalysis.addExtension(familyMemberExt);
 
     final Task task1 = new Task();
+    task1.setFocus(new Reference("ServiceRequest/serviceRequest1"));
     task1.getCode().getCodingFirstRep().setCode("TEBA");
     final IBundleProvider tasksBundle = Mockito.mock(IBundleProvider.class);
     when(tasksBundle.isEmpty()).thenReturn(false);
     when(tasksBundle.getAllResources()).thenReturn(List.of(task1));
     
-    when(serviceRequestDao.read(any(), any()))
-        .thenReturn(serviceRequest)
-        .thenReturn(parentAnalysis);
-    when(patientDao.read(any())).thenReturn(patient);
-    when(organizationDao.read(any())).thenReturn(organization);
-    when(specimenDao.read(eq(new IdType("speci1")), any())).thenReturn(specimen1);
-    when(specimenDao.read(eq(new IdType("speci2")), any())).thenReturn(specimen2);
+    when(serviceRequestDao.search(any(), any()))
+        .thenReturn(new SimpleBundleProvider(List.of(serviceRequest)))
+        .thenReturn(new SimpleBundleProvider(List.of(parentAnalysis)));
+    when(patientDao.search(any(), any())).thenReturn(new SimpleBundleProvider(List.of(patient)));
+    when(organizationDao.search(any(), any())).thenReturn(new SimpleBundleProvider(List.of(organization)));
+    when(specimenDao.search(any(), any())).thenReturn(new SimpleBundleProvider(List.of(specimen2, specimen1)));
     when(taskDao.search(any())).thenReturn(tasksBundle);
     
     List<SequencingData> results = sequencingDataBuilder.fromIds(Set.of("serviceRequest1"), requestDetails);
 
-    verify(serviceRequestDao).read(eq(new IdType("serviceRequest1")), eq(requestDetails));
-    verify(serviceRequestDao).read(eq(new IdType("parentAnalysis")), eq(requestDetails));
-    verify(patientDao).read(eq(new IdType("patient1")));
-    verify(organizationDao).read(eq(new IdType("organization1")));
-    verify(specimenDao).read(eq(new IdType("speci1")), any());
-    verify(specimenDao, never()).read(eq(new IdType("speci2")), any());
+    // requests then parents, one query per type
+    verify(serviceRequestDao, times(2)).search(any(), eq(requestDetails));
+    verify(patientDao).search(any(), any());
+    verify(organizationDao).search(any(), any());
+    verify(specimenDao).search(any(), eq(requestDetails));
     verify(taskDao).search(any());
+    verify(serviceRequestDao, never()).read(any(), any());
 
     assertEquals(1, results.size());
     SequencingData data1 = results.get(0);
@@ -261,4 +286,78 @@ class PrescriptionDataBuilderTest {
     assertEquals("[TEBA]", data1.getTasks().toString());
   }
 
-}
\ No newline at end of file
+
+  @Test
+  public void sequencingDataBuilder_siblings_share_parent() {
+    final ServiceRequest parentAnalysis = new ServiceRequest();
+    parentAnalysis.setId("parentAnalysis");
+    parentAnalysis.setStatus(ServiceRequest.ServiceRequestStatus.ACTIVE);
+    final ServiceRequest seq1 = new ServiceRequest();
+    seq1.setId("seq1");
+    seq1.getMeta().getProfile().add(new CanonicalType(AbstractPrescriptionDataBuilder.Type.SEQUENCING.value));
+    seq1.getBasedOn().add(new Reference("ServiceRequest/parentAnalysis"));
+    final ServiceRequest seq2 = new ServiceRequest();
+    seq2.setId("seq2");
+    seq2.getMeta().getProfile().add(new CanonicalType(AbstractPrescriptionDataBuilder.Type.SEQUENCING.value));
+    seq2.getBasedOn().add(new Reference("ServiceRequest/parentAnalysis"));
+
+    when(serviceRequestDao.search(any(), any()))
+        .thenReturn(new SimpleBundleProvider(List.of(seq1, seq2)))
+        .thenReturn(new SimpleBundleProvider(List.of(parentAnalysis)));
+    when(taskDao.search(any())).thenReturn(new SimpleBundleProvider(List.of()));
+
+    List<SequencingData> results = sequencingDataBuilder.fromIds(Set.of("seq1", "seq2"), null);
+
+    verify(serviceRequestDao, times(2)).search(any(), any());
+    assertEquals(2, results.size());
+    results.forEach(r -> {
+      assertEquals("parentAnalysis", r.getPrescriptionId());
+      assertEquals("active", r.getPrescriptionStatus());
+    });
+  }
+
+  @Test
+  public void sequencingDataBuilder_patients_from_memo() {
+    final ServiceRequest seq1 = new ServiceRequest();
+    seq1.setId("seq1");
+    seq1.getMeta().getProfile().add(new CanonicalType(AbstractPrescriptionDataBuilder.Type.SEQUENCING.value));
+    seq1.getSubject().setReference("Patient/patient1");
+    final Patient patient = new Patient();
+    patient.setId("patient1");
+    patient.getIdentifier().add(new Identifier().setType(new CodeableConcept().addCoding(new Coding().setCode("MR"))).setValue("MRN1"));
+
+    when(serviceRequestDao.search(any(), any())).thenAnswer(i -> new SimpleBundleProvider(List.of(seq1)));
+    when(patientDao.search(any(), any())).thenAnswer(i -> new SimpleBundleProvider(List.of(patient)));
+    when(taskDao.search(any())).thenAnswer(i -> new SimpleBundleProvider(List.of()));
+
+    final List<SequencingData> results = resourceMemo.inBatch(() -> {
+      sequencingDataBuilder.fromIds(Set.of("seq1"), null);
+      return sequencingDataBuilder.fromIds(Set.of("seq1"), null);
+    });
+
+    verify(patientDao, times(1)).search(any(), any());
+    assertEquals("MRN1", results.get(0).getPatientMRN());
+  }
+
+  @Test
+  public void sequencingDataBuilder_patients_read_without_request_not_memoized() {
+    final RequestDetails requestDetails = Mockito.mock(RequestDetails.class);
+    when(requestDetails.getUserData()).thenReturn(new HashMap<>());
+    final ServiceRequest seq1 = new ServiceRequest();
+    seq1.setId("seq1");
+    seq1.getMeta().getProfile().add(new CanonicalType(AbstractPrescriptionDataBuilder.Type.SEQUENCING.value));
+    seq1.getSubject().setReference("Patient/patient1");
+    final Patient patient = new Patient();
+    patient.setId("patient1");
+
+    when(serviceRequestDao.search(any(), any())).thenAnswer(i -> new SimpleBundleProvider(List.of(seq1)));
+    when(patientDao.search(any(), any())).thenAnswer(i -> new SimpleBundleProvider(List.of(patient)));
+    when(taskDao.search(any())).thenAnswer(i -> new SimpleBundleProvider(List.of()));
+
+    sequencingDataBuilder.fromIds(Set.of("seq1"), requestDetails);
+
+    // read with a null request details (no authorization), a later read of the request must hit the DAO
+    verify(patientDao).search(any(), isNull());
+    assertTrue(resourceMemo.get(requestDetails, "Patient", "patient1").isEmpty());
+  }
+}
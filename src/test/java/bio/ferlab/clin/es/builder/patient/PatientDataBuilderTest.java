@@ -0,0 +1,92 @@
+package bio.ferlab.clin.es.builder.patient;
+
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.es.data.patient.FamilyMemberData;
+import bio.ferlab.clin.es.data.patient.PatientData;
+import bio.ferlab.clin.utils.Extensions;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@SuppressWarnings("unchecked")
+class PatientDataBuilderTest {
+
+  private final IFhirResourceDao<Patient> patientDao = Mockito.mock(IFhirResourceDao.class);
+  private final IFhirResourceDao<Person> personDao = Mockito.mock(IFhirResourceDao.class);
+  private final IFhirResourceDao<ServiceRequest> serviceRequestDao = Mockito.mock(IFhirResourceDao.class);
+  private final IFhirResourceDao<Organization> organizationDao = Mockito.mock(IFhirResourceDao.class);
+  private final ResourceDaoConfiguration configuration = new ResourceDaoConfiguration(patientDao, personDao, serviceRequestDao,
+    null, organizationDao, null, null, null, null, null, null, null);
+  private final PatientDataBuilder builder = new PatientDataBuilder(configuration);
+
+  @Test
+  void denormalized_document() {
+    final Patient patient = new Patient();
+    patient.setId("p1");
+    patient.addIdentifier().setValue("MRN1").getType().addCoding().setCode("MR");
+    patient.addName().setFamily("Doe").addGiven("John");
+    patient.setGender(Enumerations.AdministrativeGender.MALE);
+    patient.setBirthDateElement(new DateType("2000-01-31"));
+    patient.setManagingOrganization(new Reference("Organization/CHUSJ"));
+    patient.getMeta().addSecurity().setCode("CHUSJ");
+    final Person person = new Person();
+    person.setId("pe1");
+    person.addIdentifier().setValue("DOEJ00013199").getType().addCoding().setCode("JHN");
+    person.addLink().setTarget(new Reference("Patient/p1"));
+    final Organization organization = new Organization();
+    organization.setId("CHUSJ");
+    organization.addAlias("CHUSJ");
+    final ServiceRequest sr1 = new ServiceRequest();
+    sr1.setId("sr1");
+    sr1.setSubject(new Reference("Patient/p1"));
+    final Extension mother = sr1.addExtension().setUrl(Extensions.FAMILY_MEMBER);
+    mother.addExtension("parent", new Reference("Patient/p2"));
+    mother.addExtension("parent-relationship", new CodeableConcept().addCoding(new Coding().setCode("MTH")));
+    final ServiceRequest sr2 = new ServiceRequest();
+    sr2.setId("sr2");
+    sr2.setSubject(new Reference("Patient/p1"));
+    sr2.getExtension().add(mother.copy());
+
+    when(patientDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(patient)));
+    when(personDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(person)));
+    when(organizationDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(organization)));
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(sr1, sr2)));
+
+    final List<PatientData> documents = builder.fromIds(Set.of("p1", "unknown"));
+
+    assertEquals(1, documents.size());
+    final PatientData data = documents.get(0);
+    assertEquals("p1", data.getPatientId());
+    assertEquals("pe1", data.getPersonId());
+    assertEquals("MRN1", data.getMrn());
+    assertEquals("DOEJ00013199", data.getRamq());
+    assertEquals("John", data.getFirstName());
+    assertEquals("Doe", data.getLastName());
+    assertEquals("male", data.getGender());
+    assertEquals("2000-01-31", data.getBirthDate());
+    assertEquals("CHUSJ", data.getEp());
+    assertEquals("CHUSJ", data.getOrganizationId());
+    assertEquals(List.of("CHUSJ"), data.getSecurityTags());
+    assertEquals(List.of("sr1", "sr2"), List.copyOf(data.getPrescriptions()));
+    assertEquals(List.of(new FamilyMemberData("p2", "MTH")), data.getFamilyMembers());
+    verify(patientDao, times(1)).search(any());
+    verify(serviceRequestDao, times(1)).search(any());
+  }
+
+  @Test
+  void nothing_found() {
+    when(patientDao.search(any())).thenReturn(new SimpleBundleProvider());
+
+    assertEquals(List.of(), builder.fromIds(Set.of("p1")));
+    verifyNoInteractions(personDao, organizationDao, serviceRequestDao);
+  }
+}
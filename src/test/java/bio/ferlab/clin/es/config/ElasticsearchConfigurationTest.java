@@ -0,0 +1,31 @@
+package bio.ferlab.clin.es.config;
+
+import bio.ferlab.clin.properties.BioProperties;
+import org.apache.http.HttpHost;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.mockito.Mockito.when;
+
+class ElasticsearchConfigurationTest {
+
+  private final BioProperties bioProperties = Mockito.mock(BioProperties.class);
+
+  @Test
+  void hosts_default() {
+    when(bioProperties.getEsHost()).thenReturn("localhost");
+    when(bioProperties.getEsPort()).thenReturn(9200);
+    when(bioProperties.getEsScheme()).thenReturn("http");
+    when(bioProperties.getEsHosts()).thenReturn("");
+    assertArrayEquals(new HttpHost[]{new HttpHost("localhost", 9200, "http")}, ElasticsearchConfiguration.hosts(bioProperties));
+  }
+
+  @Test
+  void hosts_list() {
+    when(bioProperties.getEsScheme()).thenReturn("https");
+    when(bioProperties.getEsHosts()).thenReturn("es1:9200, http://es2:9201,");
+    assertArrayEquals(new HttpHost[]{new HttpHost("es1", 9200, "https"), new HttpHost("es2", 9201, "http")},
+      ElasticsearchConfiguration.hosts(bioProperties));
+  }
+}
@@ -0,0 +1,41 @@
+package bio.ferlab.clin.es.config;
+
+import bio.ferlab.clin.es.data.ElasticsearchData;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.pool.PoolStats;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+class ElasticsearchPoolMonitorTest {
+
+  private final ElasticsearchData esData = Mockito.mock(ElasticsearchData.class);
+  private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @Test
+  void gauges() {
+    when(esData.getPoolStats()).thenReturn(Optional.of(new PoolStats(3, 2, 5, 30)));
+
+    new ElasticsearchPoolMonitor(esData, meterRegistry);
+
+    assertEquals(3, meterRegistry.get("es.pool.leased").gauge().value());
+    assertEquals(2, meterRegistry.get("es.pool.pending").gauge().value());
+    assertEquals(5, meterRegistry.get("es.pool.available").gauge().value());
+    assertEquals(30, meterRegistry.get("es.pool.max").gauge().value());
+  }
+
+  @Test
+  void no_pool() {
+    when(esData.getPoolStats()).thenReturn(Optional.empty());
+
+    new ElasticsearchPoolMonitor(esData, meterRegistry);
+
+    assertTrue(Double.isNaN(meterRegistry.get("es.pool.pending").gauge().value()));
+  }
+}
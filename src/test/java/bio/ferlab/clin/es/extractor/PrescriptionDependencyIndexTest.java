@@ -0,0 +1,160 @@
+package bio.ferlab.clin.es.extractor;
+
+import bio.ferlab.clin.es.ResourceKeys;
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.properties.BioProperties;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class PrescriptionDependencyIndexTest {
+
+  final IFhirResourceDao<ServiceRequest> serviceRequestDao = Mockito.mock(IFhirResourceDao.class);
+  final IFhirResourceDao<Patient> patientDao = Mockito.mock(IFhirResourceDao.class);
+  final ResourceDaoConfiguration daoConfiguration = new ResourceDaoConfiguration(patientDao, null, serviceRequestDao, null, null
+    , null, null, null, null, null, null, null);
+  final ResourceKeys resourceKeys = Mockito.mock(ResourceKeys.class);
+  final PrescriptionIdResolver resolver = Mockito.mock(PrescriptionIdResolver.class);
+  final BioProperties bioProperties = Mockito.mock(BioProperties.class);
+  final PrescriptionDependencyIndex index = new PrescriptionDependencyIndex(daoConfiguration, resourceKeys, resolver, bioProperties);
+
+  @BeforeEach
+  void beforeEach() {
+    when(bioProperties.isNanuqDependencyIndexEnabled()).thenReturn(true);
+    when(bioProperties.getNanuqReindexBatchSize()).thenReturn(100);
+    when(serviceRequestDao.getResourceType()).thenReturn(ServiceRequest.class);
+    when(patientDao.getResourceType()).thenReturn(Patient.class);
+    // the keys of every resource of the tests, the ones not returned by the DAO are ignored
+    when(resourceKeys.next(eq("ServiceRequest"), any(), any(), anyInt())).thenReturn(keys("sr1", "sr2", "sr3"));
+    when(resourceKeys.next(eq("Patient"), any(), any(), anyInt())).thenReturn(keys("p1", "p2"));
+  }
+
+  private static List<ResourceKeys.Key> keys(String... ids) {
+    return List.of(ids).stream().map(id -> new ResourceKeys.Key(new Date(1000), id.hashCode(), id)).collect(Collectors.toList());
+  }
+
+  @Test
+  void search_until_loaded() {
+    final Specimen specimen = specimen("s1");
+    when(resolver.resolve(anyMap())).thenReturn(Set.of("sr1"));
+
+    assertEquals(Set.of("sr1"), index.prescriptionIds(specimen));
+    verify(resolver).resolve(Map.of("Specimen", Set.of("s1")));
+  }
+
+  @Test
+  void resolve_from_loaded_index() {
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(
+      serviceRequest("sr1", "p1", "s1"), serviceRequest("sr2", "p1", "s2"), serviceRequest("sr3", "p2"))));
+    when(patientDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(patient("p1", "o1"), patient("p2", "o2"))));
+
+    index.load();
+
+    assertEquals(Set.of("sr1"), index.prescriptionIds(specimen("s1")));
+    assertEquals(Set.of("sr1", "sr2"), index.prescriptionIds(patient("p1", null)));
+    assertEquals(Set.of("sr3"), index.prescriptionIds(organization("o2")));
+    assertEquals(Set.of(), index.prescriptionIds(organization("o3")));
+    assertEquals(Set.of("sr1", "sr2"), index.prescriptionIds("Specimen", Set.of("s1", "s2", "s3")));
+    verifyNoInteractions(resolver);
+  }
+
+  @Test
+  void update_and_remove() {
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(serviceRequest("sr1", "p1", "s1"))));
+    when(patientDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(patient("p1", "o1"))));
+    index.load();
+
+    index.register(serviceRequest("sr1", "p1", "s2"));
+    index.register(patient("p1", "o2"));
+
+    assertEquals(Set.of(), index.prescriptionIds(specimen("s1")));
+    assertEquals(Set.of("sr1"), index.prescriptionIds(specimen("s2")));
+    assertEquals(Set.of(), index.prescriptionIds(organization("o1")));
+    assertEquals(Set.of("sr1"), index.prescriptionIds(organization("o2")));
+
+    index.remove("ServiceRequest", "sr1");
+    assertEquals(Set.of(), index.prescriptionIds(specimen("s2")));
+    assertEquals(Set.of(), index.prescriptionIds(organization("o2")));
+  }
+
+  @Test
+  void committed_while_loading_wins() {
+    // the page was read before the update of sr1 committed, registered after it
+    when(serviceRequestDao.search(any())).thenAnswer(i -> {
+      index.register(serviceRequest("sr1", "p1", "s2"));
+      index.remove("Patient", "p2");
+      return new SimpleBundleProvider(List.of(serviceRequest("sr1", "p1", "s1"), serviceRequest("sr2", "p2")));
+    }).thenReturn(new SimpleBundleProvider());
+    when(patientDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(patient("p2", "o2"))), new SimpleBundleProvider());
+
+    index.load();
+
+    assertEquals(Set.of(), index.prescriptionIds(specimen("s1")));
+    assertEquals(Set.of("sr1"), index.prescriptionIds(specimen("s2")));
+    // sr2 still loaded, not the deleted patient
+    assertEquals(Set.of(), index.prescriptionIds(organization("o2")));
+    assertEquals(Set.of("sr2"), index.prescriptionIds(patient("p2", null)));
+  }
+
+  @Test
+  void remove_dependency() {
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(serviceRequest("sr1", "p1", "s1", "s2"))));
+    when(patientDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(patient("p1", "o1"))));
+    index.load();
+
+    index.remove("Specimen", "s1");
+    index.remove("Organization", "o1");
+
+    assertEquals(Set.of(), index.prescriptionIds(specimen("s1")));
+    assertEquals(Set.of(), index.prescriptionIds(organization("o1")));
+    assertEquals(Set.of("sr1"), index.prescriptionIds(specimen("s2")));
+    // sr1 doesn't link the removed specimen anymore, updating it doesn't fail
+    index.register(serviceRequest("sr1", "p1", "s2"));
+    assertEquals(Set.of("sr1"), index.prescriptionIds(specimen("s2")));
+  }
+
+  private static ServiceRequest serviceRequest(String id, String patientId, String... specimenIds) {
+    final ServiceRequest serviceRequest = new ServiceRequest();
+    serviceRequest.setId(id);
+    serviceRequest.setSubject(new Reference("Patient/" + patientId));
+    for (String specimenId : specimenIds) {
+      serviceRequest.addSpecimen(new Reference("Specimen/" + specimenId));
+    }
+    return serviceRequest;
+  }
+
+  private static Patient patient(String id, String organizationId) {
+    final Patient patient = new Patient();
+    patient.setId(id);
+    if (organizationId != null) {
+      patient.setManagingOrganization(new Reference("Organization/" + organizationId));
+    }
+    return patient;
+  }
+
+  private static Specimen specimen(String id) {
+    final Specimen specimen = new Specimen();
+    specimen.setId(id);
+    return specimen;
+  }
+
+  private static Organization organization(String id) {
+    final Organization organization = new Organization();
+    organization.setId(id);
+    return organization;
+  }
+}
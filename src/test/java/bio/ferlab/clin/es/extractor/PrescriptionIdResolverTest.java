@@ -0,0 +1,81 @@
+package bio.ferlab.clin.es.extractor;
+
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class PrescriptionIdResolverTest {
+
+  final IFhirResourceDao<ServiceRequest> serviceRequestDao = Mockito.mock(IFhirResourceDao.class);
+  final IFhirResourceDao<Patient> patientDao = Mockito.mock(IFhirResourceDao.class);
+  final ResourceDaoConfiguration daoConfiguration = new ResourceDaoConfiguration(patientDao, null, serviceRequestDao, null, null
+    , null, null, null, null, null, null, null);
+  final PrescriptionIdResolver resolver = new PrescriptionIdResolver(daoConfiguration);
+
+  @Test
+  void serviceRequests_and_tasks() {
+    final ServiceRequest sr = new ServiceRequest();
+    sr.setId("sr1");
+    final Task task = new Task();
+    task.setId("t1");
+    task.setFocus(new Reference("ServiceRequest/sr2"));
+
+    assertEquals(Set.of("sr1", "sr2"), resolver.resolve(List.of(sr, task)));
+    verifyNoInteractions(serviceRequestDao, patientDao);
+  }
+
+  @Test
+  void specimens_patients_and_organizations() {
+    final Specimen specimen = new Specimen();
+    specimen.setId("s1");
+    final Patient patient = new Patient();
+    patient.setId("p1");
+    final Organization organization = new Organization();
+    organization.setId("o1");
+    final Patient patientOfOrganization = new Patient();
+    patientOfOrganization.setId("p2");
+    final ServiceRequest sr1 = new ServiceRequest();
+    sr1.setId("sr1");
+    final ServiceRequest sr2 = new ServiceRequest();
+    sr2.setId("sr2");
+
+    when(patientDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(patientOfOrganization)));
+    when(serviceRequestDao.search(any()))
+      .thenReturn(new SimpleBundleProvider(List.of(sr1)))   // specimen=
+      .thenReturn(new SimpleBundleProvider(List.of(sr2)));  // subject=
+
+    assertEquals(Set.of("sr1", "sr2"), resolver.resolve(List.of(specimen, patient, organization)));
+    verify(patientDao, times(1)).search(any());
+    verify(serviceRequestDao, times(2)).search(any());
+  }
+
+  @Test
+  void search_by_pages() {
+    final List<IBaseResource> page1 = IntStream.range(0, PrescriptionIdResolver.PAGE_SIZE).mapToObj(i -> new ServiceRequest().setId("sr" + i))
+      .collect(Collectors.toList());
+    when(serviceRequestDao.search(any()))
+      .thenReturn(new SimpleBundleProvider(page1))
+      .thenReturn(new SimpleBundleProvider(List.of(new ServiceRequest().setId("last"))));
+
+    final Set<String> ids = resolver.resolve(Map.of("Specimen", Set.of("s1")));
+
+    assertEquals(PrescriptionIdResolver.PAGE_SIZE + 1, ids.size());
+    assertTrue(ids.contains("last"));
+    verify(serviceRequestDao, times(2)).search(any());
+  }
+}
@@ -0,0 +1,55 @@
+package bio.ferlab.clin.es.extractor;
+
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class ServiceRequestIdExtractorTest {
+
+  final PrescriptionDependencyIndex dependencyIndex = Mockito.mock(PrescriptionDependencyIndex.class);
+  final ServiceRequestIdExtractor extractor = new ServiceRequestIdExtractor(dependencyIndex);
+
+  @Test
+  void serviceRequest() {
+    final ServiceRequest serviceRequest = new ServiceRequest();
+    serviceRequest.setId("sr1");
+
+    assertEquals(Set.of("sr1"), extractor.extract(serviceRequest));
+    verifyNoInteractions(dependencyIndex);
+  }
+
+  @Test
+  void task_focus() {
+    final Task task = new Task();
+    task.setFocus(new Reference("ServiceRequest/sr1"));
+    final Task other = new Task();
+    other.setFocus(new Reference("Patient/p1"));
+
+    assertEquals(Set.of("sr1"), extractor.extract(task));
+    assertEquals(Set.of(), extractor.extract(other));
+    verifyNoInteractions(dependencyIndex);
+  }
+
+  @Test
+  void dependencies_in_bundle() {
+    final Specimen specimen = new Specimen();
+    specimen.setId("s1");
+    final Patient patient = new Patient();
+    patient.setId("p1");
+    final Bundle bundle = new Bundle();
+    bundle.addEntry().setResource(specimen).getRequest().setMethod(Bundle.HTTPVerb.PUT);
+    bundle.addEntry().setResource(patient).getRequest().setMethod(Bundle.HTTPVerb.PUT);
+    when(dependencyIndex.prescriptionIds(specimen)).thenReturn(Set.of("sr1"));
+    when(dependencyIndex.prescriptionIds(patient)).thenReturn(Set.of("sr2"));
+
+    assertEquals(Set.of("sr1", "sr2"), extractor.extract(bundle));
+    // the links are registered once the write is committed, not while extracting
+    verify(dependencyIndex, never()).register(any());
+  }
+}
@@ -0,0 +1,179 @@
+package bio.ferlab.clin.es.indexer;
+
+import bio.ferlab.clin.properties.BioProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class IndexerQueueTest {
+
+  private final NanuqIndexer nanuqIndexer = Mockito.mock(NanuqIndexer.class);
+  private final BioProperties bioProperties = Mockito.mock(BioProperties.class);
+  private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+  @BeforeEach
+  void beforeEach() {
+    when(bioProperties.getNanuqIndexerWorkers()).thenReturn(1);
+    when(bioProperties.getNanuqIndexerQueueCapacity()).thenReturn(10);
+    when(bioProperties.getNanuqIndexerShutdownTimeout()).thenReturn(5);
+    when(bioProperties.getNanuqIndexerMaxPending()).thenReturn(10);
+  }
+
+  @Test
+  void index_in_background() {
+    final IndexerQueue queue = new IndexerQueue(nanuqIndexer, bioProperties, meterRegistry);
+    queue.submit(Set.of("sr1", "sr2"));
+    queue.drain();
+    verify(nanuqIndexer).doIndex(eq(Set.of("sr1", "sr2")));
+    assertEquals(2, queue.getIndexed());
+    assertEquals(0, queue.getQueueDepth());
+    assertEquals(2, meterRegistry.get("nanuq.indexer.indexed").functionCounter().count());
+    assertEquals(0, meterRegistry.get("nanuq.indexer.queue.depth").gauge().value());
+  }
+
+  @Test
+  void index_patients_in_background() {
+    final PatientIndexer patientIndexer = Mockito.mock(PatientIndexer.class);
+    final PatientIndexerQueue queue = new PatientIndexerQueue(patientIndexer, bioProperties, meterRegistry);
+    queue.submit(Set.of("p1"));
+    queue.drain();
+    verify(patientIndexer).doIndex(eq(Set.of("p1")));
+    assertEquals(1, meterRegistry.get("patients.indexer.indexed").functionCounter().count());
+  }
+
+  @Test
+  void ignore_empty() {
+    final IndexerQueue queue = new IndexerQueue(nanuqIndexer, bioProperties, meterRegistry);
+    queue.submit(Set.of());
+    queue.drain();
+    verify(nanuqIndexer, never()).doIndex(any());
+  }
+
+  @Test
+  void count_failures() {
+    doThrow(new RuntimeException("ES down")).when(nanuqIndexer).doIndex(any());
+    final IndexerQueue queue = new IndexerQueue(nanuqIndexer, bioProperties, meterRegistry);
+    queue.submit(Set.of("sr1"));
+    queue.drain();
+    assertEquals(0, queue.getIndexed());
+    assertEquals(1, queue.getFailed());
+    assertEquals(1, meterRegistry.get("nanuq.indexer.failed").functionCounter().count());
+  }
+
+  @Test
+  void coalesce_same_prescription() {
+    when(bioProperties.getNanuqIndexerCoalesceWindow()).thenReturn(60000L);
+    when(bioProperties.getNanuqIndexerCoalesceMaxDelay()).thenReturn(60000L);
+    final IndexerQueue queue = new IndexerQueue(nanuqIndexer, bioProperties, meterRegistry);
+    queue.submit(Set.of("sr1"));
+    queue.submit(Set.of("sr1", "sr2"));
+    queue.submit(Set.of("sr2"));
+    assertEquals(2, queue.getPending());
+    assertEquals(2, meterRegistry.get("nanuq.indexer.pending").gauge().value());
+    queue.drain();
+    verify(nanuqIndexer, times(1)).doIndex(eq(Set.of("sr1", "sr2")));
+    assertEquals(2, queue.getCoalesced());
+    assertEquals(0, queue.getPending());
+  }
+
+  @Test
+  void reindex_if_requested_during_rebuild() throws InterruptedException {
+    when(bioProperties.getNanuqIndexerCoalesceWindow()).thenReturn(60000L);
+    when(bioProperties.getNanuqIndexerCoalesceMaxDelay()).thenReturn(60000L);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    doAnswer(i -> {
+      started.countDown();
+      release.await();
+      return 0;
+    }).doReturn(0).when(nanuqIndexer).doIndex(any());
+    final IndexerQueue queue = new IndexerQueue(nanuqIndexer, bioProperties, meterRegistry);
+    queue.submit(Set.of("sr1"));
+    queue.flush(true);
+    started.await();
+    queue.submit(Set.of("sr1"));
+    queue.flush(true); // sr1 is being rebuilt, not sent twice at the same time
+    assertEquals(1, queue.getPending());
+    release.countDown();
+    queue.drain();
+    verify(nanuqIndexer, times(2)).doIndex(eq(Set.of("sr1")));
+  }
+
+  @Test
+  void index_by_caller_when_pending_full() {
+    when(bioProperties.getNanuqIndexerCoalesceWindow()).thenReturn(60000L);
+    when(bioProperties.getNanuqIndexerCoalesceMaxDelay()).thenReturn(60000L);
+    when(bioProperties.getNanuqIndexerMaxPending()).thenReturn(1);
+    final IndexerQueue queue = new IndexerQueue(nanuqIndexer, bioProperties, meterRegistry);
+    queue.submit(Set.of("sr1"));
+    queue.submit(Set.of("sr1", "sr2"));
+    // sr1 coalesced, sr2 doesn't fit
+    verify(nanuqIndexer).doIndex(eq(Set.of("sr2")));
+    assertEquals(1, queue.getPending());
+    assertEquals(1, queue.getOverflow());
+    queue.drain();
+    verify(nanuqIndexer).doIndex(eq(Set.of("sr1")));
+  }
+
+  @Test
+  void flush_waits_for_busy_workers() throws InterruptedException {
+    when(bioProperties.getNanuqIndexerQueueCapacity()).thenReturn(1);
+    when(bioProperties.getNanuqIndexerCoalesceWindow()).thenReturn(60000L);
+    when(bioProperties.getNanuqIndexerCoalesceMaxDelay()).thenReturn(60000L);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Thread caller = Thread.currentThread();
+    doAnswer(i -> {
+      assertNotSame(caller, Thread.currentThread());
+      started.countDown();
+      release.await();
+      return null;
+    }).when(nanuqIndexer).doIndex(any());
+    final IndexerQueue queue = new IndexerQueue(nanuqIndexer, bioProperties, meterRegistry);
+    queue.submit(Set.of("sr1"));
+    queue.flush(true);
+    started.await();
+    queue.submit(Set.of("sr2"));
+    queue.flush(true); // queued
+    queue.submit(Set.of("sr3"));
+    queue.flush(true); // queue full, not run by the flushing thread
+    assertEquals(1, queue.getPending());
+    release.countDown();
+    queue.drain();
+    verify(nanuqIndexer).doIndex(eq(Set.of("sr3")));
+    assertEquals(0, queue.getPending());
+    // all indexed by the workers
+    assertEquals(0, queue.getFailed());
+  }
+
+  @Test
+  void drain_bounded_by_shutdown_timeout() throws InterruptedException {
+    when(bioProperties.getNanuqIndexerShutdownTimeout()).thenReturn(1);
+    when(bioProperties.getNanuqIndexerCoalesceWindow()).thenReturn(60000L);
+    when(bioProperties.getNanuqIndexerCoalesceMaxDelay()).thenReturn(60000L);
+    final CountDownLatch started = new CountDownLatch(1);
+    doAnswer(i -> {
+      started.countDown();
+      new CountDownLatch(1).await();
+      return null;
+    }).when(nanuqIndexer).doIndex(any());
+    final IndexerQueue queue = new IndexerQueue(nanuqIndexer, bioProperties, meterRegistry);
+    queue.submit(Set.of("sr1"));
+    queue.flush(true);
+    started.await();
+    queue.submit(Set.of("sr1")); // waits for the rebuild in progress, never done
+    final long start = System.currentTimeMillis();
+    queue.drain();
+    assertTrue(System.currentTimeMillis() - start < 3000);
+  }
+}
@@ -0,0 +1,98 @@
+package bio.ferlab.clin.es.indexer;
+
+import bio.ferlab.clin.es.ResourceKeys;
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.es.extractor.PrescriptionIdResolver;
+import bio.ferlab.clin.properties.BioProperties;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class NanuqCatchUpTest {
+
+  final IFhirResourceDao<ServiceRequest> serviceRequestDao = mockDao(ServiceRequest.class);
+  final IFhirResourceDao<Task> taskDao = mockDao(Task.class);
+  final IFhirResourceDao<Specimen> specimenDao = mockDao(Specimen.class);
+  final IFhirResourceDao<Patient> patientDao = mockDao(Patient.class);
+  final IFhirResourceDao<Organization> organizationDao = mockDao(Organization.class);
+  final ResourceDaoConfiguration daoConfiguration = new ResourceDaoConfiguration(patientDao, null, serviceRequestDao, null, organizationDao
+    , null, null, null, null, null, specimenDao, taskDao);
+  private final ResourceKeys resourceKeys = Mockito.mock(ResourceKeys.class);
+  private final PrescriptionIdResolver resolver = Mockito.mock(PrescriptionIdResolver.class);
+  private final NanuqIndexer nanuqIndexer = Mockito.mock(NanuqIndexer.class);
+  private final IndexerWatermark watermark = Mockito.mock(IndexerWatermark.class);
+  private final BioProperties bioProperties = Mockito.mock(BioProperties.class);
+  private final NanuqCatchUp catchUp = new NanuqCatchUp(daoConfiguration, resourceKeys, resolver, nanuqIndexer, watermark, bioProperties);
+
+  @BeforeEach
+  void beforeEach() {
+    when(bioProperties.getNanuqReindexBatchSize()).thenReturn(100);
+    when(bioProperties.getNanuqCatchUpOverlap()).thenReturn(1000L);
+  }
+
+  @Test
+  void start_from_now_without_watermark() {
+    when(watermark.get(eq(NanuqCatchUp.WATERMARK))).thenReturn(Optional.empty());
+
+    catchUp.catchUp();
+
+    verify(watermark).set(eq(NanuqCatchUp.WATERMARK), any());
+    verifyNoInteractions(nanuqIndexer, serviceRequestDao);
+  }
+
+  @Test
+  void reindex_changes_since_watermark() {
+    final Date since = new Date(System.currentTimeMillis() - 60000);
+    when(watermark.get(eq(NanuqCatchUp.WATERMARK))).thenReturn(Optional.of(since));
+    final Task task = new Task();
+    task.setId("t1");
+    when(resourceKeys.next(eq("Task"), any(), any(), anyInt())).thenReturn(List.of(new ResourceKeys.Key(new Date(), 1, "t1")));
+    when(taskDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(task)));
+    when(resolver.resolve(eq(List.of(task)))).thenReturn(Set.of("sr1"));
+
+    catchUp.catchUp();
+
+    verify(nanuqIndexer).doIndex(eq(Set.of("sr1")));
+    final ArgumentCaptor<Date> captor = ArgumentCaptor.forClass(Date.class);
+    verify(watermark).set(eq(NanuqCatchUp.WATERMARK), captor.capture());
+    assertTrue(captor.getValue().after(since));
+    assertTrue(captor.getValue().before(new Date(System.currentTimeMillis() - 999)));
+  }
+
+  @Test
+  void keep_watermark_if_failed() {
+    when(watermark.get(eq(NanuqCatchUp.WATERMARK))).thenReturn(Optional.of(new Date(1000)));
+    final ServiceRequest sr = new ServiceRequest();
+    sr.setId("sr1");
+    when(resourceKeys.next(eq("ServiceRequest"), any(), any(), anyInt())).thenReturn(List.of(new ResourceKeys.Key(new Date(), 1, "sr1")));
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(sr)));
+    when(resolver.resolve(anyCollection())).thenReturn(Set.of("sr1"));
+    doThrow(new RuntimeException("ES down")).when(nanuqIndexer).doIndex(any(Set.class));
+
+    catchUp.catchUp();
+
+    verify(watermark, never()).set(any(), any());
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T extends org.hl7.fhir.instance.model.api.IBaseResource> IFhirResourceDao<T> mockDao(Class<T> type) {
+    final IFhirResourceDao<T> dao = Mockito.mock(IFhirResourceDao.class);
+    when(dao.search(any())).thenReturn(new SimpleBundleProvider());
+    when(dao.getResourceType()).thenReturn(type);
+    return dao;
+  }
+}
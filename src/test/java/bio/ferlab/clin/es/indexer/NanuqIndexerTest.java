@@ -0,0 +1,201 @@
+package bio.ferlab.clin.es.indexer;
+
+import bio.ferlab.clin.es.ElasticsearchRestClient;
+import bio.ferlab.clin.es.NanuqFacetCache;
+import bio.ferlab.clin.es.builder.nanuq.AnalysisDataBuilder;
+import bio.ferlab.clin.es.builder.nanuq.SequencingDataBuilder;
+import bio.ferlab.clin.es.data.nanuq.AnalysisData;
+import bio.ferlab.clin.es.extractor.ServiceRequestIdExtractor;
+import bio.ferlab.clin.properties.BioProperties;
+import bio.ferlab.clin.utils.JsonGenerator;
+import bio.ferlab.clin.utils.ResourceMemo;
+import ca.uhn.fhir.context.FhirContext;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class NanuqIndexerTest {
+
+  private final AnalysisDataBuilder analysisDataBuilder = Mockito.mock(AnalysisDataBuilder.class);
+  private final SequencingDataBuilder sequencingDataBuilder = Mockito.mock(SequencingDataBuilder.class);
+  private final BioProperties bioProperties = Mockito.mock(BioProperties.class);
+  private final ElasticsearchRestClient client = Mockito.mock(ElasticsearchRestClient.class);
+  private final JsonGenerator jsonGenerator = new JsonGenerator(FhirContext.forR4());
+  private final NanuqFacetCache facetCache = Mockito.mock(NanuqFacetCache.class);
+  private final NanuqIndexer nanuqIndexer = new NanuqIndexer(Mockito.mock(ServiceRequestIdExtractor.class), analysisDataBuilder,
+    sequencingDataBuilder, bioProperties, new IndexerTools(client, bioProperties, jsonGenerator), new ResourceMemo(), facetCache);
+
+  @BeforeEach
+  void beforeEach() {
+    when(bioProperties.isNanuqSkipUnchanged()).thenReturn(true);
+    when(bioProperties.getNanuqEsAnalysesIndex()).thenReturn("analyses");
+    when(bioProperties.getNanuqEsSequencingsIndex()).thenReturn("sequencings");
+    when(client.bulkAsync(any())).thenReturn(CompletableFuture.completedFuture(new ElasticsearchRestClient.BulkResult()));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void skip_unchanged_documents() {
+    when(analysisDataBuilder.fromIds(any(), any())).thenReturn(List.of(analysis("a1", "draft"), analysis("a2", "draft")));
+    when(client.getFieldValues(any(), any(), any())).thenReturn(Map.of());
+
+    nanuqIndexer.doIndex(null, Set.of("a1", "a2"), "analyses", "sequencings", false);
+
+    final ArgumentCaptor<List<ElasticsearchRestClient.BulkAction>> captor = ArgumentCaptor.forClass(List.class);
+    verify(client).bulkAsync(captor.capture());
+    assertEquals(2, captor.getValue().size());
+    final String a1Fingerprint = jsonGenerator.parse(captor.getValue().get(0).source).get("fingerprint").asText();
+
+    // same content with a new timestamp for a1, a2 has changed
+    final AnalysisData a1 = analysis("a1", "draft");
+    a1.setTimestamp("2021-01-01T00:00:00Z");
+    when(analysisDataBuilder.fromIds(any(), any())).thenReturn(List.of(a1, analysis("a2", "active")));
+    when(client.getFieldValues(eq("analyses"), any(), eq("fingerprint"))).thenReturn(Map.of("a1", a1Fingerprint, "a2", "old"));
+
+    nanuqIndexer.doIndex(null, Set.of("a1", "a2"), "analyses", "sequencings", false);
+
+    verify(client, times(2)).bulkAsync(captor.capture());
+    assertEquals(1, captor.getValue().size());
+    assertEquals("a2", captor.getValue().get(0).id);
+    assertEquals(3, nanuqIndexer.getWrittenDocuments());
+    assertEquals(1, nanuqIndexer.getSkippedDocuments());
+    // the cached dashboard counts are outdated by each write
+    verify(facetCache, times(2)).invalidate();
+  }
+
+  @Test
+  void write_all_if_fingerprints_unavailable() {
+    when(analysisDataBuilder.fromIds(any(), any())).thenReturn(List.of(analysis("a1", "draft")));
+    when(client.getFieldValues(any(), any(), any())).thenThrow(new RuntimeException("ES down"));
+
+    nanuqIndexer.doIndex(null, Set.of("a1"), "analyses", "sequencings", false);
+
+    verify(client).bulkAsync(argThat(actions -> actions.size() == 1));
+  }
+
+  @Test
+  void dual_write_to_rebuilt_indexes() {
+    when(analysisDataBuilder.fromIds(any(), any())).thenReturn(List.of(analysis("a1", "draft")));
+    when(client.getFieldValues(any(), any(), any())).thenReturn(Map.of());
+
+    nanuqIndexer.startDualWrite("analyses-new", "sequencings-new");
+    nanuqIndexer.doIndex(Set.of("a1"));
+    nanuqIndexer.delete(Set.of("a2"));
+    nanuqIndexer.stopDualWrite();
+    nanuqIndexer.doIndex(Set.of("a1"));
+
+    verify(client).bulkAsync(argThat(actions -> actions.size() == 1 && actions.get(0).index.equals("analyses-new")));
+    verify(client, times(2)).bulkAsync(argThat(actions -> actions.size() == 1 && actions.get(0).index.equals("analyses")));
+    verify(client).bulkAsync(argThat(actions -> actions.size() == 4 && actions.get(3).index.equals("sequencings-new")));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void external_version_and_rejections() {
+    when(bioProperties.isNanuqExternalVersioning()).thenReturn(true);
+    when(analysisDataBuilder.fromIds(any(), any())).thenReturn(List.of(analysis("a1", "draft"), analysis("a2", "draft")));
+    when(client.getFieldValues(any(), any(), any())).thenReturn(Map.of());
+    final ElasticsearchRestClient.BulkResult result = Mockito.mock(ElasticsearchRestClient.BulkResult.class);
+    when(result.getRejected()).thenReturn(1);
+    when(client.bulkAsync(any())).thenReturn(CompletableFuture.completedFuture(result));
+
+    final long before = System.currentTimeMillis();
+    nanuqIndexer.doIndex(null, Set.of("a1", "a2"), "analyses", "sequencings", false);
+    nanuqIndexer.delete(Set.of("a1"));
+
+    final ArgumentCaptor<List<ElasticsearchRestClient.BulkAction>> captor = ArgumentCaptor.forClass(List.class);
+    verify(client, times(2)).bulkAsync(captor.capture());
+    // the time of the build, the same for the whole batch, independent of the _lastUpdated of the resources
+    final List<ElasticsearchRestClient.BulkAction> indexed = captor.getAllValues().get(0);
+    assertTrue(indexed.get(0).version >= before);
+    assertEquals(indexed.get(0).version, indexed.get(1).version);
+    // a delete can't be overwritten by an older build
+    assertTrue(captor.getAllValues().get(1).get(0).version >= indexed.get(0).version);
+    assertEquals(2, nanuqIndexer.getRejectedDocuments());
+    // the version isn't part of the document
+    assertFalse(jsonGenerator.parse(indexed.get(0).source).has("version"));
+  }
+
+  @Test
+  void not_versioned_if_disabled() {
+    when(analysisDataBuilder.fromIds(any(), any())).thenReturn(List.of(analysis("a1", "draft")));
+    when(client.getFieldValues(any(), any(), any())).thenReturn(Map.of());
+
+    nanuqIndexer.doIndex(null, Set.of("a1"), "analyses", "sequencings", false);
+    nanuqIndexer.doIndex(null, Set.of("a1"), "analyses-new", "sequencings-new", false);
+
+    verify(client).bulkAsync(argThat(actions -> actions.get(0).index.equals("analyses") && actions.get(0).version == null));
+    // the indexes rebuilt by a migration are always versioned
+    verify(client).bulkAsync(argThat(actions -> actions.get(0).index.equals("analyses-new") && actions.get(0).version != null));
+  }
+
+  @Test
+  void no_fingerprint_lookup_in_rebuilt_indexes() {
+    when(analysisDataBuilder.fromIds(any(), any())).thenReturn(List.of(analysis("a1", "draft")));
+
+    nanuqIndexer.doIndex(null, Set.of("a1"), "analyses-new", "sequencings-new", false);
+
+    verify(client, never()).getFieldValues(any(), any(), any());
+    verify(client).bulkAsync(argThat(actions -> actions.size() == 1));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void fingerprint_independent_of_lists_order() {
+    final AnalysisData a1 = analysis("a1", "draft");
+    a1.setSecurityTags(new ArrayList<>(List.of("ep1", "ep2")));
+    a1.setAssignments(new ArrayList<>(List.of("pr1", "pr2")));
+    final AnalysisData reordered = analysis("a1", "draft");
+    reordered.setSecurityTags(new ArrayList<>(List.of("ep2", "ep1")));
+    reordered.setAssignments(new ArrayList<>(List.of("pr2", "pr1")));
+    when(analysisDataBuilder.fromIds(any(), any())).thenReturn(List.of(a1)).thenReturn(List.of(reordered));
+    when(client.getFieldValues(any(), any(), any())).thenReturn(Map.of());
+
+    nanuqIndexer.doIndex(null, Set.of("a1"), "analyses", "sequencings", false);
+    nanuqIndexer.doIndex(null, Set.of("a1"), "analyses", "sequencings", false);
+
+    final ArgumentCaptor<List<ElasticsearchRestClient.BulkAction>> captor = ArgumentCaptor.forClass(List.class);
+    verify(client, times(2)).bulkAsync(captor.capture());
+    assertEquals(jsonGenerator.parse(captor.getAllValues().get(0).get(0).source).get("fingerprint"),
+      jsonGenerator.parse(captor.getAllValues().get(1).get(0).source).get("fingerprint"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void fingerprint_unchanged_by_streaming() {
+    final AnalysisData a1 = analysis("a1", "draft");
+    a1.setTimestamp("2021-01-01T00:00:00Z");
+    when(analysisDataBuilder.fromIds(any(), any())).thenReturn(List.of(a1));
+    when(client.getFieldValues(any(), any(), any())).thenReturn(Map.of());
+
+    nanuqIndexer.doIndex(null, Set.of("a1"), "analyses", "sequencings", false);
+
+    final ArgumentCaptor<List<ElasticsearchRestClient.BulkAction>> captor = ArgumentCaptor.forClass(List.class);
+    verify(client).bulkAsync(captor.capture());
+    final ObjectNode indexed = (ObjectNode) jsonGenerator.parse(captor.getValue().get(0).source);
+    final String fingerprint = indexed.remove("fingerprint").asText();
+    indexed.remove("timestamp");
+    // same as the previous tree based fingerprint, the documents already indexed aren't re-written
+    assertEquals(DigestUtils.md5Hex(indexed.toString()), fingerprint);
+  }
+
+  private AnalysisData analysis(String id, String status) {
+    final AnalysisData analysis = new AnalysisData();
+    analysis.setPrescriptionId(id);
+    analysis.setStatus(status);
+    return analysis;
+  }
+}
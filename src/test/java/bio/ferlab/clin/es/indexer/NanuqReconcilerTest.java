@@ -0,0 +1,152 @@
+package bio.ferlab.clin.es.indexer;
+
+import bio.ferlab.clin.es.ElasticsearchRestClient;
+import bio.ferlab.clin.es.ResourceKeys;
+import bio.ferlab.clin.es.builder.nanuq.AbstractPrescriptionDataBuilder;
+import bio.ferlab.clin.es.builder.nanuq.AbstractPrescriptionDataBuilder.Type;
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.properties.BioProperties;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class NanuqReconcilerTest {
+
+  @SuppressWarnings("unchecked")
+  private final IFhirResourceDao<ServiceRequest> serviceRequestDao = Mockito.mock(IFhirResourceDao.class);
+  private final ResourceDaoConfiguration configuration = new ResourceDaoConfiguration(null, null, serviceRequestDao,
+    null, null, null, null, null, null, null, null, null);
+  private final ResourceKeys resourceKeys = Mockito.mock(ResourceKeys.class);
+  private final ElasticsearchRestClient client = Mockito.mock(ElasticsearchRestClient.class);
+  private final NanuqIndexer nanuqIndexer = Mockito.mock(NanuqIndexer.class);
+  private final BioProperties bioProperties = Mockito.mock(BioProperties.class);
+  private final NanuqReconciler reconciler = new NanuqReconciler(configuration, resourceKeys, client, nanuqIndexer, bioProperties);
+
+  // index => id => version hash, what ES contains
+  private final Map<String, Map<String, Integer>> es = new HashMap<>();
+
+  @BeforeEach
+  @SuppressWarnings("unchecked")
+  void beforeEach() {
+    when(bioProperties.getNanuqEsAnalysesIndex()).thenReturn("analyses");
+    when(bioProperties.getNanuqEsSequencingsIndex()).thenReturn("sequencings");
+    when(bioProperties.getNanuqReindexBatchSize()).thenReturn(100);
+    when(bioProperties.getNanuqReconcileRanges()).thenReturn(4);
+    when(bioProperties.getNanuqReconcileLeafSize()).thenReturn(1);
+    when(serviceRequestDao.getResourceType()).thenReturn(ServiceRequest.class);
+    when(client.rangeSums(any(), eq(NanuqReconciler.ID_HASH_FIELD), any(), eq(NanuqReconciler.VERSION_HASH_FIELD))).thenAnswer(i -> {
+      final Map<String, Integer> documents = es.getOrDefault(i.<String>getArgument(0), Map.of());
+      final List<Long> bounds = i.getArgument(2);
+      final List<ElasticsearchRestClient.RangeSum> sums = new ArrayList<>();
+      for (int b = 0; b < bounds.size() - 1; b++) {
+        final long from = bounds.get(b);
+        final long to = bounds.get(b + 1);
+        final List<String> ids = documents.keySet().stream().filter(id -> inRange(id, from, to)).collect(Collectors.toList());
+        sums.add(new ElasticsearchRestClient.RangeSum(from, to, ids.size(), ids.stream().mapToLong(documents::get).sum()));
+      }
+      return sums;
+    });
+    when(client.docValues(any(), any(), eq(NanuqReconciler.VERSION_HASH_FIELD), anyInt())).thenAnswer(i -> {
+      final Map<String, Integer> documents = es.getOrDefault(i.<String>getArgument(0), Map.of());
+      final Map<String, Object> range = (Map<String, Object>) ((Map<String, Object>) i.<Map<String, Object>>getArgument(1).get("range"))
+        .get(NanuqReconciler.ID_HASH_FIELD);
+      final Map<String, Long> values = new HashMap<>();
+      documents.forEach((id, hash) -> {
+        if (inRange(id, (long) range.get("gte"), (long) range.get("lt"))) {
+          values.put(id, (long) hash);
+        }
+      });
+      return values;
+    });
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void reindex_only_divergent_documents() {
+    final List<ServiceRequest> db = new ArrayList<>();
+    final Map<String, Integer> analyses = new HashMap<>();
+    for (int i = 0; i < 50; i++) {
+      db.add(serviceRequest("a" + i, "1", Type.ANALYSIS));
+      analyses.put("a" + i, AbstractPrescriptionDataBuilder.versionHash("a" + i, "1"));
+    }
+    // stale, missing and deleted from the DB
+    db.add(serviceRequest("stale", "2", Type.ANALYSIS));
+    analyses.put("stale", AbstractPrescriptionDataBuilder.versionHash("stale", "1"));
+    db.add(serviceRequest("s1", "1", Type.SEQUENCING));
+    analyses.put("deleted", AbstractPrescriptionDataBuilder.versionHash("deleted", "1"));
+    // created after the scan, still in the DB
+    analyses.put("late", AbstractPrescriptionDataBuilder.versionHash("late", "1"));
+    es.put("analyses", analyses);
+    when(resourceKeys.next(any(), any(), any(), anyInt())).thenReturn(keys(db));
+    // one page scanned then the _id search of the ones to delete
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider(db))
+      .thenReturn(new SimpleBundleProvider(List.of(serviceRequest("late", "1", Type.ANALYSIS))));
+    when(nanuqIndexer.doIndex(any())).thenReturn(1);
+    when(nanuqIndexer.versionOf(eq("analyses"), anyLong())).thenReturn(42L);
+    final ElasticsearchRestClient.BulkResult bulk = Mockito.mock(ElasticsearchRestClient.BulkResult.class);
+    when(bulk.getSucceeded()).thenReturn(1);
+    when(client.bulk(any())).thenReturn(bulk);
+
+    final NanuqReconciler.Result result = reconciler.reconcile();
+
+    assertEquals(Set.of("stale", "s1"), result.getToIndex());
+    verify(nanuqIndexer).doIndex(eq(Set.of("stale", "s1")));
+    final ArgumentCaptor<List<ElasticsearchRestClient.BulkAction>> captor = ArgumentCaptor.forClass(List.class);
+    verify(client).bulk(captor.capture());
+    assertEquals(1, captor.getValue().size());
+    assertEquals("analyses", captor.getValue().get(0).index);
+    assertEquals("deleted", captor.getValue().get(0).id);
+    assertEquals(42L, captor.getValue().get(0).version);
+    assertEquals(1, result.getDeleted());
+    // reported apart, not as fixed
+    assertEquals(1, result.getRejected());
+    // only the ranges of the divergent documents were split, far less than one range by document
+    assertTrue(result.getRanges() < 200, "ranges: " + result.getRanges());
+  }
+
+  @Test
+  void nothing_to_do() {
+    es.put("analyses", Map.of("a1", AbstractPrescriptionDataBuilder.versionHash("a1", "3")));
+    final List<ServiceRequest> db = List.of(serviceRequest("a1", "3", Type.ANALYSIS));
+    when(resourceKeys.next(any(), any(), any(), anyInt())).thenReturn(keys(db));
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider(db))
+      .thenReturn(new SimpleBundleProvider());
+
+    final NanuqReconciler.Result result = reconciler.reconcile();
+
+    // one level by index
+    assertEquals(8, result.getRanges());
+    verify(client, never()).docValues(any(), any(), any(), anyInt());
+    verifyNoInteractions(nanuqIndexer);
+  }
+
+  private static boolean inRange(String id, long from, long to) {
+    final int hash = AbstractPrescriptionDataBuilder.idHash(id);
+    return hash >= from && hash < to;
+  }
+
+  private static List<ResourceKeys.Key> keys(List<ServiceRequest> serviceRequests) {
+    final List<ResourceKeys.Key> keys = new ArrayList<>();
+    serviceRequests.forEach(sr -> keys.add(new ResourceKeys.Key(sr.getMeta().getLastUpdated(), keys.size(), sr.getIdElement().getIdPart())));
+    return keys;
+  }
+
+  private static ServiceRequest serviceRequest(String id, String versionId, Type type) {
+    final ServiceRequest serviceRequest = new ServiceRequest();
+    serviceRequest.setId(id);
+    serviceRequest.getMeta().setVersionId(versionId).setLastUpdated(new Date()).addProfile(type.value);
+    return serviceRequest;
+  }
+}
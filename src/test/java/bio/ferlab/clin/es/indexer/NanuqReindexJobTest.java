@@ -0,0 +1,86 @@
+package bio.ferlab.clin.es.indexer;
+
+import bio.ferlab.clin.es.MigrationStatus;
+import bio.ferlab.clin.es.ResourceKeys;
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.properties.BioProperties;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class NanuqReindexJobTest {
+
+  private final NanuqIndexer nanuqIndexer = Mockito.mock(NanuqIndexer.class);
+  private final BioProperties bioProperties = Mockito.mock(BioProperties.class);
+  final IFhirResourceDao<ServiceRequest> serviceRequestDao = Mockito.mock(IFhirResourceDao.class);
+  final ResourceDaoConfiguration daoConfiguration = new ResourceDaoConfiguration(null, null, serviceRequestDao, null, null
+    , null, null, null, null, null, null, null);
+  final ResourceKeys resourceKeys = Mockito.mock(ResourceKeys.class);
+  private final NanuqReindexJob job = new NanuqReindexJob(nanuqIndexer, daoConfiguration, resourceKeys, bioProperties);
+
+  @BeforeEach
+  void beforeEach() {
+    when(bioProperties.getNanuqReindexBatchSize()).thenReturn(2);
+    when(serviceRequestDao.getResourceType()).thenReturn(ServiceRequest.class);
+  }
+
+  @Test
+  void reindex_pages_with_rate_limit() {
+    final ServiceRequest sr1 = serviceRequest("sr1", 1000);
+    final ServiceRequest sr2 = serviceRequest("sr2", 2000);
+    final ServiceRequest sr3 = serviceRequest("sr3", 3000);
+    when(resourceKeys.next(eq("ServiceRequest"), any(), any(), eq(2)))
+      .thenReturn(List.of(key(sr1), key(sr2)))
+      .thenReturn(List.of(key(sr3)));
+    when(serviceRequestDao.search(any()))
+      .thenReturn(new SimpleBundleProvider(List.of(sr1, sr2)))
+      .thenReturn(new SimpleBundleProvider(List.of(sr3)));
+
+    final long start = System.currentTimeMillis();
+    // 3 prescriptions at 20/sec => at least 100ms
+    job.run(new NanuqReindexJob.Criteria(Set.of(), null, "LDM1", null, null, 20));
+
+    verify(nanuqIndexer).doIndex(eq(Set.of("sr1", "sr2")));
+    verify(nanuqIndexer).doIndex(eq(Set.of("sr3")));
+    assertEquals(3, job.getStatus().getIndexed());
+    assertEquals(MigrationStatus.State.completed, job.getStatus().getState());
+    assertTrue(System.currentTimeMillis() - start >= 100);
+  }
+
+  @Test
+  void failed() {
+    final ServiceRequest sr1 = serviceRequest("sr1", 1000);
+    when(resourceKeys.next(any(), any(), any(), anyInt())).thenReturn(List.of(key(sr1)));
+    when(serviceRequestDao.search(any())).thenReturn(new SimpleBundleProvider(List.of(sr1)));
+    doThrow(new RuntimeException("ES down")).when(nanuqIndexer).doIndex(any(Set.class));
+
+    job.run(new NanuqReindexJob.Criteria(Set.of("sr1"), null, null, null, null, 0));
+
+    assertEquals(MigrationStatus.State.failed, job.getStatus().getState());
+    assertEquals("ES down", job.getStatus().getError());
+  }
+
+  private ServiceRequest serviceRequest(String id, long lastUpdated) {
+    final ServiceRequest serviceRequest = new ServiceRequest();
+    serviceRequest.setId(id);
+    serviceRequest.getMeta().setLastUpdated(new java.util.Date(lastUpdated));
+    return serviceRequest;
+  }
+
+  private ResourceKeys.Key key(ServiceRequest serviceRequest) {
+    return new ResourceKeys.Key(serviceRequest.getMeta().getLastUpdated(), serviceRequest.getMeta().getLastUpdated().getTime(),
+      serviceRequest.getIdElement().getIdPart());
+  }
+}
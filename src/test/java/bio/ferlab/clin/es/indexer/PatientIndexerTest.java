@@ -0,0 +1,88 @@
+package bio.ferlab.clin.es.indexer;
+
+import bio.ferlab.clin.es.ElasticsearchRestClient;
+import bio.ferlab.clin.es.builder.patient.PatientDataBuilder;
+import bio.ferlab.clin.es.data.patient.PatientData;
+import bio.ferlab.clin.es.extractor.PatientIdExtractor;
+import bio.ferlab.clin.properties.BioProperties;
+import bio.ferlab.clin.utils.JsonGenerator;
+import ca.uhn.fhir.context.FhirContext;
+import org.hl7.fhir.r4.model.Person;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class PatientIndexerTest {
+
+  private final PatientDataBuilder patientDataBuilder = Mockito.mock(PatientDataBuilder.class);
+  private final BioProperties bioProperties = Mockito.mock(BioProperties.class);
+  private final ElasticsearchRestClient client = Mockito.mock(ElasticsearchRestClient.class);
+  private final JsonGenerator jsonGenerator = new JsonGenerator(FhirContext.forR4());
+  private final PatientIdExtractor patientIdExtractor = new PatientIdExtractor();
+  private final PatientIndexer patientIndexer = new PatientIndexer(patientIdExtractor, patientDataBuilder, bioProperties,
+    new IndexerTools(client, bioProperties, jsonGenerator));
+
+  @BeforeEach
+  void beforeEach() {
+    when(bioProperties.getEsPatientsIndex()).thenReturn("patients");
+    when(client.bulkAsync(any())).thenReturn(CompletableFuture.completedFuture(new ElasticsearchRestClient.BulkResult()));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void index_found_and_delete_missing() {
+    final PatientData p1 = new PatientData();
+    p1.setPatientId("p1");
+    p1.setMrn("MRN1");
+    when(patientDataBuilder.fromIds(any())).thenReturn(List.of(p1));
+
+    patientIndexer.startDualWrite("patients-HASH2");
+    patientIndexer.doIndex(Set.of("p1", "p2"));
+
+    final ArgumentCaptor<List<ElasticsearchRestClient.BulkAction>> captor = ArgumentCaptor.forClass(List.class);
+    verify(client).bulkAsync(captor.capture());
+    assertEquals(List.of("INDEX patients p1", "DELETE patients p2", "INDEX patients-HASH2 p1", "DELETE patients-HASH2 p2"),
+      captor.getValue().stream().map(a -> a.type + " " + a.index + " " + a.id).collect(Collectors.toList()));
+    assertEquals("MRN1", jsonGenerator.parse(captor.getValue().get(0).source).get("mrn").asText());
+    // only the index being rebuilt is versioned, the migration and the live writes race there
+    assertNull(captor.getValue().get(0).version);
+    assertNotNull(captor.getValue().get(2).version);
+    assertEquals(captor.getValue().get(2).version, captor.getValue().get(3).version);
+    verify(patientDataBuilder, times(1)).fromIds(any());
+
+    patientIndexer.stopDualWrite();
+    patientIndexer.delete(Set.of("p1"));
+    verify(client, times(2)).bulkAsync(captor.capture());
+    assertEquals(1, captor.getValue().size());
+  }
+
+  @Test
+  void extract_patients() {
+    final ServiceRequest serviceRequest = new ServiceRequest();
+    serviceRequest.setSubject(new Reference("Patient/p1"));
+    final Person person = new Person();
+    person.addLink().setTarget(new Reference("Patient/p2"));
+    person.addLink().setTarget(new Reference("Practitioner/pr1"));
+
+    assertEquals(Set.of("p1"), patientIndexer.extractPatientIds(serviceRequest));
+    assertEquals(Set.of("p2"), patientIndexer.extractPatientIds(person));
+  }
+
+  @Test
+  void nothing_to_index() {
+    patientIndexer.doIndex(Set.of());
+    verifyNoInteractions(patientDataBuilder, client);
+  }
+}
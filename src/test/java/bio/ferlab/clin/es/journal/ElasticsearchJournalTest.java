@@ -0,0 +1,80 @@
+package bio.ferlab.clin.es.journal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ElasticsearchJournalTest {
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void append_peek_consume() {
+    final ElasticsearchJournal journal = new ElasticsearchJournal(dir.resolve("journal"), 1024);
+    assertTrue(journal.isEmpty());
+    assertTrue(journal.append(records("a", "b")));
+    assertTrue(journal.append(records("c")));
+
+    assertEquals(List.of("a", "b"), strings(journal.peek(2)));
+    journal.consume(2);
+    assertEquals(List.of("c"), strings(journal.peek(10)));
+    journal.consume(1);
+    assertTrue(journal.isEmpty());
+  }
+
+  @Test
+  void reopen_keeps_pending_records() {
+    final Path path = dir.resolve("journal");
+    final ElasticsearchJournal journal = new ElasticsearchJournal(path, 1024);
+    journal.append(records("a", "b"));
+    journal.consume(1);
+    journal.close();
+
+    final ElasticsearchJournal reopened = new ElasticsearchJournal(path, 1024);
+    assertEquals(List.of("b"), strings(reopened.peek(10)));
+  }
+
+  @Test
+  void refuse_when_full() {
+    final ElasticsearchJournal journal = new ElasticsearchJournal(dir.resolve("journal"), 16 + 4 + 10);
+    assertFalse(journal.append(records("0123456789", "x")));
+    assertTrue(journal.isEmpty());
+    assertTrue(journal.append(records("0123456789")));
+    assertFalse(journal.append(records("x")));
+    // space is reused once replayed
+    journal.consume(1);
+    assertTrue(journal.append(records("x")));
+  }
+
+  @Test
+  void one_instance_by_path() {
+    final Path path = dir.resolve("journal");
+    final ElasticsearchJournal journal = new ElasticsearchJournal(path, 1024);
+    assertThrows(IllegalStateException.class, () -> new ElasticsearchJournal(path, 1024));
+    journal.close();
+    assertTrue(new ElasticsearchJournal(path, 1024).isEmpty());
+  }
+
+  @Test
+  void disabled() {
+    final ElasticsearchJournal journal = new ElasticsearchJournal(null, 0);
+    assertFalse(journal.isEnabled());
+    assertTrue(journal.isEmpty());
+    assertFalse(journal.append(records("a")));
+  }
+
+  private static List<byte[]> records(String... values) {
+    return List.of(values).stream().map(v -> v.getBytes(StandardCharsets.UTF_8)).collect(Collectors.toList());
+  }
+
+  private static List<String> strings(List<byte[]> records) {
+    return records.stream().map(r -> new String(r, StandardCharsets.UTF_8)).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,104 @@
+package bio.ferlab.clin.es.outbox;
+
+import bio.ferlab.clin.es.extractor.PrescriptionDependencyIndex;
+import bio.ferlab.clin.es.indexer.NanuqIndexer;
+import bio.ferlab.clin.es.indexer.PatientIndexer;
+import bio.ferlab.clin.properties.BioProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class IndexerOutboxRelayTest {
+
+  private final IndexerOutbox outbox = Mockito.mock(IndexerOutbox.class);
+  private final NanuqIndexer nanuqIndexer = Mockito.mock(NanuqIndexer.class);
+  private final PatientIndexer patientIndexer = Mockito.mock(PatientIndexer.class);
+  private final PrescriptionDependencyIndex dependencyIndex = Mockito.mock(PrescriptionDependencyIndex.class);
+  private final BioProperties bioProperties = Mockito.mock(BioProperties.class);
+  private final IndexerOutboxRelay relay = new IndexerOutboxRelay(outbox, nanuqIndexer, patientIndexer, dependencyIndex, bioProperties);
+
+  private final IndexerOutbox.Entry sr1 = new IndexerOutbox.Entry(IndexerOutbox.NANUQ, "ServiceRequest", "sr1", List.of(1L), 0);
+  private final IndexerOutbox.Entry sr2 = new IndexerOutbox.Entry(IndexerOutbox.NANUQ, "ServiceRequest", "sr2", List.of(2L, 3L), 9);
+  private final IndexerOutbox.Entry p1 = new IndexerOutbox.Entry(IndexerOutbox.PATIENTS, "Patient", "p1", List.of(4L), 0);
+
+  @BeforeEach
+  void beforeEach() {
+    when(bioProperties.getNanuqOutboxBatchSize()).thenReturn(100);
+    when(bioProperties.getNanuqOutboxPollInterval()).thenReturn(1000L);
+    when(bioProperties.getNanuqOutboxMaxAttempts()).thenReturn(10);
+  }
+
+  @Test
+  void relay_and_remove() {
+    when(outbox.poll(eq(100))).thenReturn(List.of(sr1, sr2)).thenReturn(List.of());
+
+    relay.drain();
+
+    verify(nanuqIndexer).doIndex(eq(Set.of("sr1", "sr2")));
+    verify(outbox).remove(eq(List.of(sr1, sr2)));
+  }
+
+  @Test
+  void relay_by_target() {
+    when(outbox.poll(eq(100))).thenReturn(List.of(sr1, p1)).thenReturn(List.of());
+
+    relay.drain();
+
+    verify(nanuqIndexer).doIndex(eq(Set.of("sr1")));
+    verify(patientIndexer).doIndex(eq(Set.of("p1")));
+    verify(outbox).remove(eq(List.of(sr1, p1)));
+  }
+
+  @Test
+  void resolve_prescriptions_after_commit() {
+    final IndexerOutbox.Entry s1 = new IndexerOutbox.Entry(IndexerOutbox.NANUQ, "Specimen", "s1", List.of(5L), 0);
+    final IndexerOutbox.Entry s2 = new IndexerOutbox.Entry(IndexerOutbox.NANUQ, "Specimen", "s2", List.of(6L), 0);
+    when(outbox.poll(eq(100))).thenReturn(List.of(sr1, s1, s2)).thenReturn(List.of());
+    when(dependencyIndex.prescriptionIds(eq("Specimen"), eq(Set.of("s1", "s2")))).thenReturn(Set.of("sr2", "sr3"));
+
+    relay.drain();
+
+    verify(nanuqIndexer).doIndex(eq(Set.of("sr1", "sr2", "sr3")));
+    verify(outbox).remove(eq(List.of(sr1, s1, s2)));
+  }
+
+  @Test
+  void retry_failed_prescriptions() {
+    when(outbox.poll(eq(100))).thenReturn(List.of(sr1, sr2));
+    doThrow(new RuntimeException("batch")).when(nanuqIndexer).doIndex(eq(Set.of("sr1", "sr2")));
+    doThrow(new RuntimeException("sr2")).when(nanuqIndexer).doIndex(eq(Set.of("sr2")));
+
+    relay.drain();
+
+    final ArgumentCaptor<Collection<IndexerOutbox.Entry>> removed = ArgumentCaptor.forClass(Collection.class);
+    verify(outbox, times(2)).remove(removed.capture());
+    // sr1 indexed then sr2 removed because max attempts reached
+    assertEquals(List.of(sr1), removed.getAllValues().get(0));
+    assertEquals(List.of(sr2), removed.getAllValues().get(1));
+    verify(outbox).incrementAttempts(eq(List.of()));
+    verify(outbox, times(1)).poll(anyInt());
+  }
+
+  @Test
+  void backoff_when_nothing_indexed() {
+    when(outbox.poll(eq(100))).thenReturn(List.of(sr1));
+    doThrow(new RuntimeException("ES down")).when(nanuqIndexer).doIndex(any());
+
+    relay.drain();
+    relay.drain();
+
+    verify(outbox, times(1)).poll(anyInt());
+    verify(outbox).release(eq(List.of(sr1)));
+    verify(outbox, never()).incrementAttempts(any());
+  }
+}
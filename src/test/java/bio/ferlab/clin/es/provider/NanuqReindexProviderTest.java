@@ -0,0 +1,109 @@
+package bio.ferlab.clin.es.provider;
+
+import bio.ferlab.clin.es.MigrationManager;
+import bio.ferlab.clin.es.MigrationStatus;
+import bio.ferlab.clin.es.indexer.NanuqReindexJob;
+import bio.ferlab.clin.properties.BioProperties;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.ForbiddenOperationException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import com.auth0.jwt.JWT;
+import com.auth0.jwt.algorithms.Algorithm;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.http.HttpHeaders;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class NanuqReindexProviderTest {
+
+  private final MigrationManager migrationManager = Mockito.mock(MigrationManager.class);
+  private final NanuqReindexJob reindexJob = Mockito.mock(NanuqReindexJob.class);
+  private final BioProperties bioProperties = Mockito.mock(BioProperties.class);
+  private final NanuqReindexProvider provider = new NanuqReindexProvider(migrationManager, reindexJob, bioProperties);
+
+  @BeforeEach
+  void beforeEach() {
+    when(bioProperties.getNanuqReindexRate()).thenReturn(50);
+    when(bioProperties.getAuthSystemId()).thenReturn("clin-system");
+    when(migrationManager.getStatus()).thenReturn(new MigrationStatus(MigrationStatus.State.idle, null, null,
+      0, 0, 0, null, null, null, null));
+    when(reindexJob.getStatus()).thenReturn(new NanuqReindexJob.Status(MigrationStatus.State.running, "ids=[sr1]", 0, new Date(), null, null));
+  }
+
+  @Test
+  void running() {
+    when(migrationManager.getStatus()).thenReturn(new MigrationStatus(MigrationStatus.State.running, "analyses-HASH2", "sequencings-HASH2",
+      4, 1, 250, 1000L, new Date(), 30L, null));
+
+    final Parameters parameters = provider.reindexStatus();
+
+    assertEquals("running", parameters.getParameter("state").primitiveValue());
+    assertEquals("analyses-HASH2", parameters.getParameter("analysesIndex").primitiveValue());
+    assertEquals("250", parameters.getParameter("indexed").primitiveValue());
+    assertEquals("1000", parameters.getParameter("total").primitiveValue());
+    assertEquals("30", parameters.getParameter("etaSeconds").primitiveValue());
+    assertNull(parameters.getParameter("error"));
+  }
+
+  @Test
+  void idle() {
+    when(migrationManager.getStatus()).thenReturn(new MigrationStatus(MigrationStatus.State.idle, null, null,
+      0, 0, 0, null, null, null, null));
+
+    final Parameters parameters = provider.reindexStatus();
+
+    assertEquals("idle", parameters.getParameter("state").primitiveValue());
+    assertNull(parameters.getParameter("analysesIndex"));
+    assertNull(parameters.getParameter("etaSeconds"));
+  }
+
+  @Test
+  void reindex() {
+    final Parameters parameters = provider.reindex(List.of(new StringType("sr1"), new StringType("")), null, new StringType("LDM1"),
+      new DateTimeType(new Date(1000)), null, null, Mockito.mock(RequestDetails.class));
+
+    final ArgumentCaptor<NanuqReindexJob.Criteria> captor = ArgumentCaptor.forClass(NanuqReindexJob.Criteria.class);
+    verify(reindexJob).start(captor.capture());
+    assertEquals(Set.of("sr1"), captor.getValue().getIds());
+    assertNull(captor.getValue().getEp());
+    assertEquals("LDM1", captor.getValue().getLdm());
+    assertEquals(new Date(1000), captor.getValue().getFrom());
+    assertEquals(50, captor.getValue().getRate());
+    assertEquals("running", parameters.getParameter("state").primitiveValue());
+  }
+
+  @Test
+  void reindex_rejected_during_migration() {
+    when(migrationManager.getStatus()).thenReturn(new MigrationStatus(MigrationStatus.State.running, "analyses-HASH2", "sequencings-HASH2",
+      4, 1, 250, null, new Date(), null, null));
+
+    assertThrows(InvalidRequestException.class, () -> provider.reindex(null, null, null, null, null, null, Mockito.mock(RequestDetails.class)));
+    verify(reindexJob, never()).start(any());
+  }
+
+  @Test
+  void reindex_restricted_to_system() {
+    when(bioProperties.isAuthEnabled()).thenReturn(true);
+    final RequestDetails requestDetails = Mockito.mock(RequestDetails.class);
+    when(requestDetails.getHeader(eq(HttpHeaders.AUTHORIZATION))).thenReturn("Bearer " + JWT.create().withClaim("azp", "clin-client").sign(Algorithm.none()));
+
+    assertThrows(ForbiddenOperationException.class, () -> provider.reindex(null, null, null, null, null, null, requestDetails));
+
+    when(requestDetails.getHeader(eq(HttpHeaders.AUTHORIZATION))).thenReturn("Bearer " + JWT.create().withClaim("azp", "clin-system").sign(Algorithm.none()));
+    provider.reindex(null, null, null, null, null, null, requestDetails);
+    verify(reindexJob).start(any());
+  }
+}
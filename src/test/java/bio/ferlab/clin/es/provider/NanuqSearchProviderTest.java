@@ -0,0 +1,154 @@
+package bio.ferlab.clin.es.provider;
+
+import bio.ferlab.clin.es.ElasticsearchRestClient;
+import bio.ferlab.clin.es.NanuqFacetCache;
+import bio.ferlab.clin.es.config.ResourceDaoConfiguration;
+import bio.ferlab.clin.interceptors.metatag.MetaTagResourceAccess;
+import bio.ferlab.clin.properties.BioProperties;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import org.hl7.fhir.r4.model.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class NanuqSearchProviderTest {
+
+  private final ElasticsearchRestClient client = Mockito.mock(ElasticsearchRestClient.class);
+  @SuppressWarnings("unchecked")
+  private final IFhirResourceDao<ServiceRequest> serviceRequestDao = Mockito.mock(IFhirResourceDao.class);
+  private final ResourceDaoConfiguration configuration = new ResourceDaoConfiguration(null, null, serviceRequestDao,
+    null, null, null, null, null, null, null, null, null);
+  private final MetaTagResourceAccess metaTagResourceAccess = Mockito.mock(MetaTagResourceAccess.class);
+  private final BioProperties bioProperties = Mockito.mock(BioProperties.class);
+  private final NanuqSearchProvider provider = new NanuqSearchProvider(client, configuration, metaTagResourceAccess,
+    new NanuqFacetCache(60000, () -> 0), bioProperties);
+  private final RequestDetails requestDetails = Mockito.mock(RequestDetails.class);
+
+  @BeforeEach
+  void beforeEach() {
+    when(bioProperties.getNanuqEsAnalysesIndex()).thenReturn("analyses");
+    when(bioProperties.getNanuqEsSequencingsIndex()).thenReturn("sequencings");
+    when(bioProperties.getNanuqSearchMaxCount()).thenReturn(100);
+    when(client.search(any(), any())).thenReturn(new ElasticsearchRestClient.SearchResult(42, List.of("sr2", "sr1")));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void filters_and_security_tags() {
+    when(bioProperties.isTaggingEnabled()).thenReturn(true);
+    when(metaTagResourceAccess.getUserTags(any())).thenReturn(List.of("LDM1"));
+    when(metaTagResourceAccess.getUserRoles(any())).thenReturn(List.of("clin_prescriber"));
+
+    final Bundle bundle = provider.search(null, List.of(new StringType("active"), new StringType("draft")), null, null,
+      List.of(new StringType("")), null, List.of(new StringType("MRN1")), new DateType("2021-01-01"), null,
+      new IntegerType(500), new IntegerType(10), null, requestDetails);
+
+    final ArgumentCaptor<Map<String, Object>> captor = ArgumentCaptor.forClass(Map.class);
+    verify(client).search(eq("analyses"), captor.capture());
+    final Map<String, Object> body = captor.getValue();
+    assertEquals(100, body.get("size"));
+    assertEquals(10, body.get("from"));
+    final List<Object> filters = (List<Object>) ((Map<String, Object>) ((Map<String, Object>) body.get("query")).get("bool")).get("filter");
+    assertEquals(List.of(
+      Map.of("terms", Map.of("status", List.of("active", "draft"))),
+      Map.of("terms", Map.of("patient_mrn", List.of("MRN1"))),
+      Map.of("range", Map.of("created_on", Map.of("gte", "2021-01-01"))),
+      Map.of("terms", Map.of("security_tags", List.of("LDM1")))), filters);
+
+    assertEquals(42, bundle.getTotal());
+    assertEquals(List.of("ServiceRequest/sr2", "ServiceRequest/sr1"), bundle.getEntry().stream()
+      .map(Bundle.BundleEntryComponent::getFullUrl).collect(java.util.stream.Collectors.toList()));
+    verifyNoInteractions(serviceRequestDao);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void no_security_filter_for_geneticians() {
+    when(bioProperties.isTaggingEnabled()).thenReturn(true);
+    when(metaTagResourceAccess.getUserTags(any())).thenReturn(List.of("LDM1"));
+    when(metaTagResourceAccess.getUserRoles(any())).thenReturn(List.of(MetaTagResourceAccess.USER_ROLE_GENETICIAN));
+
+    provider.search(new CodeType("sequencings"), null, null, null, null, null, null, null, null, null, null, null, requestDetails);
+
+    final ArgumentCaptor<Map<String, Object>> captor = ArgumentCaptor.forClass(Map.class);
+    verify(client).search(eq("sequencings"), captor.capture());
+    assertEquals("{bool={filter=[]}}", captor.getValue().get("query").toString());
+    assertEquals(20, captor.getValue().get("size"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void partial_dates_expanded_to_days() {
+    provider.search(null, null, null, null, null, null, null, new DateType("2021"), new DateType("2021-02"), null, null, null, requestDetails);
+
+    final ArgumentCaptor<Map<String, Object>> captor = ArgumentCaptor.forClass(Map.class);
+    verify(client).search(eq("analyses"), captor.capture());
+    final List<Object> filters = (List<Object>) ((Map<String, Object>) ((Map<String, Object>) captor.getValue().get("query")).get("bool")).get("filter");
+    assertEquals(List.of(Map.of("range", Map.of("created_on", Map.of("gte", "2021-01-01", "lte", "2021-02-28")))), filters);
+  }
+
+  @Test
+  void hydrate_in_es_order() {
+    final ServiceRequest sr1 = new ServiceRequest();
+    sr1.setId("sr1");
+    final ServiceRequest sr2 = new ServiceRequest();
+    sr2.setId("sr2");
+    when(serviceRequestDao.search(any(), any())).thenReturn(new SimpleBundleProvider(List.of(sr1, sr2)));
+
+    final Bundle bundle = provider.search(null, null, null, null, null, null, null, null, null, null, null,
+      new BooleanType(true), requestDetails);
+
+    verify(serviceRequestDao, times(1)).search(any(), eq(requestDetails));
+    assertEquals(2, bundle.getEntry().size());
+    assertSame(sr2, bundle.getEntry().get(0).getResource());
+    assertSame(sr1, bundle.getEntry().get(1).getResource());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void facets_cached_by_security_tags() {
+    when(bioProperties.isTaggingEnabled()).thenReturn(true);
+    when(bioProperties.getNanuqFacetsSize()).thenReturn(50);
+    when(metaTagResourceAccess.getUserTags(any())).thenReturn(List.of("LDM2", "LDM1"));
+    when(client.termsAggregations(any(), any(), any(), anyInt())).thenReturn(new ElasticsearchRestClient.AggregationResult(3,
+      Map.of("status", Map.of("active", 2L, "draft", 1L))));
+
+    final Parameters parameters = provider.facets(null, requestDetails);
+    provider.facets(null, requestDetails);
+
+    final ArgumentCaptor<Map<String, Object>> captor = ArgumentCaptor.forClass(Map.class);
+    verify(client, times(1)).termsAggregations(eq("analyses"), captor.capture(), eq(NanuqSearchProvider.FACETS), eq(50));
+    assertEquals("{bool={filter=[{terms={security_tags=[LDM2, LDM1]}}]}}", captor.getValue().toString());
+    assertEquals("3", parameters.getParameter("total").primitiveValue());
+    final Parameters.ParametersParameterComponent status = parameters.getParameter().stream()
+      .filter(p -> p.getName().equals("status")).findFirst().orElseThrow();
+    assertEquals(2, status.getPart().size());
+
+    // other tags, other counts
+    when(metaTagResourceAccess.getUserTags(any())).thenReturn(List.of("LDM3"));
+    provider.facets(null, requestDetails);
+    verify(client, times(2)).termsAggregations(any(), any(), any(), anyInt());
+  }
+
+  @Test
+  void invalid_parameters() {
+    assertThrows(InvalidRequestException.class, () -> provider.search(new CodeType("patients"), null, null, null, null, null, null,
+      null, null, null, null, null, requestDetails));
+    assertThrows(InvalidRequestException.class, () -> provider.search(null, null, null, null, null, null, null,
+      null, null, null, new IntegerType(9990), null, requestDetails));
+    verifyNoInteractions(client);
+  }
+}
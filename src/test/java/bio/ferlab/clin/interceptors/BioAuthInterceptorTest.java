@@ -3,10 +3,12 @@ package bio.ferlab.clin.interceptors;
 import bio.ferlab.clin.auth.RPTPermissionExtractor;
 import bio.ferlab.clin.auth.data.Permission;
 import bio.ferlab.clin.auth.data.UserPermissions;
+import bio.ferlab.clin.auth.data.custom.Reindex;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.interceptor.auth.IAuthRule;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ServiceRequest;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
@@ -130,6 +132,35 @@ class BioAuthInterceptorTest {
 
       assertTrue(testRule(rules.get(1), "GRAPHQL"));
     }
+
+    @Test
+    void readReindex() {
+      final RequestDetails requestDetails = Mockito.mock(RequestDetails.class);
+      final List<Permission> perms = List.of(
+          new Permission(Reindex.class, false, true, false, false)
+      );
+      final UserPermissions userPermissions = new UserPermissions(perms.toArray(Permission[]::new));
+
+      when(rptPermissionExtractor.extract(any())).thenReturn(userPermissions);
+      var rules = bioAuthInterceptor.buildRuleList(requestDetails);
+
+      assertEquals("OperationRule", rules.get(0).getClass().getSimpleName());
+    }
+
+    @Test
+    void readServiceRequestAllowsNanuqSearch() {
+      final RequestDetails requestDetails = Mockito.mock(RequestDetails.class);
+      final List<Permission> perms = List.of(
+          new Permission(ServiceRequest.class, false, true, false, false)
+      );
+      final UserPermissions userPermissions = new UserPermissions(perms.toArray(Permission[]::new));
+
+      when(rptPermissionExtractor.extract(any())).thenReturn(userPermissions);
+      var rules = bioAuthInterceptor.buildRuleList(requestDetails);
+
+      assertTrue(testRule(rules.get(0), "READ", ServiceRequest.class));
+      assertEquals("OperationRule", rules.get(1).getClass().getSimpleName());
+    }
   }
 
 }
\ No newline at end of file
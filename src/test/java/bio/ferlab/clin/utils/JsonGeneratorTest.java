@@ -0,0 +1,73 @@
+package bio.ferlab.clin.utils;
+
+import bio.ferlab.clin.es.data.nanuq.AnalysisData;
+import ca.uhn.fhir.context.FhirContext;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class JsonGeneratorTest {
+
+  private static final Logger log = LoggerFactory.getLogger(JsonGeneratorTest.class);
+  private static final int DOCUMENTS = 20_000;
+
+  private final JsonGenerator jsonGenerator = new JsonGenerator(FhirContext.forR4());
+
+  @Test
+  void toBytes_same_as_toString() {
+    final AnalysisData analysis = analysis();
+    assertArrayEquals(jsonGenerator.toString(analysis).getBytes(StandardCharsets.UTF_8), jsonGenerator.toBytes(analysis));
+    assertEquals("a1", jsonGenerator.parse(jsonGenerator.toBytes(analysis)).get("prescription_id").asText());
+  }
+
+  // allocated bytes per document of the previous String based serialization vs the bytes one,
+  // depends on the JVM (JIT, escape analysis), not run by default
+  @Test
+  @Tag("benchmark")
+  void toBytes_allocates_less() {
+    final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeAllocationMeasured(threads);
+    final AnalysisData analysis = analysis();
+    // warm-up
+    for (int i = 0; i < DOCUMENTS; i++) {
+      jsonGenerator.toString(analysis).getBytes(StandardCharsets.UTF_8);
+      jsonGenerator.toBytes(analysis);
+    }
+    final long threadId = Thread.currentThread().getId();
+
+    long start = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < DOCUMENTS; i++) {
+      jsonGenerator.toString(analysis).getBytes(StandardCharsets.UTF_8);
+    }
+    final long viaString = (threads.getThreadAllocatedBytes(threadId) - start) / DOCUMENTS;
+
+    start = threads.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < DOCUMENTS; i++) {
+      jsonGenerator.toBytes(analysis);
+    }
+    final long viaBytes = (threads.getThreadAllocatedBytes(threadId) - start) / DOCUMENTS;
+
+    log.info("Allocated bytes per document, via String: {} via bytes: {}", viaString, viaBytes);
+    assertTrue(viaBytes < viaString);
+  }
+
+  private static void assumeAllocationMeasured(com.sun.management.ThreadMXBean threads) {
+    assumeTrue(threads.isThreadAllocatedMemorySupported());
+    threads.setThreadAllocatedMemoryEnabled(true);
+  }
+
+  private static AnalysisData analysis() {
+    final AnalysisData analysis = new AnalysisData();
+    analysis.setPrescriptionId("a1");
+    analysis.setStatus("active");
+    analysis.setTimestamp("2021-01-01T00:00:00Z");
+    return analysis;
+  }
+}
@@ -6,6 +6,7 @@ import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Patient;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 import org.hl7.fhir.r4.model.IdType;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
@@ -34,7 +35,7 @@ class ResourceFinderTest {
       null,
       null,
     null);
-  private final ResourceFinder resourceFinder = new ResourceFinder(configuration);
+  private final ResourceFinder resourceFinder = new ResourceFinder(configuration, new ResourceMemo());
 
   @Test
   void findPatient_withDAO() {
@@ -68,4 +69,16 @@ class ResourceFinderTest {
     assertTrue(res.isEmpty());
   }
 
-}
\ No newline at end of file
+  @Test
+  void findPatient_memoized() {
+    RequestDetails requestDetails = new ServletRequestDetails();
+    Patient patient = new Patient();
+    patient.setId("foo");
+    when(patientDAO.read(any(), any())).thenReturn(patient);
+    resourceFinder.findPatientFromDAO(requestDetails, "foo");
+    Optional<Patient> res = resourceFinder.findPatientFromDAO(requestDetails, "Patient/foo");
+    verify(patientDAO, times(1)).read(any(), any());
+    assertSame(patient, res.get());
+  }
+
+}